@@ -0,0 +1,147 @@
+package bdv.bigcat;
+
+import java.util.TreeMap;
+
+import bdv.bigcat.Message.AssignmentDeltaData;
+import bdv.bigcat.Message.AssignmentSnapshotData;
+import bdv.bigcat.Message.ResyncData;
+import bdv.bigcat.label.FragmentSegmentAssignment;
+import bdv.bigcat.ui.AbstractARGBStream;
+
+/**
+ * Client side of the assignment synchronization protocol of
+ * {@link Message}.  Applies {@link AssignmentDeltaData deltas} in sequence
+ * to a local assignment and removes only the colors of segments that
+ * disappeared from the color cache.
+ *
+ * A delta that arrives out of sequence is kept and a resync is requested.
+ * The next snapshot replaces the assignment, the kept deltas after the
+ * snapshot are then applied.
+ */
+public class AssignmentReplica
+{
+	/* deltas kept while waiting for a snapshot */
+	static public final int MAX_PENDING_DELTAS = 1024;
+
+	final protected FragmentSegmentAssignment assignment;
+
+	final protected AbstractARGBStream colorStream;
+
+	final protected Runnable onChange;
+
+	protected long sequence;
+
+	protected boolean awaitingSnapshot = false;
+
+	final protected TreeMap< Long, AssignmentDeltaData > pending = new TreeMap<>();
+
+	/**
+	 * @param assignment
+	 * @param colorStream
+	 *            may be null
+	 * @param onChange
+	 *            called after the assignment changed, e.g. to repaint, may be
+	 *            null
+	 * @param sequence
+	 *            sequence of the last delta that the assignment reflects,
+	 *            {@link AssignmentDeltaData#NO_SEQUENCE} to wait for a
+	 *            snapshot
+	 */
+	public AssignmentReplica(
+			final FragmentSegmentAssignment assignment,
+			final AbstractARGBStream colorStream,
+			final Runnable onChange,
+			final long sequence )
+	{
+		this.assignment = assignment;
+		this.colorStream = colorStream;
+		this.onChange = onChange;
+		this.sequence = sequence;
+	}
+
+	public AssignmentReplica(
+			final FragmentSegmentAssignment assignment,
+			final AbstractARGBStream colorStream,
+			final Runnable onChange )
+	{
+		this( assignment, colorStream, onChange, AssignmentDeltaData.NO_SEQUENCE );
+	}
+
+	/**
+	 * @return sequence of the last applied delta
+	 */
+	public synchronized long getSequence()
+	{
+		return sequence;
+	}
+
+	/**
+	 * Handle a message of the server.
+	 *
+	 * @param msg
+	 * @return a message to send to the server, or null
+	 */
+	public synchronized Message receive( final Message msg )
+	{
+		switch ( msg.getType() )
+		{
+		case ASSIGNMENT_SNAPSHOT:
+		{
+			final AssignmentSnapshotData snapshot = ( AssignmentSnapshotData )msg.getData();
+			if ( snapshot.sequence < sequence )
+				return null;
+			assignment.initLut( snapshot.lut.toLut() );
+			if ( colorStream != null )
+				colorStream.clearCache();
+			sequence = snapshot.sequence;
+			awaitingSnapshot = false;
+			pending.headMap( sequence, true ).clear();
+			applyPending();
+			changed();
+			return null;
+		}
+		case ASSIGNMENT_DELTA:
+		{
+			final AssignmentDeltaData delta = ( AssignmentDeltaData )msg.getData();
+			if ( sequence != AssignmentDeltaData.NO_SEQUENCE && delta.sequence <= sequence )
+				return null;
+			if ( !awaitingSnapshot && delta.sequence == sequence + 1 )
+			{
+				apply( delta );
+				applyPending();
+				changed();
+				return null;
+			}
+			if ( pending.size() < MAX_PENDING_DELTAS )
+				pending.put( delta.sequence, delta );
+			if ( awaitingSnapshot )
+				return null;
+			awaitingSnapshot = true;
+			return new Message( new ResyncData( sequence ) );
+		}
+		default:
+			return null;
+		}
+	}
+
+	protected void apply( final AssignmentDeltaData delta )
+	{
+		final long[] removedSegments = delta.applyTo( assignment );
+		if ( colorStream != null )
+			colorStream.removeFromCache( removedSegments );
+		sequence = delta.sequence;
+	}
+
+	protected void applyPending()
+	{
+		AssignmentDeltaData next;
+		while ( ( next = pending.remove( sequence + 1 ) ) != null )
+			apply( next );
+	}
+
+	protected void changed()
+	{
+		if ( onChange != null )
+			onChange.run();
+	}
+}
@@ -0,0 +1,204 @@
+package bdv.bigcat;
+
+import bdv.bigcat.Message.AssignmentDeltaData;
+import bdv.bigcat.Message.AssignmentSnapshotData;
+import bdv.bigcat.Message.EditData;
+import bdv.bigcat.Message.IsolateData;
+import bdv.bigcat.Message.MergeData;
+import bdv.bigcat.label.FragmentSegmentAssignment;
+import bdv.labels.labelset.Label;
+import bdv.util.IdService;
+import gnu.trove.impl.Constants;
+import gnu.trove.map.hash.TLongLongHashMap;
+import gnu.trove.set.hash.TLongHashSet;
+
+/**
+ * Server side of the assignment synchronization protocol of
+ * {@link Message}.  Applies edits of clients to the authoritative
+ * assignment, resolves them into {@link AssignmentDeltaData deltas} with
+ * explicit segment ids and numbers the deltas consecutively.
+ *
+ * Edits that arrive together should be resolved into one batch and sent as
+ * one delta.
+ *
+ * {@link EditData Edits} that refer to segments are checked against the
+ * sequence of the delta that last changed each segment, and rejected if the
+ * client did not know that change yet.
+ */
+public class AssignmentSequencer
+{
+	final protected FragmentSegmentAssignment assignment;
+
+	final protected IdService idService;
+
+	/* send a snapshot after this many deltas */
+	final protected int snapshotInterval;
+
+	protected long sequence = 0;
+
+	protected int numDeltasSinceSnapshot = 0;
+
+	/* sequence of the delta that last changed a segment, 0 if never */
+	final protected TLongLongHashMap lastModified = new TLongLongHashMap(
+			Constants.DEFAULT_CAPACITY,
+			Constants.DEFAULT_LOAD_FACTOR,
+			Label.TRANSPARENT,
+			0 );
+
+	/**
+	 * @param assignment
+	 * @param idService
+	 *            allocates ids of merged and relabeled segments
+	 * @param snapshotInterval
+	 *            {@link #isSnapshotDue()} after this many deltas
+	 */
+	public AssignmentSequencer( final FragmentSegmentAssignment assignment, final IdService idService, final int snapshotInterval )
+	{
+		this.assignment = assignment;
+		this.idService = idService;
+		this.snapshotInterval = snapshotInterval;
+	}
+
+	/**
+	 * Apply an edit to the assignment and append the resolved changes to a
+	 * batch.  Messages other than merges and isolates are ignored.
+	 *
+	 * @param edit
+	 * @param batch
+	 * @return whether the message was an edit
+	 */
+	public synchronized boolean resolve( final Message edit, final AssignmentDeltaData batch )
+	{
+		switch ( edit.getType() )
+		{
+		case MERGE:
+		{
+			final long[] fragments = ( ( MergeData )edit.getData() ).fragments;
+			for ( int i = 1; i < fragments.length; ++i )
+			{
+				final long segmentId1 = assignment.getSegment( fragments[ 0 ] );
+				final long segmentId2 = assignment.getSegment( fragments[ i ] );
+				if ( segmentId1 != segmentId2 )
+					merge( segmentId1, segmentId2, batch );
+			}
+			return true;
+		}
+		case ISOLATE:
+		{
+			final long fragmentId = ( ( IsolateData )edit.getData() ).fragment;
+			detach( fragmentId, assignment.getSegment( fragmentId ), batch );
+			return true;
+		}
+		default:
+			return false;
+		}
+	}
+
+	/**
+	 * Apply an edit to the assignment and append the resolved changes to a
+	 * batch if none of its segments changed after the base sequence of the
+	 * edit.  Either all or none of the ops of the edit are applied.  Edits
+	 * that mention a segment twice or are malformed are rejected.
+	 *
+	 * @param edit
+	 * @param batch
+	 * @return whether the edit was applied
+	 */
+	public synchronized boolean resolve( final EditData edit, final AssignmentDeltaData batch )
+	{
+		if ( edit.ops == null || edit.args == null || edit.args.length != 2 * edit.ops.length )
+			return false;
+
+		final TLongHashSet ids = new TLongHashSet();
+		for ( int i = 0, j = 0; i < edit.ops.length; ++i, j += 2 )
+		{
+			final long id1 = edit.args[ j ];
+			final long id2 = edit.args[ j + 1 ];
+			if ( !ids.add( id1 ) || !ids.add( id2 ) )
+				return false;
+			if ( lastModified.get( id1 ) > edit.baseSequence || lastModified.get( id2 ) > edit.baseSequence )
+				return false;
+			switch ( edit.ops[ i ] )
+			{
+			case EditData.MERGE:
+				/* null for ids that are fragments of other segments */
+				if ( assignment.getFragments( id1 ) == null || assignment.getFragments( id2 ) == null )
+					return false;
+				break;
+			case EditData.DETACH:
+				if ( assignment.getSegment( id1 ) != id2 )
+					return false;
+				break;
+			default:
+				return false;
+			}
+		}
+
+		for ( int i = 0, j = 0; i < edit.ops.length; ++i, j += 2 )
+		{
+			if ( edit.ops[ i ] == EditData.MERGE )
+				merge( edit.args[ j ], edit.args[ j + 1 ], batch );
+			else
+				detach( edit.args[ j ], edit.args[ j + 1 ], batch );
+		}
+		return true;
+	}
+
+	private void merge( final long segmentId1, final long segmentId2, final AssignmentDeltaData batch )
+	{
+		final long mergedSegmentId = idService.next();
+		assignment.mergeSegments( segmentId1, segmentId2, mergedSegmentId );
+		batch.merge( segmentId1, segmentId2, mergedSegmentId );
+		modified( segmentId1, segmentId2, mergedSegmentId );
+	}
+
+	private void detach( final long fragmentId, final long segmentId, final AssignmentDeltaData batch )
+	{
+		final long relabeled = assignment.detachFragment( fragmentId, () -> idService.next() );
+		batch.detach( fragmentId, relabeled );
+		modified( fragmentId, segmentId );
+		if ( relabeled != Label.INVALID )
+			modified( relabeled );
+	}
+
+	/* changes of the current batch will get the next sequence */
+	private void modified( final long... segmentIds )
+	{
+		for ( final long segmentId : segmentIds )
+			lastModified.put( segmentId, sequence + 1 );
+	}
+
+	/**
+	 * Assign the next sequence number to a batch.
+	 *
+	 * @param batch
+	 *            not empty
+	 * @return the delta message
+	 */
+	public synchronized Message sequence( final AssignmentDeltaData batch )
+	{
+		batch.sequence = ++sequence;
+		batch.trim();
+		++numDeltasSinceSnapshot;
+		return new Message( batch );
+	}
+
+	/**
+	 * @return a snapshot of the assignment after the last delta
+	 */
+	public synchronized Message snapshot()
+	{
+		numDeltasSinceSnapshot = 0;
+		return new Message( new AssignmentSnapshotData( sequence, assignment ) );
+	}
+
+	public synchronized boolean isSnapshotDue()
+	{
+		return numDeltasSinceSnapshot >= snapshotInterval;
+	}
+
+	public synchronized long getSequence()
+	{
+		return sequence;
+	}
+}
@@ -7,6 +7,8 @@ import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
 
 import javax.swing.JOptionPane;
 
@@ -16,6 +18,7 @@ import com.beust.jcommander.Parameter;
 import org.scijava.ui.behaviour.io.InputTriggerConfig;
 import org.scijava.ui.behaviour.io.InputTriggerDescription;
 import org.scijava.ui.behaviour.io.yaml.YamlConfigIO;
+import org.zeromq.ZContext;
 
 import bdv.BigDataViewer;
 import bdv.bigcat.annotation.AnnotationsHdf5Store;
@@ -31,6 +34,8 @@ import bdv.bigcat.control.LabelPersistenceController;
 import bdv.bigcat.control.MergeController;
 import bdv.bigcat.control.SelectionController;
 import bdv.bigcat.control.TranslateZController;
+import bdv.bigcat.control.UndoController;
+import bdv.bigcat.label.EditJournal;
 import bdv.bigcat.label.FragmentSegmentAssignment;
 import bdv.bigcat.label.PairLabelMultiSetLongIdPicker;
 import bdv.bigcat.label.LabelMultiSetIdPicker;
@@ -38,28 +43,32 @@ import bdv.bigcat.label.IdPicker;
 import bdv.bigcat.ui.ARGBConvertedLabelPairSource;
 import bdv.bigcat.ui.ARGBConvertedLabelsSource;
 import bdv.bigcat.ui.AbstractARGBConvertedLabelsSource;
+import bdv.bigcat.ui.AbstractARGBStream;
 import bdv.bigcat.ui.GoldenAngleSaturatedConfirmSwitchARGBStream;
 import bdv.bigcat.ui.GoldenAngleSaturatedARGBStream;
 import bdv.bigcat.ui.Util;
 import bdv.img.SetCache;
+import bdv.img.SparseLongCanvas;
+import bdv.img.SparseLongCanvasPyramid;
 import bdv.img.h5.AbstractH5SetupImageLoader;
+import bdv.img.h5.ChunkMaxIds;
 import bdv.img.h5.H5LabelMultisetSetupImageLoader;
+import bdv.img.h5.H5ReadQueue;
 import bdv.img.h5.H5UnsignedByteSetupImageLoader;
 import bdv.img.h5.H5Utils;
 import bdv.labels.labelset.Label;
 import bdv.labels.labelset.LabelMultisetType;
-import bdv.labels.labelset.Multiset;
 import bdv.labels.labelset.VolatileLabelMultisetType;
+import bdv.util.FloodFillEngine;
 import bdv.util.IdService;
 import bdv.util.LocalIdService;
 import bdv.viewer.TriggerBehaviourBindings;
 import ch.systemsx.cisd.hdf5.HDF5Factory;
 import ch.systemsx.cisd.hdf5.IHDF5Reader;
+import ch.systemsx.cisd.hdf5.IHDF5Writer;
 import gnu.trove.map.hash.TLongLongHashMap;
 import net.imglib2.RandomAccessibleInterval;
 import net.imglib2.algorithm.neighborhood.DiamondShape;
-import net.imglib2.img.cell.CellImg;
-import net.imglib2.img.cell.CellImgFactory;
 import net.imglib2.interpolation.randomaccess.NearestNeighborInterpolatorFactory;
 import net.imglib2.realtransform.AffineTransform3D;
 import net.imglib2.realtransform.RealViews;
@@ -88,13 +97,26 @@ public class BigCat
 
 		@Parameter(names={"--readonly", "-ro"}, description = "Do not load label editing extensions. Faster, consumes less memory.")
 		public boolean readOnly;
+
+		@Parameter(names={"--autosave"}, description = "Save modified painted labels and assignments every n minutes in the background, 0 to disable (defaults to 0)")
+		public int autosaveMinutes = 0;
+
+		@Parameter(names={"--session"}, arity = 2, description = "Edit and broadcast address of a session server that owns the assignment and the ids, e.g. tcp://host:5556 tcp://host:5557")
+		public List< String > session;
 	}
 
 	final static private int[] cellDimensions = new int[]{ 64, 64, 8 };
 
+	/**
+	 * Store painted label cells off-heap if the system property
+	 * <code>bigcat.offHeapPaintedLabels</code> is set to true.
+	 */
+	final static private boolean offHeapPaintedLabels = Boolean.getBoolean( "bigcat.offHeapPaintedLabels" );
+
 	private H5LabelMultisetSetupImageLoader fragments = null;
 	private AbstractARGBConvertedLabelsSource convertedLabels = null;
-	private CellImg< LongType, ?, ? > paintedLabels = null;
+	private SparseLongCanvas paintedLabels = null;
+	private SparseLongCanvasPyramid paintedLabelsPyramid = null;
 	private BigDataViewer bdv;
 	private GoldenAngleSaturatedConfirmSwitchARGBStream colorStream;
 	private FragmentSegmentAssignment assignment;
@@ -106,9 +128,11 @@ public class BigCat
 	private AnnotationsController annotationsController;
 	private final InputTriggerConfig config;
 
-	private final IdService idService = new LocalIdService();
+	private IdService idService = new LocalIdService();
+	private SessionClient session = null;
 
 	private boolean loadPaintedLabels = false;
+	private int autosaveMinutes = 0;
 
 	public static void main( final String[] args ) throws Exception
 	{
@@ -129,11 +153,15 @@ public class BigCat
 		String labelsDataset = params.labelsDataset;
 		String rawDataset = params.rawDataset;
 		loadPaintedLabels = !params.readOnly;
+		autosaveMinutes = params.autosaveMinutes;
 
 		fragmentSegmentLutDataset = "/" + params.fragmentSegmentLutDataset;
 
 		System.out.println( "Opening " + projectFile );
-		final IHDF5Reader reader = HDF5Factory.open( projectFile );
+		final IHDF5Writer writer = HDF5Factory.open( projectFile );
+		final IHDF5Reader reader = writer;
+		/* reads of all setups in file order */
+		final H5ReadQueue readQueue = new H5ReadQueue( reader );
 
 		// support both file_format 0.0 and >=0.1
 		final String volumesPath = reader.isGroup( "/volumes" ) ? "/volumes" : "";
@@ -141,7 +169,7 @@ public class BigCat
 
 		/* raw pixels */
 		final String rawPath = volumesPath + "/" + rawDataset;
-		final H5UnsignedByteSetupImageLoader raw = new H5UnsignedByteSetupImageLoader( reader, rawPath, 0, cellDimensions );
+		final H5UnsignedByteSetupImageLoader raw = new H5UnsignedByteSetupImageLoader( readQueue, rawPath, 0, cellDimensions );
 
 		/* fragments */
 		String fragmentsPath = labelsPath + "/" + labelsDataset;
@@ -149,7 +177,7 @@ public class BigCat
 		paintedLabelsDataset = labelsPath + "/painted_" + labelsDataset;
 		fragmentsPath = reader.object().isDataSet( mergedLabelsDataset ) ? mergedLabelsDataset : fragmentsPath;
 		if ( reader.exists( fragmentsPath ) )
-			readFragments( params, reader, fragmentsPath, paintedLabelsDataset, fragmentSegmentLutDataset );
+			readFragments( params, writer, readQueue, fragmentsPath, paintedLabelsDataset, fragmentSegmentLutDataset );
 		else
 			System.out.println( "no labels found cooresponding to requested dataset '" + labelsDataset + "' (searched in '" + labelsPath + "')" );
 
@@ -158,15 +186,17 @@ public class BigCat
 
 	private void readFragments(
 			final Parameters params,
-			final IHDF5Reader reader,
+			final IHDF5Writer writer,
+			final H5ReadQueue readQueue,
 			final String labelsDataset,
 			final String paintedLabelsDataset,
 			final String fragmentSegmentLutDataset ) throws IOException
 	{
 		System.out.println("Reading fragments...");
+		final IHDF5Reader reader = readQueue.getReader();
 		fragments =
 				new H5LabelMultisetSetupImageLoader(
-						reader,
+						readQueue,
 						null,
 						labelsDataset,
 						1,
@@ -187,6 +217,9 @@ public class BigCat
 			final GoldenAngleSaturatedARGBStream cs = new GoldenAngleSaturatedARGBStream( assignment );
 			cs.setAlpha( 0x20 );
 
+			if ( params.session != null )
+				connectSession( params.session, cs );
+
 			convertedLabels =
 					new ARGBConvertedLabelsSource(
 							3,
@@ -195,47 +228,75 @@ public class BigCat
 			return;
 		}
 
+		if ( params.session != null )
+			connectSession( params.session, colorStream );
+
 		System.out.println("Finding max ID");
 
 		final Long nextIdObject = H5Utils.loadAttribute( reader, "/", "next_id" );
 		long maxId = 0;
 		if ( nextIdObject == null )
 		{
-			maxId = maxId( reader, labelsDataset, maxId );
+			/* the summaries are saved such that the next start does not scan all chunks */
+			maxId = ChunkMaxIds.updateMaxId( writer, labelsDataset, cellDimensions );
 			if ( reader.exists( paintedLabelsDataset ) )
-				maxId = maxId( reader, paintedLabelsDataset, maxId );
+				maxId = IdService.max( maxId, ChunkMaxIds.updateMaxId( writer, paintedLabelsDataset, cellDimensions ) );
 		}
 		else
 			maxId = nextIdObject.longValue() - 1;
 
+		/* tells the session server about the ids in this file */
 		idService.invalidate( maxId );
 
 		final String paintedLabelsFilePath = params.file;
 		final File paintedLabelsFile = new File( paintedLabelsFilePath );
 		if ( paintedLabelsFile.exists() && reader.exists( paintedLabelsDataset ) ) {
 			System.out.println("Reading painted labels...");
-			paintedLabels = H5Utils.loadUnsignedLong( new File( paintedLabelsFilePath ), paintedLabelsDataset, cellDimensions );
+			paintedLabels = H5Utils.loadUnsignedLong( new File( paintedLabelsFilePath ), paintedLabelsDataset, cellDimensions, Label.TRANSPARENT, offHeapPaintedLabels );
 		} else {
 			System.out.println("Creating painted labels...");
-			paintedLabels = new CellImgFactory< LongType >( cellDimensions ).create( fragmentsDimensions, new LongType() );
-			for ( final LongType t : paintedLabels )
-				t.set( Label.TRANSPARENT );
+			paintedLabels = new SparseLongCanvas( fragmentsDimensions, cellDimensions, Label.TRANSPARENT, offHeapPaintedLabels );
 		}
 
-		/* pair labels */
-		final RandomAccessiblePair< VolatileLabelMultisetType, LongType > labelPair =
-				new RandomAccessiblePair<>(
-						fragments.getVolatileImage( 0, 0 ),
-						paintedLabels );
+		/* painted labels downsampled like the fragments */
+		paintedLabelsPyramid =
+				new SparseLongCanvasPyramid(
+						paintedLabels,
+						SparseLongCanvasPyramid.factors( fragments.getMipmapResolutions() ),
+						cellDimensions );
 		convertedLabels =
 				new ARGBConvertedLabelPairSource(
 						3,
-						labelPair,
-						paintedLabels, // as Interval, used just for the size
-						fragments.getMipmapTransforms(),
+						fragments,
+						paintedLabelsPyramid,
 						colorStream );
 	}
 
+	/**
+	 * Connect to a session server whose snapshot replaces the assignment.
+	 * Merges, splits and new ids go through the server from then on.
+	 *
+	 * @param urls
+	 *            edit and broadcast address
+	 * @param stream
+	 *            colors of the displayed labels
+	 */
+	private void connectSession( final List< String > urls, final AbstractARGBStream stream )
+	{
+		System.out.println( "Connecting to session " + urls.get( 0 ) + " " + urls.get( 1 ) );
+		session = new SessionClient(
+				new ZContext(),
+				urls.get( 0 ),
+				urls.get( 1 ),
+				assignment,
+				stream,
+				() -> {
+					if ( bdv != null )
+						bdv.getViewer().requestRepaint();
+				} );
+		idService = session.getIdService();
+	}
+
 	@SuppressWarnings( "unchecked" )
 	private void setupBdv( final H5UnsignedByteSetupImageLoader raw ) throws Exception
 	{
@@ -270,6 +331,10 @@ public class BigCat
 				config );
 		}
 
+		/* repaint when the coarse levels of the painted labels caught up */
+		if ( paintedLabelsPyramid != null )
+			paintedLabelsPyramid.setUpdateListener( bdv.getViewer()::requestRepaint );
+
 		bdv.getViewerFrame().setVisible( true );
 
 		final TriggerBehaviourBindings bindings = bdv.getViewerFrame().getTriggerbindings();
@@ -321,11 +386,20 @@ public class BigCat
 					bdv.getViewerFrame().getKeybindings(),
 					config);
 
+			final EditJournal journal = new EditJournal( paintedLabels, assignment );
+			final UndoController undoController = new UndoController(
+					bdv.getViewer(),
+					journal,
+					fragments.getMipmapTransforms()[ 0 ],
+					config,
+					bdv.getViewerFrame().getKeybindings() );
+
 			final MergeController mergeController = new MergeController(
 					bdv.getViewer(),
 					idPicker,
 					selectionController,
 					assignment,
+					journal,
 					config,
 					bdv.getViewerFrame().getKeybindings(),
 					config);
@@ -338,6 +412,7 @@ public class BigCat
 						fragments.getMipmapTransforms()[ 0 ],
 						assignment,
 						selectionController,
+						journal,
 						projectFile,
 						paintedLabelsDataset,
 						cellDimensions,
@@ -359,7 +434,11 @@ public class BigCat
 						fragmentSegmentLutDataset,
 						config,
 						bdv.getViewerFrame().getKeybindings() );
+				persistenceController.setJournal( journal );
+				if ( autosaveMinutes > 0 )
+					persistenceController.startAutosave( autosaveMinutes, TimeUnit.MINUTES );
 
+				final FloodFillEngine fillEngine = new FloodFillEngine();
 				final LabelFillController fillController = new LabelFillController(
 						bdv.getViewer(),
 						fragments.getImage( 0 ),
@@ -367,6 +446,8 @@ public class BigCat
 						fragments.getMipmapTransforms()[ 0 ],
 						assignment,
 						selectionController,
+						journal,
+						fillEngine,
 						new DiamondShape( 1 ),
 						idPicker,
 						config);
@@ -383,18 +464,22 @@ public class BigCat
 						assignment,
 						colorStream,
 						selectionController,
+						fillEngine,
+						journal,
 						bdv.getViewerFrame().getKeybindings(),
 						bindings,
 						"shift T" );
 
-				final ConfirmSegmentController confirmSegment = new ConfirmSegmentController(
-						bdv.getViewer(),
-						selectionController,
-						assignment,
-						colorStream,
-						colorStream,
-						config,
-						bdv.getViewerFrame().getKeybindings() );
+				/* confirming relabels the local assignment that the session owns */
+				if ( session == null )
+					new ConfirmSegmentController(
+							bdv.getViewer(),
+							selectionController,
+							assignment,
+							colorStream,
+							colorStream,
+							config,
+							bdv.getViewerFrame().getKeybindings() );
 
 				bindings.addBehaviourMap( "brush", brushController.getBehaviourMap() );
 				bindings.addInputTriggerMap( "brush", brushController.getInputTriggerMap() );
@@ -506,36 +591,11 @@ public class BigCat
 						JOptionPane.YES_NO_OPTION ) == JOptionPane.YES_OPTION )
 		{
 			bdv.getViewerFrame().setCursor( Cursor.getPredefinedCursor( Cursor.WAIT_CURSOR ) );
+			persistenceController.stopAutosave();
 			annotationsController.saveAnnotations();
 			persistenceController.saveNextId();
 			persistenceController.saveFragmentSegmentAssignment();
 			persistenceController.savePaintedLabels();
 		}
 	}
-
-	final static protected long maxId(
-			final IHDF5Reader reader,
-			final String labelsDataset,
-			long maxId ) throws IOException
-	{
-		final H5LabelMultisetSetupImageLoader labelLoader =
-				new H5LabelMultisetSetupImageLoader(
-						reader,
-						null,
-						labelsDataset,
-						1,
-						cellDimensions );
-
-		for ( final LabelMultisetType t : Views.iterable( labelLoader.getImage( 0 ) ) )
-		{
-			for ( final Multiset.Entry< Label > v : t.entrySet() )
-			{
-				final long id = v.getElement().id();
-				if ( id != Label.TRANSPARENT && IdService.greaterThan( id, maxId ) )
-					maxId = id;
-			}
-		}
-
-		return maxId;
-	}
 }
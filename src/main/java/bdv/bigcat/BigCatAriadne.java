@@ -24,6 +24,8 @@ import bdv.bigcat.control.LabelRestrictToSegmentController;
 import bdv.bigcat.control.MergeController;
 import bdv.bigcat.control.SelectionController;
 import bdv.bigcat.control.TranslateZController;
+import bdv.bigcat.control.UndoController;
+import bdv.bigcat.label.EditJournal;
 import bdv.bigcat.label.FragmentSegmentAssignment;
 import bdv.bigcat.label.LabelMultiSetIdPicker;
 import bdv.bigcat.label.PairLabelMultiSetLongIdPicker;
@@ -31,6 +33,8 @@ import bdv.bigcat.ui.ARGBConvertedLabelPairSource;
 import bdv.bigcat.ui.GoldenAngleSaturatedARGBStream;
 import bdv.bigcat.ui.Util;
 import bdv.img.SetCache;
+import bdv.img.SparseLongCanvas;
+import bdv.img.SparseLongCanvasPyramid;
 import bdv.img.h5.AbstractH5SetupImageLoader;
 import bdv.img.h5.H5LabelMultisetSetupImageLoader;
 import bdv.img.h5.H5UnsignedByteSetupImageLoader;
@@ -38,6 +42,7 @@ import bdv.img.h5.H5Utils;
 import bdv.labels.labelset.Label;
 import bdv.labels.labelset.LabelMultisetType;
 import bdv.labels.labelset.VolatileLabelMultisetType;
+import bdv.util.FloodFillEngine;
 import bdv.util.IdService;
 import bdv.util.LocalIdService;
 import bdv.viewer.TriggerBehaviourBindings;
@@ -45,8 +50,6 @@ import ch.systemsx.cisd.hdf5.HDF5Factory;
 import ch.systemsx.cisd.hdf5.IHDF5Reader;
 import net.imglib2.RandomAccessibleInterval;
 import net.imglib2.algorithm.neighborhood.DiamondShape;
-import net.imglib2.img.cell.CellImg;
-import net.imglib2.img.cell.CellImgFactory;
 import net.imglib2.interpolation.randomaccess.NearestNeighborInterpolatorFactory;
 import net.imglib2.realtransform.AffineTransform3D;
 import net.imglib2.realtransform.RealViews;
@@ -143,25 +146,22 @@ public class BigCatAriadne
 //		Arrays.fill( paintedLabelsArray, PairVolatileLabelMultisetLongARGBConverter.TRANSPARENT_LABEL );
 //		final ArrayImg< LongType, LongArray > paintedLabels = ArrayImgs.longs( paintedLabelsArray, fragmentsDimensions );
 
-		final CellImg< LongType, ?, ? > paintedLabels;
+		final SparseLongCanvas paintedLabels;
 		final String paintedLabelsFilePath = args[ 0 ];
 		final File paintedLabelsFile = new File( paintedLabelsFilePath );
 		if ( paintedLabelsFile.exists() && reader.exists( paintedLabelsDataset ) )
-				paintedLabels = H5Utils.loadUnsignedLong( new File( paintedLabelsFilePath ), paintedLabelsDataset, cellDimensions );
+				paintedLabels = H5Utils.loadUnsignedLong( new File( paintedLabelsFilePath ), paintedLabelsDataset, cellDimensions, Label.TRANSPARENT, false );
 		else
-		{
-			paintedLabels = new CellImgFactory< LongType >( cellDimensions ).create( fragmentsDimensions, new LongType() );
-			for ( final LongType t : paintedLabels )
-				t.set( Label.TRANSPARENT );
-		}
+			paintedLabels = new SparseLongCanvas( fragmentsDimensions, cellDimensions, Label.TRANSPARENT );
 
 //		H5Utils.saveUnsignedLong( paintedLabels, new File( args[ 0 ] + ".labels.h5" ), "paintedLabels", cellDimensions );
 
-		/* pair labels */
-		final RandomAccessiblePair< VolatileLabelMultisetType, LongType > labelPair =
-				new RandomAccessiblePair<>(
-						fragments.getVolatileImage( 0, 0 ),
-						paintedLabels );
+		/* painted labels downsampled like the fragments */
+		final SparseLongCanvasPyramid paintedLabelsPyramid =
+				new SparseLongCanvasPyramid(
+						paintedLabels,
+						SparseLongCanvasPyramid.factors( fragments.getMipmapResolutions() ),
+						cellDimensions );
 
 		/* converters and controls */
 		final FragmentSegmentAssignment assignment = new FragmentSegmentAssignment( idService );
@@ -172,9 +172,8 @@ public class BigCatAriadne
 		final ARGBConvertedLabelPairSource convertedLabelPair =
 				new ARGBConvertedLabelPairSource(
 						3,
-						labelPair,
-						paintedLabels, // as Interval, used just for the size
-						fragments.getMipmapTransforms(),
+						fragments,
+						paintedLabelsPyramid,
 						colorStream );
 
 		/* composites */
@@ -197,6 +196,9 @@ public class BigCatAriadne
 		transform.set( 0, 0, 1, 0, 0, 1, 0, 0, -1, 0, 0, 0 );
 		bdv.getViewer().setCurrentViewerTransform( transform );
 
+		/* repaint when the coarse levels of the painted labels caught up */
+		paintedLabelsPyramid.setUpdateListener( bdv.getViewer()::requestRepaint );
+
 		bdv.getViewerFrame().setVisible( true );
 
 		final TriggerBehaviourBindings bindings = bdv.getViewerFrame().getTriggerbindings();
@@ -239,11 +241,20 @@ public class BigCatAriadne
 				bdv.getViewerFrame().getKeybindings(),
 				config );
 
+		final EditJournal journal = new EditJournal( paintedLabels, assignment );
+		final UndoController undoController = new UndoController(
+				bdv.getViewer(),
+				journal,
+				fragments.getMipmapTransforms()[ 0 ],
+				config,
+				bdv.getViewerFrame().getKeybindings() );
+
 		final MergeController mergeController = new MergeController(
 				bdv.getViewer(),
 				idPicker2,
 				selectionController,
 				assignment,
+				journal,
 				config,
 				bdv.getViewerFrame().getKeybindings(),
 				config );
@@ -259,6 +270,7 @@ public class BigCatAriadne
 				fragments.getMipmapTransforms()[ 0 ],
 				assignment,
 				selectionController,
+				journal,
 				paintedLabelsFilePath,
 				paintedLabelsDataset,
 				cellDimensions,
@@ -279,6 +291,7 @@ public class BigCatAriadne
 				config,
 				bdv.getViewerFrame().getKeybindings() );
 
+		final FloodFillEngine fillEngine = new FloodFillEngine();
 		final LabelFillController fillController = new LabelFillController(
 				bdv.getViewer(),
 				fragments.getImage( 0 ),
@@ -286,6 +299,8 @@ public class BigCatAriadne
 				fragments.getMipmapTransforms()[ 0 ],
 				assignment,
 				selectionController,
+				journal,
+				fillEngine,
 				new DiamondShape( 1 ),
 				idPicker2,
 				config );
@@ -297,6 +312,8 @@ public class BigCatAriadne
 				fragments.getMipmapTransforms()[ 0 ],
 				assignment,
 				selectionController,
+				fillEngine,
+				journal,
 				new DiamondShape( 1 ),
 				config );
 
@@ -311,6 +328,8 @@ public class BigCatAriadne
 				assignment,
 				colorStream,
 				selectionController,
+				fillEngine,
+				journal,
 				bdv.getViewerFrame().getKeybindings(),
 				bindings,
 				"shift S"
@@ -34,6 +34,8 @@ public class CombinedImgLoader implements ViewerImgLoader
 		}
 	}
 
+	static public final int NUM_FETCHER_THREADS = 10;
+
 	private final HashMap< Integer, ViewerSetupImgLoader< ?, ? > > setupImgLoaders;
 
 	final VolatileGlobalCellCache cache;
@@ -48,7 +50,7 @@ public class CombinedImgLoader implements ViewerImgLoader
 			setupImgLoaders.put( il.setupId, il.loader );
 		}
 
-		cache = new VolatileGlobalCellCache( 1, loaders.length, maxNumLevels, 10 );
+		cache = new VolatileGlobalCellCache( 1, loaders.length, maxNumLevels, NUM_FETCHER_THREADS );
 	}
 
 	@Override
@@ -16,7 +16,14 @@
  */
 package bdv.bigcat;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
 import java.lang.reflect.Type;
+import java.util.Arrays;
 
 import com.google.gson.JsonDeserializationContext;
 import com.google.gson.JsonDeserializer;
@@ -26,8 +33,24 @@ import com.google.gson.JsonParseException;
 import com.google.gson.JsonSerializationContext;
 import com.google.gson.JsonSerializer;
 
+import bdv.bigcat.label.FragmentSegmentAssignment;
+import bdv.labels.labelset.Label;
+import bdv.util.LutStreams;
+import gnu.trove.impl.Constants;
+import gnu.trove.list.array.TLongArrayList;
+import gnu.trove.map.hash.TLongLongHashMap;
+
 /**
+ * Messages exchanged between BigCat and a server, as JSON or in the compact
+ * binary format of {@link #toBinary()}.
  *
+ * Assignment changes are synchronized with sequenced
+ * {@link AssignmentDeltaData deltas} that are applied incrementally.
+ * Clients send edits as {@link MergeData} or {@link IsolateData}, the
+ * server resolves them into deltas with consecutive sequence numbers,
+ * broadcasts periodic {@link AssignmentSnapshotData snapshots}, and answers
+ * a {@link ResyncData resync} request of a client that missed a delta with
+ * a snapshot.
  *
  * @author Stephan Saalfeld <saalfelds@janelia.hhmi.org>
  */
@@ -35,17 +58,35 @@ public class Message
 {
 	static public enum MessageType
 	{
-		MERGE( "merge" ),
-		SEPARATE( "separate" ),
-		ISOLATE( "isolate" ),
-		FRAGMENT_SEGMENT_LUT( "fragment-segment-lut" ),
-		HANDSHAKE( "handshake" );
+		MERGE( "merge", 1 ),
+		SEPARATE( "separate", 2 ),
+		ISOLATE( "isolate", 3 ),
+		FRAGMENT_SEGMENT_LUT( "fragment-segment-lut", 4 ),
+		ASSIGNMENT_DELTA( "assignment-delta", 5 ),
+		ASSIGNMENT_SNAPSHOT( "assignment-snapshot", 6 ),
+		RESYNC( "resync", 7 ),
+		EDIT( "edit", 8 ),
+		EDIT_RESULT( "edit-result", 9 ),
+		IDS( "ids", 10 ),
+		HANDSHAKE( "handshake", 0 );
 
 		private final String name;
 
-		private MessageType( final String name )
+		/* type in the binary format, never change */
+		private final byte code;
+
+		private MessageType( final String name, final int code )
 		{
 			this.name = name;
+			this.code = ( byte )code;
+		}
+
+		static public MessageType forCode( final byte code )
+		{
+			for ( final MessageType type : values() )
+				if ( type.code == code )
+					return type;
+			return null;
 		}
 
 		public boolean equalsName( final String otherName )
@@ -80,8 +121,438 @@ public class Message
 	{
 		public long[] fragments;
 		public long[] segments;
+
+		public FragmentSegmentLUTData() {}
+
+		public FragmentSegmentLUTData( final TLongLongHashMap lut )
+		{
+			fragments = lut.keys();
+			Arrays.sort( fragments );
+			segments = new long[ fragments.length ];
+			for ( int i = 0; i < fragments.length; ++i )
+				segments[ i ] = lut.get( fragments[ i ] );
+		}
+
+		/**
+		 * @param fragments
+		 * @param segments
+		 *            segment of each fragment
+		 */
+		public FragmentSegmentLUTData( final long[] fragments, final long[] segments )
+		{
+			this.fragments = fragments;
+			this.segments = segments;
+		}
+
+		public TLongLongHashMap toLut()
+		{
+			final TLongLongHashMap lut = new TLongLongHashMap(
+					Math.max( Constants.DEFAULT_CAPACITY, fragments.length ),
+					Constants.DEFAULT_LOAD_FACTOR,
+					Label.TRANSPARENT,
+					Label.TRANSPARENT );
+			for ( int i = 0; i < fragments.length; ++i )
+				lut.put( fragments[ i ], segments[ i ] );
+			return lut;
+		}
+
+		/**
+		 * Write in the compact binary lut format of {@link LutStreams},
+		 * straight from the arrays if the fragments are in ascending order.
+		 *
+		 * @param out
+		 * @param compress
+		 * @throws IOException
+		 */
+		public void writeBinary( final OutputStream out, final boolean compress ) throws IOException
+		{
+			for ( int i = 1; i < fragments.length; ++i )
+			{
+				if ( fragments[ i - 1 ] >= fragments[ i ] )
+				{
+					LutStreams.writeBinary( toLut(), out, compress );
+					return;
+				}
+			}
+			LutStreams.writeBinary( fragments, i -> segments[ i ], out, compress );
+		}
+
+		/**
+		 * Encode in the compact binary lut format of {@link LutStreams} for
+		 * sending as a binary frame instead of JSON.
+		 *
+		 * @param compress
+		 * @return
+		 * @throws IOException
+		 */
+		public byte[] toBinary( final boolean compress ) throws IOException
+		{
+			final ByteArrayOutputStream out = new ByteArrayOutputStream();
+			writeBinary( out, compress );
+			return out.toByteArray();
+		}
+
+		static public FragmentSegmentLUTData fromBinary( final byte[] bytes ) throws IOException
+		{
+			return new FragmentSegmentLUTData( LutStreams.readBinary( new ByteArrayInputStream( bytes ) ) );
+		}
+	}
+
+	/**
+	 * A batch of resolved assignment changes with a sequence number.  The
+	 * changes are stored as op codes and their arguments in order:
+	 * <pre>
+	 * MERGE   segment1 segment2 mergedSegment
+	 * DETACH  fragment remainingSegment (or {@link Label#INVALID})
+	 * ASSIGN  n fragment_1 ... fragment_n segment_1 ... segment_n
+	 * </pre>
+	 * such that replaying them gives the same assignment everywhere without
+	 * allocating ids.
+	 */
+	static public class AssignmentDeltaData
+	{
+		static public final byte MERGE = 1;
+		static public final byte DETACH = 2;
+		static public final byte ASSIGN = 3;
+
+		/* not sequenced yet */
+		static public final long NO_SEQUENCE = -1;
+
+		public long sequence = NO_SEQUENCE;
+		public byte[] ops = new byte[ 0 ];
+		public long[] args = new long[ 0 ];
+
+		/*
+		 * Whether ops and args are exactly filled, as after construction,
+		 * trim() and deserialization, or have spare capacity after numOps
+		 * and numArgs while changes are added.
+		 */
+		private transient boolean trimmed = true;
+
+		private transient int numOps = 0;
+		private transient int numArgs = 0;
+
+		public AssignmentDeltaData() {}
+
+		public AssignmentDeltaData( final long sequence )
+		{
+			this.sequence = sequence;
+		}
+
+		private void add( final byte op, final long... opArgs )
+		{
+			if ( trimmed )
+			{
+				numOps = ops.length;
+				numArgs = args.length;
+				trimmed = false;
+			}
+			if ( numOps == ops.length )
+				ops = Arrays.copyOf( ops, Math.max( 16, 2 * numOps ) );
+			ops[ numOps++ ] = op;
+			if ( numArgs + opArgs.length > args.length )
+				args = Arrays.copyOf( args, Math.max( 2 * args.length, numArgs + opArgs.length + 16 ) );
+			System.arraycopy( opArgs, 0, args, numArgs, opArgs.length );
+			numArgs += opArgs.length;
+		}
+
+		public void merge( final long segmentId1, final long segmentId2, final long mergedSegmentId )
+		{
+			add( MERGE, segmentId1, segmentId2, mergedSegmentId );
+		}
+
+		public void detach( final long fragmentId, final long remainingSegmentId )
+		{
+			add( DETACH, fragmentId, remainingSegmentId );
+		}
+
+		public void assign( final long[] fragmentIds, final long[] segmentIds )
+		{
+			final long[] opArgs = new long[ 1 + 2 * fragmentIds.length ];
+			opArgs[ 0 ] = fragmentIds.length;
+			System.arraycopy( fragmentIds, 0, opArgs, 1, fragmentIds.length );
+			System.arraycopy( segmentIds, 0, opArgs, 1 + fragmentIds.length, segmentIds.length );
+			add( ASSIGN, opArgs );
+		}
+
+		/**
+		 * Append all changes of another delta.
+		 */
+		public void append( final AssignmentDeltaData other )
+		{
+			for ( int i = 0, a = 0; i < other.numOps(); ++i )
+			{
+				final int n = numArgs( other.ops[ i ], other.args, a );
+				add( other.ops[ i ], Arrays.copyOfRange( other.args, a, a + n ) );
+				a += n;
+			}
+		}
+
+		public int numOps()
+		{
+			return trimmed ? ops.length : numOps;
+		}
+
+		public int numArgs()
+		{
+			return trimmed ? args.length : numArgs;
+		}
+
+		public boolean isEmpty()
+		{
+			return numOps() == 0;
+		}
+
+		static private int numArgs( final byte op, final long[] args, final int offset )
+		{
+			switch ( op )
+			{
+			case MERGE:
+				return 3;
+			case DETACH:
+				return 2;
+			case ASSIGN:
+				return 1 + 2 * ( int )args[ offset ];
+			default:
+				throw new IllegalArgumentException( "Unknown assignment op " + op );
+			}
+		}
+
+		/**
+		 * Check that all ops are known and that their arguments match the
+		 * args, e.g. after decoding.
+		 *
+		 * @throws IOException
+		 */
+		public void validate() throws IOException
+		{
+			final int length = numArgs();
+			long a = 0;
+			for ( int i = 0; i < numOps(); ++i )
+			{
+				switch ( ops[ i ] )
+				{
+				case MERGE:
+					a += 3;
+					break;
+				case DETACH:
+					a += 2;
+					break;
+				case ASSIGN:
+					if ( a >= length || args[ ( int )a ] < 0 || args[ ( int )a ] > length )
+						throw new IOException( "Invalid number of assigned fragments." );
+					a += 1 + 2 * args[ ( int )a ];
+					break;
+				default:
+					throw new IOException( "Unknown assignment op " + ops[ i ] + "." );
+				}
+				if ( a > length )
+					throw new IOException( "Missing arguments of assignment op " + ops[ i ] + "." );
+			}
+			if ( a != length )
+				throw new IOException( "More arguments than assignment ops." );
+		}
+
+		/**
+		 * Drop unused capacity, e.g. before serializing.
+		 */
+		public void trim()
+		{
+			if ( trimmed )
+				return;
+			ops = Arrays.copyOf( ops, numOps );
+			args = Arrays.copyOf( args, numArgs );
+			trimmed = true;
+		}
+
+		/**
+		 * Apply all changes to an assignment.
+		 *
+		 * @param assignment
+		 * @return segments that do not exist anymore
+		 */
+		public long[] applyTo( final FragmentSegmentAssignment assignment )
+		{
+			final TLongArrayList removedSegments = new TLongArrayList();
+			for ( int i = 0, a = 0; i < numOps(); ++i )
+			{
+				switch ( ops[ i ] )
+				{
+				case MERGE:
+					assignment.mergeSegments( args[ a ], args[ a + 1 ], args[ a + 2 ] );
+					if ( args[ a ] != args[ a + 2 ] )
+						removedSegments.add( args[ a ] );
+					if ( args[ a + 1 ] != args[ a + 2 ] )
+						removedSegments.add( args[ a + 1 ] );
+					break;
+				case DETACH:
+					assignment.detachFragment( args[ a ], args[ a + 1 ] );
+					break;
+				case ASSIGN:
+					final int n = ( int )args[ a ];
+					assignment.assign(
+							Arrays.copyOfRange( args, a + 1, a + 1 + n ),
+							Arrays.copyOfRange( args, a + 1 + n, a + 1 + 2 * n ) );
+					break;
+				}
+				a += numArgs( ops[ i ], args, a );
+			}
+			return removedSegments.toArray();
+		}
 	}
 
+	/**
+	 * The complete assignment after the delta with {@link #sequence}.
+	 */
+	static public class AssignmentSnapshotData
+	{
+		public long sequence;
+		public FragmentSegmentLUTData lut;
+
+		public AssignmentSnapshotData() {}
+
+		public AssignmentSnapshotData( final long sequence, final TLongLongHashMap lut )
+		{
+			this.sequence = sequence;
+			this.lut = new FragmentSegmentLUTData( lut );
+		}
+
+		public AssignmentSnapshotData( final long sequence, final FragmentSegmentAssignment assignment )
+		{
+			this.sequence = sequence;
+			final long[][] sortedLut = assignment.getSortedLut();
+			this.lut = new FragmentSegmentLUTData( sortedLut[ 0 ], sortedLut[ 1 ] );
+		}
+	}
+
+	/**
+	 * Request a snapshot, sent by a client that received a delta out of
+	 * sequence.
+	 */
+	static public class ResyncData
+	{
+		/* last sequence that the client applied */
+		public long sequence;
+
+		public ResyncData() {}
+
+		public ResyncData( final long sequence )
+		{
+			this.sequence = sequence;
+		}
+	}
+
+	/**
+	 * Edits that a client of a session server requests, in terms of the
+	 * segments that the client saw at {@link #baseSequence}.  The server
+	 * rejects the whole edit if any of the segments was changed after
+	 * that.  Ops must not depend on each other.
+	 * <pre>
+	 * MERGE   segment1 segment2
+	 * DETACH  fragment segment
+	 * </pre>
+	 */
+	static public class EditData
+	{
+		static public final byte MERGE = 1;
+		static public final byte DETACH = 2;
+
+		/* chosen by the client to match the result */
+		public long request;
+		public long baseSequence;
+		public byte[] ops = new byte[ 0 ];
+		public long[] args = new long[ 0 ];
+
+		public EditData() {}
+
+		public EditData( final long request, final long baseSequence )
+		{
+			this.request = request;
+			this.baseSequence = baseSequence;
+		}
+
+		public void merge( final long segmentId1, final long segmentId2 )
+		{
+			add( MERGE, segmentId1, segmentId2 );
+		}
+
+		public void detach( final long fragmentId, final long segmentId )
+		{
+			add( DETACH, fragmentId, segmentId );
+		}
+
+		/**
+		 * Check that all ops are known and have their two arguments, e.g.
+		 * after decoding.
+		 *
+		 * @throws IOException
+		 */
+		public void validate() throws IOException
+		{
+			for ( final byte op : ops )
+				if ( op != MERGE && op != DETACH )
+					throw new IOException( "Unknown edit op " + op + "." );
+			if ( args.length != 2 * ops.length )
+				throw new IOException( "Edit ops and arguments do not match." );
+		}
+
+		private void add( final byte op, final long arg1, final long arg2 )
+		{
+			ops = Arrays.copyOf( ops, ops.length + 1 );
+			ops[ ops.length - 1 ] = op;
+			args = Arrays.copyOf( args, args.length + 2 );
+			args[ args.length - 2 ] = arg1;
+			args[ args.length - 1 ] = arg2;
+		}
+	}
+
+	/**
+	 * Answer of a session server to an {@link EditData edit}.
+	 */
+	static public class EditResultData
+	{
+		public long request;
+		/* of the delta with the edit, or of the last delta on conflict */
+		public long sequence;
+		public boolean accepted;
+
+		public EditResultData() {}
+
+		public EditResultData( final long request, final long sequence, final boolean accepted )
+		{
+			this.request = request;
+			this.sequence = sequence;
+			this.accepted = accepted;
+		}
+	}
+
+	/**
+	 * Request or answer for ids allocated by a session server.  A request
+	 * for zero ids with one id in {@link #ids} invalidates all ids up to
+	 * that id.
+	 */
+	static public class IdData
+	{
+		/* most ids per request */
+		static public final int MAX_IDS = 1 << 20;
+
+		public long request;
+		public int n;
+		public long[] ids = new long[ 0 ];
+
+		public IdData() {}
+
+		public IdData( final long request, final int n, final long[] ids )
+		{
+			this.request = request;
+			this.n = n;
+			this.ids = ids;
+		}
+	}
+
+	/* version of the binary format */
+	static public final byte PROTOCOL_VERSION = 1;
+
 	protected Object data = null;
 
 
@@ -106,6 +577,198 @@ public class Message
 	}
 
 
+	/**
+	 * Encode in the binary format
+	 * <pre>
+	 * byte    protocol version
+	 * byte    message type
+	 * payload, ids as varints of {@link LutStreams}
+	 * </pre>
+	 *
+	 * @return
+	 * @throws IOException
+	 */
+	public byte[] toBinary() throws IOException
+	{
+		final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		final DataOutputStream out = new DataOutputStream( bytes );
+		final MessageType type = getType();
+		out.writeByte( PROTOCOL_VERSION );
+		out.writeByte( type.code );
+		switch ( type )
+		{
+		case MERGE:
+			writeVarLongs( ( ( MergeData )data ).fragments, out );
+			break;
+		case SEPARATE:
+			LutStreams.writeVarLong( out, ( ( SeparateData )data ).fragmentA );
+			LutStreams.writeVarLong( out, ( ( SeparateData )data ).fragmentB );
+			break;
+		case ISOLATE:
+			LutStreams.writeVarLong( out, ( ( IsolateData )data ).fragment );
+			break;
+		case FRAGMENT_SEGMENT_LUT:
+			( ( FragmentSegmentLUTData )data ).writeBinary( out, true );
+			break;
+		case ASSIGNMENT_DELTA:
+		{
+			final AssignmentDeltaData delta = ( AssignmentDeltaData )data;
+			out.writeLong( delta.sequence );
+			LutStreams.writeVarLong( out, delta.numOps() );
+			out.write( delta.ops, 0, delta.numOps() );
+			LutStreams.writeVarLong( out, delta.numArgs() );
+			for ( int i = 0; i < delta.numArgs(); ++i )
+				LutStreams.writeVarLong( out, delta.args[ i ] );
+			break;
+		}
+		case ASSIGNMENT_SNAPSHOT:
+			out.writeLong( ( ( AssignmentSnapshotData )data ).sequence );
+			( ( AssignmentSnapshotData )data ).lut.writeBinary( out, true );
+			break;
+		case RESYNC:
+			out.writeLong( ( ( ResyncData )data ).sequence );
+			break;
+		case EDIT:
+		{
+			final EditData edit = ( EditData )data;
+			LutStreams.writeVarLong( out, edit.request );
+			out.writeLong( edit.baseSequence );
+			LutStreams.writeVarLong( out, edit.ops.length );
+			out.write( edit.ops );
+			writeVarLongs( edit.args, out );
+			break;
+		}
+		case EDIT_RESULT:
+		{
+			final EditResultData result = ( EditResultData )data;
+			LutStreams.writeVarLong( out, result.request );
+			out.writeLong( result.sequence );
+			out.writeBoolean( result.accepted );
+			break;
+		}
+		case IDS:
+		{
+			final IdData ids = ( IdData )data;
+			LutStreams.writeVarLong( out, ids.request );
+			LutStreams.writeVarLong( out, ids.n );
+			writeVarLongs( ids.ids, out );
+			break;
+		}
+		case HANDSHAKE:
+		}
+		out.flush();
+		return bytes.toByteArray();
+	}
+
+	/**
+	 * Decode from the binary format of {@link #toBinary()}.
+	 *
+	 * @param bytes
+	 * @return
+	 * @throws IOException
+	 *             if the protocol version or message type is unknown
+	 */
+	static public Message fromBinary( final byte[] bytes ) throws IOException
+	{
+		final DataInputStream in = new DataInputStream( new ByteArrayInputStream( bytes ) );
+		final byte version = in.readByte();
+		if ( version != PROTOCOL_VERSION )
+			throw new IOException( "Unsupported protocol version " + version );
+		final byte code = in.readByte();
+		final MessageType type = MessageType.forCode( code );
+		if ( type == null )
+			throw new IOException( "Unknown message type " + code );
+		switch ( type )
+		{
+		case MERGE:
+		{
+			final MergeData merge = new MergeData();
+			merge.fragments = readVarLongs( in );
+			return new Message( merge );
+		}
+		case SEPARATE:
+		{
+			final SeparateData separate = new SeparateData();
+			separate.fragmentA = LutStreams.readVarLong( in );
+			separate.fragmentB = LutStreams.readVarLong( in );
+			return new Message( separate );
+		}
+		case ISOLATE:
+		{
+			final IsolateData isolate = new IsolateData();
+			isolate.fragment = LutStreams.readVarLong( in );
+			return new Message( isolate );
+		}
+		case FRAGMENT_SEGMENT_LUT:
+			return new Message( new FragmentSegmentLUTData( LutStreams.readBinary( in ) ) );
+		case ASSIGNMENT_DELTA:
+		{
+			final AssignmentDeltaData delta = new AssignmentDeltaData( in.readLong() );
+			delta.ops = new byte[ readCount( in ) ];
+			in.readFully( delta.ops );
+			delta.args = readVarLongs( in );
+			delta.validate();
+			return new Message( delta );
+		}
+		case ASSIGNMENT_SNAPSHOT:
+		{
+			final long sequence = in.readLong();
+			return new Message( new AssignmentSnapshotData( sequence, LutStreams.readBinary( in ) ) );
+		}
+		case RESYNC:
+			return new Message( new ResyncData( in.readLong() ) );
+		case EDIT:
+		{
+			final EditData edit = new EditData( LutStreams.readVarLong( in ), in.readLong() );
+			edit.ops = new byte[ readCount( in ) ];
+			in.readFully( edit.ops );
+			edit.args = readVarLongs( in );
+			edit.validate();
+			return new Message( edit );
+		}
+		case EDIT_RESULT:
+			return new Message( new EditResultData( LutStreams.readVarLong( in ), in.readLong(), in.readBoolean() ) );
+		case IDS:
+		{
+			final long request = LutStreams.readVarLong( in );
+			final long n = LutStreams.readVarLong( in );
+			if ( n < 0 || n > IdData.MAX_IDS )
+				throw new IOException( "Invalid number of ids " + n + "." );
+			return new Message( new IdData( request, ( int )n, readVarLongs( in ) ) );
+		}
+		default:
+			return new Message();
+		}
+	}
+
+	static private void writeVarLongs( final long[] values, final DataOutputStream out ) throws IOException
+	{
+		LutStreams.writeVarLong( out, values.length );
+		for ( final long value : values )
+			LutStreams.writeVarLong( out, value );
+	}
+
+	/**
+	 * Read the length of an array of bytes or varints, each element takes at
+	 * least one byte of the remaining message.  Malformed lengths would
+	 * otherwise allocate huge arrays from tiny messages.
+	 */
+	static private int readCount( final DataInputStream in ) throws IOException
+	{
+		final long n = LutStreams.readVarLong( in );
+		if ( n < 0 || n > in.available() )
+			throw new IOException( "Invalid length " + n + " with " + in.available() + " bytes left." );
+		return ( int )n;
+	}
+
+	static private long[] readVarLongs( final DataInputStream in ) throws IOException
+	{
+		final long[] values = new long[ readCount( in ) ];
+		for ( int i = 0; i < values.length; ++i )
+			values[ i ] = LutStreams.readVarLong( in );
+		return values;
+	}
+
 	static public MessageType typeForStr( final String typeName )
 	{
 		if ( typeName != null )
@@ -118,6 +781,18 @@ public class Message
 				return MessageType.ISOLATE;
 			if ( MessageType.FRAGMENT_SEGMENT_LUT.equalsName( typeName ) )
 				return MessageType.FRAGMENT_SEGMENT_LUT;
+			if ( MessageType.ASSIGNMENT_DELTA.equalsName( typeName ) )
+				return MessageType.ASSIGNMENT_DELTA;
+			if ( MessageType.ASSIGNMENT_SNAPSHOT.equalsName( typeName ) )
+				return MessageType.ASSIGNMENT_SNAPSHOT;
+			if ( MessageType.RESYNC.equalsName( typeName ) )
+				return MessageType.RESYNC;
+			if ( MessageType.EDIT.equalsName( typeName ) )
+				return MessageType.EDIT;
+			if ( MessageType.EDIT_RESULT.equalsName( typeName ) )
+				return MessageType.EDIT_RESULT;
+			if ( MessageType.IDS.equalsName( typeName ) )
+				return MessageType.IDS;
 		}
 		return MessageType.HANDSHAKE;
 	}
@@ -135,6 +810,18 @@ public class Message
 				return MessageType.ISOLATE;
 			if ( FragmentSegmentLUTData.class.isInstance( data ) )
 				return MessageType.FRAGMENT_SEGMENT_LUT;
+			if ( AssignmentDeltaData.class.isInstance( data ) )
+				return MessageType.ASSIGNMENT_DELTA;
+			if ( AssignmentSnapshotData.class.isInstance( data ) )
+				return MessageType.ASSIGNMENT_SNAPSHOT;
+			if ( ResyncData.class.isInstance( data ) )
+				return MessageType.RESYNC;
+			if ( EditData.class.isInstance( data ) )
+				return MessageType.EDIT;
+			if ( EditResultData.class.isInstance( data ) )
+				return MessageType.EDIT_RESULT;
+			if ( IdData.class.isInstance( data ) )
+				return MessageType.IDS;
 		}
 		return MessageType.HANDSHAKE;
 	}
@@ -156,6 +843,15 @@ public class Message
 			case SEPARATE:
 			case ISOLATE:
 			case FRAGMENT_SEGMENT_LUT:
+			case ASSIGNMENT_SNAPSHOT:
+			case RESYNC:
+			case EDIT:
+			case EDIT_RESULT:
+			case IDS:
+				json.add( "data", context.serialize( src.data ) );
+				break;
+			case ASSIGNMENT_DELTA:
+				( ( AssignmentDeltaData )src.data ).trim();
 				json.add( "data", context.serialize( src.data ) );
 			}
 
@@ -196,6 +892,24 @@ public class Message
 					case FRAGMENT_SEGMENT_LUT:
 						data = context.deserialize( dataJsonObject, FragmentSegmentLUTData.class );
 						break;
+					case ASSIGNMENT_DELTA:
+						data = context.deserialize( dataJsonObject, AssignmentDeltaData.class );
+						break;
+					case ASSIGNMENT_SNAPSHOT:
+						data = context.deserialize( dataJsonObject, AssignmentSnapshotData.class );
+						break;
+					case RESYNC:
+						data = context.deserialize( dataJsonObject, ResyncData.class );
+						break;
+					case EDIT:
+						data = context.deserialize( dataJsonObject, EditData.class );
+						break;
+					case EDIT_RESULT:
+						data = context.deserialize( dataJsonObject, EditResultData.class );
+						break;
+					case IDS:
+						data = context.deserialize( dataJsonObject, IdData.class );
+						break;
 					}
 				}
 			}
@@ -0,0 +1,389 @@
+package bdv.bigcat;
+
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.zeromq.ZContext;
+import org.zeromq.ZMQ;
+import org.zeromq.ZMQ.Poller;
+import org.zeromq.ZMQ.Socket;
+
+import bdv.bigcat.Message.EditData;
+import bdv.bigcat.Message.EditResultData;
+import bdv.bigcat.Message.IdData;
+import bdv.bigcat.label.FragmentSegmentAssignment;
+import bdv.bigcat.ui.AbstractARGBStream;
+import bdv.util.IdService;
+
+/**
+ * Client of a {@link SessionServer}.  Keeps a local assignment in sync with
+ * the deltas published by the server and sends edits in terms of the
+ * segments of the local assignment.  The local assignment is never modified
+ * by the edits directly, they become visible when the server published
+ * them.
+ *
+ * Both sockets are used by the thread of the client only while it is
+ * connected, messages to the server are queued and wake the thread through
+ * an inproc socket.
+ *
+ * BigCat connects a client when started with <code>--session</code>, its
+ * {@link bdv.bigcat.control.MergeController} then sends merges and splits
+ * here and all ids are allocated through {@link #getIdService()}.
+ */
+public class SessionClient
+{
+	/* how often the thread checks whether it was closed */
+	static public final int POLL_TIMEOUT_MILLIS = 100;
+
+	static private final AtomicLong numClients = new AtomicLong();
+
+	static private final byte[] WAKE = new byte[ 0 ];
+
+	/* how long id requests wait for the server */
+	static public final long ID_TIMEOUT_MILLIS = 10000;
+
+	final protected ZContext ctx;
+
+	final protected Socket editSocket;
+
+	final protected Socket broadcastSocket;
+
+	/* signals queued messages to the thread of the client */
+	final protected Socket wakeSocket;
+
+	final protected Socket wakeSender;
+
+	final protected FragmentSegmentAssignment assignment;
+
+	final protected AssignmentReplica replica;
+
+	final protected ConcurrentLinkedQueue< Message > outbox = new ConcurrentLinkedQueue<>();
+
+	final protected ConcurrentHashMap< Long, CompletableFuture< EditResultData > > pendingEdits = new ConcurrentHashMap<>();
+
+	final protected ConcurrentHashMap< Long, CompletableFuture< long[] > > pendingIds = new ConcurrentHashMap<>();
+
+	final protected AtomicLong requests = new AtomicLong();
+
+	final protected IdService idService = new RemoteIdService();
+
+	protected volatile boolean running = true;
+
+	final protected Thread thread;
+
+	/**
+	 * Connect to a session server and request a snapshot of the assignment.
+	 *
+	 * @param ctx
+	 * @param editUrl
+	 * @param broadcastUrl
+	 * @param assignment
+	 *            replaced by the snapshot of the server
+	 * @param colorStream
+	 *            may be null
+	 * @param onChange
+	 *            called after the assignment changed, e.g. to repaint, may be
+	 *            null
+	 */
+	public SessionClient(
+			final ZContext ctx,
+			final String editUrl,
+			final String broadcastUrl,
+			final FragmentSegmentAssignment assignment,
+			final AbstractARGBStream colorStream,
+			final Runnable onChange )
+	{
+		this.ctx = ctx;
+		this.assignment = assignment;
+		replica = new AssignmentReplica( assignment, colorStream, onChange );
+
+		editSocket = ctx.createSocket( ZMQ.DEALER );
+		editSocket.connect( editUrl );
+		broadcastSocket = ctx.createSocket( ZMQ.SUB );
+		broadcastSocket.subscribe( new byte[ 0 ] );
+		broadcastSocket.connect( broadcastUrl );
+
+		final String wakeUrl = "inproc://bigcat-session-client-" + numClients.incrementAndGet();
+		wakeSocket = ctx.createSocket( ZMQ.PAIR );
+		wakeSocket.bind( wakeUrl );
+		wakeSender = ctx.createSocket( ZMQ.PAIR );
+		wakeSender.connect( wakeUrl );
+
+		enqueue( new Message() );
+
+		thread = new Thread( this::run, "bigcat session client" );
+		thread.start();
+	}
+
+	/**
+	 * @return sequence of the last delta applied to the local assignment
+	 */
+	public long getSequence()
+	{
+		return replica.getSequence();
+	}
+
+	/**
+	 * @return ids allocated by the server
+	 */
+	public IdService getIdService()
+	{
+		return idService;
+	}
+
+	/**
+	 * Merge the segments of two fragments.
+	 *
+	 * @param fragmentId1
+	 * @param fragmentId2
+	 * @return the result, rejected if one of the segments was changed by
+	 *         another client in the meantime
+	 */
+	public CompletableFuture< EditResultData > merge( final long fragmentId1, final long fragmentId2 )
+	{
+		final EditData edit;
+		synchronized ( replica )
+		{
+			edit = new EditData( requests.incrementAndGet(), replica.getSequence() );
+			final long segmentId1 = assignment.getSegment( fragmentId1 );
+			final long segmentId2 = assignment.getSegment( fragmentId2 );
+			if ( segmentId1 != segmentId2 )
+				edit.merge( segmentId1, segmentId2 );
+		}
+		return submit( edit );
+	}
+
+	/**
+	 * Detach a fragment from its segment.
+	 *
+	 * @param fragmentId
+	 * @return the result, rejected if the segment was changed by another
+	 *         client in the meantime
+	 */
+	public CompletableFuture< EditResultData > detach( final long fragmentId )
+	{
+		final EditData edit;
+		synchronized ( replica )
+		{
+			edit = new EditData( requests.incrementAndGet(), replica.getSequence() );
+			edit.detach( fragmentId, assignment.getSegment( fragmentId ) );
+		}
+		return submit( edit );
+	}
+
+	/**
+	 * Send an edit.
+	 *
+	 * @param edit
+	 *            with a request id from {@link #nextRequest()}
+	 * @return the result
+	 */
+	public CompletableFuture< EditResultData > submit( final EditData edit )
+	{
+		final CompletableFuture< EditResultData > result = new CompletableFuture<>();
+		if ( edit.ops.length == 0 )
+			result.complete( new EditResultData( edit.request, edit.baseSequence, true ) );
+		else
+		{
+			pendingEdits.put( edit.request, result );
+			enqueue( new Message( edit ) );
+		}
+		return result;
+	}
+
+	public long nextRequest()
+	{
+		return requests.incrementAndGet();
+	}
+
+	/**
+	 * Disconnect from the server, pending results are cancelled.
+	 *
+	 * @throws InterruptedException
+	 */
+	public void close() throws InterruptedException
+	{
+		running = false;
+		wake();
+		thread.join();
+		ctx.destroySocket( editSocket );
+		ctx.destroySocket( broadcastSocket );
+		ctx.destroySocket( wakeSocket );
+		ctx.destroySocket( wakeSender );
+		pendingEdits.values().forEach( result -> result.cancel( false ) );
+		pendingIds.values().forEach( result -> result.cancel( false ) );
+	}
+
+	protected void enqueue( final Message msg )
+	{
+		outbox.add( msg );
+		wake();
+	}
+
+	protected void wake()
+	{
+		synchronized ( wakeSender )
+		{
+			wakeSender.send( WAKE, ZMQ.DONTWAIT );
+		}
+	}
+
+	protected void run()
+	{
+		final Poller poller = new Poller( 3 );
+		poller.register( editSocket, Poller.POLLIN );
+		poller.register( broadcastSocket, Poller.POLLIN );
+		poller.register( wakeSocket, Poller.POLLIN );
+		while ( running )
+		{
+			for ( Message msg = outbox.poll(); msg != null; msg = outbox.poll() )
+				send( msg );
+
+			if ( poller.poll( POLL_TIMEOUT_MILLIS ) > 0 )
+			{
+				/* messages queued meanwhile are sent in the next round */
+				while ( wakeSocket.recv( ZMQ.DONTWAIT ) != null );
+				for ( byte[] bytes = broadcastSocket.recv( ZMQ.DONTWAIT ); bytes != null; bytes = broadcastSocket.recv( ZMQ.DONTWAIT ) )
+					receive( bytes );
+				for ( byte[] bytes = editSocket.recv( ZMQ.DONTWAIT ); bytes != null; bytes = editSocket.recv( ZMQ.DONTWAIT ) )
+					receive( bytes );
+			}
+		}
+	}
+
+	protected void send( final Message msg )
+	{
+		try
+		{
+			editSocket.send( msg.toBinary(), 0 );
+		}
+		catch ( final IOException e )
+		{
+			System.err.println( "Dropping " + msg.getType() + " message: " + e );
+		}
+	}
+
+	/**
+	 * Handle a message from the server.  Malformed messages are dropped, the
+	 * replica resyncs when it misses a delta.
+	 */
+	protected void receive( final byte[] bytes )
+	{
+		try
+		{
+			receive( Message.fromBinary( bytes ) );
+		}
+		catch ( final IOException | RuntimeException e )
+		{
+			System.err.println( "Dropping malformed message: " + e );
+		}
+	}
+
+	protected void receive( final Message msg )
+	{
+		switch ( msg.getType() )
+		{
+		case EDIT_RESULT:
+		{
+			final EditResultData result = ( EditResultData )msg.getData();
+			final CompletableFuture< EditResultData > future = pendingEdits.remove( result.request );
+			if ( future != null )
+				future.complete( result );
+			break;
+		}
+		case IDS:
+		{
+			final IdData ids = ( IdData )msg.getData();
+			final CompletableFuture< long[] > future = pendingIds.remove( ids.request );
+			if ( future != null )
+				future.complete( ids.ids );
+			break;
+		}
+		default:
+			final Message reply = replica.receive( msg );
+			if ( reply != null )
+				send( reply );
+		}
+	}
+
+	/**
+	 * Ids allocated by the server.  Requests block until the server
+	 * answered, at most {@link #ID_TIMEOUT_MILLIS}.
+	 */
+	protected class RemoteIdService implements IdService
+	{
+		/* one past the greatest id allocated or invalidated by this client */
+		protected long next = 0;
+
+		protected synchronized void update( final long id )
+		{
+			next = IdService.max( next, id + 1 );
+		}
+
+		@Override
+		public void setNext( final long id )
+		{
+			invalidate( id - 1 );
+		}
+
+		@Override
+		public void invalidate( final long id )
+		{
+			update( id );
+			enqueue( new Message( new IdData( requests.incrementAndGet(), 0, new long[]{ id } ) ) );
+		}
+
+		@Override
+		public long next()
+		{
+			return next( 1 )[ 0 ];
+		}
+
+		/**
+		 * The server owns the next id, this is only greater than all ids
+		 * this client used, e.g. to save them with the painted labels.
+		 */
+		@Override
+		public synchronized long peek()
+		{
+			return next;
+		}
+
+		@Override
+		public long[] next( final int n )
+		{
+			final IdData request = new IdData( requests.incrementAndGet(), n, new long[ 0 ] );
+			final CompletableFuture< long[] > ids = new CompletableFuture<>();
+			pendingIds.put( request.request, ids );
+			enqueue( new Message( request ) );
+			try
+			{
+				final long[] allocated = ids.get( ID_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS );
+				for ( final long id : allocated )
+					update( id );
+				return allocated;
+			}
+			catch ( final TimeoutException e )
+			{
+				pendingIds.remove( request.request );
+				throw new RuntimeException( "Session server did not send ids within " + ID_TIMEOUT_MILLIS + "ms.", e );
+			}
+			catch ( final InterruptedException e )
+			{
+				pendingIds.remove( request.request );
+				Thread.currentThread().interrupt();
+				throw new RuntimeException( "Interrupted while waiting for ids from session server.", e );
+			}
+			catch ( final ExecutionException e )
+			{
+				throw new RuntimeException( "Could not get ids from session server.", e );
+			}
+		}
+	}
+}
@@ -0,0 +1,319 @@
+package bdv.bigcat;
+
+import java.io.IOException;
+import java.util.ArrayList;
+
+import org.zeromq.ZContext;
+import org.zeromq.ZMQ;
+import org.zeromq.ZMQ.Poller;
+import org.zeromq.ZMQ.Socket;
+
+import bdv.bigcat.Message.AssignmentDeltaData;
+import bdv.bigcat.Message.EditData;
+import bdv.bigcat.Message.EditResultData;
+import bdv.bigcat.Message.IdData;
+import bdv.bigcat.label.FragmentSegmentAssignment;
+import bdv.util.IdService;
+import bdv.util.LocalIdService;
+
+/**
+ * Session server for many BigCat clients that annotate the same volume.  It
+ * owns the authoritative {@link FragmentSegmentAssignment} and the
+ * {@link IdService}.
+ *
+ * Clients connect a DEALER socket to the ROUTER edit socket to send
+ * {@link EditData edits}, id requests, handshakes and resyncs.  All edits
+ * that arrived while the previous batch was processed are checked for
+ * conflicts and resolved into one {@link AssignmentDeltaData delta} by an
+ * {@link AssignmentSequencer}.  The delta is published on the PUB broadcast
+ * socket to all SUB sockets of the clients, then each client gets the
+ * result of its edits.  Conflicting edits are rejected immediately.
+ *
+ * Snapshots are sent to clients that hand shake or resync, and published
+ * regularly.  The sockets are used by the thread of the server only while
+ * it runs.
+ */
+public class SessionServer implements Runnable
+{
+	static public final int POLL_TIMEOUT_MILLIS = 10;
+
+	static public final int DEFAULT_SNAPSHOT_INTERVAL = 256;
+
+	final protected ZContext ctx;
+
+	final protected Socket editSocket;
+
+	final protected Socket broadcastSocket;
+
+	final protected AssignmentSequencer sequencer;
+
+	final protected IdService idService;
+
+	protected volatile boolean running = true;
+
+	protected Thread thread = null;
+
+	/* clients and requests of the edits in the current batch */
+	final protected ArrayList< byte[] > acceptedClients = new ArrayList<>();
+
+	final protected ArrayList< EditData > acceptedEdits = new ArrayList<>();
+
+	/* clients that asked for a snapshot during the current batch */
+	final protected ArrayList< byte[] > snapshotClients = new ArrayList<>();
+
+	/**
+	 * Bind the sockets.  Clients can connect once the constructor returned.
+	 *
+	 * @param ctx
+	 * @param editUrl
+	 * @param broadcastUrl
+	 * @param assignment
+	 * @param idService
+	 *            allocates ids of merged and relabeled segments and ids
+	 *            requested by the clients
+	 * @param snapshotInterval
+	 *            publish a snapshot after this many deltas
+	 */
+	public SessionServer(
+			final ZContext ctx,
+			final String editUrl,
+			final String broadcastUrl,
+			final FragmentSegmentAssignment assignment,
+			final IdService idService,
+			final int snapshotInterval )
+	{
+		this.ctx = ctx;
+		this.idService = idService;
+		sequencer = new AssignmentSequencer( assignment, idService, snapshotInterval );
+
+		editSocket = ctx.createSocket( ZMQ.ROUTER );
+		editSocket.bind( editUrl );
+		broadcastSocket = ctx.createSocket( ZMQ.PUB );
+		broadcastSocket.bind( broadcastUrl );
+	}
+
+	public SessionServer(
+			final ZContext ctx,
+			final String editUrl,
+			final String broadcastUrl,
+			final FragmentSegmentAssignment assignment,
+			final IdService idService )
+	{
+		this( ctx, editUrl, broadcastUrl, assignment, idService, DEFAULT_SNAPSHOT_INTERVAL );
+	}
+
+	/**
+	 * Run the server in a new thread.
+	 */
+	public synchronized void start()
+	{
+		if ( thread == null )
+		{
+			thread = new Thread( this, "bigcat session server" );
+			thread.start();
+		}
+	}
+
+	/**
+	 * Stop the server and close its sockets.
+	 *
+	 * @throws InterruptedException
+	 */
+	public synchronized void stop() throws InterruptedException
+	{
+		running = false;
+		if ( thread != null )
+			thread.join();
+		ctx.destroySocket( editSocket );
+		ctx.destroySocket( broadcastSocket );
+	}
+
+	/**
+	 * @return sequence of the last published delta
+	 */
+	public long getSequence()
+	{
+		return sequencer.getSequence();
+	}
+
+	/**
+	 * @return the authoritative assignment, must not be modified
+	 */
+	public FragmentSegmentAssignment getAssignment()
+	{
+		return sequencer.assignment;
+	}
+
+	@Override
+	public void run()
+	{
+		final Poller poller = new Poller( 1 );
+		poller.register( editSocket, Poller.POLLIN );
+		while ( running )
+			if ( poller.poll( POLL_TIMEOUT_MILLIS ) > 0 )
+			{
+				try
+				{
+					processBatch();
+				}
+				catch ( final IOException | RuntimeException e )
+				{
+					/* keep serving the other clients */
+					e.printStackTrace();
+				}
+			}
+	}
+
+	/**
+	 * Receive all pending requests, resolve the edits into one delta and
+	 * publish it.  Malformed requests are dropped, malformed edits are
+	 * rejected.
+	 *
+	 * @throws IOException
+	 */
+	protected void processBatch() throws IOException
+	{
+		try
+		{
+			receiveAndPublishBatch();
+		}
+		finally
+		{
+			acceptedClients.clear();
+			acceptedEdits.clear();
+			snapshotClients.clear();
+		}
+	}
+
+	private void receiveAndPublishBatch() throws IOException
+	{
+		final AssignmentDeltaData batch = new AssignmentDeltaData();
+		for ( byte[] client = editSocket.recv( ZMQ.DONTWAIT ); client != null; client = editSocket.recv( ZMQ.DONTWAIT ) )
+		{
+			/* the payload follows the identity frame atomically */
+			final byte[] bytes = editSocket.recv( 0 );
+			final Message msg;
+			try
+			{
+				msg = Message.fromBinary( bytes );
+			}
+			catch ( final IOException | RuntimeException e )
+			{
+				System.err.println( "Dropping malformed message: " + e );
+				continue;
+			}
+			try
+			{
+				process( client, msg, batch );
+			}
+			catch ( final RuntimeException e )
+			{
+				System.err.println( "Dropping " + msg.getType() + " message: " + e );
+			}
+		}
+
+		if ( !batch.isEmpty() )
+			broadcastSocket.send( sequencer.sequence( batch ).toBinary(), 0 );
+
+		final long sequence = sequencer.getSequence();
+		for ( int i = 0; i < acceptedClients.size(); ++i )
+			reply( acceptedClients.get( i ), new Message( new EditResultData( acceptedEdits.get( i ).request, sequence, true ) ) );
+
+		if ( snapshotClients.size() > 0 )
+		{
+			final byte[] snapshot = sequencer.snapshot().toBinary();
+			for ( final byte[] client : snapshotClients )
+				reply( client, snapshot );
+		}
+
+		if ( sequencer.isSnapshotDue() )
+			broadcastSocket.send( sequencer.snapshot().toBinary(), 0 );
+	}
+
+	protected void process( final byte[] client, final Message msg, final AssignmentDeltaData batch ) throws IOException
+	{
+		switch ( msg.getType() )
+		{
+		case EDIT:
+		{
+			final EditData edit = ( EditData )msg.getData();
+			boolean accepted = false;
+			try
+			{
+				accepted = sequencer.resolve( edit, batch );
+			}
+			catch ( final RuntimeException e )
+			{
+				System.err.println( "Rejecting malformed edit: " + e );
+			}
+			if ( accepted )
+			{
+				acceptedClients.add( client );
+				acceptedEdits.add( edit );
+			}
+			else
+				reply( client, new Message( new EditResultData( edit.request, sequencer.getSequence(), false ) ) );
+			break;
+		}
+		case MERGE:
+		case ISOLATE:
+			/* edits of point-to-point clients are resolved without checks */
+			sequencer.resolve( msg, batch );
+			break;
+		case IDS:
+			handleIds( client, ( IdData )msg.getData() );
+			break;
+		case HANDSHAKE:
+		case RESYNC:
+			snapshotClients.add( client );
+			break;
+		default:
+			System.err.println( "Ignoring " + msg.getType() + " message." );
+		}
+	}
+
+	protected void handleIds( final byte[] client, final IdData request ) throws IOException
+	{
+		if ( request.n > 0 )
+			reply( client, new Message( new IdData( request.request, request.n, idService.next( request.n ) ) ) );
+		else
+			for ( final long id : request.ids )
+				idService.invalidate( id );
+	}
+
+	protected void reply( final byte[] client, final Message msg ) throws IOException
+	{
+		reply( client, msg.toBinary() );
+	}
+
+	protected void reply( final byte[] client, final byte[] bytes )
+	{
+		editSocket.send( client, ZMQ.SNDMORE );
+		editSocket.send( bytes, 0 );
+	}
+
+	/**
+	 * Run a session server for an empty assignment.
+	 *
+	 * @param args
+	 *            edit url, broadcast url, and optionally the first id to
+	 *            allocate, e.g. tcp://*:5556 tcp://*:5557 1000000
+	 */
+	public static void main( final String[] args )
+	{
+		final IdService idService = new LocalIdService();
+		if ( args.length > 2 )
+			idService.setNext( Long.parseLong( args[ 2 ] ) );
+
+		final ZContext ctx = new ZContext();
+		final SessionServer server = new SessionServer(
+				ctx,
+				args[ 0 ],
+				args[ 1 ],
+				new FragmentSegmentAssignment( idService ),
+				idService );
+		System.out.println( "bind complete" );
+		server.run();
+		ctx.destroy();
+	}
+}
@@ -1,117 +1,231 @@
 package bdv.bigcat.annotation;
 
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.List;
 
 import net.imglib2.KDTree;
 import net.imglib2.KDTreeNode;
+import net.imglib2.RealLocalizable;
 import net.imglib2.RealPoint;
 import net.imglib2.algorithm.kdtree.ClipConvexPolytopeKDTree;
 import net.imglib2.algorithm.kdtree.ConvexPolytope;
+import net.imglib2.algorithm.kdtree.HyperPlane;
 import net.imglib2.neighborsearch.KNearestNeighborSearchOnKDTree;
 
 /**
  * Set of annotations and query functions.
- *  
+ *
+ * Queries use a {@link KDTree} that is bulk-loaded from all annotations plus
+ * a delta of annotations added (or moved) and removed since then.  Added
+ * annotations are tested one by one, removed annotations are filtered from
+ * the results of the tree.  The tree is rebuilt only when the delta grows
+ * beyond a fraction of the tree, such that edits do not pay for a full
+ * rebuild at the next query.
+ *
  * @author Jan Funke <jfunke@iri.upc.edu>
  */
 public class Annotations {
-	
+
+	/**
+	 * The tree is rebuilt if the delta is larger than this or a
+	 * 1/REBUILD_FRACTION of the tree, whichever is larger.
+	 */
+	public static final int MIN_REBUILD_DELTA = 1024;
+
+	public static final int REBUILD_FRACTION = 16;
+
 	public Annotations() {
 		this.annotations = new HashMap< Long, Annotation >();
 		this.listeners = new LinkedList<Annotations.AnnotationsListener>();
 	}
-	
+
 	public void add(Annotation annotation) {
-	
-		annotations.put(annotation.getId(), annotation);
-		kdTreeDirty = true;
+
+		synchronized (this) {
+			// a replaced annotation (or this one, if added again) may be in the tree
+			final Annotation previous = annotations.put(annotation.getId(), annotation);
+			if (previous != null && !added.remove(previous))
+				removed.add(previous);
+			added.add(annotation);
+		}
 		for (AnnotationsListener l : listeners)
 			l.onAnnotationAdded(annotation);
-	}	
-	
+	}
+
 	public void remove(Annotation annotation) {
-		
-		annotations.remove(annotation.getId());
-		kdTreeDirty = true;
+
+		synchronized (this) {
+			annotations.remove(annotation.getId());
+			if (!added.remove(annotation))
+				removed.add(annotation);
+		}
 		for (AnnotationsListener l : listeners)
 			l.onAnnotationRemoved(annotation);
 	}
-	
-	public Collection< Annotation > getAnnotations() {
-		
-		return annotations.values();
+
+	/**
+	 * @return a snapshot of all annotations
+	 */
+	public synchronized Collection< Annotation > getAnnotations() {
+
+		return new ArrayList< Annotation >(annotations.values());
 	}
-	
-	public List< Annotation > getLocalAnnotations(ConvexPolytope polytope) {
 
-		List< Annotation > localAnnotations = new LinkedList< Annotation >();
+	public synchronized List< Annotation > getLocalAnnotations(ConvexPolytope polytope) {
+
+		List< Annotation > localAnnotations = new ArrayList< Annotation >();
 		if (annotations.size() == 0)
 			return localAnnotations;
-	
-		if (kdTreeDirty)
-			updateKdTree();
-	
-		final ClipConvexPolytopeKDTree< Annotation > clip = new ClipConvexPolytopeKDTree< Annotation >( kdTree );
-		clip.clip( polytope );
-		
-		for (KDTreeNode< Annotation > node : clip.getInsideNodes())
-			localAnnotations.add(node.get());
-			
+
+		updateKdTree();
+
+		if (kdTree != null) {
+			final ClipConvexPolytopeKDTree< Annotation > clip = new ClipConvexPolytopeKDTree< Annotation >( kdTree );
+			clip.clip( polytope );
+
+			for (KDTreeNode< Annotation > node : clip.getInsideNodes())
+				if (removed.isEmpty() || !removed.contains(node.get()))
+					localAnnotations.add(node.get());
+		}
+
+		if (!added.isEmpty()) {
+			final Collection< ? extends HyperPlane > planes = polytope.getHyperplanes();
+			for (Annotation a : added)
+				if (isInside(a.getPosition(), planes))
+					localAnnotations.add(a);
+		}
+
 		return localAnnotations;
 	}
-	
+
 	/**
 	 * Find the k nearest annotations to a point.
 	 * @param pos
 	 * @param k
 	 * @return List of k nearest annotations, sorted by distance.
 	 */
-	public List< Annotation > getKNearest(RealPoint pos, int k) {
+	public synchronized List< Annotation > getKNearest(RealPoint pos, int k) {
 
-		List< Annotation > nearest = new LinkedList< Annotation >();
+		final List< Annotation > nearest = new ArrayList< Annotation >();
 
-		if (annotations.size() == 0)
+		if (annotations.size() == 0 || k <= 0)
 			return nearest;
-	
-		if (kdTreeDirty)
-			updateKdTree();
-
-		KNearestNeighborSearchOnKDTree< Annotation > search = new KNearestNeighborSearchOnKDTree< Annotation >(kdTree, k);
-		search.search(pos);
-		
-		for (int i = 0; i < k && search.getSampler(i) != null; i++)
-			nearest.add(search.getSampler(i).get());
-		
+
+		updateKdTree();
+
+		final List< Annotation > candidates = new ArrayList< Annotation >();
+		if (kdTree != null) {
+			// removed annotations are still in the tree, search further to find k that are not
+			final int kTree = (int)Math.min(kdTree.size(), (long)k + removed.size());
+			KNearestNeighborSearchOnKDTree< Annotation > search = new KNearestNeighborSearchOnKDTree< Annotation >(kdTree, kTree);
+			search.search(pos);
+
+			for (int i = 0; i < kTree && search.getSampler(i) != null; i++) {
+				final Annotation a = search.getSampler(i).get();
+				if (removed.isEmpty() || !removed.contains(a))
+					candidates.add(a);
+			}
+		}
+		candidates.addAll(added);
+
+		if (!added.isEmpty()) {
+			final HashMap< Annotation, Double > distances = new HashMap< Annotation, Double >();
+			for (Annotation a : candidates)
+				distances.put(a, squareDistance(a.getPosition(), pos));
+			Collections.sort(candidates, new Comparator< Annotation >() {
+
+				@Override
+				public int compare(Annotation a, Annotation b) {
+					return Double.compare(distances.get(a), distances.get(b));
+				}
+			});
+		}
+
+		for (int i = 0; i < k && i < candidates.size(); i++)
+			nearest.add(candidates.get(i));
+
 		return nearest;
 	}
 
-	public Annotation getById(long id) {
+	public synchronized Annotation getById(long id) {
 
 		return annotations.get(id);
 	}
-	
-	public void markDirty() {
-		
+
+	/**
+	 * Mark the spatial index dirty, e.g. after the positions of many
+	 * annotations changed.  The index will be rebuilt on the next query.
+	 */
+	public synchronized void markDirty() {
+
 		kdTreeDirty = true;
 	}
-	
+
+	/**
+	 * Update the spatial index after the position of a single annotation
+	 * changed.
+	 *
+	 * @param annotation
+	 */
+	public synchronized void markMoved(Annotation annotation) {
+
+		if (!annotations.containsKey(annotation.getId()) || added.contains(annotation))
+			return;
+		removed.add(annotation);
+		added.add(annotation);
+	}
+
 	private void updateKdTree() {
-	
-		List< RealPoint > positions = new LinkedList< RealPoint >();
-		List< Annotation > annotations = new LinkedList< Annotation >();
+
+		final int treeSize = kdTree == null ? 0 : (int)kdTree.size();
+		final int delta = added.size() + removed.size();
+		if (!kdTreeDirty && delta <= Math.max(MIN_REBUILD_DELTA, treeSize / REBUILD_FRACTION))
+			return;
+
+		final int n = this.annotations.size();
+		final List< RealPoint > positions = new ArrayList< RealPoint >(n);
+		final List< Annotation > annotations = new ArrayList< Annotation >(n);
 		for (Annotation a : this.annotations.values()) {
 			positions.add(a.getPosition());
 			annotations.add(a);
 		}
-		kdTree = new KDTree< Annotation >( annotations, positions );
+		kdTree = n == 0 ? null : new KDTree< Annotation >( annotations, positions );
+		added.clear();
+		removed.clear();
 		kdTreeDirty = false;
 	}
 
+	private static boolean isInside(RealLocalizable p, Collection< ? extends HyperPlane > planes) {
+
+		for (HyperPlane plane : planes) {
+			final double[] normal = plane.getNormal();
+			double dot = 0;
+			for (int d = 0; d < normal.length; d++)
+				dot += normal[d] * p.getDoublePosition(d);
+			if (dot < plane.getDistance())
+				return false;
+		}
+		return true;
+	}
+
+	private static double squareDistance(RealLocalizable a, RealLocalizable b) {
+
+		double sum = 0;
+		for (int d = 0; d < a.numDimensions(); d++) {
+			final double diff = a.getDoublePosition(d) - b.getDoublePosition(d);
+			sum += diff*diff;
+		}
+		return sum;
+	}
+
 	public interface AnnotationsListener {
-		
+
 		public void onAnnotationAdded(Annotation a);
 		public void onAnnotationRemoved(Annotation a);
 	}
@@ -125,10 +239,20 @@ public class Annotations {
 
 		listeners.add(listener);
 	}
-	
+
 	private HashMap< Long, Annotation > annotations;
 	private KDTree< Annotation > kdTree;
 	private boolean kdTreeDirty = true;
-	
+
+	/**
+	 * Annotations added or moved since the last rebuild of {@link #kdTree}.
+	 */
+	private final HashSet< Annotation > added = new HashSet< Annotation >();
+
+	/**
+	 * Annotations removed or moved since the last rebuild of {@link #kdTree}.
+	 */
+	private final HashSet< Annotation > removed = new HashSet< Annotation >();
+
 	private List<AnnotationsListener> listeners;
 }
@@ -1,5 +1,6 @@
 package bdv.bigcat.annotation;
 
+import java.util.Collection;
 import java.util.HashMap;
 
 import bdv.util.IdService;
@@ -223,7 +224,9 @@ public class AnnotationsHdf5Store implements AnnotationsStore {
 
 		final IHDF5Writer writer = HDF5Factory.open(filename);
 
-		final int numAnnotations = annotations.getAnnotations().size();
+		// one snapshot, annotations may be edited meanwhile
+		final Collection<Annotation> all = annotations.getAnnotations();
+		final int numAnnotations = all.size();
 
 		class Counter extends AnnotationVisitor {
 
@@ -252,7 +255,7 @@ public class AnnotationsHdf5Store implements AnnotationsStore {
 		}
 
 		final Counter counter = new Counter();
-		for (final Annotation a : annotations.getAnnotations())
+		for (final Annotation a : all)
 			a.accept(counter);
 
 		class AnnotationsCrawler extends AnnotationVisitor {
@@ -314,7 +317,7 @@ public class AnnotationsHdf5Store implements AnnotationsStore {
 		}
 
 		final AnnotationsCrawler crawler = new AnnotationsCrawler();
-		for (final Annotation a : annotations.getAnnotations())
+		for (final Annotation a : all)
 			a.accept(crawler);
 
 		// TODO: following calls are deprecated, but what to use instead?
@@ -375,7 +375,9 @@ public class AnnotationsController implements WindowListener, Selection.Selectio
 		@Override
 		public void end(final int x, final int y) {
 
-			annotations.markDirty();
+			final Annotation active = selection.getLastAdded();
+			if (active != null)
+				annotations.markMoved(active);
 		}
 	}
 
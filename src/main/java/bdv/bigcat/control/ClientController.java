@@ -181,6 +181,7 @@ public class ClientController implements MouseListener, KeyListener
 					socket.send( msg );
 				}
 				assignment.mergeFragmentSegments( oldActiveFragmentId, activeFragmentId );
+				colorStream.removeFromCache( oldActiveSegmentId, activeSegmentId );
 			}
 			else
 			{
@@ -200,14 +201,13 @@ public class ClientController implements MouseListener, KeyListener
 					socket.send( msg );
 
 					assignment.detachFragment( activeFragmentId );
+					colorStream.removeFromCache( activeSegmentId, activeFragmentId );
 
 				}
 
 				colorStream.setActive( activeFragmentId );
 			}
 
-			colorStream.clearCache();
-
 			viewer.requestRepaint();
 		}
 		else
@@ -32,10 +32,13 @@ import org.scijava.ui.behaviour.ScrollBehaviour;
 import org.scijava.ui.behaviour.io.InputTriggerConfig;
 
 import bdv.BigDataViewer;
+import bdv.bigcat.label.EditJournal;
 import bdv.bigcat.label.FragmentSegmentAssignment;
+import bdv.bigcat.label.SegmentMembership;
 import bdv.bigcat.ui.AbstractSaturatedARGBStream;
 import bdv.labels.labelset.LabelMultisetType;
 import bdv.util.AbstractNamedAction.NamedActionAdder;
+import bdv.util.FloodFillEngine;
 import bdv.util.IdService;
 import bdv.viewer.InputActionBindings;
 import bdv.viewer.TriggerBehaviourBindings;
@@ -121,6 +124,10 @@ public class DrawProjectAndIntersectController implements TransformListener< Aff
 
 	private final SelectionController selectionController;
 
+	private final FloodFillEngine fillEngine;
+
+	private final EditJournal journal;
+
 	public DrawProjectAndIntersectController(
 			final BigDataViewer bdv,
 			final IdService idService,
@@ -132,6 +139,8 @@ public class DrawProjectAndIntersectController implements TransformListener< Aff
 			final FragmentSegmentAssignment assignment,
 			final AbstractSaturatedARGBStream colorStream,
 			final SelectionController selectionController,
+			final FloodFillEngine fillEngine,
+			final EditJournal journal,
 			final InputActionBindings inputActionBindings,
 			final TriggerBehaviourBindings bindings,
 			final String... activateModeKeys )
@@ -146,6 +155,8 @@ public class DrawProjectAndIntersectController implements TransformListener< Aff
 		this.assignment = assignment;
 		this.colorStream = colorStream;
 		this.selectionController = selectionController;
+		this.fillEngine = fillEngine;
+		this.journal = journal;
 		this.bindings = bindings;
 
 		viewer.addTransformListener( this );
@@ -710,12 +721,13 @@ public class DrawProjectAndIntersectController implements TransformListener< Aff
 		{
 			synchronized ( viewer )
 			{
-				viewer.setCursor( Cursor.getPredefinedCursor( Cursor.WAIT_CURSOR ) );
 				setCoordinates( x, y );
 
 				final Point p = new Point( Math.round( labelLocation.getDoublePosition( 0 ) ), Math.round( labelLocation.getDoublePosition( 1 ) ), Math.round( labelLocation.getDoublePosition( 2 ) ) );
 
-				final ArrayImg< ByteType, ByteArray > img = wrapBufferedImage( filledPixelsOverlay.img );
+				// copy, the overlay may be reused while the fill is running
+				final ArrayImg< ByteType, ByteArray > overlay = wrapBufferedImage( filledPixelsOverlay.img );
+				final ArrayImg< ByteType, ByteArray > img = ArrayImgs.bytes( overlay.update( null ).getCurrentStorageArray().clone(), overlay.dimension( 0 ), overlay.dimension( 1 ) );
 				final ArrayRandomAccess< ByteType > imgAccess = img.randomAccess();
 				imgAccess.setPosition( new int[] { x, y } );
 
@@ -733,7 +745,7 @@ public class DrawProjectAndIntersectController implements TransformListener< Aff
 				final long paintedLabel = paintedLabelAccess.get().get();
 				final long segmentLabel = assignment.getSegment( seedFragmentLabel );
 				final long comparison = paintedLabel == TRANSPARENT ? segmentLabel : paintedLabel;
-				final long[] fragmentsContainedInSegment = assignment.getFragments( segmentLabel );
+				final SegmentMembership segment = SegmentMembership.forFragment( assignment, seedFragmentLabel );
 
 				final Filter< Pair< Pair< LabelMultisetType, ByteType >, LongType >, Pair< Pair< LabelMultisetType, ByteType >, LongType > > filter = ( p1, p2 ) -> {
 
@@ -745,27 +757,29 @@ public class DrawProjectAndIntersectController implements TransformListener< Aff
 						if ( currentPaint != TRANSPARENT )
 							return currentPaint == comparison;
 						else
-						{
-							final LabelMultisetType currentMultiSet = multiSetOverlayPairComp.getA();
-							for ( final long fragment : fragmentsContainedInSegment )
-								if ( currentMultiSet.contains( fragment ) )
-									return true;
-							return false;
-						}
+							return segment.contains( multiSetOverlayPairComp.getA() );
 					}
 
 					return false;
 				};
 
-				final long t0 = System.currentTimeMillis();
-
-				FloodFill.fill( new RandomAccessiblePair<>( Views.extendValue( labels, new LabelMultisetType() ), interpolatedAndTransformed ), Views.extendValue( paintedLabels, new LongType( TRANSPARENT ) ), p, new ValuePair<>( new LabelMultisetType(), new ByteType( overlayValueAtPoint ) ), new LongType( selectionController.getActiveFragmentId() ), new DiamondShape( 1 ), filter );
-				final long t1 = System.currentTimeMillis();
-				System.out.println( "Filling took " + ( t1 - t0 ) + " ms" );
-				viewer.setCursor( Cursor.getPredefinedCursor( Cursor.DEFAULT_CURSOR ) );
-				viewer.requestRepaint();
+				final long label = selectionController.getActiveFragmentId();
+				/* leave the mode when the fill has completed */
+				final ViewerFillListener listener = new ViewerFillListener( viewer, "Filling", action ).started();
+				final long maxNumFilled = fillEngine.getMaxNumFilled();
+				fillEngine.submit( listener.finishing( journal.journaled( getName(), cancellation -> FloodFillEngine.fill(
+						new RandomAccessiblePair<>( Views.extendValue( labels, new LabelMultisetType() ), interpolatedAndTransformed ),
+						Views.extendValue( paintedLabels, new LongType( TRANSPARENT ) ),
+						new long[]{ p.getLongPosition( 0 ), p.getLongPosition( 1 ), p.getLongPosition( 2 ) },
+						new ValuePair<>( new ValuePair<>( new LabelMultisetType(), new ByteType( overlayValueAtPoint ) ), new LongType( label ) ),
+						new DiamondShape( 1 ),
+						filter,
+						( s, t ) -> t.set( label ),
+						paintedLabels,
+						maxNumFilled,
+						cancellation,
+						listener ) ) ) );
 			}
-			action.run();
 		}
 	}
 
@@ -10,6 +10,7 @@ import org.scijava.ui.behaviour.InputTriggerMap;
 import org.scijava.ui.behaviour.ScrollBehaviour;
 import org.scijava.ui.behaviour.io.InputTriggerConfig;
 
+import bdv.bigcat.label.EditJournal;
 import bdv.bigcat.label.FragmentSegmentAssignment;
 import bdv.bigcat.ui.BrushOverlay;
 import bdv.labels.labelset.Label;
@@ -42,6 +43,7 @@ public class LabelBrushController
 	final protected AffineTransform3D labelTransform;
 	final protected FragmentSegmentAssignment assignment;
 	final protected SelectionController selectionController;
+	final protected EditJournal journal;
 	final protected RealPoint labelLocation;
 	final protected BrushOverlay brushOverlay;
 
@@ -84,6 +86,7 @@ public class LabelBrushController
 			final AffineTransform3D labelTransform,
 			final FragmentSegmentAssignment assignment,
 			final SelectionController selectionController,
+			final EditJournal journal,
 			final String labelsH5Path,
 			final String labelsH5Dataset,
 			final int[] labelsH5CellDimensions,
@@ -96,6 +99,7 @@ public class LabelBrushController
 		this.labelTransform = labelTransform;
 		this.assignment = assignment;
 		this.selectionController = selectionController;
+		this.journal = journal;
 		this.labelsH5Path = labelsH5Path;
 		this.labelsH5Dataset = labelsH5Dataset;
 		this.labelsH5CellDimensions = labelsH5CellDimensions;
@@ -117,12 +121,13 @@ public class LabelBrushController
 			final AffineTransform3D labelTransform,
 			final FragmentSegmentAssignment assignment,
 			final SelectionController selectionController,
+			final EditJournal journal,
 			final String labelsH5Path,
 			final String labelsH5Dataset,
 			final int[] labelsH5CellDimensions,
 			final InputTriggerConfig config )
 	{
-		this( viewer, labels, labelTransform, assignment, selectionController, labelsH5Path, labelsH5Dataset, labelsH5CellDimensions, config, 2 );
+		this( viewer, labels, labelTransform, assignment, selectionController, journal, labelsH5Path, labelsH5Dataset, labelsH5CellDimensions, config, 2 );
 	}
 
 	private void setCoordinates( final int x, final int y )
@@ -162,6 +167,9 @@ public class LabelBrushController
 
 	private abstract class AbstractPaintBehavior extends SelfRegisteringBehaviour implements DragBehaviour
 	{
+		/* whether the journal accepted the stroke, strokes are refused while a fill is running */
+		private boolean painting = false;
+
 		public AbstractPaintBehavior( final String name, final String... defaultTriggers )
 		{
 			super( name, defaultTriggers );
@@ -224,6 +232,12 @@ public class LabelBrushController
 				oY = y;
 			}
 
+			painting = journal.tryBegin();
+			if ( !painting )
+			{
+				System.out.println( "Not painting while a fill is running." );
+				return;
+			}
 			paint( x, y );
 
 			viewer.requestRepaint();
@@ -236,6 +250,9 @@ public class LabelBrushController
 		{
 			brushOverlay.setPosition( x, y );
 
+			if ( !painting )
+				return;
+
 			paint( oX, oY, x, y );
 
 			synchronized ( this )
@@ -251,7 +268,11 @@ public class LabelBrushController
 
 		@Override
 		public void end( final int x, final int y )
-		{}
+		{
+			if ( painting )
+				journal.commit( getName() );
+			painting = false;
+		}
 	}
 
 	private class Paint extends AbstractPaintBehavior
@@ -1,24 +1,28 @@
 package bdv.bigcat.control;
 
+import java.util.concurrent.ForkJoinPool;
+
+import bdv.bigcat.label.EditJournal;
 import bdv.bigcat.label.FragmentSegmentAssignment;
 import bdv.bigcat.label.IdPicker;
+import bdv.bigcat.label.SegmentMembership;
 import bdv.labels.labelset.Label;
 import bdv.labels.labelset.LabelMultisetType;
 import bdv.labels.labelset.Multiset;
+import bdv.img.SparseLongCanvas;
 import bdv.util.Affine3DHelpers;
+import bdv.util.BlockParallelFill;
+import bdv.util.FloodFillEngine;
 import bdv.viewer.ViewerPanel;
 import net.imglib2.*;
 import net.imglib2.Point;
 import net.imglib2.algorithm.fill.Filter;
-import net.imglib2.algorithm.fill.FloodFill;
-import net.imglib2.algorithm.fill.TypeWriter;
 import net.imglib2.algorithm.fill.Writer;
 import net.imglib2.algorithm.neighborhood.DiamondShape;
 import net.imglib2.algorithm.neighborhood.Shape;
 import net.imglib2.interpolation.randomaccess.NearestNeighborInterpolatorFactory;
 import net.imglib2.realtransform.*;
 import net.imglib2.type.BooleanType;
-import net.imglib2.type.NativeType;
 import net.imglib2.type.logic.BitType;
 import net.imglib2.type.logic.BoolType;
 import net.imglib2.type.numeric.integer.ByteType;
@@ -33,7 +37,6 @@ import org.apache.commons.lang.math.NumberUtils;
 import org.scijava.ui.behaviour.*;
 import org.scijava.ui.behaviour.io.InputTriggerConfig;
 
-import java.awt.Cursor;
 
 /**
  *
@@ -54,6 +57,8 @@ public class LabelFillController
 
 	final protected SelectionController selectionController;
 
+	final protected EditJournal journal;
+
 	final protected RealPoint labelLocation;
 
 	final protected Shape shape;
@@ -67,6 +72,8 @@ public class LabelFillController
 
 	private final IdPicker idPicker;
 
+	private final FloodFillEngine fillEngine;
+
 	public BehaviourMap getBehaviourMap()
 	{
 		return behaviourMap;
@@ -86,6 +93,8 @@ public class LabelFillController
 			final AffineTransform3D labelTransform,
 			final FragmentSegmentAssignment assignment,
 			final SelectionController selectionController,
+			final EditJournal journal,
+			final FloodFillEngine fillEngine,
 			final Shape shape,
 			final IdPicker idPicker,
 			final InputTriggerConfig config )
@@ -96,6 +105,8 @@ public class LabelFillController
 		this.labelTransform = labelTransform;
 		this.assignment = assignment;
 		this.selectionController = selectionController;
+		this.journal = journal;
+		this.fillEngine = fillEngine;
 		this.shape = shape;
 		this.idPicker = idPicker;
 		inputAdder = config.inputTriggerAdder( inputTriggerMap, "fill" );
@@ -111,6 +122,7 @@ public class LabelFillController
 
 		new Fill( "fill", "M button1" ).register();
 		new Fill2D( "fill 2D", "shift M button1" ).register();
+		new CancelFill( "cancel fill", "ESCAPE" ).register();
 	}
 
 	private void setCoordinates( final int x, final int y )
@@ -161,9 +173,9 @@ public class LabelFillController
 			{
 				if ( idPicker.getIdAtDisplayCoordinate( x, y ) == Label.OUTSIDE )
 					return;
-				viewer.setCursor( Cursor.getPredefinedCursor( Cursor.WAIT_CURSOR ) );
 				setCoordinates( x, y );
-				System.out.println( "Filling " + labelLocation + " with " + selectionController.getActiveFragmentId() );
+				final long label = selectionController.getActiveFragmentId();
+				System.out.println( "Filling " + labelLocation + " with " + label );
 
 				final Point p = new Point(
 						Math.round( labelLocation.getDoublePosition( 0 ) ),
@@ -175,22 +187,54 @@ public class LabelFillController
 				final long seedPaint = paintAccess.get().getIntegerLong();
 				final long seedFragmentLabel = getBiggestLabel( labels, p );
 
-				final long t0 = System.currentTimeMillis();
-				FloodFill.fill(
-						Views.extendValue( labels, new LabelMultisetType() ),
-						Views.extendValue( paintedLabels, new LongType( Label.TRANSPARENT ) ),
-						p,
-						new LabelMultisetType(),
-						new LongType( selectionController.getActiveFragmentId() ),
-						new DiamondShape( 1 ),
-						new SegmentAndPaintFilter1(
-								seedPaint,
-								seedFragmentLabel,
-								assignment ) );
-				final long t1 = System.currentTimeMillis();
-				System.out.println( "Filling took " + ( t1 - t0 ) + " ms" );
-				viewer.setCursor( Cursor.getPredefinedCursor( Cursor.DEFAULT_CURSOR ) );
-				viewer.requestRepaint();
+				final RandomAccessible< LabelMultisetType > extendedLabels = Views.extendValue( labels, new LabelMultisetType() );
+				final RandomAccessible< LongType > extendedPaintedLabels = Views.extendValue( paintedLabels, new LongType( Label.TRANSPARENT ) );
+				final ValuePair< LabelMultisetType, LongType > reference = new ValuePair<>( new LabelMultisetType(), new LongType( label ) );
+				final SegmentAndPaintFilter1 filter = new SegmentAndPaintFilter1(
+						seedPaint,
+						seedFragmentLabel,
+						assignment );
+				final ViewerFillListener listener = new ViewerFillListener( viewer, "Filling" ).started();
+				final long maxNumFilled = fillEngine.getMaxNumFilled();
+				final long[] seed = new long[ p.numDimensions() ];
+				p.localize( seed );
+
+				if ( paintedLabels instanceof SparseLongCanvas )
+				{
+					/* fill cells of the canvas in parallel and write them directly */
+					final SparseLongCanvas canvas = ( SparseLongCanvas ) paintedLabels;
+					final int[] cellDimensions = canvas.getCellDimensions();
+					fillEngine.submit( listener.finishing( journal.journaled( getName(), cancellation -> BlockParallelFill.fill(
+							seed,
+							BlockParallelFill.cellFilter( extendedLabels, extendedPaintedLabels, reference, filter ),
+							( min, dimensions, indices ) -> {
+								final long[] gridPosition = new long[ min.length ];
+								for ( int d = 0; d < min.length; ++d )
+									gridPosition[ d ] = min[ d ] / cellDimensions[ d ];
+								final SparseLongCanvas.Cell cell = canvas.getOrCreateCell( gridPosition );
+								for ( final int i : indices )
+									cell.setValue( i, label );
+							},
+							canvas,
+							cellDimensions,
+							maxNumFilled,
+							ForkJoinPool.commonPool(),
+							cancellation,
+							listener ) ) ) );
+				}
+				else
+					fillEngine.submit( listener.finishing( journal.journaled( getName(), cancellation -> FloodFillEngine.fill(
+							extendedLabels,
+							extendedPaintedLabels,
+							seed,
+							reference,
+							new DiamondShape( 1 ),
+							filter,
+							( s, t ) -> t.set( label ),
+							paintedLabels,
+							maxNumFilled,
+							cancellation,
+							listener ) ) ) );
 			}
 		}
 	}
@@ -219,7 +263,6 @@ public class LabelFillController
 				final int yScale = (int) Math.round( y / scale );
 				final long[] initialMin = { xScale-16, yScale-16 };
 				final long[] initialMax = { xScale+15, yScale+15 };
-				viewer.setCursor( Cursor.getPredefinedCursor( Cursor.WAIT_CURSOR ) );
 				setCoordinates( x, y );
 				System.out.println( "Filling " + labelLocation + " with " + selectionController.getActiveFragmentId() + " (2D)" );
 
@@ -240,59 +283,44 @@ public class LabelFillController
 
 
 
-				final long t0 = System.currentTimeMillis();
-
 				BitType notVisited = new BitType( false );
 				BitType fillLabel  = new BitType( true );
 
-
-				GrowingStoreRandomAccessibleSingletonAccess< BitType > tmpFillFront =
-						fillMask( tfFront, initialMin, initialMax, p, notVisited.copy(), fillLabel.copy() );
-				GrowingStoreRandomAccessibleSingletonAccess< BitType > tmpFillBack =
-						fillMask( tfBack, initialMin, initialMax, p, notVisited.copy(), fillLabel.copy() );
-
 				final long label = selectionController.getActiveFragmentId();
 
-				writeMask( tmpFillFront, tfFront, label );
-				writeMask( tmpFillBack, tfBack, label );
-
-
-				final long t1 = System.currentTimeMillis();
-				System.out.println( "Filling took " + ( t1 - t0 ) + " ms" );
-				viewer.setCursor( Cursor.getPredefinedCursor( Cursor.DEFAULT_CURSOR ) );
-				viewer.requestRepaint();
-
+				// the masks are written only if both fills complete
+				final ViewerFillListener listener = new ViewerFillListener( viewer, "Filling (2D)" ).started();
+				final long maxNumFilled = fillEngine.getMaxNumFilled();
+				fillEngine.submit( listener.finishing( journal.journaled( getName(), cancellation -> {
+					GrowingStoreRandomAccessibleSingletonAccess< BitType > tmpFillFront =
+							new GrowingStoreRandomAccessibleSingletonAccess<>( initialMin, initialMax, new GrowingStoreRandomAccessibleSingletonAccess.SimpleArrayImgFactory<>( notVisited ), notVisited.createVariable() );
+					GrowingStoreRandomAccessibleSingletonAccess< BitType > tmpFillBack =
+							new GrowingStoreRandomAccessibleSingletonAccess<>( initialMin, initialMax, new GrowingStoreRandomAccessibleSingletonAccess.SimpleArrayImgFactory<>( notVisited ), notVisited.createVariable() );
+
+					FloodFillEngine.Status status = fillMask( tmpFillFront, tfFront, p, label, fillLabel.copy(), maxNumFilled, cancellation, listener.progressOnly() );
+					if ( status == FloodFillEngine.Status.COMPLETE )
+						status = fillMask( tmpFillBack, tfBack, p, label, fillLabel.copy(), maxNumFilled, cancellation, listener.progressOnly() );
+					if ( status == FloodFillEngine.Status.COMPLETE )
+					{
+						writeMask( tmpFillFront, tfFront, label );
+						writeMask( tmpFillBack, tfBack, label );
+					}
+					listener.finished( status, 0 );
+					return status;
+				} ) ) );
 			}
 		}
 
-		private < T extends BooleanType< T > & NativeType< T >> GrowingStoreRandomAccessibleSingletonAccess< T > fillMask(
-				AffineTransform3D tf,
-				long[] initialMin,
-				long[] initialMax,
-				Point p,
-				T notVisited,
-				T fillLabel )
-		{
-			return fillMask( tf, initialMin, initialMax, p, new GrowingStoreRandomAccessibleSingletonAccess.SimpleArrayImgFactory<T>( notVisited ), notVisited, fillLabel );
-		}
-
-		private < T extends BooleanType< T > > GrowingStoreRandomAccessibleSingletonAccess< T > fillMask(
+		private < T extends BooleanType< T > > FloodFillEngine.Status fillMask(
+				GrowingStoreRandomAccessibleSingletonAccess< T > tmpFill,
 				AffineTransform3D tf,
-				long[] initialMin,
-				long[] initialMax,
 				Point p,
-				GrowingStoreRandomAccessibleSingletonAccess.Factory< T > factory,
-				T notVisited,
-				T fillLabel )
+				long label,
+				T fillLabel,
+				long maxNumFilled,
+				FloodFillEngine.Cancellation cancellation,
+				FloodFillEngine.Listener listener )
 		{
-
-			GrowingStoreRandomAccessibleSingletonAccess< T > tmpFill =
-					new GrowingStoreRandomAccessibleSingletonAccess<>(
-							initialMin,
-							initialMax,
-							factory,
-							notVisited.createVariable() );
-
 			AffineRandomAccessible<LongType, AffineGet> transformedPaintedLabels = RealViews.affine(
 					Views.interpolate(Views.extendValue(paintedLabels, new LongType(Label.TRANSPARENT)), new NearestNeighborInterpolatorFactory<>()),
 					tf );
@@ -312,18 +340,20 @@ public class LabelFillController
 			long seedPaint = pairAccess.get().getB().getIntegerLong();
 			long seedFragmentLabel = getBiggestLabel( pairAccess.getA() );
 
-			FloodFill.fill(
+			return FloodFillEngine.fill(
 					labelsPaintedLabelsPair,
 					tmpFill,
-					p,
-					new ValuePair< LabelMultisetType, LongType>(   new LabelMultisetType(), new LongType( selectionController.getActiveFragmentId() ) ),
-					fillLabel,
+					new long[]{ p.getLongPosition( 0 ), p.getLongPosition( 1 ) },
+					new ValuePair< Pair< LabelMultisetType, LongType >, T >(
+							new ValuePair<>( new LabelMultisetType(), new LongType( label ) ),
+							fillLabel ),
 					new DiamondShape( 1 ),
 					new SegmentAndPaintFilter2D< T >( seedPaint, seedFragmentLabel, assignment ),
-					new TypeWriter<>()
-			);
-
-			return tmpFill;
+					( s, t ) -> t.set( fillLabel ),
+					null,
+					maxNumFilled,
+					cancellation,
+					listener );
 		}
 
 
@@ -345,16 +375,31 @@ public class LabelFillController
 
 	}
 
+	private class CancelFill extends SelfRegisteringBehaviour implements ClickBehaviour
+	{
+		public CancelFill( final String name, final String... defaultTriggers )
+		{
+			super( name, defaultTriggers );
+		}
+
+		@Override
+		public void click( final int x, final int y )
+		{
+			if ( fillEngine.cancel() )
+				System.out.println( "Cancelling fill" );
+		}
+	}
+
 	public static class SegmentAndPaintFilter1 implements Filter< Pair< LabelMultisetType, LongType >, Pair< LabelMultisetType, LongType > >
 	{
 		private final long comparison;
 
-		private final long[] fragmentsContainedInSeedSegment;
+		private final SegmentMembership seedSegment;
 
 		public SegmentAndPaintFilter1( final long seedPaint, final long seedFragmentLabel, final FragmentSegmentAssignment assignment )
 		{
 			this.comparison = seedPaint == Label.TRANSPARENT ? seedFragmentLabel : seedPaint;
-			this.fragmentsContainedInSeedSegment = assignment.getFragments( assignment.getSegment( comparison ) );
+			this.seedSegment = SegmentMembership.forFragment( assignment, comparison );
 		}
 
 		@Override
@@ -368,15 +413,7 @@ public class LabelFillController
 				return currentPaint == comparison && currentPaint != reference.getB().getIntegerLong();
 
 			else
-			{
-				for ( final long fragment : this.fragmentsContainedInSeedSegment )
-				{
-					if ( currentLabelSet.contains( fragment ) )
-						return true;
-				}
-			}
-
-			return false;
+				return seedSegment.contains( currentLabelSet );
 		}
 	}
 
@@ -386,12 +423,12 @@ public class LabelFillController
 	{
 		private final long comparison;
 
-		private final long[] fragmentsContainedInSeedSegment;
+		private final SegmentMembership seedSegment;
 
 		public SegmentAndPaintFilter2D( long seedPaint, long seedFragmentLabel, FragmentSegmentAssignment assignment )
 		{
 			this.comparison = seedPaint == Label.TRANSPARENT ? seedFragmentLabel : seedPaint;
-			this.fragmentsContainedInSeedSegment = assignment.getFragments( assignment.getSegment( comparison ) );
+			this.seedSegment = SegmentMembership.forFragment( assignment, comparison );
 			System.out.println( "Comparison=" + this.comparison );
 		}
 
@@ -416,12 +453,8 @@ public class LabelFillController
 				if ( currentPaint != Label.TRANSPARENT )
 					return currentPaint == comparison;
 
-				else if ( currentPaint != Label.OUTSIDE ) {
-					for (long fragment : this.fragmentsContainedInSeedSegment) {
-						if (currentLabelSet.contains(fragment))
-							return true;
-					}
-				}
+				else if ( currentPaint != Label.OUTSIDE )
+					return seedSegment.contains( currentLabelSet );
 			}
 
 			return false;
@@ -20,18 +20,23 @@ import java.awt.event.KeyEvent;
 import java.awt.event.KeyListener;
 import java.awt.event.MouseEvent;
 import java.awt.event.MouseListener;
+import java.io.IOException;
 import java.nio.charset.Charset;
 import java.util.Arrays;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.zeromq.ZContext;
 import org.zeromq.ZMQ;
+import org.zeromq.ZMQ.Poller;
 import org.zeromq.ZMQ.Socket;
 
 import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
 
+import bdv.bigcat.AssignmentReplica;
+import bdv.bigcat.Message;
 import bdv.bigcat.label.FragmentSegmentAssignment;
-import bdv.bigcat.label.FragmentSegmentAssignment.FragmentSegmentSerializer;
 import bdv.bigcat.ui.AbstractSaturatedARGBStream;
 import bdv.labels.labelset.Multiset.Entry;
 import bdv.labels.labelset.Label;
@@ -42,7 +47,16 @@ import net.imglib2.RealRandomAccess;
 import net.imglib2.RealRandomAccessible;
 
 /**
- * User input for fragment/ segment merge and split events that sends
+ * User input for fragment/ segment merge and split events that sends them
+ * to a server.  The assignment is changed only by the sequenced deltas that
+ * the server sends back, see {@link Message} and {@link AssignmentReplica}.
+ *
+ * The socket is used by the listener thread only, messages to the server
+ * are queued and wake the thread through an inproc socket.
+ *
+ * Servers that speak the former string protocol are supported with
+ * -Dbigcat.legacyProtocol=true, or when they send a string message.  Edits
+ * are then applied locally and the server replaces the whole lut.
  *
  * @author Stephan Saalfeld <saalfelds@janelia.hhmi.org>
  */
@@ -50,64 +64,91 @@ public class LabelMergeSplitClientController implements MouseListener, KeyListen
 {
 	protected class SocketListener extends Thread
 	{
-		final void updateAssignment( String msg )
-		{
-//			System.out.println( "Received : " + msg );
-			System.out.println( "Message received.");
-			if ( msg.equals( "NEED MORE" ) )
-				return;
-			msg = msg.substring( 1, msg.length() - 2 );
-			final TLongLongHashMap lut = new TLongLongHashMap();
-			final String[] msgSplit = msg.split( " " );
-			for ( int i = 0; i < msgSplit.length; ++i )
-				lut.put( i, Long.parseLong( msgSplit[ i ] ) );
-
-			assignment.initLut( lut );
-			colorStream.clearCache();
-			viewer.requestRepaint();
-		}
-
 		@Override
 		final public void run()
 		{
-			while ( !isInterrupted() )
+			/* the server answers with a snapshot */
+			if ( !legacy )
+				sendMessage( new Message() );
+
+			final Poller poller = new Poller( 2 );
+			poller.register( socket, Poller.POLLIN );
+			poller.register( wakeSocket, Poller.POLLIN );
+			while ( running )
 			{
-				final String msg = socket.recvStr( Charset.defaultCharset() );
-				updateAssignment( msg );
+				for ( byte[] bytes = outbox.poll(); bytes != null; bytes = outbox.poll() )
+					socket.send( bytes, 0 );
+
+				if ( poller.poll( POLL_TIMEOUT_MILLIS ) > 0 )
+				{
+					/* messages queued meanwhile are sent in the next round */
+					while ( wakeSocket.recv( ZMQ.DONTWAIT ) != null );
+					for ( byte[] bytes = socket.recv( ZMQ.DONTWAIT ); bytes != null; bytes = socket.recv( ZMQ.DONTWAIT ) )
+						receive( bytes );
+				}
 			}
 		}
 	}
 
+	/* how often the listener checks whether it was closed */
+	static final protected int POLL_TIMEOUT_MILLIS = 100;
+
+	static private final AtomicLong numControllers = new AtomicLong();
+
+	static private final byte[] WAKE = new byte[ 0 ];
+
 	final protected ViewerPanel viewer;
 	final protected RealRandomAccessible< VolatileLabelMultisetType > labels;
 	final protected RealRandomAccess< VolatileLabelMultisetType > labelAccess;
 	final protected AbstractSaturatedARGBStream colorStream;
 	final protected FragmentSegmentAssignment assignment;
 	protected long activeFragmentId = 0;
+	final protected ZContext ctx;
 	final protected Socket socket;
+	/* signals queued messages to the listener */
+	final protected Socket wakeSocket;
+	final protected Socket wakeSender;
+	final protected ConcurrentLinkedQueue< byte[] > outbox = new ConcurrentLinkedQueue<>();
+	final protected AssignmentReplica replica;
 	final protected SocketListener socketListener;
+	protected volatile boolean running = true;
+	/* the server speaks the former string protocol */
+	protected volatile boolean legacy = Boolean.getBoolean( "bigcat.legacyProtocol" );
 
 	final GsonBuilder gsonBuilder = new GsonBuilder();
 	{
-		gsonBuilder.registerTypeAdapter( FragmentSegmentAssignment.class, new FragmentSegmentAssignment.FragmentSegmentSerializer() );
+		gsonBuilder.registerTypeAdapter( FragmentSegmentAssignment.class, new FragmentSegmentAssignment.StreamingTypeAdapter() );
 		//gsonBuilder.setPrettyPrinting();
 	}
 	final Gson gson = gsonBuilder.create();
 
 
+	/**
+	 * @param socket
+	 *            connected, used by the listener thread only from now on
+	 */
 	public LabelMergeSplitClientController(
 			final ViewerPanel viewer,
 			final RealRandomAccessible< VolatileLabelMultisetType > labels,
 			final AbstractSaturatedARGBStream colorStream,
 			final FragmentSegmentAssignment assignment,
+			final ZContext ctx,
 			final Socket socket )
 	{
 		this.viewer = viewer;
 		this.labels = labels;
 		this.colorStream = colorStream;
 		this.assignment = assignment;
+		this.ctx = ctx;
 		this.socket = socket;
 		labelAccess = labels.realRandomAccess();
+		replica = new AssignmentReplica( assignment, colorStream, () -> viewer.requestRepaint() );
+
+		final String wakeUrl = "inproc://bigcat-merge-split-client-" + numControllers.incrementAndGet();
+		wakeSocket = ctx.createSocket( ZMQ.PAIR );
+		wakeSocket.bind( wakeUrl );
+		wakeSender = ctx.createSocket( ZMQ.PAIR );
+		wakeSender.connect( wakeUrl );
 
 		socketListener = new SocketListener();
 		socketListener.start();
@@ -121,8 +162,151 @@ public class LabelMergeSplitClientController implements MouseListener, KeyListen
 			final ZContext ctx,
 			final String socketUrl )
 	{
-		this( viewer, labels, colorStream, assignment, ctx.createSocket( ZMQ.PAIR ) );
-		socket.connect( socketUrl );
+		this( viewer, labels, colorStream, assignment, ctx, connect( ctx.createSocket( ZMQ.PAIR ), socketUrl ) );
+	}
+
+	static private Socket connect( final Socket socket, final String url )
+	{
+		socket.connect( url );
+		return socket;
+	}
+
+	/**
+	 * Stop the listener and close the sockets.
+	 *
+	 * @throws InterruptedException
+	 */
+	public void close() throws InterruptedException
+	{
+		running = false;
+		wake();
+		socketListener.join();
+		ctx.destroySocket( socket );
+		ctx.destroySocket( wakeSocket );
+		ctx.destroySocket( wakeSender );
+	}
+
+	/**
+	 * Send a message in the binary format.  ZeroMQ sockets are not thread
+	 * safe, so the message is queued for the listener.
+	 *
+	 * @param msg
+	 */
+	public void sendMessage( final Message msg )
+	{
+		try
+		{
+			enqueue( msg.toBinary() );
+		}
+		catch ( final IOException e )
+		{
+			System.err.println( "Could not send message: " + e.getMessage() );
+		}
+	}
+
+	protected void enqueue( final byte[] bytes )
+	{
+		outbox.add( bytes );
+		wake();
+	}
+
+	protected void wake()
+	{
+		synchronized ( wakeSender )
+		{
+			wakeSender.send( WAKE, ZMQ.DONTWAIT );
+		}
+	}
+
+	protected void receive( final byte[] bytes )
+	{
+		if ( !legacy && bytes.length > 0 && bytes[ 0 ] != Message.PROTOCOL_VERSION )
+		{
+			System.out.println( "Server speaks the string protocol, switching to it." );
+			legacy = true;
+		}
+		if ( legacy )
+		{
+			updateAssignment( new String( bytes, Charset.defaultCharset() ) );
+			return;
+		}
+		try
+		{
+			final Message reply = replica.receive( Message.fromBinary( bytes ) );
+			if ( reply != null )
+				sendMessage( reply );
+		}
+		catch ( final IOException e )
+		{
+			System.err.println( "Ignoring message: " + e.getMessage() );
+		}
+	}
+
+	/**
+	 * Replace the lut by one in the string protocol, fragment i is assigned
+	 * to the i-th segment id of the message.
+	 */
+	protected void updateAssignment( String msg )
+	{
+		if ( msg.equals( "NEED MORE" ) )
+			return;
+		try
+		{
+			msg = msg.substring( 1, msg.length() - 2 );
+			final TLongLongHashMap lut = new TLongLongHashMap();
+			final String[] msgSplit = msg.split( " " );
+			for ( int i = 0; i < msgSplit.length; ++i )
+				lut.put( i, Long.parseLong( msgSplit[ i ] ) );
+
+			assignment.initLut( lut );
+			colorStream.clearCache();
+			viewer.requestRepaint();
+		}
+		catch ( final RuntimeException e )
+		{
+			System.err.println( "Ignoring message: " + e.getMessage() );
+		}
+	}
+
+	protected void sendString( final String msg )
+	{
+		System.out.println( "Sending : " + msg );
+		enqueue( msg.getBytes( Charset.defaultCharset() ) );
+	}
+
+	protected void merge( final long oldActiveFragmentId )
+	{
+		final long oldActiveSegmentId = assignment.getSegment( oldActiveFragmentId );
+		final long activeSegmentId = assignment.getSegment( activeFragmentId );
+		if ( oldActiveSegmentId == activeSegmentId )
+			return;
+		if ( legacy )
+		{
+			sendString( "merge(" + Arrays.toString( new long[]{ oldActiveFragmentId, activeFragmentId } ) + ")" );
+			assignment.mergeFragmentSegments( oldActiveFragmentId, activeFragmentId );
+		}
+		else
+		{
+			final Message.MergeData merge = new Message.MergeData();
+			merge.fragments = new long[]{ oldActiveFragmentId, activeFragmentId };
+			sendMessage( new Message( merge ) );
+		}
+	}
+
+	protected void detach()
+	{
+		if ( legacy )
+		{
+			final long[] fragments = assignment.getFragments( assignment.getSegment( activeFragmentId ) );
+			sendString( "detach([[" + activeFragmentId + "], " + Arrays.toString( fragments ) + "])" );
+			assignment.detachFragment( activeFragmentId );
+		}
+		else
+		{
+			final Message.IsolateData isolate = new Message.IsolateData();
+			isolate.fragment = activeFragmentId;
+			sendMessage( new Message( isolate ) );
+		}
 	}
 
 	@Override
@@ -159,52 +343,22 @@ public class LabelMergeSplitClientController implements MouseListener, KeyListen
 			if ( ( e.getModifiersEx() & KeyEvent.SHIFT_DOWN_MASK ) != 0 )
 			{
 				System.out.println( "Merging" );
-
-				final long oldActiveSegmentId = assignment.getSegment( oldActiveFragmentId );
-				final long activeSegmentId = assignment.getSegment( activeFragmentId );
-				if ( oldActiveSegmentId != activeSegmentId )
-				{
-					final long[] oldActiveFragments = assignment.getFragments( oldActiveSegmentId );
-					final long[] activeFragments = assignment.getFragments( activeSegmentId );
-//					final String msg =
-//							"merge("
-//							+ Arrays.toString( ArrayUtils.addAll( oldActiveSegments, activeSegments ) )
-//							+ ")";
-					final String msg =
-							"merge("
-							+ Arrays.toString( new long[]{ oldActiveFragmentId, activeFragmentId } )
-							+ ")";
-					System.out.println( "Sending : " + msg );
-					socket.send( msg );
-				}
-				assignment.mergeFragmentSegments( oldActiveFragmentId, activeFragmentId );
+				merge( oldActiveFragmentId );
 			}
 			else
 			{
 				if ( ( e.getModifiersEx() & KeyEvent.CTRL_DOWN_MASK ) != 0 )
 				{
 					System.out.println( "Detaching" );
-
-					final long activeSegmentId = assignment.getSegment( activeFragmentId );
-					final long[] fragments = assignment.getFragments( activeSegmentId );
-
-					final String msg =
-							"detach(["
-							+ "[" + activeFragmentId + "], "
-							+ Arrays.toString( fragments )
-							+ "])";
-					System.out.println( "Sending : " + msg );
-					socket.send( msg );
-
-					assignment.detachFragment( activeFragmentId );
-
+					detach();
 				}
 
 				colorStream.setActive( activeFragmentId );
 			}
 
-			colorStream.clearCache();
-
+			/* otherwise the replica invalidates the colors of changed segments */
+			if ( legacy )
+				colorStream.clearCache();
 			viewer.requestRepaint();
 		}
 		else
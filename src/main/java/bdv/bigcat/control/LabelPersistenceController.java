@@ -3,6 +3,9 @@ package bdv.bigcat.control;
 import java.awt.Cursor;
 import java.awt.event.ActionEvent;
 import java.io.File;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 import javax.swing.ActionMap;
 import javax.swing.InputMap;
@@ -10,7 +13,9 @@ import javax.swing.InputMap;
 import org.scijava.ui.behaviour.KeyStrokeAdder;
 import org.scijava.ui.behaviour.io.InputTriggerConfig;
 
+import bdv.bigcat.label.EditJournal;
 import bdv.bigcat.label.FragmentSegmentAssignment;
+import bdv.img.SparseLongCanvas;
 import bdv.img.h5.H5Utils;
 import bdv.labels.labelset.LabelMultisetType;
 import bdv.util.AbstractNamedAction;
@@ -19,12 +24,20 @@ import bdv.util.IdService;
 import bdv.viewer.InputActionBindings;
 import bdv.viewer.ViewerPanel;
 import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.cell.CellImg;
 import net.imglib2.type.numeric.integer.LongType;
 
 /**
  * Persist fragment segment assignments, painted labels, viewer state, and
  * flattened labels.
  *
+ * If the painted labels are a {@link SparseLongCanvas} or a {@link CellImg}
+ * with {@link bdv.img.access.ModificationAware} cells (see
+ * {@link H5Utils#createModificationAwareUnsignedLong(long[], int[])}), only
+ * the cells modified since the last save are written.  An optional
+ * {@link #startAutosave(long, TimeUnit) autosave} flushes modified cells,
+ * the assignment, and the next id periodically on a background thread.
+ *
  * @author Stephan Saalfeld &lt;saalfelds@janelia.hhmi.org&gt;
  */
 public class LabelPersistenceController
@@ -42,6 +55,22 @@ public class LabelPersistenceController
 	final protected int[] labelsCellDimensions;
 	final protected String assignmentDataset;
 
+	/**
+	 * Serializes saves from the EDT and the autosave thread, JHDF5 cannot open
+	 * the same file twice.
+	 */
+	final private Object saveLock = new Object();
+
+	/**
+	 * Assignment version at the last save, autosave skips the assignment and
+	 * next id if the assignment has not changed.
+	 */
+	private volatile long savedAssignmentVersion = -1;
+
+	private ScheduledExecutorService autosaveExecutor = null;
+
+	private volatile EditJournal journal = null;
+
 	// for keystroke actions
 	private final ActionMap ksActionMap = new ActionMap();
 	private final InputMap ksInputMap = new InputMap();
@@ -103,38 +132,158 @@ public class LabelPersistenceController
 	public void saveNextId()
 	{
 		System.out.println( "Saving next id " + h5Path + ":/next_id" );
-		H5Utils.saveUint64Attribute(
-				idService.next(),
-				h5Path,
-				"/",
-				"next_id" );
+		synchronized ( saveLock )
+		{
+			H5Utils.saveUint64Attribute(
+					idService.peek(),
+					h5Path,
+					"/",
+					"next_id" );
+		}
 	}
 
 	public void saveFragmentSegmentAssignment()
 	{
 		System.out.println( "Saving fragment-segment assignments " + h5Path + ":" + assignmentDataset );
-		H5Utils.saveLongLongLut(
-				assignment.getLut(),
-				h5Path,
-				assignmentDataset,
-				1024 );
+		synchronized ( saveLock )
+		{
+			final long version = assignment.getVersion();
+			H5Utils.saveLongLongLut(
+					assignment.getLut(),
+					h5Path,
+					assignmentDataset,
+					1024 );
+			savedAssignmentVersion = version;
+		}
 	}
 
-	public void savePaintedLabels()
+	/**
+	 * Save painted labels.  If the painted labels are a
+	 * {@link SparseLongCanvas} or a {@link CellImg}, only modified cells are
+	 * written.
+	 *
+	 * @return the number of cells saved, -1 if all cells were saved
+	 */
+	@SuppressWarnings( "unchecked" )
+	public int savePaintedLabels()
 	{
 		System.out.println( "Saving painted labels into " + h5Path + ":" + paintedLabelsDataset );
 
 		final File file = new File( h5Path );
-		H5Utils.saveUnsignedLong(
-				labelSource,
-				file,
-				paintedLabelsDataset,
-				labelsCellDimensions );
-		H5Utils.saveDoubleArrayAttribute(
-				new double[]{labelResolution[2], labelResolution[1], labelResolution[0]},
-				file,
-				paintedLabelsDataset,
-				"resolution");
+		final int numSavedCells;
+		synchronized ( saveLock )
+		{
+			if ( labelSource instanceof SparseLongCanvas )
+				numSavedCells = H5Utils.saveModifiedUnsignedLong(
+						( SparseLongCanvas ) labelSource,
+						file,
+						paintedLabelsDataset,
+						labelsCellDimensions );
+			else if ( labelSource instanceof CellImg )
+				numSavedCells = H5Utils.saveModifiedUnsignedLong(
+						( CellImg< LongType, ?, ? > ) labelSource,
+						file,
+						paintedLabelsDataset,
+						labelsCellDimensions );
+			else
+			{
+				H5Utils.saveUnsignedLong(
+						labelSource,
+						file,
+						paintedLabelsDataset,
+						labelsCellDimensions );
+				numSavedCells = -1;
+			}
+			if ( numSavedCells != 0 )
+				H5Utils.saveDoubleArrayAttribute(
+						new double[]{labelResolution[2], labelResolution[1], labelResolution[0]},
+						file,
+						paintedLabelsDataset,
+						"resolution");
+		}
+		if ( numSavedCells >= 0 )
+			System.out.println( "Saved " + numSavedCells + " modified cells." );
+		return numSavedCells;
+	}
+
+	/**
+	 * Save modified painted label cells, and the assignment and next id if
+	 * the assignment has changed since the last save.
+	 */
+	public void autosave()
+	{
+		final EditJournal journal = this.journal;
+		if ( journal == null )
+			autosaveNow();
+		else
+			journal.runBetweenJobs( this::autosaveNow );
+	}
+
+	private void autosaveNow()
+	{
+		final int numSavedCells = savePaintedLabels();
+		if ( numSavedCells != 0 || assignment.getVersion() != savedAssignmentVersion )
+		{
+			saveNextId();
+			saveFragmentSegmentAssignment();
+		}
+	}
+
+	/**
+	 * Autosave between the fills of this journal, such that writes of fills
+	 * that may still be rolled back are not saved.
+	 *
+	 * @param journal
+	 *            may be null
+	 */
+	public void setJournal( final EditJournal journal )
+	{
+		this.journal = journal;
+	}
+
+	/**
+	 * Start saving periodically on a background thread, replaces a running
+	 * autosave.
+	 *
+	 * @param period
+	 * @param unit
+	 */
+	public synchronized void startAutosave( final long period, final TimeUnit unit )
+	{
+		stopAutosave();
+		autosaveExecutor = Executors.newSingleThreadScheduledExecutor( r -> {
+			final Thread thread = new Thread( r, "bigcat-autosave" );
+			thread.setDaemon( true );
+			thread.setPriority( Thread.MIN_PRIORITY );
+			return thread;
+		} );
+		autosaveExecutor.scheduleWithFixedDelay(
+				() -> {
+					try
+					{
+						autosave();
+					}
+					catch ( final Exception e )
+					{
+						// keep autosaving, the modified flags of unsaved cells are kept
+						e.printStackTrace();
+					}
+				},
+				period,
+				period,
+				unit );
+	}
+
+	/**
+	 * Stop autosaving.  A save in progress is completed.
+	 */
+	public synchronized void stopAutosave()
+	{
+		if ( autosaveExecutor != null )
+		{
+			autosaveExecutor.shutdown();
+			autosaveExecutor = null;
+		}
 	}
 
 	public void saveMergedLabels()
@@ -142,31 +291,37 @@ public class LabelPersistenceController
 		System.out.println( "Saving merged labels into " + h5Path + ":" + mergedLabelsDataset  );
 
 		final File file = new File( h5Path );
-		H5Utils.saveSingleElementLabelMultisetLongPair(
-				labelMultisetSource,
-				labelSource,
-				labelSource,
-				file,
-				mergedLabelsDataset,
-				labelsCellDimensions );
-		H5Utils.saveDoubleArrayAttribute(
-				new double[]{labelResolution[2], labelResolution[1], labelResolution[0]},
-				file,
-				mergedLabelsDataset,
-				"resolution");
+		synchronized ( saveLock )
+		{
+			H5Utils.saveSingleElementLabelMultisetLongPair(
+					labelMultisetSource,
+					labelSource,
+					labelSource,
+					file,
+					mergedLabelsDataset,
+					labelsCellDimensions );
+			H5Utils.saveDoubleArrayAttribute(
+					new double[]{labelResolution[2], labelResolution[1], labelResolution[0]},
+					file,
+					mergedLabelsDataset,
+					"resolution");
+		}
 	}
 
 	public void saveAssignedMergedLabels()
 	{
 		System.out.println( "Saving assigned merged labels into " + h5Path + ":" + mergedLabelsDataset  );
-		H5Utils.saveAssignedSingleElementLabelMultisetLongPair(
-				labelMultisetSource,
-				labelSource,
-				labelSource,
-				assignment,
-				new File( h5Path ),
-				mergedLabelsDataset,
-				labelsCellDimensions );
+		synchronized ( saveLock )
+		{
+			H5Utils.saveAssignedSingleElementLabelMultisetLongPair(
+					labelMultisetSource,
+					labelSource,
+					labelSource,
+					assignment,
+					new File( h5Path ),
+					mergedLabelsDataset,
+					labelsCellDimensions );
+		}
 	}
 
 	private class SaveFragmentSegmentAssignment extends SelfRegisteringAction
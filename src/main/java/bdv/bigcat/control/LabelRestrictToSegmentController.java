@@ -9,13 +9,14 @@ import org.scijava.ui.behaviour.InputTriggerAdder;
 import org.scijava.ui.behaviour.InputTriggerMap;
 import org.scijava.ui.behaviour.io.InputTriggerConfig;
 
+import bdv.bigcat.label.EditJournal;
 import bdv.bigcat.label.FragmentSegmentAssignment;
+import bdv.bigcat.label.SegmentMembership;
 import bdv.labels.labelset.Label;
 import bdv.labels.labelset.LabelMultisetType;
+import bdv.util.FloodFillEngine;
 import bdv.viewer.ViewerPanel;
-import gnu.trove.list.TLongList;
-import gnu.trove.list.array.TLongArrayList;
-import net.imglib2.Cursor;
+import net.imglib2.Interval;
 import net.imglib2.Localizable;
 import net.imglib2.Point;
 import net.imglib2.RandomAccess;
@@ -23,9 +24,7 @@ import net.imglib2.RandomAccessible;
 import net.imglib2.RandomAccessibleInterval;
 import net.imglib2.RealPoint;
 import net.imglib2.algorithm.fill.Filter;
-import net.imglib2.algorithm.fill.FloodFill;
 import net.imglib2.algorithm.neighborhood.DiamondShape;
-import net.imglib2.algorithm.neighborhood.Neighborhood;
 import net.imglib2.algorithm.neighborhood.Shape;
 import net.imglib2.converter.Converter;
 import net.imglib2.realtransform.AffineTransform3D;
@@ -44,8 +43,6 @@ import net.imglib2.view.Views;
 public class LabelRestrictToSegmentController
 {
 
-	private final static int CLEANUP_THRESHOLD = ( int ) 1e5;
-
 	// current work around: fill intersect with dummy color, then fill dummy
 	// color with initial color
 	private final static int DUMMY_PAINT = -2;
@@ -79,15 +76,15 @@ public class LabelRestrictToSegmentController
 
 		private final long TRANSPARENT = Label.TRANSPARENT;
 
-		private final long[] fragmentsInSegment;
+		private final SegmentMembership segment;
 
 		private final long oldPaint;
 
 		private final long newPaint;
 
-		public WriteTransparentIfDifferentSegment( final long[] fragmentsInSegment, final long oldPaint, final long newPaint )
+		public WriteTransparentIfDifferentSegment( final SegmentMembership segment, final long oldPaint, final long newPaint )
 		{
-			this.fragmentsInSegment = fragmentsInSegment;
+			this.segment = segment;
 			this.oldPaint = oldPaint;
 			this.newPaint = newPaint;
 		}
@@ -100,13 +97,7 @@ public class LabelRestrictToSegmentController
 			// non-transparent?
 			if ( source.getB().getIntegerLong() == oldPaint )
 			{
-				boolean isInSameSegment = false;
-				for ( final long fragment : fragmentsInSegment )
-				{
-					isInSameSegment = labelMultiset.contains( fragment );
-					if ( isInSameSegment )
-						break;
-				}
+				final boolean isInSameSegment = segment.contains( labelMultiset );
 				target.setInteger( isInSameSegment ? newPaint : TRANSPARENT );
 			}
 		}
@@ -125,6 +116,10 @@ public class LabelRestrictToSegmentController
 
 	final protected SelectionController selectionController;
 
+	final protected FloodFillEngine fillEngine;
+
+	final protected EditJournal journal;
+
 	final protected RealPoint labelLocation;
 
 	final protected Shape shape;
@@ -153,6 +148,8 @@ public class LabelRestrictToSegmentController
 			final AffineTransform3D labelTransform,
 			final FragmentSegmentAssignment assignment,
 			final SelectionController selectionController,
+			final FloodFillEngine fillEngine,
+			final EditJournal journal,
 			final Shape shape,
 			final InputTriggerConfig config )
 	{
@@ -162,6 +159,8 @@ public class LabelRestrictToSegmentController
 		this.labelTransform = labelTransform;
 		this.assignment = assignment;
 		this.selectionController = selectionController;
+		this.fillEngine = fillEngine;
+		this.journal = journal;
 		this.shape = shape;
 		inputAdder = config.inputTriggerAdder( inputTriggerMap, "restrict" );
 
@@ -217,7 +216,6 @@ public class LabelRestrictToSegmentController
 		{
 			synchronized ( viewer )
 			{
-				viewer.setCursor( java.awt.Cursor.getPredefinedCursor( java.awt.Cursor.WAIT_CURSOR ) );
 				setCoordinates( x, y );
 				System.out.println( "Intersecting " + labelLocation + " with " + selectionController.getActiveFragmentId() );
 
@@ -232,48 +230,59 @@ public class LabelRestrictToSegmentController
 
                 if ( seedPaint != Label.TRANSPARENT ) {
                     final long seedFragmentLabel = getBiggestLabel(labels, p);
-                    final long seedSegmentLabel = assignment.getSegment(seedFragmentLabel);
-                    final long[] fragmentsInSeedSegment = assignment.getFragments(seedSegmentLabel);
+                    final SegmentMembership seedSegment = SegmentMembership.forFragment(assignment, seedFragmentLabel);
 
-                    final long t0 = System.currentTimeMillis();
-                    // current work around: fill intersect with dummy color, then
-                    // fill dummy color with initial color
-                    FloodFill.fill(
-                            Views.extendValue(labels, new LabelMultisetType()),
-                            Views.extendValue(paintedLabels, new LongType(Label.TRANSPARENT)),
-                            p,
-                            new LabelMultisetType(),
-                            new LongType(DUMMY_PAINT),
-                            new DiamondShape(1),
-                            new LabelFillController.SegmentAndPaintFilter1(
-                                    seedPaint,
-                                    seedFragmentLabel,
-                                    assignment));
-                    final long t1 = System.currentTimeMillis();
                     // current work around: fill intersect with dummy color, then
-                    // fill dummy color with initial color
-                    intersect(
-                            Views.extendValue(labels, new LabelMultisetType()),
-                            Views.extendValue(paintedLabels, new LongType(Label.TRANSPARENT)),
-                            Views.extendValue(paintedLabels, new LongType(Label.TRANSPARENT)),
-                            new DiamondShape(1),
-                            p,
-                            new ValuePair<>(new ValuePair<>(new LabelMultisetType(), new LongType(DUMMY_PAINT)), new LongType(DUMMY_PAINT)),
-                            LABEL_FILTER,
-                            new WriteTransparentIfDifferentSegment<>(fragmentsInSeedSegment, DUMMY_PAINT, seedPaint) // to
-                            // proper
-                            // newPaint
-                    );
-                    System.out.println( "Intersecting took " + ( t1 - t0 ) + " ms" );
+                    // fill dummy color with initial color.  Both fills are
+                    // journaled as one job that is rolled back if either is
+                    // cancelled or exceeds the budget, such that no dummy
+                    // color remains.
+                    final ViewerFillListener listener = new ViewerFillListener( viewer, "Intersecting" ).started();
+                    final long maxNumFilled = fillEngine.getMaxNumFilled();
+                    fillEngine.submit( listener.finishing( journal.journaled( getName(), cancellation -> {
+                        final FloodFillEngine.Status status = FloodFillEngine.fill(
+                                Views.extendValue(labels, new LabelMultisetType()),
+                                Views.extendValue(paintedLabels, new LongType(Label.TRANSPARENT)),
+                                new long[]{ p.getLongPosition( 0 ), p.getLongPosition( 1 ), p.getLongPosition( 2 ) },
+                                new ValuePair<>(new LabelMultisetType(), new LongType(DUMMY_PAINT)),
+                                new DiamondShape(1),
+                                new LabelFillController.SegmentAndPaintFilter1(
+                                        seedPaint,
+                                        seedFragmentLabel,
+                                        assignment),
+                                (s, t) -> t.set(DUMMY_PAINT),
+                                paintedLabels,
+                                maxNumFilled,
+                                cancellation,
+                                listener.progressOnly());
+                        if ( status != FloodFillEngine.Status.COMPLETE )
+                        {
+                            listener.finished( status, 0 );
+                            return status;
+                        }
+                        return intersect(
+                                Views.extendValue(labels, new LabelMultisetType()),
+                                Views.extendValue(paintedLabels, new LongType(Label.TRANSPARENT)),
+                                Views.extendValue(paintedLabels, new LongType(Label.TRANSPARENT)),
+                                new DiamondShape(1),
+                                p,
+                                new ValuePair<>(new ValuePair<>(new LabelMultisetType(), new LongType(DUMMY_PAINT)), new LongType(DUMMY_PAINT)),
+                                LABEL_FILTER,
+                                new WriteTransparentIfDifferentSegment<>(seedSegment, DUMMY_PAINT, seedPaint), // to
+                                // proper
+                                // newPaint
+                                paintedLabels,
+                                maxNumFilled,
+                                cancellation,
+                                listener
+                        );
+                    } ) ) );
                 }
-
-                viewer.setCursor( java.awt.Cursor.getPredefinedCursor( java.awt.Cursor.DEFAULT_CURSOR ) );
-                viewer.requestRepaint();
 			}
 		}
 	}
 
-	public static < T, U, V > void intersect(
+	public static < T, U, V > FloodFillEngine.Status intersect(
 			final RandomAccessible< T > source1,
 			final RandomAccessible< U > source2,
 			final RandomAccessible< V > target,
@@ -285,10 +294,23 @@ public class LabelRestrictToSegmentController
 		final RandomAccessiblePair.RandomAccess access =
 				new RandomAccessiblePair< >( new RandomAccessiblePair< >( source1, source2 ), target ).randomAccess();
 		access.setPosition( seed );
-		intersect( source1, source2, target, shape, seed, access.get().copy(), filter, writer );
+		return intersect( source1, source2, target, shape, seed, access.get().copy(), filter, writer, null, Long.MAX_VALUE, null, null );
 	}
 
-	public static < T, U, V > void intersect(
+	/**
+	 * Flood fill from seed, writing to target where filter accepts, see
+	 * {@link FloodFillEngine#fill}.
+	 *
+	 * @param bounds
+	 *            may be null
+	 * @param maxNumFilled
+	 *            the fill stops after this many voxels
+	 * @param cancellation
+	 *            may be null
+	 * @param listener
+	 *            may be null
+	 */
+	public static < T, U, V > FloodFillEngine.Status intersect(
 			final RandomAccessible< T > source1,
 			final RandomAccessible< U > source2,
 			final RandomAccessible< V > target,
@@ -296,56 +318,26 @@ public class LabelRestrictToSegmentController
 			final Localizable seed,
 			final Pair< Pair< T, U >, V > reference,
 			final Filter< Pair< Pair< T, U >, V >, Pair< Pair< T, U >, V > > filter,
-			final Converter< Pair< T, U >, V > writer )
+			final Converter< Pair< T, U >, V > writer,
+			final Interval bounds,
+			final long maxNumFilled,
+			final FloodFillEngine.Cancellation cancellation,
+			final FloodFillEngine.Listener listener )
 	{
-
-		final int n = source1.numDimensions();
-
-		final RandomAccessiblePair< T, U > sourcesPair = new RandomAccessiblePair< >( source1, source2 );
-		final RandomAccessiblePair< Pair< T, U >, V > sourcesTargetPair = new RandomAccessiblePair< >( sourcesPair, target );
-
-		final RandomAccessible< Neighborhood< Pair< Pair< T, U >, V > > > neighborhood = shape.neighborhoodsRandomAccessible( sourcesTargetPair );
-		final RandomAccess< Neighborhood< Pair< Pair< T, U >, V > > > neighborhoodAccess = neighborhood.randomAccess();
-
-		final TLongList[] coordinates = new TLongList[ n ];
-		for ( int d = 0; d < n; ++d )
-		{
-			coordinates[ d ] = new TLongArrayList();
-			coordinates[ d ].add( seed.getLongPosition( d ) );
-		}
-
-		for ( int i = 0; i < coordinates[ 0 ].size(); ++i )
-		{
-
-			// Clean-up after filling CLEANUP_THRESHOLD many pixels.
-			if ( i > CLEANUP_THRESHOLD )
-			{
-				for ( int d = 0; d < coordinates.length; ++d )
-				{
-					final TLongList c = coordinates[ d ];
-					coordinates[ d ] = c.subList( i, c.size() );
-				}
-				i = 0;
-			}
-
-			for ( int d = 0; d < n; ++d )
-				neighborhoodAccess.setPosition( coordinates[ d ].get( i ), d );
-
-			final Cursor< Pair< Pair< T, U >, V > > neighborhoodCursor = neighborhoodAccess.get().cursor();
-
-			while ( neighborhoodCursor.hasNext() )
-			{
-				final Pair< Pair< T, U >, V > p = neighborhoodCursor.next();
-				if ( filter.accept( p, reference ) )
-				{
-					writer.convert( p.getA(), p.getB() );
-					for ( int d = 0; d < n; ++d )
-						coordinates[ d ].add( neighborhoodCursor.getLongPosition( d ) );
-				}
-			}
-
-		}
-
+		final long[] seedPosition = new long[ seed.numDimensions() ];
+		seed.localize( seedPosition );
+		return FloodFillEngine.fill(
+				new RandomAccessiblePair< >( source1, source2 ),
+				target,
+				seedPosition,
+				reference,
+				shape,
+				filter,
+				writer,
+				bounds,
+				maxNumFilled,
+				cancellation,
+				listener );
 	}
 
 	// why even use this? can't just use ConvertedRandomAccessibleInterval? and
@@ -34,6 +34,9 @@ import org.scijava.ui.behaviour.io.InputTriggerConfig;
 import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
 
+import bdv.bigcat.Message.EditResultData;
+import bdv.bigcat.SessionClient;
+import bdv.bigcat.label.EditJournal;
 import bdv.bigcat.label.FragmentSegmentAssignment;
 import bdv.bigcat.label.IdPicker;
 import bdv.labels.labelset.Label;
@@ -53,6 +56,8 @@ public class MergeController
 	final protected IdPicker idPicker;
 	final protected SelectionController selectionController;
 	final protected FragmentSegmentAssignment assignment;
+	final protected EditJournal journal;
+	protected SessionClient session = null;
 	protected RealPoint lastClick = new RealPoint(3);
 
 	// for behavioUrs
@@ -125,7 +130,7 @@ public class MergeController
 
 	final GsonBuilder gsonBuilder = new GsonBuilder();
 	{
-		gsonBuilder.registerTypeAdapter( FragmentSegmentAssignment.class, new FragmentSegmentAssignment.FragmentSegmentSerializer() );
+		gsonBuilder.registerTypeAdapter( FragmentSegmentAssignment.class, new FragmentSegmentAssignment.StreamingTypeAdapter() );
 		//gsonBuilder.setPrettyPrinting();
 	}
 	final Gson gson = gsonBuilder.create();
@@ -135,6 +140,7 @@ public class MergeController
 			final IdPicker idPicker,
 			final SelectionController selectionController,
 			final FragmentSegmentAssignment assignment,
+			final EditJournal journal,
 			final InputTriggerConfig config,
 			final InputActionBindings inputActionBindings,
 			final KeyStrokeAdder.Factory keyProperties )
@@ -143,6 +149,7 @@ public class MergeController
 		this.idPicker = idPicker;
 		this.selectionController = selectionController;
 		this.assignment = assignment;
+		this.journal = journal;
 
 		inputAdder = config.inputTriggerAdder( inputTriggerMap, "merge" );
 		ksKeyStrokeAdder = keyProperties.keyStrokeAdder( ksInputMap, "merge" );
@@ -162,6 +169,24 @@ public class MergeController
 		inputActionBindings.addInputMap( "merge", ksInputMap );
 	}
 
+	/**
+	 * Send merges and splits to a session server instead of editing the
+	 * local assignment.  They become visible when the server published them
+	 * and cannot be undone locally.
+	 *
+	 * @param session
+	 */
+	public void setSessionClient( final SessionClient session )
+	{
+		this.session = session;
+	}
+
+	protected void report( final String description, final EditResultData result )
+	{
+		if ( !result.accepted )
+			viewer.showMessage( description + " rejected, the segment was changed in the session" );
+	}
+
 	////////////////
 	// behavioUrs //
 	////////////////
@@ -214,7 +239,14 @@ public class MergeController
 		{
 			final long oldActiveFragmentId = selectionController.getActiveFragmentId();
 			final long id = idPicker.getIdAtDisplayCoordinate( x, y );
-			assignment.mergeFragmentSegments( oldActiveFragmentId, id );
+			if ( session == null )
+				journal.recordAssignment(
+						"merge",
+						() -> assignment.mergeFragmentSegments( oldActiveFragmentId, id ),
+						oldActiveFragmentId,
+						id );
+			else
+				session.merge( oldActiveFragmentId, id ).thenAccept( result -> report( "merge", result ) );
 			selectionController.setActiveFragmentId( id );
 			viewer.requestRepaint();
 
@@ -250,7 +282,12 @@ public class MergeController
 			viewer.displayToGlobalCoordinates( x, y, lastClick );
 
 			if (id != Label.TRANSPARENT)
-				assignment.detachFragment( id );
+			{
+				if ( session == null )
+					journal.recordAssignment( "split", () -> assignment.detachFragment( id ), id );
+				else
+					session.detach( id ).thenAccept( result -> report( "split", result ) );
+			}
 
 			selectionController.setActiveFragmentId( id );
 			viewer.requestRepaint();
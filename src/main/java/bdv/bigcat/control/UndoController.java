@@ -0,0 +1,186 @@
+package bdv.bigcat.control;
+
+import java.awt.event.ActionEvent;
+
+import javax.swing.ActionMap;
+import javax.swing.InputMap;
+
+import org.scijava.ui.behaviour.KeyStrokeAdder;
+import org.scijava.ui.behaviour.io.InputTriggerConfig;
+
+import bdv.bigcat.label.EditJournal;
+import bdv.util.AbstractNamedAction;
+import bdv.util.AbstractNamedAction.NamedActionAdder;
+import bdv.viewer.InputActionBindings;
+import bdv.viewer.ViewerPanel;
+import net.imglib2.Interval;
+import net.imglib2.realtransform.AffineTransform3D;
+
+/**
+ * Undo and redo edits recorded in an {@link EditJournal}.
+ *
+ * The viewer is repainted only if the interval changed by undo or redo
+ * intersects the current view.
+ */
+public class UndoController
+{
+	final protected ViewerPanel viewer;
+	final protected EditJournal journal;
+	final protected AffineTransform3D labelTransform;
+
+	// for keystroke actions
+	private final ActionMap ksActionMap = new ActionMap();
+	private final InputMap ksInputMap = new InputMap();
+	private final NamedActionAdder ksActionAdder = new NamedActionAdder( ksActionMap );
+	private final KeyStrokeAdder ksKeyStrokeAdder;
+
+	public UndoController(
+			final ViewerPanel viewer,
+			final EditJournal journal,
+			final AffineTransform3D labelTransform,
+			final InputTriggerConfig config,
+			final InputActionBindings inputActionBindings )
+	{
+		this.viewer = viewer;
+		this.journal = journal;
+		this.labelTransform = labelTransform;
+		ksKeyStrokeAdder = config.keyStrokeAdder( ksInputMap, "undo" );
+
+		new Undo( "undo", "ctrl Z" ).register();
+		new Redo( "redo", "ctrl shift Z", "ctrl Y" ).register();
+
+		inputActionBindings.addActionMap( "undo", ksActionMap );
+		inputActionBindings.addInputMap( "undo", ksInputMap );
+	}
+
+	/**
+	 * @return whether the interval of the labels intersects the current
+	 *         slice of the viewer
+	 */
+	protected boolean isVisible( final Interval interval )
+	{
+		if ( interval == EditJournal.EVERYWHERE )
+			return true;
+
+		final AffineTransform3D transform = new AffineTransform3D();
+		viewer.getState().getViewerTransform( transform );
+		transform.concatenate( labelTransform );
+
+		final double[] min = new double[]{ Double.MAX_VALUE, Double.MAX_VALUE, Double.MAX_VALUE };
+		final double[] max = new double[]{ -Double.MAX_VALUE, -Double.MAX_VALUE, -Double.MAX_VALUE };
+		final double[] corner = new double[ 3 ];
+		for ( int i = 0; i < 8; ++i )
+		{
+			for ( int d = 0; d < 3; ++d )
+				corner[ d ] = ( ( i >> d ) & 1 ) == 0 ? interval.min( d ) - 0.5 : interval.max( d ) + 0.5;
+			transform.apply( corner, corner );
+			for ( int d = 0; d < 3; ++d )
+			{
+				min[ d ] = Math.min( min[ d ], corner[ d ] );
+				max[ d ] = Math.max( max[ d ], corner[ d ] );
+			}
+		}
+
+		return
+				max[ 0 ] >= 0 && min[ 0 ] < viewer.getDisplay().getWidth() &&
+				max[ 1 ] >= 0 && min[ 1 ] < viewer.getDisplay().getHeight() &&
+				max[ 2 ] >= 0 && min[ 2 ] <= 0;
+	}
+
+	private abstract class SelfRegisteringAction extends AbstractNamedAction
+	{
+		private final String[] defaultTriggers;
+
+		public SelfRegisteringAction( final String name, final String ... defaultTriggers )
+		{
+			super( name );
+			this.defaultTriggers = defaultTriggers;
+		}
+
+		public void register()
+		{
+			ksActionAdder.put( this );
+			ksKeyStrokeAdder.put( name(), defaultTriggers );
+		}
+	}
+
+	private abstract class UndoOrRedo extends SelfRegisteringAction
+	{
+		public UndoOrRedo( final String name, final String ... defaultTriggers )
+		{
+			super( name, defaultTriggers );
+		}
+
+		abstract protected String peek();
+
+		abstract protected Interval apply();
+
+		@Override
+		public void actionPerformed( final ActionEvent e )
+		{
+			final String description;
+			final Interval interval;
+			synchronized ( viewer )
+			{
+				description = peek();
+				try
+				{
+					interval = apply();
+				}
+				catch ( final IllegalStateException ex )
+				{
+					viewer.showMessage( "wait for the current edit to finish" );
+					return;
+				}
+			}
+			if ( interval == null )
+			{
+				viewer.showMessage( "nothing to " + name() );
+				return;
+			}
+			viewer.showMessage( name() + " " + description );
+			if ( isVisible( interval ) )
+				viewer.requestRepaint();
+		}
+	}
+
+	private class Undo extends UndoOrRedo
+	{
+		public Undo( final String name, final String ... defaultTriggers )
+		{
+			super( name, defaultTriggers );
+		}
+
+		@Override
+		protected String peek()
+		{
+			return journal.peekUndo();
+		}
+
+		@Override
+		protected Interval apply()
+		{
+			return journal.undo();
+		}
+	}
+
+	private class Redo extends UndoOrRedo
+	{
+		public Redo( final String name, final String ... defaultTriggers )
+		{
+			super( name, defaultTriggers );
+		}
+
+		@Override
+		protected String peek()
+		{
+			return journal.peekRedo();
+		}
+
+		@Override
+		protected Interval apply()
+		{
+			return journal.redo();
+		}
+	}
+}
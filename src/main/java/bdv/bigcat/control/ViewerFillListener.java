@@ -0,0 +1,117 @@
+package bdv.bigcat.control;
+
+import java.awt.Cursor;
+
+import javax.swing.SwingUtilities;
+
+import bdv.util.FloodFillEngine;
+import bdv.viewer.ViewerPanel;
+
+/**
+ * Repaints the viewer while a {@link FloodFillEngine} fill is running, such
+ * that partial results become visible, and resets the wait cursor when the
+ * job that runs the fill ends ({@link #finishing}).
+ */
+public class ViewerFillListener implements FloodFillEngine.Listener
+{
+	final private ViewerPanel viewer;
+
+	final private String description;
+
+	final private Runnable onFinished;
+
+	final private long t0 = System.currentTimeMillis();
+
+	/**
+	 * Voxels filled by fills that reported to {@link #progressOnly()}.
+	 */
+	private volatile long numFilledBefore = 0;
+
+	/**
+	 * @param viewer
+	 * @param description
+	 *            e.g. "Filling"
+	 * @param onFinished
+	 *            run on the event dispatch thread after the job ended, may be
+	 *            null
+	 */
+	public ViewerFillListener( final ViewerPanel viewer, final String description, final Runnable onFinished )
+	{
+		this.viewer = viewer;
+		this.description = description;
+		this.onFinished = onFinished;
+	}
+
+	public ViewerFillListener( final ViewerPanel viewer, final String description )
+	{
+		this( viewer, description, null );
+	}
+
+	/**
+	 * Set the wait cursor, call before submitting the fill.
+	 */
+	public ViewerFillListener started()
+	{
+		viewer.setCursor( Cursor.getPredefinedCursor( Cursor.WAIT_CURSOR ) );
+		return this;
+	}
+
+	@Override
+	public void progress( final long numFilled )
+	{
+		viewer.requestRepaint();
+	}
+
+	@Override
+	public void finished( final FloodFillEngine.Status status, final long numFilled )
+	{
+		System.out.println( description + " " + status.toString().toLowerCase().replace( '_', ' ' ) + " after " + ( numFilledBefore + numFilled ) + " voxels, took " + ( System.currentTimeMillis() - t0 ) + " ms" );
+	}
+
+	/**
+	 * Run a job and then repaint, reset the cursor and run onFinished, also
+	 * if the job failed.  Wrap journaled jobs, such that fills that were
+	 * rolled back are repainted.
+	 */
+	public FloodFillEngine.Job finishing( final FloodFillEngine.Job job )
+	{
+		return cancellation -> {
+			try
+			{
+				return job.run( cancellation );
+			}
+			finally
+			{
+				viewer.requestRepaint();
+				SwingUtilities.invokeLater( () -> {
+					viewer.setCursor( Cursor.getPredefinedCursor( Cursor.DEFAULT_CURSOR ) );
+					if ( onFinished != null )
+						onFinished.run();
+				} );
+			}
+		};
+	}
+
+	/**
+	 * @return a listener that only repaints, for fills that are followed by
+	 *         another fill in the same job
+	 */
+	public FloodFillEngine.Listener progressOnly()
+	{
+		return new FloodFillEngine.Listener()
+		{
+			@Override
+			public void progress( final long numFilled )
+			{
+				viewer.requestRepaint();
+			}
+
+			@Override
+			public void finished( final FloodFillEngine.Status status, final long numFilled )
+			{
+				numFilledBefore += numFilled;
+				viewer.requestRepaint();
+			}
+		};
+	}
+}
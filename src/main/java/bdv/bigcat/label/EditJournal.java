@@ -0,0 +1,771 @@
+package bdv.bigcat.label;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+import bdv.img.SparseLongCanvas;
+import bdv.img.SparseLongCanvas.Cell;
+import bdv.util.FloodFillEngine;
+import gnu.trove.list.array.TIntArrayList;
+import gnu.trove.list.array.TLongArrayList;
+import gnu.trove.set.hash.TLongHashSet;
+import net.imglib2.FinalInterval;
+import net.imglib2.Interval;
+
+/**
+ * Undo and redo of edits of the painted labels and of the
+ * {@link FragmentSegmentAssignment}.
+ *
+ * Canvas edits are recorded between {@link #begin()} and
+ * {@link #commit(String)}.  The value of each voxel of the
+ * {@link SparseLongCanvas} is remembered before the first write to it
+ * ({@link SparseLongCanvas#observeWrites}) and compared with its value at
+ * the commit, such that an open edit takes memory proportional to the
+ * written voxels.  The journal stores the changed voxels of each cell as
+ * runs of indices with run length encoded values before and after the edit,
+ * such that undo and redo take time proportional to the number of changed
+ * voxels.  Assignment edits store the segments of all affected fragments
+ * before and after the edit.
+ *
+ * Fill jobs ({@link #journaled}) run one at a time and exclusively: they
+ * wait for an open brush stroke to end, brush strokes are refused
+ * ({@link #tryBegin()}) while they run, and their writes are rolled back if
+ * they are cancelled, exceed their budget or fail.
+ *
+ * Entries are kept serialized.  When they take more than
+ * {@code maxBytesInMemory}, the oldest entries are moved to a temporary file
+ * and read back when they are undone.  The file shrinks again when entries
+ * are dropped.
+ */
+public class EditJournal
+{
+	static private final byte CANVAS = 0;
+
+	static private final byte ASSIGNMENT = 1;
+
+	static public final long DEFAULT_MAX_BYTES_IN_MEMORY = 64L << 20;
+
+	/**
+	 * Returned by {@link #undo()} and {@link #redo()} for assignment edits,
+	 * which can change the appearance of all voxels.
+	 */
+	static public final Interval EVERYWHERE = new FinalInterval(
+			new long[]{ Long.MIN_VALUE, Long.MIN_VALUE, Long.MIN_VALUE },
+			new long[]{ Long.MAX_VALUE, Long.MAX_VALUE, Long.MAX_VALUE } );
+
+	static private class Entry
+	{
+		final String description;
+
+		final byte type;
+
+		/* affected interval of the canvas, null for assignment edits */
+		final Interval interval;
+
+		/* null after spilling */
+		byte[] data;
+
+		long fileOffset = -1;
+
+		final int length;
+
+		Entry( final String description, final byte type, final Interval interval, final byte[] data )
+		{
+			this.description = description;
+			this.type = type;
+			this.interval = interval;
+			this.data = data;
+			length = data.length;
+		}
+	}
+
+	final private SparseLongCanvas canvas;
+
+	final private FragmentSegmentAssignment assignment;
+
+	final private long maxBytesInMemory;
+
+	final private ArrayDeque< Entry > undo = new ArrayDeque<>();
+
+	final private ArrayDeque< Entry > redo = new ArrayDeque<>();
+
+	private long bytesInMemory = 0;
+
+	private RandomAccessFile spill = null;
+
+	/* number of nested open canvas edits */
+	private int depth = 0;
+
+	/* held while a journaled job runs, see runBetweenJobs */
+	final private ReentrantLock jobLock = new ReentrantLock();
+
+	private boolean jobRunning = false;
+
+	/**
+	 * Voxels of a cell written during the open canvas edit and their values
+	 * before the first write, guarded by the cell.
+	 */
+	static private class CellChanges
+	{
+		final BitSet written;
+
+		final TIntArrayList indices = new TIntArrayList();
+
+		final TLongArrayList before = new TLongArrayList();
+
+		CellChanges( final int size )
+		{
+			written = new BitSet( size );
+		}
+	}
+
+	final private ConcurrentHashMap< Cell, CellChanges > changes = new ConcurrentHashMap<>();
+
+	/**
+	 * @param canvas
+	 *            painted labels, may be null to journal only assignment edits
+	 * @param assignment
+	 * @param maxBytesInMemory
+	 *            older entries are moved to a temporary file
+	 */
+	public EditJournal( final SparseLongCanvas canvas, final FragmentSegmentAssignment assignment, final long maxBytesInMemory )
+	{
+		this.canvas = canvas;
+		this.assignment = assignment;
+		this.maxBytesInMemory = maxBytesInMemory;
+	}
+
+	public EditJournal( final SparseLongCanvas canvas, final FragmentSegmentAssignment assignment )
+	{
+		this( canvas, assignment, Long.getLong( "bigcat.journalBytes", DEFAULT_MAX_BYTES_IN_MEMORY ) );
+	}
+
+	/**
+	 * Start recording writes to the canvas.  Edits can be nested (e.g. a
+	 * brush stroke while a fill is running), they are then recorded as one
+	 * entry when the outermost edit is committed.
+	 */
+	public synchronized void begin()
+	{
+		if ( canvas == null )
+			return;
+		if ( depth++ == 0 )
+			canvas.observeWrites( this::beforeWrite );
+	}
+
+	/* called while the cell is locked */
+	private void beforeWrite( final Cell cell, final int index, final long value )
+	{
+		CellChanges cellChanges = changes.get( cell );
+		if ( cellChanges == null )
+			cellChanges = changes.computeIfAbsent( cell, c -> new CellChanges( c.size() ) );
+		if ( !cellChanges.written.get( index ) )
+		{
+			cellChanges.written.set( index );
+			cellChanges.indices.add( index );
+			cellChanges.before.add( value );
+		}
+	}
+
+	/**
+	 * Start recording writes to the canvas unless a journaled job is
+	 * running, e.g. for a brush stroke.
+	 *
+	 * @return whether the edit was started and must be committed
+	 */
+	public synchronized boolean tryBegin()
+	{
+		if ( jobRunning )
+			return false;
+		begin();
+		return true;
+	}
+
+	/**
+	 * Record the writes of a fill job as one entry if the job completes, and
+	 * roll them back otherwise.  The job waits for open edits to be committed
+	 * and for other jobs and {@link #runBetweenJobs} to end.
+	 *
+	 * @param description
+	 * @param job
+	 */
+	public FloodFillEngine.Job journaled( final String description, final FloodFillEngine.Job job )
+	{
+		return cancellation -> {
+			jobLock.lock();
+			try
+			{
+				beginJob();
+				FloodFillEngine.Status status = null;
+				try
+				{
+					status = job.run( cancellation );
+					return status;
+				}
+				finally
+				{
+					endJob( description, status == FloodFillEngine.Status.COMPLETE );
+				}
+			}
+			finally
+			{
+				jobLock.unlock();
+			}
+		};
+	}
+
+	/**
+	 * Run e.g. a save while no journaled job is running, such that it does
+	 * not see writes that may still be rolled back.
+	 */
+	public void runBetweenJobs( final Runnable runnable )
+	{
+		jobLock.lock();
+		try
+		{
+			runnable.run();
+		}
+		finally
+		{
+			jobLock.unlock();
+		}
+	}
+
+	private synchronized void beginJob()
+	{
+		boolean interrupted = false;
+		while ( depth > 0 )
+		{
+			try
+			{
+				wait();
+			}
+			catch ( final InterruptedException e )
+			{
+				interrupted = true;
+			}
+		}
+		if ( interrupted )
+			Thread.currentThread().interrupt();
+		jobRunning = true;
+		begin();
+	}
+
+	private synchronized void endJob( final String description, final boolean complete )
+	{
+		try
+		{
+			if ( complete )
+				commit( description );
+			else
+				rollback();
+		}
+		finally
+		{
+			jobRunning = false;
+		}
+	}
+
+	/**
+	 * Restore the values of all voxels written during the open edit and end
+	 * it without recording an entry.
+	 */
+	private void rollback()
+	{
+		if ( canvas == null || depth == 0 )
+			return;
+		canvas.observeWrites( null );
+		try
+		{
+			for ( final Map.Entry< Cell, CellChanges > entry : changes.entrySet() )
+			{
+				final Cell cell = entry.getKey();
+				synchronized ( cell )
+				{
+					final CellChanges cellChanges = entry.getValue();
+					for ( int k = 0; k < cellChanges.indices.size(); ++k )
+						cell.setValue( cellChanges.indices.getQuick( k ), cellChanges.before.getQuick( k ) );
+				}
+			}
+		}
+		finally
+		{
+			changes.clear();
+			depth = 0;
+			notifyAll();
+		}
+	}
+
+	/**
+	 * End an edit started with {@link #begin()}.
+	 *
+	 * @param description
+	 *            e.g. "fill"
+	 */
+	public synchronized void commit( final String description )
+	{
+		if ( canvas == null || depth == 0 || --depth > 0 )
+			return;
+		canvas.observeWrites( null );
+		notifyAll();
+
+		final int n = canvas.numDimensions();
+		final long[] min = new long[ n ];
+		final long[] max = new long[ n ];
+		for ( int d = 0; d < n; ++d )
+		{
+			min[ d ] = Long.MAX_VALUE;
+			max[ d ] = Long.MIN_VALUE;
+		}
+
+		final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		try ( final DataOutputStream out = new DataOutputStream( bytes ) )
+		{
+			final long[] gridPosition = new long[ n ];
+			int numChangedCells = 0;
+			final ByteArrayOutputStream cellBytes = new ByteArrayOutputStream();
+			final DataOutputStream cellOut = new DataOutputStream( cellBytes );
+			for ( final Map.Entry< Cell, CellChanges > entry : changes.entrySet() )
+			{
+				final Cell cell = entry.getKey();
+				final int[] indices;
+				final long[] before;
+				synchronized ( cell )
+				{
+					indices = entry.getValue().indices.toArray();
+					before = entry.getValue().before.toArray();
+				}
+
+				/* by index, keeping only voxels that changed */
+				final long[] order = new long[ indices.length ];
+				for ( int k = 0; k < indices.length; ++k )
+					order[ k ] = ( ( long ) indices[ k ] << 32 ) | k;
+				Arrays.sort( order );
+				final int[] changedIndices = new int[ indices.length ];
+				final long[] changedBefore = new long[ indices.length ];
+				final long[] changedAfter = new long[ indices.length ];
+				int numChanged = 0;
+				for ( final long o : order )
+				{
+					final int k = ( int ) o;
+					final long after = cell.getValue( indices[ k ] );
+					if ( after != before[ k ] )
+					{
+						changedIndices[ numChanged ] = indices[ k ];
+						changedBefore[ numChanged ] = before[ k ];
+						changedAfter[ numChanged ] = after;
+						++numChanged;
+					}
+				}
+				if ( numChanged == 0 )
+					continue;
+
+				canvas.gridPosition( cell, gridPosition );
+				writeCellDiff( gridPosition, changedIndices, changedBefore, changedAfter, numChanged, cellOut );
+				++numChangedCells;
+				for ( int d = 0; d < n; ++d )
+				{
+					min[ d ] = Math.min( min[ d ], cell.getMin()[ d ] );
+					max[ d ] = Math.max( max[ d ], cell.getMin()[ d ] + cell.getDimensions()[ d ] - 1 );
+				}
+			}
+			if ( numChangedCells == 0 )
+				return;
+			cellOut.flush();
+			out.writeInt( numChangedCells );
+			cellBytes.writeTo( out );
+		}
+		catch ( final IOException e )
+		{
+			throw new UncheckedIOException( e );
+		}
+		finally
+		{
+			changes.clear();
+		}
+
+		push( new Entry( description, CANVAS, new FinalInterval( min, max ), bytes.toByteArray() ) );
+	}
+
+	/**
+	 * Run an edit of the assignment and record it.  The edit must only move
+	 * fragments between the segments of {@code fragmentIds} (as merging,
+	 * detaching, ... do).  The edit runs on the calling thread without
+	 * locking the journal, such that it can e.g. wait for new ids.
+	 *
+	 * @param description
+	 * @param edit
+	 * @param fragmentIds
+	 *            fragments whose segments are changed by the edit
+	 */
+	public void recordAssignment( final String description, final Runnable edit, final long... fragmentIds )
+	{
+		final TLongHashSet affected = new TLongHashSet();
+		for ( final long id : fragmentIds )
+		{
+			final long[] fragments = assignment.getFragments( assignment.getSegment( id ) );
+			if ( fragments == null )
+				affected.add( id );
+			else
+				affected.addAll( fragments );
+		}
+		final long[] fragments = affected.toArray();
+		final long[] segmentsBefore = new long[ fragments.length ];
+		for ( int i = 0; i < fragments.length; ++i )
+			segmentsBefore[ i ] = assignment.getSegment( fragments[ i ] );
+
+		edit.run();
+
+		boolean changed = false;
+		final long[] segmentsAfter = new long[ fragments.length ];
+		for ( int i = 0; i < fragments.length; ++i )
+		{
+			segmentsAfter[ i ] = assignment.getSegment( fragments[ i ] );
+			changed |= segmentsAfter[ i ] != segmentsBefore[ i ];
+		}
+		if ( !changed )
+			return;
+
+		final ByteBuffer buffer = ByteBuffer.allocate( 4 + 24 * fragments.length );
+		buffer.putInt( fragments.length );
+		buffer.asLongBuffer().put( fragments ).put( segmentsBefore ).put( segmentsAfter );
+		synchronized ( this )
+		{
+			push( new Entry( description, ASSIGNMENT, null, buffer.array() ) );
+		}
+	}
+
+	/**
+	 * Undo the most recent edit.
+	 *
+	 * @return the interval of the canvas that changed, {@link #EVERYWHERE}
+	 *         for assignment edits, or null if there was nothing to undo
+	 */
+	public synchronized Interval undo()
+	{
+		return move( undo, redo, true );
+	}
+
+	/**
+	 * Redo the most recently undone edit.
+	 *
+	 * @return see {@link #undo()}
+	 */
+	public synchronized Interval redo()
+	{
+		return move( redo, undo, false );
+	}
+
+	/**
+	 * @return description of the edit that {@link #undo()} would undo or null
+	 */
+	public synchronized String peekUndo()
+	{
+		return undo.isEmpty() ? null : undo.peek().description;
+	}
+
+	/**
+	 * @return description of the edit that {@link #redo()} would redo or null
+	 */
+	public synchronized String peekRedo()
+	{
+		return redo.isEmpty() ? null : redo.peek().description;
+	}
+
+	public synchronized int numUndoEntries()
+	{
+		return undo.size();
+	}
+
+	public synchronized int numRedoEntries()
+	{
+		return redo.size();
+	}
+
+	/**
+	 * @return bytes of entries kept in memory
+	 */
+	public synchronized long getBytesInMemory()
+	{
+		return bytesInMemory;
+	}
+
+	private Interval move( final ArrayDeque< Entry > from, final ArrayDeque< Entry > to, final boolean useBefore )
+	{
+		if ( depth > 0 )
+			throw new IllegalStateException( "Cannot undo or redo while an edit is in progress." );
+		final Entry entry = from.poll();
+		if ( entry == null )
+			return null;
+
+		final ByteBuffer data = ByteBuffer.wrap( load( entry ) );
+		final Interval interval;
+		if ( entry.type == CANVAS )
+		{
+			applyCanvas( data, useBefore );
+			interval = entry.interval;
+		}
+		else
+		{
+			applyAssignment( data, useBefore );
+			interval = EVERYWHERE;
+		}
+		to.push( entry );
+		return interval;
+	}
+
+	private void push( final Entry entry )
+	{
+		for ( final Entry e : redo )
+			if ( e.data != null )
+				bytesInMemory -= e.length;
+		final boolean droppedSpilled = redo.stream().anyMatch( e -> e.fileOffset >= 0 );
+		redo.clear();
+		if ( droppedSpilled )
+			reclaimSpill();
+		undo.push( entry );
+		bytesInMemory += entry.length;
+		spillOldest();
+	}
+
+	/**
+	 * Give back the space of dropped entries in the spill file.  Truncate
+	 * the file after the last entry that is still spilled, and move the
+	 * spilled entries to the front if they take less than half of the file.
+	 */
+	private void reclaimSpill()
+	{
+		final ArrayList< Entry > spilled = new ArrayList<>();
+		for ( final Entry e : undo )
+			if ( e.fileOffset >= 0 )
+				spilled.add( e );
+		spilled.sort( ( a, b ) -> Long.compare( a.fileOffset, b.fileOffset ) );
+		long numSpilledBytes = 0;
+		for ( final Entry e : spilled )
+			numSpilledBytes += e.length;
+		try
+		{
+			final long end = spilled.isEmpty() ? 0 : spilled.get( spilled.size() - 1 ).fileOffset + spilled.get( spilled.size() - 1 ).length;
+			if ( 2 * numSpilledBytes >= end )
+			{
+				spill.setLength( end );
+				return;
+			}
+			long offset = 0;
+			for ( final Entry e : spilled )
+			{
+				if ( e.fileOffset != offset )
+				{
+					final byte[] data = load( e );
+					spill.seek( offset );
+					spill.write( data );
+					e.fileOffset = offset;
+				}
+				offset += e.length;
+			}
+			spill.setLength( offset );
+		}
+		catch ( final IOException e )
+		{
+			System.err.println( "Could not shrink the undo history file: " + e.getMessage() );
+		}
+	}
+
+	/**
+	 * @return bytes of the spill file
+	 */
+	synchronized long getSpillFileLength() throws IOException
+	{
+		return spill == null ? 0 : spill.length();
+	}
+
+	/**
+	 * Move the oldest entries to the spill file until the remaining ones fit
+	 * into memory.  The most recent entry always stays in memory.
+	 */
+	private void spillOldest()
+	{
+		final Iterator< Entry > oldest = undo.descendingIterator();
+		while ( bytesInMemory > maxBytesInMemory && oldest.hasNext() )
+		{
+			final Entry entry = oldest.next();
+			if ( entry == undo.peek() )
+				break;
+			if ( entry.data != null )
+			{
+				try
+				{
+					if ( spill == null )
+					{
+						final File file = File.createTempFile( "bigcat-journal", ".bin" );
+						file.deleteOnExit();
+						spill = new RandomAccessFile( file, "rw" );
+					}
+					if ( entry.fileOffset < 0 )
+					{
+						entry.fileOffset = spill.length();
+						spill.seek( entry.fileOffset );
+						spill.write( entry.data );
+					}
+				}
+				catch ( final IOException e )
+				{
+					System.err.println( "Could not move undo history to a temporary file: " + e.getMessage() );
+					return;
+				}
+				entry.data = null;
+				bytesInMemory -= entry.length;
+			}
+		}
+	}
+
+	private byte[] load( final Entry entry )
+	{
+		if ( entry.data != null )
+			return entry.data;
+		final byte[] data = new byte[ entry.length ];
+		try
+		{
+			spill.seek( entry.fileOffset );
+			spill.readFully( data );
+		}
+		catch ( final IOException e )
+		{
+			throw new UncheckedIOException( e );
+		}
+		return data;
+	}
+
+	/**
+	 * Write the changed voxels of a cell as runs of indices followed by the
+	 * run length encoded values before and after.
+	 *
+	 * @param indices
+	 *            of the changed voxels, ascending
+	 * @param numChanged
+	 *            number of changed voxels, the arrays may be longer
+	 */
+	static void writeCellDiff(
+			final long[] gridPosition,
+			final int[] indices,
+			final long[] before,
+			final long[] after,
+			final int numChanged,
+			final DataOutputStream out ) throws IOException
+	{
+		final TIntArrayList runs = new TIntArrayList();
+		for ( int k = 0; k < numChanged; )
+		{
+			final int start = indices[ k ];
+			int length = 1;
+			for ( ++k; k < numChanged && indices[ k ] == start + length; ++k )
+				++length;
+			runs.add( start );
+			runs.add( length );
+		}
+
+		for ( final long g : gridPosition )
+			out.writeLong( g );
+		out.writeInt( runs.size() / 2 );
+		for ( int r = 0; r < runs.size(); ++r )
+			out.writeInt( runs.get( r ) );
+		writeValues( before, numChanged, out );
+		writeValues( after, numChanged, out );
+	}
+
+	/**
+	 * Run length encode values as pairs of value and count.
+	 */
+	static private void writeValues( final long[] values, final int numValues, final DataOutputStream out ) throws IOException
+	{
+		int numPairs = 1;
+		for ( int i = 1; i < numValues; ++i )
+			if ( values[ i ] != values[ i - 1 ] )
+				++numPairs;
+		out.writeInt( numPairs );
+
+		int count = 1;
+		for ( int i = 1; i < numValues; ++i )
+		{
+			if ( values[ i ] != values[ i - 1 ] )
+			{
+				out.writeLong( values[ i - 1 ] );
+				out.writeInt( count );
+				count = 0;
+			}
+			++count;
+		}
+		out.writeLong( values[ numValues - 1 ] );
+		out.writeInt( count );
+	}
+
+	private void applyCanvas( final ByteBuffer data, final boolean useBefore )
+	{
+		final int n = canvas.numDimensions();
+		final long[] gridPosition = new long[ n ];
+		final int numCells = data.getInt();
+		for ( int c = 0; c < numCells; ++c )
+		{
+			for ( int d = 0; d < n; ++d )
+				gridPosition[ d ] = data.getLong();
+			final int numRuns = data.getInt();
+			final int[] runs = new int[ 2 * numRuns ];
+			for ( int r = 0; r < runs.length; ++r )
+				runs[ r ] = data.getInt();
+
+			if ( !useBefore )
+				skipValues( data );
+			final Cell cell = canvas.getOrCreateCell( gridPosition );
+			final int numPairs = data.getInt();
+			int run = 0;
+			int i = runs[ 0 ];
+			int end = runs[ 0 ] + runs[ 1 ];
+			for ( int p = 0; p < numPairs; ++p )
+			{
+				final long value = data.getLong();
+				for ( int count = data.getInt(); count > 0; --count )
+				{
+					if ( i == end )
+					{
+						++run;
+						i = runs[ 2 * run ];
+						end = i + runs[ 2 * run + 1 ];
+					}
+					cell.setValue( i++, value );
+				}
+			}
+			if ( useBefore )
+				skipValues( data );
+		}
+	}
+
+	static private void skipValues( final ByteBuffer data )
+	{
+		final int numPairs = data.getInt();
+		data.position( data.position() + 12 * numPairs );
+	}
+
+	private void applyAssignment( final ByteBuffer data, final boolean useBefore )
+	{
+		final int numFragments = data.getInt();
+		final long[] fragments = new long[ numFragments ];
+		final long[] segments = new long[ numFragments ];
+		data.asLongBuffer().get( fragments );
+		data.position( data.position() + 8 * numFragments * ( useBefore ? 1 : 2 ) );
+		data.asLongBuffer().get( segments );
+		assignment.assign( fragments, segments );
+	}
+}
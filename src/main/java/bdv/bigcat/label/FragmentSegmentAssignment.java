@@ -16,11 +16,13 @@
  */
 package bdv.bigcat.label;
 
+import java.io.IOException;
+import java.io.OutputStream;
 import java.lang.reflect.Type;
 import java.util.Map.Entry;
 import java.util.Set;
-
-import org.apache.commons.lang.ArrayUtils;
+import java.util.concurrent.locks.StampedLock;
+import java.util.function.LongSupplier;
 
 import com.google.gson.Gson;
 import com.google.gson.JsonArray;
@@ -32,16 +34,17 @@ import com.google.gson.JsonParseException;
 import com.google.gson.JsonPrimitive;
 import com.google.gson.JsonSerializationContext;
 import com.google.gson.JsonSerializer;
+import com.google.gson.TypeAdapter;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonWriter;
 
 import bdv.labels.labelset.Label;
 import bdv.util.IdService;
 import bdv.util.LocalIdService;
-import gnu.trove.impl.Constants;
+import bdv.util.LutStreams;
 import gnu.trove.iterator.TLongLongIterator;
-import gnu.trove.iterator.TLongObjectIterator;
 import gnu.trove.list.array.TLongArrayList;
 import gnu.trove.map.hash.TLongLongHashMap;
-import gnu.trove.map.hash.TLongObjectHashMap;
 
 /**
  *
@@ -68,7 +71,7 @@ public class FragmentSegmentAssignment
 		public JsonElement serialize( final FragmentSegmentAssignment src, final Type typeOfSrc, final JsonSerializationContext context )
 		{
 			final JsonObject jsonLut = new JsonObject();
-			final TLongLongIterator lutIterator = src.lut.iterator();
+			final TLongLongIterator lutIterator = src.getLut().iterator();
 			while ( lutIterator.hasNext() )
 			{
 				lutIterator.advance();
@@ -103,7 +106,7 @@ public class FragmentSegmentAssignment
 		{
 			final JsonArray fragments = new JsonArray();
 			final JsonArray segments = new JsonArray();
-			final TLongLongIterator lutIterator = src.lut.iterator();
+			final TLongLongIterator lutIterator = src.getLut().iterator();
 			while ( lutIterator.hasNext() )
 			{
 				lutIterator.advance();
@@ -139,14 +142,10 @@ public class FragmentSegmentAssignment
 			final Gson gson = new Gson();
 
 			final JsonObject jsonILut = new JsonObject();
-			final TLongObjectIterator< long[] > ilutIterator = src.ilut.iterator();
-			while ( ilutIterator.hasNext() )
-			{
-				ilutIterator.advance();
+			for ( final long segmentId : src.getSegments() )
 				jsonILut.add(
-						Long.toString( ilutIterator.key() ),
-						gson.toJsonTree( ilutIterator.value() ) );
-			}
+						Long.toString( segmentId ),
+						gson.toJsonTree( src.getFragments( segmentId ) ) );
 
 			final JsonObject jsonObject = new JsonObject();
 			jsonObject.add( "ilut", jsonILut );
@@ -155,6 +154,36 @@ public class FragmentSegmentAssignment
 		}
 	}
 
+	/**
+	 * Streaming (de)serialization of {@link FragmentSegmentAssignment} in the
+	 * format of {@link FragmentSegmentSerializer}.  Reads all formats
+	 * understood by {@link GSONDeserializer} without creating a JSON tree.
+	 */
+	static public class StreamingTypeAdapter extends TypeAdapter< FragmentSegmentAssignment >
+	{
+		@Override
+		public void write( final JsonWriter out, final FragmentSegmentAssignment value ) throws IOException
+		{
+			value.writeJson( out );
+		}
+
+		@Override
+		public FragmentSegmentAssignment read( final JsonReader in ) throws IOException
+		{
+			final TLongLongHashMap lut = LutStreams.readJson( in );
+			final long[] maxId = new long[]{ 0 };
+			lut.forEachEntry( ( fragmentId, segmentId ) -> {
+				maxId[ 0 ] = IdService.max( maxId[ 0 ], IdService.max( fragmentId, segmentId ) );
+				return true;
+			} );
+			final LocalIdService idService = new LocalIdService();
+			idService.setNext( maxId[ 0 ] + 1 );
+			final FragmentSegmentAssignment assignment = new FragmentSegmentAssignment( idService );
+			assignment.initLut( lut );
+			return assignment;
+		}
+	}
+
 	/**
 	 * Deserializes the various serializations of FragmentSegmentAssignment.
 	 *
@@ -288,8 +317,22 @@ A:					for ( final Entry< String, JsonElement > entry : ilutJsonEntrySet )
 		}
 	}
 
-	final protected TLongLongHashMap lut = new TLongLongHashMap(Constants.DEFAULT_CAPACITY, Constants.DEFAULT_LOAD_FACTOR, Label.TRANSPARENT, Label.TRANSPARENT);
-	final protected TLongObjectHashMap< long[] > ilut = new TLongObjectHashMap< long[] >(Constants.DEFAULT_CAPACITY, Constants.DEFAULT_LOAD_FACTOR, Label.TRANSPARENT);
+	/**
+	 * Disjoint sets of fragments, one per segment.
+	 */
+	final protected FragmentSegmentUnionFind unionFind = new FragmentSegmentUnionFind();
+
+	/**
+	 * Guards unionFind.  Readers (the render threads) use optimistic reads
+	 * that never block and never write to shared memory, writers take the
+	 * exclusive lock and publish a new {@link #version}.
+	 */
+	final protected StampedLock lock = new StampedLock();
+
+	/**
+	 * Incremented with every modification of the assignment.
+	 */
+	protected volatile long version = 0;
 
 	protected IdService idService;
 
@@ -303,16 +346,113 @@ A:					for ( final Entry< String, JsonElement > entry : ilutJsonEntrySet )
 		assert fragments.length == segments.length : "segments and bodies must be of same length";
 
 		for ( int i = 0; i < fragments.length; ++i )
-			lut.put( fragments[ i ], segments[ i ] );
+			unionFind.put( fragments[ i ], segments[ i ] );
 
 		this.idService = idService;
-
-		syncILut();
 	}
 
+	/**
+	 * Get a snapshot of the fragment &gt; segment lookup.  Modifying the
+	 * returned lut has no effect on the assignment.
+	 *
+	 * @return
+	 */
 	public TLongLongHashMap getLut()
 	{
-		return lut;
+		final long stamp = lock.readLock();
+		try
+		{
+			return unionFind.toLut();
+		}
+		finally
+		{
+			lock.unlockRead( stamp );
+		}
+	}
+
+	/**
+	 * Get a snapshot of the fragment &gt; segment lookup as two arrays,
+	 * fragments in ascending order and their segments.
+	 *
+	 * @return { fragments, segments }
+	 */
+	public long[][] getSortedLut()
+	{
+		final long stamp = lock.readLock();
+		try
+		{
+			final long[] fragments = unionFind.getSortedFragments();
+			final long[] segments = new long[ fragments.length ];
+			for ( int i = 0; i < fragments.length; ++i )
+				segments[ i ] = unionFind.getSegment( fragments[ i ] );
+			return new long[][]{ fragments, segments };
+		}
+		finally
+		{
+			lock.unlockRead( stamp );
+		}
+	}
+
+	/**
+	 * Write the fragment &gt; segment lookup in the binary format of
+	 * {@link LutStreams} straight from the assignment, modifications wait
+	 * until it is written.  The stream is not closed.
+	 *
+	 * @param out
+	 * @param compress
+	 * @throws IOException
+	 */
+	public void writeBinary( final OutputStream out, final boolean compress ) throws IOException
+	{
+		final long stamp = lock.readLock();
+		try
+		{
+			final long[] fragments = unionFind.getSortedFragments();
+			LutStreams.writeBinary( fragments, i -> unionFind.getSegment( fragments[ i ] ), out, compress );
+		}
+		finally
+		{
+			lock.unlockRead( stamp );
+		}
+	}
+
+	/**
+	 * Write the fragment &gt; segment lookup as JSON in the format of
+	 * {@link FragmentSegmentSerializer} straight from the assignment,
+	 * modifications wait until it is written.
+	 *
+	 * @param out
+	 * @throws IOException
+	 */
+	public void writeJson( final JsonWriter out ) throws IOException
+	{
+		final long stamp = lock.readLock();
+		try
+		{
+			LutStreams.writeJson( unionFind.iterator(), out );
+		}
+		finally
+		{
+			lock.unlockRead( stamp );
+		}
+	}
+
+	/**
+	 * Get all segments that have explicitly assigned fragments.
+	 *
+	 * @return
+	 */
+	public long[] getSegments()
+	{
+		final long stamp = lock.readLock();
+		try
+		{
+			return unionFind.getSegments();
+		}
+		finally
+		{
+			lock.unlockRead( stamp );
+		}
 	}
 
 	public void setIdService( final IdService idService )
@@ -320,37 +460,37 @@ A:					for ( final Entry< String, JsonElement > entry : ilutJsonEntrySet )
 		this.idService = idService;
 	}
 
-	public void initLut( final TLongLongHashMap lut )
+	/**
+	 * Get the current version of the assignment.  The version changes with
+	 * every modification, so it can be used to detect stale caches.
+	 *
+	 * @return
+	 */
+	public long getVersion()
 	{
-		this.lut.clear();
-		this.ilut.clear();
-		this.lut.putAll( lut );
-		syncILut();
-
-		System.out.println( "Done" );
+		return version;
 	}
 
 	/**
-	 * Synchronize the inverse Lookup (segment > [fragments]) with the current
-	 * forward lookup (fragment > segment)).  The current state of the inverse
-	 * lookup will be cleared.
+	 * Replace the current assignment by a fragment &gt; segment lookup.  Takes
+	 * time linear in the size of the lut.
+	 *
+	 * @param lut
 	 */
-	protected void syncILut()
+	public void initLut( final TLongLongHashMap lut )
 	{
-		ilut.clear();
-		final TLongLongIterator lutIterator =  lut.iterator();
-		while ( lutIterator.hasNext() )
-		{
-			lutIterator.advance();
-			final long fragmentId = lutIterator.key();
-			final long segmentId = lutIterator.value();
-			long[] fragments = ilut.get( segmentId );
-			if ( fragments == null )
-				fragments = new long[]{ fragmentId };
-			else
-				fragments = ArrayUtils.add( fragments, fragmentId );
-			ilut.put( segmentId, fragments);
+		final long stamp = lock.writeLock();
+		try
+		{
+			unionFind.init( lut );
+			++version;
+		}
+		finally
+		{
+			lock.unlockWrite( stamp );
 		}
+
+		System.out.println( "Done" );
 	}
 
 	/**
@@ -360,19 +500,29 @@ A:					for ( final Entry< String, JsonElement > entry : ilutJsonEntrySet )
 	 */
 	public long getSegment( final long fragmentId )
 	{
-		final long id;
-		synchronized ( this )
-		{
-			final long segmentId = lut.get( fragmentId );
-			if ( segmentId == lut.getNoEntryValue() ) {
-				id = fragmentId;
-				lut.put( fragmentId, id );
-				ilut.put( id, new long[]{ fragmentId } );
+		long stamp = lock.tryOptimisticRead();
+		if ( stamp != 0 )
+		{
+			try
+			{
+				final long segmentId = unionFind.getSegment( fragmentId );
+				if ( lock.validate( stamp ) )
+					return segmentId;
 			}
-			else
-				id = segmentId;
+			catch ( final RuntimeException e )
+			{
+				/* inconsistent read during concurrent modification, retry locked */
+			}
+		}
+		stamp = lock.readLock();
+		try
+		{
+			return unionFind.getSegment( fragmentId );
+		}
+		finally
+		{
+			lock.unlockRead( stamp );
 		}
-		return id;
 	}
 
 	/**
@@ -382,12 +532,54 @@ A:					for ( final Entry< String, JsonElement > entry : ilutJsonEntrySet )
 	 */
 	public long[] getFragments( final long segmentId )
 	{
-		final long[] fragments;
-		synchronized ( this )
+		long stamp = lock.tryOptimisticRead();
+		if ( stamp != 0 )
 		{
-			fragments = ilut.get( segmentId );
+			try
+			{
+				final long[] fragments = unionFind.getFragments( segmentId );
+				if ( lock.validate( stamp ) )
+					return fragments;
+			}
+			catch ( final RuntimeException e )
+			{
+				/* inconsistent read during concurrent modification, retry locked */
+			}
+		}
+		stamp = lock.readLock();
+		try
+		{
+			return unionFind.getFragments( segmentId );
+		}
+		finally
+		{
+			lock.unlockRead( stamp );
+		}
+	}
+
+	/**
+	 * Assign fragments to segments, e.g. to restore an earlier state of the
+	 * fragments of some segments.  Other fragments of the segments are not
+	 * affected.
+	 *
+	 * @param fragmentIds
+	 * @param segmentIds
+	 */
+	public void assign( final long[] fragmentIds, final long[] segmentIds )
+	{
+		assert fragmentIds.length == segmentIds.length : "fragments and segments must be of same length";
+
+		final long stamp = lock.writeLock();
+		try
+		{
+			for ( int i = 0; i < fragmentIds.length; ++i )
+				unionFind.put( fragmentIds[ i ], segmentIds[ i ] );
+			++version;
+		}
+		finally
+		{
+			lock.unlockWrite( stamp );
 		}
-		return fragments;
 	}
 
 	/**
@@ -401,14 +593,15 @@ A:					for ( final Entry< String, JsonElement > entry : ilutJsonEntrySet )
 		if ( segmentId1 == segmentId2 )
 			return;
 
-		synchronized ( this )
+		final long stamp = lock.writeLock();
+		try
 		{
-			final long[] fragments1 = ilut.get( segmentId1 );
-			final long[] fragments2 = ilut.get( segmentId2 );
-			for ( final long fragmentId : fragments1 )
-				lut.put( fragmentId, segmentId2 );
-			ilut.put( segmentId2, ArrayUtils.addAll( fragments1, fragments2 ) );
-			ilut.remove( segmentId1 );
+			unionFind.assignFragments( segmentId1, segmentId2 );
+			++version;
+		}
+		finally
+		{
+			lock.unlockWrite( stamp );
 		}
 	}
 
@@ -423,17 +616,28 @@ A:					for ( final Entry< String, JsonElement > entry : ilutJsonEntrySet )
 		if ( segmentId1 == segmentId2 )
 			return;
 
-		final long mergedSegmentId = idService.next();
-		synchronized ( this )
+		mergeSegments( segmentId1, segmentId2, idService.next() );
+	}
+
+	/**
+	 * Merge two segments into a segment with a given id, e.g. to replay a
+	 * merge that was resolved elsewhere.
+	 *
+	 * @param segmentId1
+	 * @param segmentId2
+	 * @param mergedSegmentId
+	 */
+	public void mergeSegments( final long segmentId1, final long segmentId2, final long mergedSegmentId )
+	{
+		final long stamp = lock.writeLock();
+		try
+		{
+			unionFind.mergeSegments( segmentId1, segmentId2, mergedSegmentId );
+			++version;
+		}
+		finally
 		{
-			final long[] fragments1 = ilut.get( segmentId1 );
-			final long[] fragments2 = ilut.get( segmentId2 );
-			final long[] fragments = ArrayUtils.addAll( fragments1, fragments2 );
-			for ( final long fragmentId : fragments )
-				lut.put( fragmentId, mergedSegmentId );
-			ilut.put( mergedSegmentId, fragments );
-			ilut.remove( segmentId1 );
-			ilut.remove( segmentId2 );
+			lock.unlockWrite( stamp );
 		}
 	}
 
@@ -458,19 +662,85 @@ A:					for ( final Entry< String, JsonElement > entry : ilutJsonEntrySet )
 	 */
 	public void detachFragment( final long fragmentId )
 	{
-		synchronized ( this )
+		/* draw the id of the remaining fragments outside of the lock, the id
+		 * service may block, and retry if it became necessary meanwhile */
+		long remainingSegmentId = Label.INVALID;
+		while ( true )
 		{
-			final long segmentId = lut.get( fragmentId );
-			final long[] fragments = ilut.get( segmentId );
-			if ( fragments != null && fragments.length > 1 )
+			final long stamp = lock.writeLock();
+			try
 			{
-				final long[] newFragments = ArrayUtils.removeElement( fragments, fragmentId );
-				ilut.put( segmentId, newFragments );
-
-				final long newSegmentId = fragmentId;
-				lut.put( fragmentId, newSegmentId );
-				ilut.put( newSegmentId, new long[]{ fragmentId } );
+				if ( remainingSegmentId != Label.INVALID || !isRelabeledByDetach( fragmentId ) )
+				{
+					final long id = remainingSegmentId;
+					detachFragmentLocked( fragmentId, () -> id );
+					return;
+				}
+			}
+			finally
+			{
+				lock.unlockWrite( stamp );
 			}
+			remainingSegmentId = idService.next();
+		}
+	}
+
+	/**
+	 * Detach a segment from the body that it has been associated with, e.g.
+	 * to replay a detach that was resolved elsewhere.
+	 *
+	 * @param fragmentId
+	 * @param remainingSegmentId
+	 *            new id of the remaining fragments if they had the id of the
+	 *            detached fragment
+	 */
+	public void detachFragment( final long fragmentId, final long remainingSegmentId )
+	{
+		detachFragment( fragmentId, () -> remainingSegmentId );
+	}
+
+	/**
+	 * Detach a segment from the body that it has been associated with.
+	 *
+	 * @param fragmentId
+	 * @param remainingSegmentId
+	 *            supplies the new id of the remaining fragments, requested
+	 *            only if they had the id of the detached fragment
+	 * @return the new id of the remaining fragments if they were relabeled,
+	 *         {@link Label#INVALID} otherwise
+	 */
+	public long detachFragment( final long fragmentId, final LongSupplier remainingSegmentId )
+	{
+		final long stamp = lock.writeLock();
+		try
+		{
+			return detachFragmentLocked( fragmentId, remainingSegmentId );
+		}
+		finally
+		{
+			lock.unlockWrite( stamp );
+		}
+	}
+
+	/* the remaining fragments cannot keep the id of the detached fragment */
+	private boolean isRelabeledByDetach( final long fragmentId )
+	{
+		if ( unionFind.getSegment( fragmentId ) != fragmentId )
+			return false;
+		final long[] fragments = unionFind.getFragments( fragmentId );
+		return fragments != null && fragments.length > 1;
+	}
+
+	private long detachFragmentLocked( final long fragmentId, final LongSupplier remainingSegmentId )
+	{
+		long relabeled = Label.INVALID;
+		if ( isRelabeledByDetach( fragmentId ) )
+		{
+			relabeled = remainingSegmentId.getAsLong();
+			unionFind.relabel( fragmentId, relabeled );
 		}
+		if ( unionFind.detachFragment( fragmentId ) )
+			++version;
+		return relabeled;
 	}
 }
@@ -0,0 +1,553 @@
+/**
+ * License: GPL
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License 2
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package bdv.bigcat.label;
+
+import java.util.Arrays;
+import java.util.ConcurrentModificationException;
+
+import bdv.labels.labelset.Label;
+import gnu.trove.impl.Constants;
+import gnu.trove.iterator.TLongIntIterator;
+import gnu.trove.iterator.TLongLongIterator;
+import gnu.trove.list.array.TLongArrayList;
+import gnu.trove.map.hash.TLongIntHashMap;
+import gnu.trove.map.hash.TLongLongHashMap;
+
+/**
+ * Disjoint sets of fragment ids with one segment id per set.  Each fragment
+ * is a node in a union-find forest (union by rank, path compression) and,
+ * additionally, in a circular doubly linked list of the members of its set.
+ * Merging two sets and detaching a fragment from its set are therefore
+ * (almost) constant time, and the fragments of a segment are listed in time
+ * linear in their number.
+ *
+ * A detached fragment is re-added as a new node, its former node stays in
+ * the forest as an inner node without membership.  The forest is rebuilt
+ * once it has more such nodes than fragments.
+ *
+ * Fragments that have never been added are implicitly a segment of their own
+ * with the same id.
+ *
+ * Not thread safe, {@link FragmentSegmentAssignment} takes care of locking.
+ * The non-modifying methods ({@link #getSegment(long)},
+ * {@link #getFragments(long)}, ...) do not write and terminate even when
+ * called concurrently with modifications (possibly with an exception), so
+ * they can be used for optimistic reads.
+ */
+public class FragmentSegmentUnionFind
+{
+	final static private int NO_NODE = -1;
+
+	/* fragment id of each node */
+	protected long[] fragments;
+
+	/* segment id of each root node */
+	protected long[] segments;
+
+	protected int[] parents;
+
+	protected byte[] ranks;
+
+	/* circular doubly linked lists of set members */
+	protected int[] next;
+
+	protected int[] previous;
+
+	/* number of nodes including those of detached fragments */
+	protected int size = 0;
+
+	/* fragment id > node */
+	final protected TLongIntHashMap fragmentNodes = new TLongIntHashMap( Constants.DEFAULT_CAPACITY, Constants.DEFAULT_LOAD_FACTOR, Label.TRANSPARENT, NO_NODE );
+
+	/* segment id > any member node of the segment */
+	final protected TLongIntHashMap segmentNodes = new TLongIntHashMap( Constants.DEFAULT_CAPACITY, Constants.DEFAULT_LOAD_FACTOR, Label.TRANSPARENT, NO_NODE );
+
+	public FragmentSegmentUnionFind( final int capacity )
+	{
+		allocate( Math.max( 1, capacity ) );
+	}
+
+	public FragmentSegmentUnionFind()
+	{
+		this( Constants.DEFAULT_CAPACITY );
+	}
+
+	protected void allocate( final int capacity )
+	{
+		fragments = new long[ capacity ];
+		segments = new long[ capacity ];
+		parents = new int[ capacity ];
+		ranks = new byte[ capacity ];
+		next = new int[ capacity ];
+		previous = new int[ capacity ];
+	}
+
+	protected void ensureCapacity( final int capacity )
+	{
+		if ( capacity <= parents.length )
+			return;
+
+		final int newCapacity = ( int )Math.min( Integer.MAX_VALUE - 8, Math.max( capacity, 2L * parents.length ) );
+		fragments = Arrays.copyOf( fragments, newCapacity );
+		segments = Arrays.copyOf( segments, newCapacity );
+		parents = Arrays.copyOf( parents, newCapacity );
+		ranks = Arrays.copyOf( ranks, newCapacity );
+		next = Arrays.copyOf( next, newCapacity );
+		previous = Arrays.copyOf( previous, newCapacity );
+	}
+
+	/**
+	 * Remove all fragments and segments.
+	 */
+	public void clear()
+	{
+		fragmentNodes.clear();
+		segmentNodes.clear();
+		size = 0;
+	}
+
+	/**
+	 * Number of fragments.
+	 */
+	public int numFragments()
+	{
+		return fragmentNodes.size();
+	}
+
+	/**
+	 * Number of segments that have at least one explicitly added fragment.
+	 */
+	public int numSegments()
+	{
+		return segmentNodes.size();
+	}
+
+	protected int addNode( final long fragmentId, final long segmentId )
+	{
+		ensureCapacity( size + 1 );
+		final int node = size++;
+		fragments[ node ] = fragmentId;
+		segments[ node ] = segmentId;
+		parents[ node ] = node;
+		ranks[ node ] = 0;
+		next[ node ] = node;
+		previous[ node ] = node;
+		fragmentNodes.put( fragmentId, node );
+		return node;
+	}
+
+	/**
+	 * Find the root of a node with path compression (halving).
+	 */
+	protected int find( int node )
+	{
+		int parent;
+		while ( ( parent = parents[ node ] ) != node )
+		{
+			parents[ node ] = parents[ parent ];
+			node = parents[ node ];
+		}
+		return node;
+	}
+
+	/**
+	 * Find the root of a node without modifying the forest.
+	 *
+	 * @throws ConcurrentModificationException
+	 *             if the path is longer than the forest is large, which can
+	 *             happen only during a concurrent modification
+	 */
+	protected int root( int node )
+	{
+		final int[] parents = this.parents;
+		for ( int steps = parents.length; steps > 0; --steps )
+		{
+			final int parent = parents[ node ];
+			if ( parent == node )
+				return node;
+			node = parent;
+		}
+		throw new ConcurrentModificationException();
+	}
+
+	/**
+	 * Union by rank of two distinct roots.
+	 *
+	 * @return the new root
+	 */
+	protected int union( final int root1, final int root2 )
+	{
+		final byte rank1 = ranks[ root1 ];
+		final byte rank2 = ranks[ root2 ];
+		if ( rank1 < rank2 )
+		{
+			parents[ root1 ] = root2;
+			return root2;
+		}
+		parents[ root2 ] = root1;
+		if ( rank1 == rank2 )
+			++ranks[ root1 ];
+		return root1;
+	}
+
+	/**
+	 * Join the member lists of node1 and node2 which must be in different
+	 * lists.
+	 */
+	protected void splice( final int node1, final int node2 )
+	{
+		final int next1 = next[ node1 ];
+		final int next2 = next[ node2 ];
+		next[ node1 ] = next2;
+		previous[ next2 ] = node1;
+		next[ node2 ] = next1;
+		previous[ next1 ] = node2;
+	}
+
+	/**
+	 * Remove a node from the member list of its set and forget its fragment.
+	 * The node remains in the forest.
+	 */
+	protected void unlink( final int node )
+	{
+		final long segmentId = segments[ find( node ) ];
+		final int nextNode = next[ node ];
+		if ( segmentNodes.get( segmentId ) == node )
+		{
+			if ( nextNode == node )
+				segmentNodes.remove( segmentId );
+			else
+				segmentNodes.put( segmentId, nextNode );
+		}
+		final int previousNode = previous[ node ];
+		next[ previousNode ] = nextNode;
+		previous[ nextNode ] = previousNode;
+		next[ node ] = node;
+		previous[ node ] = node;
+		fragmentNodes.remove( fragments[ node ] );
+	}
+
+	/**
+	 * Get a member node of a segment.  A segment id that is neither a known
+	 * segment nor a known fragment is added as a new segment consisting of
+	 * the fragment with the same id.
+	 *
+	 * @return member node or -1 if segmentId is a fragment of another segment
+	 */
+	protected int segmentNode( final long segmentId )
+	{
+		final int node = segmentNodes.get( segmentId );
+		if ( node != NO_NODE || fragmentNodes.containsKey( segmentId ) )
+			return node;
+
+		final int newNode = addNode( segmentId, segmentId );
+		segmentNodes.put( segmentId, newNode );
+		return newNode;
+	}
+
+	/**
+	 * Assign a fragment to a segment.  Initializing from a lut by successive
+	 * calls to this method takes time linear in the number of fragments.
+	 *
+	 * @param fragmentId
+	 * @param segmentId
+	 */
+	public void put( final long fragmentId, final long segmentId )
+	{
+		final int oldNode = fragmentNodes.get( fragmentId );
+		if ( oldNode != NO_NODE )
+		{
+			unlink( oldNode );
+			compactIfSparse();
+		}
+
+		final int member = segmentNodes.get( segmentId );
+		final int node = addNode( fragmentId, segmentId );
+		if ( member == NO_NODE )
+			segmentNodes.put( segmentId, node );
+		else
+		{
+			final int root = find( member );
+			parents[ node ] = root;
+			if ( ranks[ root ] == 0 )
+				ranks[ root ] = 1;
+			splice( member, node );
+		}
+	}
+
+	/**
+	 * Assign all fragments of a lut, the current state is cleared.
+	 *
+	 * @param lut
+	 */
+	public void init( final TLongLongHashMap lut )
+	{
+		clear();
+		ensureCapacity( lut.size() );
+		fragmentNodes.ensureCapacity( lut.size() );
+		segmentNodes.ensureCapacity( lut.size() );
+		lut.forEachEntry( ( fragmentId, segmentId ) -> {
+			put( fragmentId, segmentId );
+			return true;
+		} );
+	}
+
+	/**
+	 * Get the segment that is assigned to a fragment.
+	 *
+	 * @param fragmentId
+	 */
+	public long getSegment( final long fragmentId )
+	{
+		final int node = fragmentNodes.get( fragmentId );
+		if ( node == NO_NODE )
+			return fragmentId;
+		return segments[ root( node ) ];
+	}
+
+	/**
+	 * Get the fragments of a segment.
+	 *
+	 * @param segmentId
+	 * @return fragments or null if segmentId is a fragment of another segment
+	 */
+	public long[] getFragments( final long segmentId )
+	{
+		final int node = segmentNodes.get( segmentId );
+		if ( node == NO_NODE )
+			return fragmentNodes.containsKey( segmentId ) ? null : new long[]{ segmentId };
+
+		final long[] fragments = this.fragments;
+		final int[] next = this.next;
+		final TLongArrayList list = new TLongArrayList();
+		int i = node;
+		do
+		{
+			list.add( fragments[ i ] );
+			i = next[ i ];
+		}
+		/* a concurrent splice may detour into another cycle, bail out */
+		while ( i != node && list.size() <= fragments.length );
+
+		return list.toArray();
+	}
+
+	/**
+	 * Get all segments that have at least one explicitly added fragment.
+	 */
+	public long[] getSegments()
+	{
+		return segmentNodes.keys();
+	}
+
+	/**
+	 * Change the id of a segment.
+	 *
+	 * @param segmentId
+	 * @param newSegmentId
+	 */
+	public void relabel( final long segmentId, final long newSegmentId )
+	{
+		final int node = segmentNode( segmentId );
+		if ( node != NO_NODE )
+			relabel( segmentId, node, newSegmentId );
+	}
+
+	protected void relabel( final long segmentId, final int node, final long newSegmentId )
+	{
+		segments[ find( node ) ] = newSegmentId;
+		segmentNodes.remove( segmentId );
+		segmentNodes.put( newSegmentId, node );
+	}
+
+	protected void merge(
+			final long segmentId1,
+			final int node1,
+			final long segmentId2,
+			final int node2,
+			final long mergedSegmentId )
+	{
+		if ( node1 == NO_NODE )
+		{
+			if ( node2 != NO_NODE )
+				relabel( segmentId2, node2, mergedSegmentId );
+			return;
+		}
+		if ( node2 == NO_NODE )
+		{
+			relabel( segmentId1, node1, mergedSegmentId );
+			return;
+		}
+
+		final int root1 = find( node1 );
+		final int root2 = find( node2 );
+		final int root;
+		if ( root1 == root2 )
+			root = root1;
+		else
+		{
+			root = union( root1, root2 );
+			splice( node1, node2 );
+		}
+		segments[ root ] = mergedSegmentId;
+		segmentNodes.remove( segmentId1 );
+		segmentNodes.remove( segmentId2 );
+		segmentNodes.put( mergedSegmentId, node1 );
+	}
+
+	/**
+	 * Merge two segments into a segment with a new id.
+	 *
+	 * @param segmentId1
+	 * @param segmentId2
+	 * @param mergedSegmentId
+	 */
+	public void mergeSegments( final long segmentId1, final long segmentId2, final long mergedSegmentId )
+	{
+		merge( segmentId1, segmentNode( segmentId1 ), segmentId2, segmentNode( segmentId2 ), mergedSegmentId );
+	}
+
+	/**
+	 * Assign all fragments of segmentId1 to segmentId2.
+	 *
+	 * @param segmentId1
+	 * @param segmentId2
+	 */
+	public void assignFragments( final long segmentId1, final long segmentId2 )
+	{
+		merge( segmentId1, segmentNode( segmentId1 ), segmentId2, segmentNodes.get( segmentId2 ), segmentId2 );
+	}
+
+	/**
+	 * Detach a fragment from its segment into a new segment with the same id
+	 * as the fragment.  If the fragment id is the id of its current segment,
+	 * the remaining fragments have to be relabeled before.
+	 *
+	 * @param fragmentId
+	 * @return whether the fragment was detached
+	 */
+	public boolean detachFragment( final long fragmentId )
+	{
+		final int node = fragmentNodes.get( fragmentId );
+		if ( node == NO_NODE || next[ node ] == node )
+			return false;
+
+		unlink( node );
+		compactIfSparse();
+		final int newNode = addNode( fragmentId, fragmentId );
+		segmentNodes.put( fragmentId, newNode );
+		return true;
+	}
+
+	/**
+	 * Rebuild the forest from its lut if it has more nodes of detached or
+	 * reassigned fragments than fragments.
+	 *
+	 * @return whether the forest was rebuilt
+	 */
+	protected boolean compactIfSparse()
+	{
+		final int numFragments = fragmentNodes.size();
+		if ( size - numFragments <= Math.max( numFragments, Constants.DEFAULT_CAPACITY ) )
+			return false;
+
+		init( toLut() );
+		return true;
+	}
+
+	/**
+	 * Get the fragment &gt; segment lookup.
+	 *
+	 * @return a new lut
+	 */
+	public TLongLongHashMap toLut()
+	{
+		final TLongLongHashMap lut = new TLongLongHashMap(
+				Math.max( Constants.DEFAULT_CAPACITY, fragmentNodes.size() ),
+				Constants.DEFAULT_LOAD_FACTOR,
+				Label.TRANSPARENT,
+				Label.TRANSPARENT );
+		final TLongIntIterator iterator = fragmentNodes.iterator();
+		while ( iterator.hasNext() )
+		{
+			iterator.advance();
+			lut.put( iterator.key(), segments[ root( iterator.value() ) ] );
+		}
+		return lut;
+	}
+
+	/**
+	 * Get all fragment ids in ascending order.
+	 *
+	 * @return a new array
+	 */
+	public long[] getSortedFragments()
+	{
+		final long[] fragmentIds = fragmentNodes.keys();
+		Arrays.sort( fragmentIds );
+		return fragmentIds;
+	}
+
+	/**
+	 * Iterate over the fragment &gt; segment lookup without copying it.  The
+	 * iterator is invalid after modifications.
+	 *
+	 * @return
+	 */
+	public TLongLongIterator iterator()
+	{
+		final TLongIntIterator nodes = fragmentNodes.iterator();
+		return new TLongLongIterator()
+		{
+			@Override
+			public void advance()
+			{
+				nodes.advance();
+			}
+
+			@Override
+			public boolean hasNext()
+			{
+				return nodes.hasNext();
+			}
+
+			@Override
+			public void remove()
+			{
+				throw new UnsupportedOperationException();
+			}
+
+			@Override
+			public long key()
+			{
+				return nodes.key();
+			}
+
+			@Override
+			public long value()
+			{
+				return segments[ root( nodes.value() ) ];
+			}
+
+			@Override
+			public long setValue( final long val )
+			{
+				throw new UnsupportedOperationException();
+			}
+		};
+	}
+}
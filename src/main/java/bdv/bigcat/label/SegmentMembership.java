@@ -0,0 +1,91 @@
+package bdv.bigcat.label;
+
+import bdv.labels.labelset.LabelMultisetType;
+
+/**
+ * Whether label multisets contain any fragment of a segment, e.g. for the
+ * filters of segment-aware flood fills.
+ *
+ * The fragments of the segment are requested from the
+ * {@link FragmentSegmentAssignment} once and again only after its
+ * {@link FragmentSegmentAssignment#getVersion() version} changed.  The same
+ * fragment array is passed to {@link LabelMultisetType#containsAny(long[])}
+ * for every voxel, such that each distinct list of a cell is searched only
+ * once per version of the assignment and all other voxels that refer to the
+ * same list are answered from the cell's cache.
+ *
+ * Safe to use from multiple threads.
+ */
+public class SegmentMembership
+{
+	static private class Fragments
+	{
+		final long version;
+
+		final long[] fragments;
+
+		Fragments( final long version, final long[] fragments )
+		{
+			this.version = version;
+			this.fragments = fragments;
+		}
+	}
+
+	final private FragmentSegmentAssignment assignment;
+
+	final private long id;
+
+	final private boolean isFragment;
+
+	private volatile Fragments fragments = null;
+
+	private SegmentMembership( final FragmentSegmentAssignment assignment, final long id, final boolean isFragment )
+	{
+		this.assignment = assignment;
+		this.id = id;
+		this.isFragment = isFragment;
+	}
+
+	/**
+	 * Membership in a segment.
+	 */
+	static public SegmentMembership forSegment( final FragmentSegmentAssignment assignment, final long segmentId )
+	{
+		return new SegmentMembership( assignment, segmentId, false );
+	}
+
+	/**
+	 * Membership in the segment of a fragment, follows the fragment when it
+	 * is assigned to another segment.
+	 */
+	static public SegmentMembership forFragment( final FragmentSegmentAssignment assignment, final long fragmentId )
+	{
+		return new SegmentMembership( assignment, fragmentId, true );
+	}
+
+	/**
+	 * @return the fragments of the segment for the current version of the
+	 *         assignment, the same array until the assignment changes
+	 */
+	public long[] getFragments()
+	{
+		final long version = assignment.getVersion();
+		Fragments current = fragments;
+		if ( current == null || current.version != version )
+		{
+			final long segmentId = isFragment ? assignment.getSegment( id ) : id;
+			final long[] segmentFragments = assignment.getFragments( segmentId );
+			current = new Fragments( version, segmentFragments == null ? new long[ 0 ] : segmentFragments );
+			fragments = current;
+		}
+		return current.fragments;
+	}
+
+	/**
+	 * @return whether {@code labels} contains any fragment of the segment
+	 */
+	public boolean contains( final LabelMultisetType labels )
+	{
+		return labels.containsAny( getFragments() );
+	}
+}
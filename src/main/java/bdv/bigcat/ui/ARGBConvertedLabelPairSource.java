@@ -1,5 +1,8 @@
 package bdv.bigcat.ui;
 
+import bdv.AbstractViewerSetupImgLoader;
+import bdv.img.SparseLongCanvasPyramid;
+import bdv.labels.labelset.LabelMultisetType;
 import bdv.labels.labelset.VolatileLabelMultisetType;
 import net.imglib2.Interval;
 import net.imglib2.RandomAccessibleInterval;
@@ -7,32 +10,53 @@ import net.imglib2.converter.Converters;
 import net.imglib2.realtransform.AffineTransform3D;
 import net.imglib2.type.numeric.integer.LongType;
 import net.imglib2.type.volatiles.VolatileARGBType;
+import net.imglib2.util.Intervals;
 import net.imglib2.util.Pair;
 import net.imglib2.view.RandomAccessiblePair;
 import net.imglib2.view.Views;
 
+/**
+ * Fragments paired with painted labels.  Each mipmap level of the fragments
+ * is paired with the level of the painted labels pyramid of the same
+ * resolution such that zoomed out views convert only as many pairs as they
+ * show.  An update of the pyramid is requested before each level is handed
+ * out, it runs in the background.
+ */
 public class ARGBConvertedLabelPairSource extends AbstractARGBConvertedLabelsSource
 {
-	final private RandomAccessiblePair< VolatileLabelMultisetType, LongType > source;
-	final private Interval interval;
+	final private AbstractViewerSetupImgLoader< LabelMultisetType, VolatileLabelMultisetType > fragments;
+	final private SparseLongCanvasPyramid paintedLabels;
 	final private AffineTransform3D[] sourceTransforms;
 
+	/**
+	 * @param setupId
+	 * @param fragments
+	 * @param paintedLabels
+	 *            with a level for each mipmap level of the fragments
+	 * @param argbStream
+	 */
 	public ARGBConvertedLabelPairSource(
 			final int setupId,
-			final RandomAccessiblePair< VolatileLabelMultisetType, LongType > source,
-			final Interval interval,
-			final AffineTransform3D[] sourceTransforms,
+			final AbstractViewerSetupImgLoader< LabelMultisetType, VolatileLabelMultisetType > fragments,
+			final SparseLongCanvasPyramid paintedLabels,
 			final ARGBStream argbStream )
 	{
 		super( setupId, argbStream );
-		this.source = source;
-		this.interval = interval;
-		this.sourceTransforms = sourceTransforms;
+		this.fragments = fragments;
+		this.paintedLabels = paintedLabels;
+		this.sourceTransforms = fragments.getMipmapTransforms();
+		assert paintedLabels.numLevels() == sourceTransforms.length : "painted labels and fragments must have the same number of levels";
 	}
 
 	@Override
 	public RandomAccessibleInterval< VolatileARGBType > getSource( final int t, final int level )
 	{
+		paintedLabels.requestUpdate();
+		final RandomAccessibleInterval< VolatileLabelMultisetType > fragmentsLevel = fragments.getVolatileImage( t, level );
+		final RandomAccessibleInterval< LongType > paintedLabelsLevel = paintedLabels.getLevel( level );
+		final RandomAccessiblePair< VolatileLabelMultisetType, LongType > source = new RandomAccessiblePair<>( fragmentsLevel, paintedLabelsLevel );
+		/* the canvas must not be accessed outside of its interval */
+		final Interval interval = Intervals.intersect( fragmentsLevel, paintedLabelsLevel );
 		return Converters.convert(
 				// cast necessary for java-8-openjdk-amd64, version 1.8.0_66-internal, vendor: Oracle Corporation
 				// to prevent
@@ -30,4 +30,17 @@ public interface ARGBStream
 	 * @return
 	 */
 	public int argb( long id );
+
+	/**
+	 * Version of the colors, changes whenever the color of any id may have
+	 * changed.  Colors of streams without a version must not be remembered.
+	 *
+	 * @return the version or {@link #UNVERSIONED}
+	 */
+	default public long getVersion()
+	{
+		return UNVERSIONED;
+	}
+
+	static public final long UNVERSIONED = -1;
 }
@@ -16,10 +16,9 @@
  */
 package bdv.bigcat.ui;
 
+import java.util.concurrent.atomic.AtomicLong;
+
 import bdv.bigcat.label.FragmentSegmentAssignment;
-import bdv.labels.labelset.Label;
-import gnu.trove.impl.Constants;
-import gnu.trove.map.hash.TLongIntHashMap;
 
 
 /**
@@ -43,16 +42,16 @@ abstract public class AbstractARGBStream implements ARGBStream
 
 	final protected FragmentSegmentAssignment assignment;
 
+	/* changes of the stream, see getVersion() */
+	final private AtomicLong changes = new AtomicLong();
+
 	public AbstractARGBStream( final FragmentSegmentAssignment assignment )
 	{
 		this.assignment = assignment;
 	}
 
-	protected TLongIntHashMap argbCache = new TLongIntHashMap(
-			Constants.DEFAULT_CAPACITY ,
-			Constants.DEFAULT_LOAD_FACTOR,
-			Label.TRANSPARENT,
-			0 );
+	/* read by all rendering threads */
+	final protected ColorTable argbCache = new ColorTable();
 
 	final static protected int argb( final int r, final int g, final int b, final int alpha )
 	{
@@ -61,6 +60,25 @@ abstract public class AbstractARGBStream implements ARGBStream
 
 	abstract protected double getDouble( final long id );
 
+	/**
+	 * Changes with the assignment and whenever the seed, the active ids, the
+	 * alphas or the cache change.
+	 */
+	@Override
+	public long getVersion()
+	{
+		/* both increase monotonically */
+		return changes.get() + assignment.getVersion();
+	}
+
+	/**
+	 * Call after changing a property that affects colors.
+	 */
+	protected void changed()
+	{
+		changes.incrementAndGet();
+	}
+
 	/**
 	 * Change the seed.
 	 *
@@ -69,6 +87,7 @@ abstract public class AbstractARGBStream implements ARGBStream
 	public void setSeed( final long seed )
 	{
 		this.seed = seed;
+		changed();
 	}
 
 	/**
@@ -77,6 +96,7 @@ abstract public class AbstractARGBStream implements ARGBStream
 	public void incSeed()
 	{
 		++seed;
+		changed();
 	}
 
 	/**
@@ -85,6 +105,7 @@ abstract public class AbstractARGBStream implements ARGBStream
 	public void decSeed()
 	{
 		--seed;
+		changed();
 	}
 
 	/**
@@ -94,6 +115,7 @@ abstract public class AbstractARGBStream implements ARGBStream
 	{
 		activeFragment = fragmentId;
 		activeSegment = assignment.getSegment( fragmentId );
+		changed();
 	}
 
 
@@ -105,6 +127,7 @@ abstract public class AbstractARGBStream implements ARGBStream
 	public void setAlpha( final int alpha )
 	{
 		this.alpha = alpha << 24;
+		changed();
 	}
 
 	/**
@@ -115,6 +138,7 @@ abstract public class AbstractARGBStream implements ARGBStream
 	public void setActiveFragmentAlpha( final int alpha )
 	{
 		this.activeFragmentAlpha = alpha << 24;
+		changed();
 	}
 
 	/**
@@ -125,10 +149,24 @@ abstract public class AbstractARGBStream implements ARGBStream
 	public void setActiveSegmentAlpha( final int alpha )
 	{
 		this.activeSegmentAlpha = alpha << 24;
+		changed();
 	}
 
 	public void clearCache()
 	{
 		argbCache.clear();
+		changed();
+	}
+
+	/**
+	 * Remove the colors of some segments from the cache, e.g. of segments
+	 * that were merged into others.
+	 *
+	 * @param segmentIds
+	 */
+	public void removeFromCache( final long... segmentIds )
+	{
+		argbCache.remove( segmentIds );
+		changed();
 	}
 }
\ No newline at end of file
@@ -59,10 +59,7 @@ abstract public class AbstractSaturatedARGBStream extends AbstractARGBStream
 
 			argb = argb( r, g, b, alpha );
 
-			synchronized ( argbCache )
-			{
-				argbCache.put( segmentId, argb );
-			}
+			argbCache.put( segmentId, argb );
 		}
 		if ( Label.INVALID == segmentId )
 			argb = argb & 0x00ffffff | invalidSegmentAlpha;
@@ -0,0 +1,210 @@
+package bdv.bigcat.ui;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import bdv.labels.labelset.Label;
+
+/**
+ * Maps ids to ARGB colors for many concurrent rendering threads.
+ *
+ * Open addressing table of primitive ids and colors.  Lookups do not lock,
+ * writers claim slots with compare and set.  A color of 0 means that there
+ * is none such that an id whose color is being written or was removed is
+ * reported as absent, i.e. its color is computed again.  Growing, removing
+ * and clearing are serialized, colors that are put concurrently may be
+ * lost which is fine for a cache.
+ */
+public class ColorTable
+{
+	static public final int NO_ENTRY_VALUE = 0;
+
+	/* marks free slots, the color of this id is kept aside */
+	static private final long FREE = Label.TRANSPARENT;
+
+	static private final int DEFAULT_CAPACITY = 1024;
+
+	static private class Table
+	{
+		final AtomicLongArray keys;
+
+		final AtomicIntegerArray values;
+
+		final int mask;
+
+		final int threshold;
+
+		/* claimed slots including removed colors */
+		final AtomicInteger size = new AtomicInteger();
+
+		Table( final int capacity )
+		{
+			keys = new AtomicLongArray( capacity );
+			values = new AtomicIntegerArray( capacity );
+			for ( int i = 0; i < capacity; ++i )
+				keys.lazySet( i, FREE );
+			mask = capacity - 1;
+			threshold = capacity / 2;
+		}
+
+		int slot( final long key )
+		{
+			final long h = key * 0x9e3779b97f4a7c15L;
+			return ( int )( h ^ ( h >>> 32 ) ) & mask;
+		}
+	}
+
+	private volatile Table table = new Table( DEFAULT_CAPACITY );
+
+	private volatile int freeKeyValue = NO_ENTRY_VALUE;
+
+	/**
+	 * @param key
+	 * @return the color of {@code key} or {@link #NO_ENTRY_VALUE}
+	 */
+	public int get( final long key )
+	{
+		if ( key == FREE )
+			return freeKeyValue;
+
+		final Table t = table;
+		for ( int i = 0, slot = t.slot( key ); i <= t.mask; ++i, slot = ( slot + 1 ) & t.mask )
+		{
+			final long k = t.keys.get( slot );
+			if ( k == key )
+				return t.values.get( slot );
+			if ( k == FREE )
+				return NO_ENTRY_VALUE;
+		}
+		return NO_ENTRY_VALUE;
+	}
+
+	/**
+	 * Set the color of {@code key}.
+	 *
+	 * @param key
+	 * @param argb
+	 */
+	public void put( final long key, final int argb )
+	{
+		if ( key == FREE )
+		{
+			freeKeyValue = argb;
+			return;
+		}
+
+		while ( true )
+		{
+			final Table t = table;
+			for ( int i = 0, slot = t.slot( key ); i <= t.mask; ++i, slot = ( slot + 1 ) & t.mask )
+			{
+				long k = t.keys.get( slot );
+				if ( k == FREE )
+				{
+					if ( t.keys.compareAndSet( slot, FREE, key ) )
+					{
+						t.values.set( slot, argb );
+						if ( t.size.incrementAndGet() > t.threshold )
+							grow( t );
+						return;
+					}
+					k = t.keys.get( slot );
+				}
+				if ( k == key )
+				{
+					t.values.set( slot, argb );
+					return;
+				}
+			}
+			/* all slots taken by concurrent writers */
+			grow( t );
+		}
+	}
+
+	/**
+	 * Remove the colors of some keys, e.g. of segments that were merged or
+	 * that fragments were detached from.  The slots are reused for the same
+	 * keys or dropped when the table grows.
+	 *
+	 * @param keys
+	 */
+	public synchronized void remove( final long... keys )
+	{
+		final Table t = table;
+		for ( final long key : keys )
+		{
+			if ( key == FREE )
+			{
+				freeKeyValue = NO_ENTRY_VALUE;
+				continue;
+			}
+			for ( int i = 0, slot = t.slot( key ); i <= t.mask; ++i, slot = ( slot + 1 ) & t.mask )
+			{
+				final long k = t.keys.get( slot );
+				if ( k == key )
+				{
+					t.values.set( slot, NO_ENTRY_VALUE );
+					break;
+				}
+				if ( k == FREE )
+					break;
+			}
+		}
+	}
+
+	/**
+	 * Remove all colors.  Lookups in progress may still see the old colors.
+	 */
+	public synchronized void clear()
+	{
+		table = new Table( DEFAULT_CAPACITY );
+		freeKeyValue = NO_ENTRY_VALUE;
+	}
+
+	/**
+	 * @return the number of colors
+	 */
+	public int size()
+	{
+		final Table t = table;
+		int size = freeKeyValue == NO_ENTRY_VALUE ? 0 : 1;
+		for ( int slot = 0; slot <= t.mask; ++slot )
+			if ( t.keys.get( slot ) != FREE && t.values.get( slot ) != NO_ENTRY_VALUE )
+				++size;
+		return size;
+	}
+
+	/**
+	 * Replace a full table by a larger copy without the removed colors.
+	 */
+	private synchronized void grow( final Table full )
+	{
+		if ( table != full )
+			return;
+
+		int count = 0;
+		for ( int slot = 0; slot <= full.mask; ++slot )
+			if ( full.keys.get( slot ) != FREE && full.values.get( slot ) != NO_ENTRY_VALUE )
+				++count;
+		int capacity = DEFAULT_CAPACITY;
+		while ( capacity < 4 * count && capacity < 1 << 30 )
+			capacity <<= 1;
+
+		final Table t = new Table( capacity );
+		for ( int slot = 0; slot <= full.mask; ++slot )
+		{
+			final long key = full.keys.get( slot );
+			final int argb = full.values.get( slot );
+			if ( key == FREE || argb == NO_ENTRY_VALUE )
+				continue;
+			int s = t.slot( key );
+			while ( t.keys.get( s ) != FREE )
+				s = ( s + 1 ) & t.mask;
+			t.keys.set( s, key );
+			t.values.set( s, argb );
+			t.size.incrementAndGet();
+		}
+		table = t;
+	}
+}
@@ -44,12 +44,14 @@ public class GoldenAngleSaturatedConfirmSwitchARGBStream extends GoldenAngleSatu
 	public void toggleSwitch()
 	{
 		hideConfirmed = !hideConfirmed;
+		changed();
 	}
 
 	@Override
 	public void setSwitch( final boolean value )
 	{
 		hideConfirmed = value;
+		changed();
 	}
 
 	@Override
@@ -80,10 +82,7 @@ public class GoldenAngleSaturatedConfirmSwitchARGBStream extends GoldenAngleSatu
 
 			argb = argb( r, g, b, alpha );
 
-			synchronized ( argbCache )
-			{
-				argbCache.put( segmentId, argb );
-			}
+			argbCache.put( segmentId, argb );
 		}
 		if ( Label.INVALID == segmentId )
 			argb = argb & 0x00ffffff | invalidSegmentAlpha;
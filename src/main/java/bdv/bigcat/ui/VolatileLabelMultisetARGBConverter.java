@@ -16,7 +16,10 @@
  */
 package bdv.bigcat.ui;
 
+import java.util.function.ToIntFunction;
+
 import bdv.labels.labelset.Label;
+import bdv.labels.labelset.LabelMultisetType;
 import bdv.labels.labelset.Multiset.Entry;
 import bdv.labels.labelset.VolatileLabelMultisetType;
 import net.imglib2.converter.Converter;
@@ -27,20 +30,51 @@ import net.imglib2.type.volatiles.VolatileARGBType;
  * TODO make the converter reference and use a lookuptable instead of ColorStream.
  * TODO use alpha and calculate alpha
  *
+ * If memoizing and the {@link ARGBStream} has a version, the blended color
+ * of each distinct list of a cell is remembered for the current version of
+ * the stream, see {@link LabelMultisetType#argb(Object, long, ToIntFunction)}.
+ *
  * @author Stephan Saalfeld <saalfelds@janelia.hhmi.org>
  */
 public class VolatileLabelMultisetARGBConverter implements Converter< VolatileLabelMultisetType, VolatileARGBType >
 {
 	final protected ARGBStream argbSource;
 
+	final protected boolean memoize;
+
+	final protected ToIntFunction< LabelMultisetType > blend = this::blend;
+
 	final static private double iFF = 1.0 / 255.0;
 
-	public VolatileLabelMultisetARGBConverter( final ARGBStream argbSource )
+	public VolatileLabelMultisetARGBConverter( final ARGBStream argbSource, final boolean memoize )
 	{
 		this.argbSource = argbSource;
+		this.memoize = memoize;
+	}
+
+	public VolatileLabelMultisetARGBConverter( final ARGBStream argbSource )
+	{
+		this( argbSource, true );
 	}
 
 	protected void convertValid( final VolatileLabelMultisetType input, final VolatileARGBType output )
+	{
+		final long version;
+		if ( memoize && ( version = argbSource.getVersion() ) != ARGBStream.UNVERSIONED )
+			output.set( input.get().argb( argbSource, version, blend ) );
+		else
+			output.set( blend( input.get() ) );
+		output.setValid( true );
+	}
+
+	/**
+	 * Blend the colors of all labels of a multiset weighted by their counts
+	 * and alphas.
+	 *
+	 * @param input
+	 * @return
+	 */
+	public int blend( final LabelMultisetType input )
 	{
 		double a = 0;
 		double r = 0;
@@ -48,7 +82,7 @@ public class VolatileLabelMultisetARGBConverter implements Converter< VolatileLa
 		double b = 0;
 		double alphaCountSize = 0;
 
-		for ( final Entry< Label > entry : input.get().entrySet() )
+		for ( final Entry< Label > entry : input.entrySet() )
 		{
 			final int argb = argbSource.argb( entry.getElement().id() );
 			final double alpha = ARGBType.alpha( argb );
@@ -64,10 +98,8 @@ public class VolatileLabelMultisetARGBConverter implements Converter< VolatileLa
 		final int rInt = Math.min( 255, ( int )( r * iAlphaCountSize ) );
 		final int gInt = Math.min( 255, ( int )( g * iAlphaCountSize ) );
 		final int bInt = Math.min( 255, ( int )( b * iAlphaCountSize ) );
-		output.setValid( true );
-		output.set( ( ( ( ( ( aInt << 8 ) | rInt ) << 8 ) | gInt ) << 8 ) | bInt );
-//		output.set( ARGBType.rgba( rInt, gInt, bInt, aInt ) );
-
+		return ( ( ( ( ( aInt << 8 ) | rInt ) << 8 ) | gInt ) << 8 ) | bInt;
+//		return ARGBType.rgba( rInt, gInt, bInt, aInt );
 	}
 
 	@Override
@@ -0,0 +1,619 @@
+package bdv.img;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.LongBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import bdv.img.access.ModificationAware;
+import net.imglib2.AbstractInterval;
+import net.imglib2.Interval;
+import net.imglib2.Point;
+import net.imglib2.RandomAccess;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.basictypeaccess.LongAccess;
+import net.imglib2.type.numeric.integer.LongType;
+
+/**
+ * A sparse {@link RandomAccessibleInterval} of {@link LongType}, e.g. for
+ * painted labels.  The interval (with min 0) is divided into a grid of cells
+ * that are allocated when they are first written to.  Cells that were never
+ * written to read as a constant background value.  Memory is proportional to
+ * the painted area, not to the volume.
+ *
+ * Cells are stored on the heap or, optionally, off-heap in direct
+ * {@link ByteBuffer}s.  Cells are {@link ModificationAware} such that only
+ * cells modified since the last save have to be written.
+ *
+ * Cells are created exactly once even if multiple threads write to the same
+ * new cell.  Reading and writing voxels is not synchronized otherwise.
+ *
+ * Optionally, cells that were written to are queued as dirty, e.g. to
+ * update downsampled copies incrementally (see
+ * {@link SparseLongCanvasPyramid}).
+ */
+public class SparseLongCanvas extends AbstractInterval implements RandomAccessibleInterval< LongType >
+{
+	/**
+	 * Notified before each voxel write with {@link Cell#setValue} while it
+	 * is registered with {@link SparseLongCanvas#observeWrites(WriteObserver)},
+	 * e.g. to remember the voxels changed by an edit.
+	 */
+	public interface WriteObserver
+	{
+		/**
+		 * Called on the writing thread while the cell is locked, other
+		 * writes to the cell wait until this returns.
+		 *
+		 * @param cell
+		 * @param index
+		 *            of the voxel in the cell
+		 * @param value
+		 *            of the voxel before the write
+		 */
+		public void beforeWrite( Cell cell, int index, long value );
+	}
+
+	/**
+	 * The observer of a canvas, shared by its cells such that observing
+	 * starts and stops without visiting the cells.
+	 */
+	static private class Observation
+	{
+		volatile WriteObserver observer = null;
+	}
+
+	/**
+	 * A materialized cell of the canvas.  Voxels are stored in flat
+	 * iteration order of the cell.
+	 */
+	abstract static public class Cell implements ModificationAware
+	{
+		final protected long[] min;
+
+		final protected int[] dimensions;
+
+		final protected int numElements;
+
+		protected volatile boolean modified = false;
+
+		/* set before the cell is published */
+		private Observation observation;
+
+		private volatile boolean dirty = false;
+
+		/* null if dirty cells are not tracked */
+		private volatile Queue< Cell > dirtyCells = null;
+
+		protected Cell( final long[] min, final int[] dimensions )
+		{
+			this.min = min;
+			this.dimensions = dimensions;
+			int numElements = 1;
+			for ( final int d : dimensions )
+				numElements *= d;
+			this.numElements = numElements;
+		}
+
+		public long[] getMin()
+		{
+			return min;
+		}
+
+		public int[] getDimensions()
+		{
+			return dimensions;
+		}
+
+		public int size()
+		{
+			return numElements;
+		}
+
+		abstract public long getValue( final int index );
+
+		abstract protected void putValue( final int index, final long value );
+
+		abstract protected void fill( final long value );
+
+		/**
+		 * Copy all voxels into {@code target}.
+		 */
+		abstract public void get( final long[] target );
+
+		abstract protected void putValues( final long[] source );
+
+		/**
+		 * Copy all voxels from {@code source}, does not mark the cell
+		 * modified.
+		 */
+		public void set( final long[] source )
+		{
+			putValues( source );
+			if ( dirtyCells != null && !dirty )
+				markDirty();
+		}
+
+		public void setValue( final int index, final long value )
+		{
+			final WriteObserver o = observation.observer;
+			if ( o == null )
+				putValue( index, value );
+			else
+				synchronized ( this )
+				{
+					o.beforeWrite( this, index, getValue( index ) );
+					putValue( index, value );
+				}
+			/* after the write such that a consumer that cleaned the cell before reading it sees the value or the cell again */
+			if ( !modified )
+				modified = true;
+			if ( dirtyCells != null && !dirty )
+				markDirty();
+		}
+
+		private synchronized void markDirty()
+		{
+			if ( !dirty )
+			{
+				dirty = true;
+				dirtyCells.add( this );
+			}
+		}
+
+		@Override
+		public boolean modified()
+		{
+			return modified;
+		}
+
+		@Override
+		public void setModified( final boolean modified )
+		{
+			this.modified = modified;
+		}
+	}
+
+	static private class HeapCell extends Cell
+	{
+		final private long[] data;
+
+		public HeapCell( final long[] min, final int[] dimensions )
+		{
+			super( min, dimensions );
+			data = new long[ numElements ];
+		}
+
+		@Override
+		public long getValue( final int index )
+		{
+			return data[ index ];
+		}
+
+		@Override
+		protected void putValue( final int index, final long value )
+		{
+			data[ index ] = value;
+		}
+
+		@Override
+		protected void fill( final long value )
+		{
+			Arrays.fill( data, value );
+		}
+
+		@Override
+		public void get( final long[] target )
+		{
+			System.arraycopy( data, 0, target, 0, numElements );
+		}
+
+		@Override
+		protected void putValues( final long[] source )
+		{
+			System.arraycopy( source, 0, data, 0, numElements );
+		}
+	}
+
+	static private class DirectCell extends Cell
+	{
+		final private LongBuffer data;
+
+		public DirectCell( final long[] min, final int[] dimensions )
+		{
+			super( min, dimensions );
+			data = ByteBuffer.allocateDirect( 8 * numElements ).order( ByteOrder.nativeOrder() ).asLongBuffer();
+		}
+
+		@Override
+		public long getValue( final int index )
+		{
+			return data.get( index );
+		}
+
+		@Override
+		protected void putValue( final int index, final long value )
+		{
+			data.put( index, value );
+		}
+
+		@Override
+		protected void fill( final long value )
+		{
+			for ( int i = 0; i < numElements; ++i )
+				data.put( i, value );
+		}
+
+		@Override
+		public void get( final long[] target )
+		{
+			data.duplicate().get( target, 0, numElements );
+		}
+
+		@Override
+		protected void putValues( final long[] source )
+		{
+			data.duplicate().put( source, 0, numElements );
+		}
+	}
+
+	final private int[] cellDimensions;
+
+	final private long[] gridDimensions;
+
+	final private long background;
+
+	final private boolean offHeap;
+
+	final private ConcurrentHashMap< Long, Cell > cells = new ConcurrentHashMap<>();
+
+	/**
+	 * Incremented whenever a cell is created, such that accesses that cached
+	 * the absence of a cell look again.
+	 */
+	final private AtomicInteger cellsVersion = new AtomicInteger();
+
+	final private Observation observation = new Observation();
+
+	private volatile ConcurrentLinkedQueue< Cell > dirtyCells = null;
+
+	/**
+	 * @param dimensions
+	 * @param cellDimensions
+	 * @param background
+	 *            value of voxels in cells that were never written to
+	 * @param offHeap
+	 *            store cells in direct {@link ByteBuffer}s
+	 */
+	public SparseLongCanvas( final long[] dimensions, final int[] cellDimensions, final long background, final boolean offHeap )
+	{
+		super( dimensions );
+		this.cellDimensions = cellDimensions.clone();
+		gridDimensions = new long[ n ];
+		for ( int d = 0; d < n; ++d )
+			gridDimensions[ d ] = ( dimensions[ d ] + cellDimensions[ d ] - 1 ) / cellDimensions[ d ];
+		this.background = background;
+		this.offHeap = offHeap;
+	}
+
+	public SparseLongCanvas( final long[] dimensions, final int[] cellDimensions, final long background )
+	{
+		this( dimensions, cellDimensions, background, false );
+	}
+
+	public long getBackground()
+	{
+		return background;
+	}
+
+	public int[] getCellDimensions()
+	{
+		return cellDimensions.clone();
+	}
+
+	/**
+	 * @return the number of cells in each dimension, materialized or not
+	 */
+	public long[] getGridDimensions()
+	{
+		return gridDimensions.clone();
+	}
+
+	public boolean isOffHeap()
+	{
+		return offHeap;
+	}
+
+	/**
+	 * @return the number of materialized cells
+	 */
+	public int numMaterializedCells()
+	{
+		return cells.size();
+	}
+
+	/**
+	 * @return a snapshot of the materialized cells
+	 */
+	public List< Cell > getCells()
+	{
+		return new ArrayList<>( cells.values() );
+	}
+
+	/**
+	 * @param gridPosition
+	 * @return the cell at a grid position or {@code null} if it is not
+	 *         materialized
+	 */
+	public Cell getCell( final long[] gridPosition )
+	{
+		return cells.get( gridIndex( gridPosition ) );
+	}
+
+	/**
+	 * Get the cell at a grid position, create it filled with background if
+	 * it is not materialized.
+	 *
+	 * @param gridPosition
+	 */
+	public Cell getOrCreateCell( final long[] gridPosition )
+	{
+		return getOrCreateCell( gridIndex( gridPosition ) );
+	}
+
+	/**
+	 * Write the minimum and the dimensions of the cell at a grid position,
+	 * cells at the upper border are cropped.
+	 */
+	public void cellInterval( final long[] gridPosition, final long[] min, final int[] dimensions )
+	{
+		for ( int d = 0; d < n; ++d )
+		{
+			min[ d ] = gridPosition[ d ] * cellDimensions[ d ];
+			dimensions[ d ] = ( int ) Math.min( cellDimensions[ d ], dimension( d ) - min[ d ] );
+		}
+	}
+
+	/**
+	 * Notify an observer before each write with {@link Cell#setValue},
+	 * including to cells created later, until this is called again.  Writes
+	 * that are in progress meanwhile may or may not be observed.
+	 *
+	 * @param observer
+	 *            null to stop observing
+	 */
+	public void observeWrites( final WriteObserver observer )
+	{
+		observation.observer = observer;
+	}
+
+	/**
+	 * Start queueing cells that are written to, including with
+	 * {@link Cell#set(long[])}, until they are polled with
+	 * {@link #pollDirtyCell()}.  All cells that are materialized already
+	 * are queued.
+	 */
+	public synchronized void trackDirtyCells()
+	{
+		if ( dirtyCells != null )
+			return;
+		/* before visiting the cells, cells created concurrently are tracked by their creator or visited */
+		final ConcurrentLinkedQueue< Cell > queue = new ConcurrentLinkedQueue<>();
+		dirtyCells = queue;
+		for ( final Cell cell : cells.values() )
+			track( cell, queue );
+	}
+
+	static private void track( final Cell cell, final Queue< Cell > queue )
+	{
+		synchronized ( cell )
+		{
+			if ( cell.dirtyCells == null )
+			{
+				cell.dirtyCells = queue;
+				cell.markDirty();
+			}
+		}
+	}
+
+	/**
+	 * @return whether there are dirty cells to poll
+	 */
+	public boolean hasDirtyCells()
+	{
+		final Queue< Cell > queue = dirtyCells;
+		return queue != null && !queue.isEmpty();
+	}
+
+	/**
+	 * Remove the next dirty cell from the queue and mark it clean.  Read the
+	 * cell after this returned, writes during reading queue it again.
+	 *
+	 * @return the next dirty cell or null if there is none or dirty cells
+	 *         are not tracked
+	 */
+	public Cell pollDirtyCell()
+	{
+		final Queue< Cell > queue = dirtyCells;
+		if ( queue == null )
+			return null;
+		final Cell cell = queue.poll();
+		if ( cell != null )
+			synchronized ( cell )
+			{
+				cell.dirty = false;
+			}
+		return cell;
+	}
+
+	/**
+	 * Write the grid position of a cell.
+	 */
+	public void gridPosition( final Cell cell, final long[] gridPosition )
+	{
+		for ( int d = 0; d < n; ++d )
+			gridPosition[ d ] = cell.min[ d ] / cellDimensions[ d ];
+	}
+
+	/**
+	 * Set or reset the modification flag of all materialized cells.
+	 */
+	public void setModified( final boolean modified )
+	{
+		for ( final Cell cell : cells.values() )
+			cell.setModified( modified );
+	}
+
+	private long gridIndex( final long[] gridPosition )
+	{
+		long index = gridPosition[ n - 1 ];
+		for ( int d = n - 2; d >= 0; --d )
+			index = index * gridDimensions[ d ] + gridPosition[ d ];
+		return index;
+	}
+
+	private Cell getOrCreateCell( final long index )
+	{
+		final Cell existing = cells.get( index );
+		if ( existing != null )
+			return existing;
+		final Cell cell = cells.computeIfAbsent( index, this::createCell );
+		// after the cell is in the map, accesses that see the new version find it
+		cellsVersion.incrementAndGet();
+		// trackDirtyCells may have missed the cell while it was created
+		final Queue< Cell > queue = dirtyCells;
+		if ( queue != null && cell.dirtyCells == null )
+			track( cell, queue );
+		return cell;
+	}
+
+	private Cell createCell( final long index )
+	{
+		final long[] gridPosition = new long[ n ];
+		long i = index;
+		for ( int d = 0; d < n; ++d )
+		{
+			gridPosition[ d ] = i % gridDimensions[ d ];
+			i /= gridDimensions[ d ];
+		}
+		final long[] min = new long[ n ];
+		final int[] dimensions = new int[ n ];
+		cellInterval( gridPosition, min, dimensions );
+
+		final Cell cell = offHeap ? new DirectCell( min, dimensions ) : new HeapCell( min, dimensions );
+		if ( background != 0 )
+			cell.fill( background );
+		cell.observation = observation;
+		return cell;
+	}
+
+	@Override
+	public SparseLongCanvasRandomAccess randomAccess()
+	{
+		return new SparseLongCanvasRandomAccess();
+	}
+
+	@Override
+	public SparseLongCanvasRandomAccess randomAccess( final Interval interval )
+	{
+		return randomAccess();
+	}
+
+	/**
+	 * Looks up the cell at the current position in {@link #get()} and serves
+	 * as the {@link LongAccess} of the returned {@link LongType}.  Writing to
+	 * a voxel in an absent cell creates the cell.
+	 */
+	public class SparseLongCanvasRandomAccess extends Point implements RandomAccess< LongType >, LongAccess
+	{
+		final private LongType type = new LongType( this );
+
+		private long cellIndex = -1;
+
+		private Cell cell = null;
+
+		private int version;
+
+		private SparseLongCanvasRandomAccess()
+		{
+			super( SparseLongCanvas.this.numDimensions() );
+		}
+
+		private SparseLongCanvasRandomAccess( final SparseLongCanvasRandomAccess ra )
+		{
+			super( ra.position.clone() );
+			cellIndex = ra.cellIndex;
+			cell = ra.cell;
+			version = ra.version;
+		}
+
+		@Override
+		public LongType get()
+		{
+			long index = 0;
+			int i = 0;
+			for ( int d = n - 1; d >= 0; --d )
+			{
+				final long p = position[ d ];
+				final int cellDimension = cellDimensions[ d ];
+				final long gridPosition = p / cellDimension;
+				final long cellMin = gridPosition * cellDimension;
+				index = index * gridDimensions[ d ] + gridPosition;
+				i = i * ( int ) Math.min( cellDimension, dimension( d ) - cellMin ) + ( int ) ( p - cellMin );
+			}
+			if ( index != cellIndex )
+			{
+				cellIndex = index;
+				lookUpCell();
+			}
+			type.updateIndex( i );
+			return type;
+		}
+
+		private void lookUpCell()
+		{
+			version = cellsVersion.get();
+			cell = cells.get( cellIndex );
+		}
+
+		@Override
+		public long getValue( final int index )
+		{
+			if ( cell == null )
+			{
+				if ( version == cellsVersion.get() )
+					return background;
+				lookUpCell();
+				if ( cell == null )
+					return background;
+			}
+			return cell.getValue( index );
+		}
+
+		@Override
+		public void setValue( final int index, final long value )
+		{
+			if ( cell == null )
+				cell = getOrCreateCell( cellIndex );
+			cell.setValue( index, value );
+		}
+
+		@Override
+		public SparseLongCanvasRandomAccess copy()
+		{
+			return copyRandomAccess();
+		}
+
+		@Override
+		public SparseLongCanvasRandomAccess copyRandomAccess()
+		{
+			return new SparseLongCanvasRandomAccess( this );
+		}
+	}
+}
@@ -0,0 +1,249 @@
+package bdv.img;
+
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import net.imglib2.type.numeric.integer.LongType;
+
+/**
+ * Downsampled copies of a {@link SparseLongCanvas}, e.g. of painted labels
+ * to be displayed with the mipmap levels of the fragments.  Each voxel of a
+ * level holds the most frequent value of the voxels of the canvas that it
+ * covers, ties are resolved in favor of values other than the background.
+ *
+ * Levels are {@link SparseLongCanvas}es themselves such that they take
+ * memory only where the canvas was written to.  They are updated
+ * incrementally in {@link #update()} for the cells of the canvas that were
+ * written to since.  Renderers call {@link #requestUpdate()} instead, which
+ * updates the levels on a background thread and notifies the update
+ * listener when done, e.g. to repaint.
+ */
+public class SparseLongCanvasPyramid
+{
+	final private SparseLongCanvas canvas;
+
+	final private int[][] factors;
+
+	final private SparseLongCanvas[] levels;
+
+	final private ExecutorService executor = Executors.newSingleThreadExecutor( r -> {
+		final Thread thread = new Thread( r, "bigcat-canvas-pyramid" );
+		thread.setDaemon( true );
+		return thread;
+	} );
+
+	final private AtomicBoolean updating = new AtomicBoolean( false );
+
+	private volatile Runnable updateListener = () -> {};
+
+	/**
+	 * @param canvas
+	 *            level 0
+	 * @param factors
+	 *            integer downsampling factors of each level relative to
+	 *            level 0, the factors of level 0 are ignored
+	 * @param cellDimensions
+	 *            of the levels
+	 */
+	public SparseLongCanvasPyramid( final SparseLongCanvas canvas, final int[][] factors, final int[] cellDimensions )
+	{
+		this.canvas = canvas;
+		this.factors = factors;
+		final int n = canvas.numDimensions();
+		levels = new SparseLongCanvas[ factors.length ];
+		levels[ 0 ] = canvas;
+		for ( int level = 1; level < factors.length; ++level )
+		{
+			final long[] dimensions = new long[ n ];
+			for ( int d = 0; d < n; ++d )
+				dimensions[ d ] = ( canvas.dimension( d ) + factors[ level ][ d ] - 1 ) / factors[ level ][ d ];
+			levels[ level ] = new SparseLongCanvas( dimensions, cellDimensions, canvas.getBackground(), canvas.isOffHeap() );
+		}
+		canvas.trackDirtyCells();
+	}
+
+	/**
+	 * Factors from the resolutions of mipmap levels, e.g.
+	 * {@code getMipmapResolutions()} of an image loader.
+	 *
+	 * @param mipmapResolutions
+	 */
+	static public int[][] factors( final double[][] mipmapResolutions )
+	{
+		final int[][] factors = new int[ mipmapResolutions.length ][];
+		for ( int level = 0; level < factors.length; ++level )
+		{
+			factors[ level ] = new int[ mipmapResolutions[ level ].length ];
+			for ( int d = 0; d < factors[ level ].length; ++d )
+				factors[ level ][ d ] = Math.max( 1, ( int )Math.round( mipmapResolutions[ level ][ d ] / mipmapResolutions[ 0 ][ d ] ) );
+		}
+		return factors;
+	}
+
+	public int numLevels()
+	{
+		return levels.length;
+	}
+
+	/**
+	 * @param level
+	 * @return the canvas for level 0, its downsampled copy otherwise
+	 */
+	public SparseLongCanvas getLevel( final int level )
+	{
+		return levels[ level ];
+	}
+
+	/**
+	 * @param updateListener
+	 *            called on the update thread after levels were updated by
+	 *            {@link #requestUpdate()}
+	 */
+	public void setUpdateListener( final Runnable updateListener )
+	{
+		this.updateListener = updateListener;
+	}
+
+	/**
+	 * Update the levels on the update thread if cells of the canvas were
+	 * written to and no update is running.  Returns immediately, e.g. to be
+	 * called before each frame is rendered.  Levels show the previous state
+	 * until the update listener is notified.
+	 */
+	public void requestUpdate()
+	{
+		if ( levels.length < 2 || !canvas.hasDirtyCells() || !updating.compareAndSet( false, true ) )
+			return;
+		executor.submit( () -> {
+			try
+			{
+				update();
+			}
+			catch ( final RuntimeException e )
+			{
+				e.printStackTrace();
+			}
+			finally
+			{
+				updating.set( false );
+			}
+			/* writes after the last poll are picked up by the next request */
+			updateListener.run();
+		} );
+	}
+
+	/**
+	 * Downsample the cells of the canvas that were written to since the
+	 * last update on the calling thread.
+	 */
+	public synchronized void update()
+	{
+		if ( levels.length < 2 )
+			return;
+
+		final int n = canvas.numDimensions();
+		final long[] min = new long[ n ];
+		final long[] max = new long[ n ];
+		final long[] sourceMin = new long[ n ];
+		final long[] sourceMax = new long[ n ];
+		final long[] position = new long[ n ];
+		long[] samples = new long[ 0 ];
+		final SparseLongCanvas.SparseLongCanvasRandomAccess source = canvas.randomAccess();
+		for ( SparseLongCanvas.Cell cell = canvas.pollDirtyCell(); cell != null; cell = canvas.pollDirtyCell() )
+		{
+			for ( int level = 1; level < levels.length; ++level )
+			{
+				final int[] f = factors[ level ];
+				int numSamples = 1;
+				for ( int d = 0; d < n; ++d )
+				{
+					min[ d ] = cell.getMin()[ d ] / f[ d ];
+					max[ d ] = ( cell.getMin()[ d ] + cell.getDimensions()[ d ] - 1 ) / f[ d ];
+					numSamples *= f[ d ];
+				}
+				if ( samples.length < numSamples )
+					samples = new long[ numSamples ];
+
+				final SparseLongCanvas.SparseLongCanvasRandomAccess target = levels[ level ].randomAccess();
+				System.arraycopy( min, 0, position, 0, n );
+				while ( true )
+				{
+					/* the block of the canvas covered by the target voxel, may extend beyond the cell */
+					for ( int d = 0; d < n; ++d )
+					{
+						sourceMin[ d ] = position[ d ] * f[ d ];
+						sourceMax[ d ] = Math.min( sourceMin[ d ] + f[ d ], canvas.dimension( d ) ) - 1;
+					}
+					final long value = mode( source, sourceMin, sourceMax, samples );
+					target.setPosition( position );
+					final LongType t = target.get();
+					if ( t.get() != value )
+						t.set( value );
+
+					int d = 0;
+					for ( ; d < n; ++d )
+					{
+						if ( ++position[ d ] <= max[ d ] )
+							break;
+						position[ d ] = min[ d ];
+					}
+					if ( d == n )
+						break;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Most frequent value in an interval of the canvas, prefers values other
+	 * than the background on ties.
+	 */
+	private long mode(
+			final SparseLongCanvas.SparseLongCanvasRandomAccess source,
+			final long[] min,
+			final long[] max,
+			final long[] samples )
+	{
+		final int n = min.length;
+		int numSamples = 0;
+		source.setPosition( min );
+		while ( true )
+		{
+			samples[ numSamples++ ] = source.get().get();
+			int d = 0;
+			for ( ; d < n; ++d )
+			{
+				if ( source.getLongPosition( d ) < max[ d ] )
+				{
+					source.fwd( d );
+					break;
+				}
+				source.setPosition( min[ d ], d );
+			}
+			if ( d == n )
+				break;
+		}
+
+		final long background = canvas.getBackground();
+		Arrays.sort( samples, 0, numSamples );
+		long mode = samples[ 0 ];
+		int modeCount = 0;
+		for ( int i = 0; i < numSamples; )
+		{
+			final long value = samples[ i ];
+			int j = i + 1;
+			while ( j < numSamples && samples[ j ] == value )
+				++j;
+			final int count = j - i;
+			if ( count > modeCount || ( count == modeCount && mode == background ) )
+			{
+				mode = value;
+				modeCount = count;
+			}
+			i = j;
+		}
+		return mode;
+	}
+}
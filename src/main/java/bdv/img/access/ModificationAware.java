@@ -47,4 +47,13 @@ public interface ModificationAware
 	 * @return
 	 */
 	public boolean modified();
+
+	/**
+	 * Set or reset the modification flag, e.g. reset before the entity is
+	 * saved.  Writes set the flag after they modified the entity, such that
+	 * a concurrent write is either saved or flags the entity again.
+	 *
+	 * @param modified
+	 */
+	public void setModified( boolean modified );
 }
@@ -46,7 +46,7 @@ public class ModificationAwareByteArray extends ByteArray implements Modificatio
 {
 	private static final long serialVersionUID = -9055013256166733337L;
 	
-	protected boolean modified = false;
+	protected volatile boolean modified = false;
 
 	public ModificationAwareByteArray( final int numEntities )
 	{
@@ -61,8 +61,9 @@ public class ModificationAwareByteArray extends ByteArray implements Modificatio
 	@Override
 	public void setValue( final int index, final byte value )
 	{
-		modified = true;
 		data[ index ] = value;
+		if ( !modified )
+			modified = true;
 	}
 
 	@Override
@@ -70,4 +71,16 @@ public class ModificationAwareByteArray extends ByteArray implements Modificatio
 	{
 		return modified;
 	}
+
+	@Override
+	public void setModified( final boolean modified )
+	{
+		this.modified = modified;
+	}
+
+	@Override
+	public ModificationAwareByteArray createArray( final int numEntities )
+	{
+		return new ModificationAwareByteArray( numEntities );
+	}
 }
@@ -46,7 +46,7 @@ public class ModificationAwareCharArray extends CharArray implements Modificatio
 {
 	private static final long serialVersionUID = 5647021072396983410L;
 
-	protected boolean modified = false;
+	protected volatile boolean modified = false;
 
 	public ModificationAwareCharArray( final int numEntities )
 	{
@@ -61,8 +61,9 @@ public class ModificationAwareCharArray extends CharArray implements Modificatio
 	@Override
 	public void setValue( final int index, final char value )
 	{
-		modified = true;
 		data[ index ] = value;
+		if ( !modified )
+			modified = true;
 	}
 
 	@Override
@@ -70,4 +71,16 @@ public class ModificationAwareCharArray extends CharArray implements Modificatio
 	{
 		return modified;
 	}
+
+	@Override
+	public void setModified( final boolean modified )
+	{
+		this.modified = modified;
+	}
+
+	@Override
+	public ModificationAwareCharArray createArray( final int numEntities )
+	{
+		return new ModificationAwareCharArray( numEntities );
+	}
 }
@@ -46,7 +46,7 @@ public class ModificationAwareDoubleArray extends DoubleArray implements Modific
 {
 	private static final long serialVersionUID = -9134989889433563465L;
 
-	protected boolean modified = false;
+	protected volatile boolean modified = false;
 
 	public ModificationAwareDoubleArray( final int numEntities )
 	{
@@ -61,8 +61,9 @@ public class ModificationAwareDoubleArray extends DoubleArray implements Modific
 	@Override
 	public void setValue( final int index, final double value )
 	{
-		modified = true;
 		data[ index ] = value;
+		if ( !modified )
+			modified = true;
 	}
 
 	@Override
@@ -70,4 +71,16 @@ public class ModificationAwareDoubleArray extends DoubleArray implements Modific
 	{
 		return modified;
 	}
+
+	@Override
+	public void setModified( final boolean modified )
+	{
+		this.modified = modified;
+	}
+
+	@Override
+	public ModificationAwareDoubleArray createArray( final int numEntities )
+	{
+		return new ModificationAwareDoubleArray( numEntities );
+	}
 }
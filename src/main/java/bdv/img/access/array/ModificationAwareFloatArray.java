@@ -46,7 +46,7 @@ public class ModificationAwareFloatArray extends FloatArray implements Modificat
 {
 	private static final long serialVersionUID = 2300608226882302366L;
 
-	protected boolean modified = false;
+	protected volatile boolean modified = false;
 
 	public ModificationAwareFloatArray( final int numEntities )
 	{
@@ -61,8 +61,9 @@ public class ModificationAwareFloatArray extends FloatArray implements Modificat
 	@Override
 	public void setValue( final int index, final float value )
 	{
-		modified = true;
 		data[ index ] = value;
+		if ( !modified )
+			modified = true;
 	}
 
 	@Override
@@ -70,4 +71,16 @@ public class ModificationAwareFloatArray extends FloatArray implements Modificat
 	{
 		return modified;
 	}
+
+	@Override
+	public void setModified( final boolean modified )
+	{
+		this.modified = modified;
+	}
+
+	@Override
+	public ModificationAwareFloatArray createArray( final int numEntities )
+	{
+		return new ModificationAwareFloatArray( numEntities );
+	}
 }
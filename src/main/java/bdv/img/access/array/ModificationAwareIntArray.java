@@ -46,7 +46,7 @@ public class ModificationAwareIntArray extends IntArray implements ModificationA
 {
 	private static final long serialVersionUID = -8607836922035505506L;
 
-	protected boolean modified = false;
+	protected volatile boolean modified = false;
 
 	public ModificationAwareIntArray( final int numEntities )
 	{
@@ -61,8 +61,9 @@ public class ModificationAwareIntArray extends IntArray implements ModificationA
 	@Override
 	public void setValue( final int index, final int value )
 	{
-		modified = true;
 		data[ index ] = value;
+		if ( !modified )
+			modified = true;
 	}
 
 	@Override
@@ -70,4 +71,16 @@ public class ModificationAwareIntArray extends IntArray implements ModificationA
 	{
 		return modified;
 	}
+
+	@Override
+	public void setModified( final boolean modified )
+	{
+		this.modified = modified;
+	}
+
+	@Override
+	public ModificationAwareIntArray createArray( final int numEntities )
+	{
+		return new ModificationAwareIntArray( numEntities );
+	}
 }
@@ -46,7 +46,7 @@ public class ModificationAwareLongArray extends LongArray implements Modificatio
 {
 	private static final long serialVersionUID = -4757866568025131615L;
 
-	protected boolean modified = false;
+	protected volatile boolean modified = false;
 
 	public ModificationAwareLongArray( final int numEntities )
 	{
@@ -61,8 +61,9 @@ public class ModificationAwareLongArray extends LongArray implements Modificatio
 	@Override
 	public void setValue( final int index, final long value )
 	{
-		modified = true;
 		data[ index ] = value;
+		if ( !modified )
+			modified = true;
 	}
 
 	@Override
@@ -70,4 +71,16 @@ public class ModificationAwareLongArray extends LongArray implements Modificatio
 	{
 		return modified;
 	}
+
+	@Override
+	public void setModified( final boolean modified )
+	{
+		this.modified = modified;
+	}
+
+	@Override
+	public ModificationAwareLongArray createArray( final int numEntities )
+	{
+		return new ModificationAwareLongArray( numEntities );
+	}
 }
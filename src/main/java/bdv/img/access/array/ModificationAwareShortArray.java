@@ -46,7 +46,7 @@ public class ModificationAwareShortArray extends ShortArray implements Modificat
 {
 	private static final long serialVersionUID = -2397179687986754262L;
 	
-	protected boolean modified = false;
+	protected volatile boolean modified = false;
 
 	public ModificationAwareShortArray( final int numEntities )
 	{
@@ -61,8 +61,9 @@ public class ModificationAwareShortArray extends ShortArray implements Modificat
 	@Override
 	public void setValue( final int index, final short value )
 	{
-		modified = true;
 		data[ index ] = value;
+		if ( !modified )
+			modified = true;
 	}
 
 	@Override
@@ -70,4 +71,16 @@ public class ModificationAwareShortArray extends ShortArray implements Modificat
 	{
 		return modified;
 	}
+
+	@Override
+	public void setModified( final boolean modified )
+	{
+		this.modified = modified;
+	}
+
+	@Override
+	public ModificationAwareShortArray createArray( final int numEntities )
+	{
+		return new ModificationAwareShortArray( numEntities );
+	}
 }
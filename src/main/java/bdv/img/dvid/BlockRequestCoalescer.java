@@ -0,0 +1,467 @@
+package bdv.img.dvid;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.zip.GZIPInputStream;
+
+import bdv.util.http.PooledHttpClient;
+
+/**
+ * Coalesces concurrent requests for single blocks of a DVID block data
+ * instance into requests for runs of blocks along X through DVID's
+ * <code>/blocks/&lt;x&gt;_&lt;y&gt;_&lt;z&gt;/&lt;n&gt;</code> endpoint.
+ *
+ * A request that arrives while no other request is pending or being fetched
+ * is fetched right away.  Otherwise, the first request opens a short window
+ * in which further requests are collected.  At the end of the window, all
+ * collected requests are grouped into runs of adjacent blocks.  Each run is
+ * fetched by one of its requesting threads and the response is split back
+ * into the waiting requests, such that no additional threads are involved
+ * and independent runs are fetched in parallel.
+ *
+ * The response for a run is a sequence of blocks, each with a header of
+ * little endian int32 block coordinates x, y, z and the int32 number of bytes
+ * of the block as compressed with {@link Compression}.  Blocks that are
+ * missing from the response have never been written and are filled with 0.
+ */
+public class BlockRequestCoalescer
+{
+	public static final long DEFAULT_WINDOW_NANOS = TimeUnit.MILLISECONDS.toNanos( 2 );
+
+	public static final int DEFAULT_MAX_RUN_LENGTH = 32;
+
+	/**
+	 * Block compression requested from DVID.
+	 */
+	public enum Compression
+	{
+		UNCOMPRESSED( "uncompressed" ),
+		LZ4( "lz4" ),
+		GZIP( "gzip" );
+
+		final String parameter;
+
+		Compression( final String parameter )
+		{
+			this.parameter = parameter;
+		}
+	}
+
+	private final String instanceUrl;
+
+	private final Compression compression;
+
+	private final int blockSizeInBytes;
+
+	private final long windowNanos;
+
+	private final int maxRunLength;
+
+	private final PooledHttpClient client;
+
+	private ArrayList< Request > pending = new ArrayList<>();
+
+	private boolean collecting = false;
+
+	/* number of runs being fetched */
+	private int numFetching = 0;
+
+	/**
+	 * @param apiUrl e.g. "http://hackathon.janelia.org/api"
+	 * @param nodeId e.g. "2a3fd320aef011e4b0ce18037320227c"
+	 * @param dataInstanceId e.g. "bodies"
+	 * @param blockSizeInBytes size of one uncompressed block
+	 * @param compression of the blocks in responses
+	 * @param windowNanos time to wait for adjacent requests
+	 * @param maxRunLength maximum number of blocks per request
+	 */
+	public BlockRequestCoalescer(
+			final String apiUrl,
+			final String nodeId,
+			final String dataInstanceId,
+			final int blockSizeInBytes,
+			final Compression compression,
+			final long windowNanos,
+			final int maxRunLength )
+	{
+		this.instanceUrl = apiUrl + "/node/" + nodeId + "/" + dataInstanceId;
+		this.blockSizeInBytes = blockSizeInBytes;
+		this.compression = compression;
+		this.windowNanos = windowNanos;
+		this.maxRunLength = maxRunLength;
+		this.client = PooledHttpClient.getDefault();
+	}
+
+	public BlockRequestCoalescer(
+			final String apiUrl,
+			final String nodeId,
+			final String dataInstanceId,
+			final int blockSizeInBytes )
+	{
+		this( apiUrl, nodeId, dataInstanceId, blockSizeInBytes, Compression.LZ4, DEFAULT_WINDOW_NANOS, DEFAULT_MAX_RUN_LENGTH );
+	}
+
+	/**
+	 * Fetch the block at a block grid position.
+	 *
+	 * @param x
+	 * @param y
+	 * @param z
+	 * @param target receives the block, must have at least blockSizeInBytes elements
+	 * @throws IOException
+	 */
+	public void fetch( final long x, final long y, final long z, final byte[] target ) throws IOException
+	{
+		final Request request = new Request( x, y, z, target );
+		final boolean leader;
+		synchronized ( this )
+		{
+			if ( !collecting && numFetching == 0 )
+			{
+				/* nothing to wait for */
+				++numFetching;
+				final Run run = new Run( x, y, z );
+				run.length = 1;
+				run.requests.add( request );
+				request.assign( run );
+				leader = false;
+			}
+			else
+			{
+				pending.add( request );
+				leader = !collecting;
+				collecting = true;
+			}
+		}
+
+		/* interrupts are deferred, other requests may depend on this thread */
+		boolean interrupted = false;
+		if ( leader )
+		{
+			final long deadline = System.nanoTime() + windowNanos;
+			for ( long remaining = windowNanos; remaining > 0; remaining = deadline - System.nanoTime() )
+			{
+				LockSupport.parkNanos( remaining );
+				interrupted |= Thread.interrupted();
+			}
+
+			final ArrayList< Request > batch;
+			final ArrayList< Run > runs;
+			synchronized ( this )
+			{
+				batch = pending;
+				pending = new ArrayList<>();
+				collecting = false;
+				runs = group( batch );
+				numFetching += runs.size();
+			}
+
+			Run own = null;
+			for ( final Run run : runs )
+			{
+				if ( run.requests.contains( request ) )
+					own = run;
+				else
+					run.requests.get( 0 ).assign( run );
+			}
+			request.assign( own );
+		}
+
+		try
+		{
+			request.await();
+		}
+		finally
+		{
+			if ( interrupted )
+				Thread.currentThread().interrupt();
+		}
+	}
+
+	private ArrayList< Run > group( final ArrayList< Request > batch )
+	{
+		Collections.sort( batch, new Comparator< Request >()
+		{
+			@Override
+			public int compare( final Request a, final Request b )
+			{
+				int c = Long.compare( a.z, b.z );
+				if ( c == 0 )
+					c = Long.compare( a.y, b.y );
+				if ( c == 0 )
+					c = Long.compare( a.x, b.x );
+				return c;
+			}
+		} );
+
+		final ArrayList< Run > runs = new ArrayList<>();
+		Run run = null;
+		for ( final Request request : batch )
+		{
+			if (
+					run == null ||
+					request.y != run.y ||
+					request.z != run.z ||
+					request.x > run.x + run.length ||
+					request.x - run.x >= maxRunLength )
+			{
+				run = new Run( request.x, request.y, request.z );
+				runs.add( run );
+			}
+			run.length = ( int ) ( request.x - run.x + 1 );
+			run.requests.add( request );
+		}
+		return runs;
+	}
+
+	private void execute( final Run run )
+	{
+		final String url = new StringBuilder( instanceUrl )
+				.append( "/blocks/" )
+				.append( run.x ).append( "_" )
+				.append( run.y ).append( "_" )
+				.append( run.z ).append( "/" )
+				.append( run.length )
+				.append( "?compression=" ).append( compression.parameter )
+				.toString();
+		IOException error = null;
+		try
+		{
+			split( run, client.get( url ) );
+		}
+		catch ( final IOException e )
+		{
+			error = e;
+		}
+		catch ( final RuntimeException e )
+		{
+			error = new IOException( e );
+		}
+		finally
+		{
+			synchronized ( this )
+			{
+				--numFetching;
+			}
+		}
+		for ( final Request request : run.requests )
+			request.complete( error );
+	}
+
+	/**
+	 * Decompress the blocks of a response into the targets of the requests
+	 * of a run.  Each block is decompressed once, into the first request for
+	 * it, and copied to the other requests for the same block.
+	 */
+	private void split( final Run run, final byte[] response ) throws IOException
+	{
+		final Request[] requests = new Request[ run.length ];
+		for ( final Request request : run.requests )
+		{
+			final int i = ( int ) ( request.x - run.x );
+			if ( requests[ i ] == null )
+				requests[ i ] = request;
+		}
+		final boolean[] received = new boolean[ run.length ];
+
+		final ByteBuffer buffer = ByteBuffer.wrap( response ).order( ByteOrder.LITTLE_ENDIAN );
+		while ( buffer.hasRemaining() )
+		{
+			if ( buffer.remaining() < 16 )
+				throw new IOException( "Truncated block header." );
+			final long x = buffer.getInt();
+			final long y = buffer.getInt();
+			final long z = buffer.getInt();
+			final int numBytes = buffer.getInt();
+			if ( numBytes < 0 || numBytes > buffer.remaining() )
+				throw new IOException( "Truncated block " + x + "_" + y + "_" + z + "." );
+			final long i = x - run.x;
+			if ( y == run.y && z == run.z && i >= 0 && i < run.length && requests[ ( int ) i ] != null )
+			{
+				decompress( response, buffer.position(), numBytes, requests[ ( int ) i ].target );
+				received[ ( int ) i ] = true;
+			}
+			buffer.position( buffer.position() + numBytes );
+		}
+
+		for ( int i = 0; i < run.length; ++i )
+			if ( requests[ i ] != null && !received[ i ] )
+				Arrays.fill( requests[ i ].target, 0, blockSizeInBytes, ( byte ) 0 );
+
+		for ( final Request request : run.requests )
+		{
+			final Request first = requests[ ( int ) ( request.x - run.x ) ];
+			if ( request != first )
+				System.arraycopy( first.target, 0, request.target, 0, blockSizeInBytes );
+		}
+	}
+
+	private void decompress( final byte[] src, final int offset, final int length, final byte[] target ) throws IOException
+	{
+		switch ( compression )
+		{
+		case LZ4:
+			decompressLz4( src, offset, length, target, blockSizeInBytes );
+			break;
+		case GZIP:
+			try ( final InputStream in = new GZIPInputStream( new ByteArrayInputStream( src, offset, length ) ) )
+			{
+				int n = 0;
+				for ( int l = in.read( target, 0, blockSizeInBytes ); l > 0; l = in.read( target, n, blockSizeInBytes - n ) )
+					n += l;
+				if ( n != blockSizeInBytes || in.read() >= 0 )
+					throw new IOException( "Block of " + n + " bytes, expected " + blockSizeInBytes + "." );
+			}
+			break;
+		default:
+			if ( length != blockSizeInBytes )
+				throw new IOException( "Block of " + length + " bytes, expected " + blockSizeInBytes + "." );
+			System.arraycopy( src, offset, target, 0, length );
+		}
+	}
+
+	/**
+	 * Decompress an LZ4 block (without frame) of {@code length} bytes into
+	 * exactly {@code targetLength} bytes.
+	 */
+	static void decompressLz4( final byte[] src, final int offset, final int length, final byte[] target, final int targetLength ) throws IOException
+	{
+		final int end = offset + length;
+		int i = offset;
+		int o = 0;
+		while ( i < end )
+		{
+			final int token = src[ i++ ] & 0xff;
+			int literals = token >>> 4;
+			if ( literals == 15 )
+			{
+				int b = 255;
+				while ( b == 255 && i < end )
+					literals += b = src[ i++ ] & 0xff;
+			}
+			if ( i + literals > end || o + literals > targetLength )
+				throw new IOException( "Malformed LZ4 block." );
+			System.arraycopy( src, i, target, o, literals );
+			i += literals;
+			o += literals;
+			if ( i == end )
+				break;
+
+			if ( i + 2 > end )
+				throw new IOException( "Malformed LZ4 block." );
+			final int matchOffset = ( src[ i ] & 0xff ) | ( src[ i + 1 ] & 0xff ) << 8;
+			i += 2;
+			int match = token & 15;
+			if ( match == 15 )
+			{
+				int b = 255;
+				while ( b == 255 && i < end )
+					match += b = src[ i++ ] & 0xff;
+			}
+			match += 4;
+			if ( matchOffset == 0 || matchOffset > o || o + match > targetLength )
+				throw new IOException( "Malformed LZ4 block." );
+			/* byte by byte, matches may overlap their output */
+			for ( int m = o - matchOffset, mEnd = o + match; o < mEnd; )
+				target[ o++ ] = target[ m++ ];
+		}
+		if ( o != targetLength )
+			throw new IOException( "Block of " + o + " bytes, expected " + targetLength + "." );
+	}
+
+	private static class Run
+	{
+		final long x, y, z;
+
+		int length = 0;
+
+		final ArrayList< Request > requests = new ArrayList<>();
+
+		Run( final long x, final long y, final long z )
+		{
+			this.x = x;
+			this.y = y;
+			this.z = z;
+		}
+	}
+
+	private class Request
+	{
+		final long x, y, z;
+
+		final byte[] target;
+
+		private Run assigned = null;
+
+		private boolean done = false;
+
+		private IOException error = null;
+
+		Request( final long x, final long y, final long z, final byte[] target )
+		{
+			this.x = x;
+			this.y = y;
+			this.z = z;
+			this.target = target;
+		}
+
+		synchronized void assign( final Run run )
+		{
+			assigned = run;
+			notifyAll();
+		}
+
+		synchronized void complete( final IOException error )
+		{
+			this.error = error;
+			done = true;
+			notifyAll();
+		}
+
+		/**
+		 * Wait until the block was fetched, fetching the run if this request
+		 * was assigned one.  Waiting and fetching are not interruptible
+		 * because other requests may depend on the run assigned to this one,
+		 * the interrupt is restored afterwards.
+		 */
+		void await() throws IOException
+		{
+			boolean interrupted = Thread.interrupted();
+			Run run = null;
+			synchronized ( this )
+			{
+				while ( !done && assigned == null )
+				{
+					try
+					{
+						wait();
+					}
+					catch ( final InterruptedException e )
+					{
+						interrupted = true;
+					}
+				}
+				if ( !done )
+				{
+					run = assigned;
+					assigned = null;
+				}
+			}
+			if ( run != null )
+				execute( run );
+			if ( interrupted )
+				Thread.currentThread().interrupt();
+			if ( error != null )
+				throw error;
+		}
+	}
+}
@@ -1,8 +1,6 @@
 package bdv.img.dvid;
 
 import bdv.img.cache.CacheArrayLoader;
-import bdv.labels.labelset.ByteUtils;
-import bdv.labels.labelset.LongMappedAccessData;
 import bdv.labels.labelset.VolatileLabelMultisetArray;
 import bdv.util.dvid.DatasetKeyValue;
 
@@ -65,21 +63,7 @@ public class DvidLabelMultisetArrayLoader implements CacheArrayLoader< VolatileL
 			return null;
 		}
 
-		final int[] data = new int[ dimensions[ 0 ] * dimensions[ 1 ] * dimensions[ 2 ] ];
-		final int listDataSize = bytes.length - 4 * data.length;
-		final LongMappedAccessData listData = LongMappedAccessData.factory.createStorage( listDataSize );
-		int j = -1;
-		for ( int i = 0; i < data.length; ++i )
-		{
-			data[ i ] = ( 0xff & bytes[ ++j ] ) |
-					( ( 0xff & bytes[ ++j ] ) << 8 ) |
-					( ( 0xff & bytes[ ++j ] ) << 16 ) |
-					( ( 0xff & bytes[ ++j ] ) << 24 );
-		}
-		final long[] listDataStorage = listData.getData();
-		for ( int i = 0; i < listDataSize; ++i )
-			ByteUtils.putByte( bytes[ ++j ], listDataStorage, i );
-		return new VolatileLabelMultisetArray( data, listData, true );
+		return VolatileLabelMultisetArray.wrap( bytes, dimensions[ 0 ] * dimensions[ 1 ] * dimensions[ 2 ] );
 	}
 
 	@Override
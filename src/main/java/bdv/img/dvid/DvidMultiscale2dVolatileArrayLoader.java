@@ -2,13 +2,14 @@ package bdv.img.dvid;
 
 import java.awt.image.BufferedImage;
 import java.awt.image.PixelGrabber;
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
-import java.net.URL;
 
 import javax.imageio.ImageIO;
 
 import net.imglib2.img.basictypeaccess.volatiles.array.VolatileByteArray;
 import bdv.img.cache.CacheArrayLoader;
+import bdv.util.http.PooledHttpClient;
 
 /**
  * {@link CacheArrayLoader} for
@@ -53,8 +54,7 @@ public class DvidMultiscale2dVolatileArrayLoader implements CacheArrayLoader< Vo
 			final int h,
 			final int[] data ) throws IOException, InterruptedException
 	{
-			final URL url = new URL( urlString );
-			final BufferedImage jpg = ImageIO.read( url );
+			final BufferedImage jpg = ImageIO.read( new ByteArrayInputStream( PooledHttpClient.getDefault().get( urlString ) ) );
 			/* This gymnastic is necessary to get reproducible gray
 			* values, just opening a JPG or PNG, even when saved by
 			* ImageIO, and grabbing its pixels results in gray values
@@ -1,8 +1,6 @@
 package bdv.img.dvid;
 
 import java.io.IOException;
-import java.io.InputStream;
-import java.net.URL;
 import java.util.Arrays;
 
 import bdv.img.cache.CacheArrayLoader;
@@ -10,6 +8,8 @@ import bdv.labels.labelset.LabelMultisetEntry;
 import bdv.labels.labelset.LabelMultisetEntryList;
 import bdv.labels.labelset.LongMappedAccessData;
 import bdv.labels.labelset.VolatileLabelMultisetArray;
+import bdv.util.LittleEndianBuffers;
+import bdv.util.http.PooledHttpClient;
 import gnu.trove.list.array.TLongArrayList;
 
 /**
@@ -27,6 +27,10 @@ public class LabelblkMultisetVolatileArrayLoader implements CacheArrayLoader< Vo
 
 	private final String dataInstanceId;
 
+	private final int[] blockDimensions;
+
+	private final BlockRequestCoalescer coalescer;
+
 	public LabelblkMultisetVolatileArrayLoader(
 			final String apiUrl,
 			final String nodeId,
@@ -37,6 +41,12 @@ public class LabelblkMultisetVolatileArrayLoader implements CacheArrayLoader< Vo
 		this.apiUrl = apiUrl;
 		this.nodeId = nodeId;
 		this.dataInstanceId = dataInstanceId;
+		this.blockDimensions = blockDimensions.clone();
+		this.coalescer = new BlockRequestCoalescer(
+				apiUrl,
+				nodeId,
+				dataInstanceId,
+				8 * blockDimensions[ 0 ] * blockDimensions[ 1 ] * blockDimensions[ 2 ] );
 	}
 
 	// TODO: unused -- remove.
@@ -46,39 +56,24 @@ public class LabelblkMultisetVolatileArrayLoader implements CacheArrayLoader< Vo
 		return 8;
 	}
 
-	static private void readBlock(
-			final String urlString,
+	private void readBlock(
+			final long[] min,
+			final int[] dimensions,
 			final int[] data,
 			final LongMappedAccessData listData ) throws IOException
 	{
-		final byte[] bytes = new byte[ data.length * 8 ];
-		final URL url = new URL( urlString );
-		final InputStream in = url.openStream();
-
-		int off = 0, l = 0;
-		do
-		{
-			l = in.read( bytes, off, bytes.length - off );
-			off += l;
-		}
-		while ( l > 0 && off < bytes.length );
-		in.close();
+		final byte[] bytes = LittleEndianBuffers.scratchBytes( data.length * 8 );
+		fetch( min, dimensions, bytes );
+		final long[] ids = LittleEndianBuffers.scratchLongs( data.length );
+		LittleEndianBuffers.getLongs( bytes, 0, ids, data.length );
 
 		final TLongArrayList idAndOffsetList = new TLongArrayList();
 		final LabelMultisetEntryList list = new LabelMultisetEntryList( listData, 0 );
 		final LabelMultisetEntry entry = new LabelMultisetEntry( 0, 1 );
 		long nextListOffset = 0;
-A:		for ( int i = 0, j = -1; i < data.length; ++i )
+A:		for ( int i = 0; i < data.length; ++i )
 		{
-			final long id =
-					( 0xffl & bytes[ ++j ] ) |
-					( ( 0xffl & bytes[ ++j ] ) << 8 ) |
-					( ( 0xffl & bytes[ ++j ] ) << 16 ) |
-					( ( 0xffl & bytes[ ++j ] ) << 24 ) |
-					( ( 0xffl & bytes[ ++j ] ) << 32 ) |
-					( ( 0xffl & bytes[ ++j ] ) << 40 ) |
-					( ( 0xffl & bytes[ ++j ] ) << 48 ) |
-					( ( 0xffl & bytes[ ++j ] ) << 56 );
+			final long id = ids[ i ];
 
 			// does the list [id x 1] already exist?
 			for ( int k = 0; k < idAndOffsetList.size(); k += 2 )
@@ -101,6 +96,31 @@ A:		for ( int i = 0, j = -1; i < data.length; ++i )
 		}
 	}
 
+	/**
+	 * Fetch complete blocks through the {@link BlockRequestCoalescer}, and
+	 * cells that do not match the block grid (e.g. at the border) through
+	 * DVID's raw endpoint.
+	 */
+	private void fetch(
+			final long[] min,
+			final int[] dimensions,
+			final byte[] bytes ) throws IOException
+	{
+		if (
+				Arrays.equals( dimensions, blockDimensions ) &&
+				min[ 0 ] % dimensions[ 0 ] == 0 &&
+				min[ 1 ] % dimensions[ 1 ] == 0 &&
+				min[ 2 ] % dimensions[ 2 ] == 0 )
+			coalescer.fetch( min[ 0 ] / dimensions[ 0 ], min[ 1 ] / dimensions[ 1 ], min[ 2 ] / dimensions[ 2 ], bytes );
+		else
+		{
+			/* bytes is reused, clear what a short response does not overwrite */
+			final int numBytes = 8 * dimensions[ 0 ] * dimensions[ 1 ] * dimensions[ 2 ];
+			final int n = PooledHttpClient.getDefault().get( makeUrl( min, dimensions ), bytes, numBytes );
+			Arrays.fill( bytes, n, numBytes, ( byte ) 0 );
+		}
+	}
+
 	private String makeUrl(
 			final long[] min,
 			final int[] dimensions )
@@ -153,12 +173,11 @@ A:		for ( int i = 0, j = -1; i < data.length; ++i )
 //				+ ")"
 //				);
 		final int[] data = new int[ dimensions[ 0 ] * dimensions[ 1 ] * dimensions[ 2 ] ];
-		final LongMappedAccessData listData = LongMappedAccessData.factory.createStorage( 32 );
+		final LongMappedAccessData listData = LongMappedAccessData.defaultFactory.createStorage( 32 );
 
 		try
 		{
-			final String urlString = makeUrl( min, dimensions );
-			readBlock( urlString, data, listData );
+			readBlock( min, dimensions, data, listData );
 		}
 		catch ( final IOException e )
 		{
@@ -1,12 +1,12 @@
 package bdv.img.dvid;
 
 import java.io.IOException;
-import java.io.InputStream;
-import java.net.URL;
 import java.util.Arrays;
 
 import bdv.img.cache.CacheArrayLoader;
 import bdv.util.ColorStream;
+import bdv.util.LittleEndianBuffers;
+import bdv.util.http.PooledHttpClient;
 import net.imglib2.img.basictypeaccess.volatiles.array.VolatileIntArray;
 
 /**
@@ -23,6 +23,8 @@ public class LabelblkVolatileArrayLoader implements CacheArrayLoader< VolatileIn
 	private final String nodeId;
 	private final String dataInstanceId;
 	private final int argbMask;
+	private final int[] blockDimensions;
+	private final BlockRequestCoalescer coalescer;
 
 	public LabelblkVolatileArrayLoader(
 			final String apiUrl,
@@ -36,6 +38,12 @@ public class LabelblkVolatileArrayLoader implements CacheArrayLoader< VolatileIn
 		this.nodeId = nodeId;
 		this.dataInstanceId = dataInstanceId;
 		this.argbMask = argbMask;
+		this.blockDimensions = blockDimensions.clone();
+		this.coalescer = new BlockRequestCoalescer(
+				apiUrl,
+				nodeId,
+				dataInstanceId,
+				8 * blockDimensions[ 0 ] * blockDimensions[ 1 ] * blockDimensions[ 2 ] );
 	}
 
 	public LabelblkVolatileArrayLoader(
@@ -54,35 +62,41 @@ public class LabelblkVolatileArrayLoader implements CacheArrayLoader< VolatileIn
 	}
 
 	private void readBlock(
-			final String urlString,
+			final long[] min,
+			final int[] dimensions,
 			final int[] data ) throws IOException
 	{
-		final byte[] bytes = new byte[ data.length * 8 ];
-		final URL url = new URL( urlString );
-		final InputStream in = url.openStream();
-
-		int off = 0, l = 0;
-		do
-		{
-			l = in.read( bytes, off, bytes.length - off );
-			off += l;
-		}
-		while ( l > 0 && off < bytes.length );
+		final byte[] bytes = LittleEndianBuffers.scratchBytes( data.length * 8 );
+		fetch( min, dimensions, bytes );
 
-		in.close();
+		final long[] ids = LittleEndianBuffers.scratchLongs( data.length );
+		LittleEndianBuffers.getLongs( bytes, 0, ids, data.length );
+		for ( int i = 0; i < data.length; ++i )
+			data[ i ] = ColorStream.get( ids[ i ] ) & argbMask;
+	}
 
-		for ( int i = 0, j = -1; i < data.length; ++i )
+	/**
+	 * Fetch complete blocks through the {@link BlockRequestCoalescer}, and
+	 * cells that do not match the block grid (e.g. at the border) through
+	 * DVID's raw endpoint.
+	 */
+	private void fetch(
+			final long[] min,
+			final int[] dimensions,
+			final byte[] bytes ) throws IOException
+	{
+		if (
+				Arrays.equals( dimensions, blockDimensions ) &&
+				min[ 0 ] % dimensions[ 0 ] == 0 &&
+				min[ 1 ] % dimensions[ 1 ] == 0 &&
+				min[ 2 ] % dimensions[ 2 ] == 0 )
+			coalescer.fetch( min[ 0 ] / dimensions[ 0 ], min[ 1 ] / dimensions[ 1 ], min[ 2 ] / dimensions[ 2 ], bytes );
+		else
 		{
-			final long index =
-					( 0xffl & bytes[ ++j ] ) |
-					( ( 0xffl & bytes[ ++j ] ) << 8 ) |
-					( ( 0xffl & bytes[ ++j ] ) << 16 ) |
-					( ( 0xffl & bytes[ ++j ] ) << 24 ) |
-					( ( 0xffl & bytes[ ++j ] ) << 32 ) |
-					( ( 0xffl & bytes[ ++j ] ) << 40 ) |
-					( ( 0xffl & bytes[ ++j ] ) << 48 ) |
-					( ( 0xffl & bytes[ ++j ] ) << 56 );
-			data[ i ] = ColorStream.get( index ) & argbMask;
+			/* bytes is reused, clear what a short response does not overwrite */
+			final int numBytes = 8 * dimensions[ 0 ] * dimensions[ 1 ] * dimensions[ 2 ];
+			final int n = PooledHttpClient.getDefault().get( makeUrl( min, dimensions ), bytes, numBytes );
+			Arrays.fill( bytes, n, numBytes, ( byte ) 0 );
 		}
 	}
 
@@ -137,9 +151,7 @@ public class LabelblkVolatileArrayLoader implements CacheArrayLoader< VolatileIn
 
 		try
 		{
-			final String urlString = makeUrl( min, dimensions );
-//			System.out.println( urlString + " " + data.length );
-			readBlock( urlString, data );
+			readBlock( min, dimensions, data );
 		}
 		catch (final IOException e)
 		{
@@ -1,12 +1,11 @@
 package bdv.img.dvid;
 
 import java.io.IOException;
-import java.io.InputStream;
-import java.net.URL;
 import java.util.Arrays;
 
 import net.imglib2.img.basictypeaccess.volatiles.array.VolatileByteArray;
 import bdv.img.cache.CacheArrayLoader;
+import bdv.util.http.PooledHttpClient;
 
 /**
  * {@link CacheArrayLoader} for
@@ -21,6 +20,8 @@ public class Uint8blkVolatileArrayLoader implements CacheArrayLoader< VolatileBy
 	private final String apiUrl;
 	private final String nodeId;
 	private final String dataInstanceId;
+	private final int[] blockDimensions;
+	private final BlockRequestCoalescer coalescer;
 
 	public Uint8blkVolatileArrayLoader(
 			final String apiUrl,
@@ -32,6 +33,12 @@ public class Uint8blkVolatileArrayLoader implements CacheArrayLoader< VolatileBy
 		this.apiUrl = apiUrl;
 		this.nodeId = nodeId;
 		this.dataInstanceId = dataInstanceId;
+		this.blockDimensions = blockDimensions.clone();
+		this.coalescer = new BlockRequestCoalescer(
+				apiUrl,
+				nodeId,
+				dataInstanceId,
+				blockDimensions[ 0 ] * blockDimensions[ 1 ] * blockDimensions[ 2 ] );
 	}
 
 	@Override
@@ -40,21 +47,18 @@ public class Uint8blkVolatileArrayLoader implements CacheArrayLoader< VolatileBy
 		return 1;
 	}
 
-	static private void readBlock(
-			final String urlString,
+	/**
+	 * Complete blocks are fetched through the {@link BlockRequestCoalescer}.
+	 */
+	private void readBlock(
+			final long[] min,
+			final int[] dimensions,
 			final byte[] data ) throws IOException
 	{
-			final URL url = new URL( urlString );
-			final InputStream in = url.openStream();
-			int off = 0, l = 0;
-			do
-			{
-				l = in.read( data, off, data.length - off );
-				off += l;
-			}
-			while ( l > 0 && off < data.length );
-
-			in.close();
+		if ( Arrays.equals( dimensions, blockDimensions ) )
+			coalescer.fetch( min[ 0 ] / dimensions[ 0 ], min[ 1 ] / dimensions[ 1 ], min[ 2 ] / dimensions[ 2 ], data );
+		else
+			PooledHttpClient.getDefault().get( makeUrl( min, dimensions ), data );
 	}
 
 	private String makeUrl(
@@ -91,9 +95,7 @@ public class Uint8blkVolatileArrayLoader implements CacheArrayLoader< VolatileBy
 
 		try
 		{
-			final String urlString = makeUrl( min, dimensions );
-			readBlock( urlString, data );
-//			System.out.println( urlString + " " + data.length );
+			readBlock( min, dimensions, data );
 		}
 		catch (final IOException e)
 		{
@@ -4,7 +4,6 @@ import bdv.img.cache.CacheArrayLoader;
 import bdv.labels.labelset.LongMappedAccess;
 import bdv.labels.labelset.LongMappedAccessData;
 import bdv.labels.labelset.VolatileLabelMultisetArray;
-import ch.systemsx.cisd.hdf5.IHDF5IntReader;
 import ch.systemsx.cisd.hdf5.IHDF5Reader;
 
 /**
@@ -17,19 +16,35 @@ abstract public class AbstractH5LabelMultisetArrayLoader implements CacheArrayLo
 {
 	protected VolatileLabelMultisetArray theEmptyArray;
 
-	protected final IHDF5IntReader scaleReader;
+	protected final H5ReadQueue scaleReadQueue;
 
 	final protected String dataset;
 
 	public AbstractH5LabelMultisetArrayLoader(
-			final IHDF5Reader scaleReader,
+			final H5ReadQueue scaleReadQueue,
 			final String dataset )
 	{
 		theEmptyArray = new VolatileLabelMultisetArray( 1, false );
-		this.scaleReader = ( scaleReader == null ) ? null : scaleReader.uint32();
+		this.scaleReadQueue = scaleReadQueue;
 		this.dataset = dataset;
 	}
 
+	public AbstractH5LabelMultisetArrayLoader(
+			final IHDF5Reader scaleReader,
+			final String dataset )
+	{
+		this( queue( scaleReader ), dataset );
+	}
+
+	/**
+	 * @param reader
+	 * @return a read queue of {@code reader}, or null if there is none
+	 */
+	static protected H5ReadQueue queue( final IHDF5Reader reader )
+	{
+		return ( reader == null ) ? null : new H5ReadQueue( reader );
+	}
+
 	abstract protected VolatileLabelMultisetArray loadArrayLevel0(
 			final int[] dimensions,
 			final long[] min ) throws InterruptedException;
@@ -48,9 +63,12 @@ abstract public class AbstractH5LabelMultisetArrayLoader implements CacheArrayLo
 		final String listsPath = String.format( "l%02d/z%05d/y%05d/x%05d/lists", level, min[ 2 ], min[ 1 ], min[ 0 ] );
 		final String dataPath = String.format( "l%02d/z%05d/y%05d/x%05d/data", level, min[ 2 ], min[ 1 ], min[ 0 ] );
 
-		final int[] offsets = scaleReader.readMDArray( dataPath ).getAsFlatArray();
-		final int[] lists = scaleReader.readArray( listsPath );
-		final LongMappedAccessData listData = LongMappedAccessData.factory.createStorage( lists.length * 4 );
+		final int[][] offsetsAndLists = scaleReadQueue.read( dataPath, min, reader -> new int[][]{
+				reader.uint32().readMDArray( dataPath ).getAsFlatArray(),
+				reader.uint32().readArray( listsPath ) } );
+		final int[] offsets = offsetsAndLists[ 0 ];
+		final int[] lists = offsetsAndLists[ 1 ];
+		final LongMappedAccessData listData = LongMappedAccessData.defaultFactory.createStorage( lists.length * 4 );
 		final LongMappedAccess access = listData.createAccess();
 		for ( int i = 0; i < lists.length; ++i )
 			access.putInt( lists[ i ], i * 4 );
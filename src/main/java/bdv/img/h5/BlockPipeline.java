@@ -0,0 +1,150 @@
+package bdv.img.h5;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Walks the blocks of a grid and passes each block through two stages.  One
+ * stage runs on a pool of worker threads, the other on the calling thread in
+ * flat grid order.  This keeps all JHDF5 calls on one thread while blocks
+ * are converted concurrently.  At most two blocks per worker are in flight,
+ * such that memory does not grow with the size of the grid.
+ */
+class BlockPipeline
+{
+	interface Stage< A, B >
+	{
+		B apply( long[] offset, int[] dimensions, A input ) throws Exception;
+	}
+
+	static private class Block< A >
+	{
+		final long[] offset;
+
+		final int[] dimensions;
+
+		final Future< A > future;
+
+		Block( final long[] offset, final int[] dimensions, final Future< A > future )
+		{
+			this.offset = offset;
+			this.dimensions = dimensions;
+			this.future = future;
+		}
+
+		A get()
+		{
+			try
+			{
+				return future.get();
+			}
+			catch ( final ExecutionException e )
+			{
+				if ( e.getCause() instanceof RuntimeException )
+					throw ( RuntimeException ) e.getCause();
+				throw new RuntimeException( e.getCause() );
+			}
+			catch ( final InterruptedException e )
+			{
+				Thread.currentThread().interrupt();
+				throw new RuntimeException( e );
+			}
+		}
+	}
+
+	/**
+	 * Produce blocks in parallel and consume them on the calling thread.
+	 */
+	static < A > void parallelThenSerial(
+			final long[] dimensions,
+			final int[] blockDimensions,
+			final Stage< Void, A > parallel,
+			final Stage< A, Void > serial,
+			final int numThreads )
+	{
+		run( dimensions, blockDimensions, parallel, serial, numThreads, true );
+	}
+
+	/**
+	 * Produce blocks on the calling thread and consume them in parallel.
+	 */
+	static < A > void serialThenParallel(
+			final long[] dimensions,
+			final int[] blockDimensions,
+			final Stage< Void, A > serial,
+			final Stage< A, Void > parallel,
+			final int numThreads )
+	{
+		run( dimensions, blockDimensions, serial, parallel, numThreads, false );
+	}
+
+	static private < A > void run(
+			final long[] dimensions,
+			final int[] blockDimensions,
+			final Stage< Void, A > first,
+			final Stage< A, Void > second,
+			final int numThreads,
+			final boolean parallelFirst )
+	{
+		final int n = dimensions.length;
+		final ExecutorService exec = Executors.newFixedThreadPool( Math.max( 1, numThreads ) );
+		final ArrayDeque< Block< ? > > inFlight = new ArrayDeque<>();
+		final int maxInFlight = 2 * Math.max( 1, numThreads );
+		try
+		{
+			final long[] offset = new long[ n ];
+			for ( int d = 0; d < n; )
+			{
+				final long[] blockOffset = offset.clone();
+				final int[] blockSize = new int[ n ];
+				for ( int e = 0; e < n; ++e )
+					blockSize[ e ] = ( int ) Math.min( blockDimensions[ e ], dimensions[ e ] - offset[ e ] );
+
+				if ( parallelFirst )
+					inFlight.add( new Block<>( blockOffset, blockSize, exec.submit( () -> first.apply( blockOffset, blockSize, null ) ) ) );
+				else
+				{
+					final A input = first.apply( blockOffset, blockSize, null );
+					inFlight.add( new Block<>( blockOffset, blockSize, exec.submit( () -> second.apply( blockOffset, blockSize, input ) ) ) );
+				}
+
+				if ( inFlight.size() >= maxInFlight )
+					complete( inFlight.poll(), second, parallelFirst );
+
+				for ( d = 0; d < n; ++d )
+				{
+					offset[ d ] += blockDimensions[ d ];
+					if ( offset[ d ] < dimensions[ d ] )
+						break;
+					else
+						offset[ d ] = 0;
+				}
+			}
+			while ( !inFlight.isEmpty() )
+				complete( inFlight.poll(), second, parallelFirst );
+		}
+		catch ( final RuntimeException e )
+		{
+			throw e;
+		}
+		catch ( final Exception e )
+		{
+			throw new RuntimeException( e );
+		}
+		finally
+		{
+			exec.shutdownNow();
+		}
+	}
+
+	@SuppressWarnings( "unchecked" )
+	static private < A > void complete( final Block< ? > block, final Stage< A, Void > second, final boolean parallelFirst ) throws Exception
+	{
+		final Object result = block.get();
+		if ( parallelFirst )
+			second.apply( block.offset, block.dimensions, ( A ) result );
+	}
+}
@@ -0,0 +1,408 @@
+package bdv.img.h5;
+
+import static bdv.img.hdf5.Util.reorder;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import bdv.labels.labelset.Label;
+import bdv.util.IdService;
+import ch.systemsx.cisd.base.mdarray.MDLongArray;
+import ch.systemsx.cisd.hdf5.IHDF5Reader;
+import ch.systemsx.cisd.hdf5.IHDF5Writer;
+import net.imglib2.util.Util;
+
+/**
+ * Maximum id of an HDF5 label dataset (uint16, uint32, or uint64) without
+ * scanning the whole volume every time it is opened.
+ *
+ * The maximum id of each chunk is stored in a summary dataset next to the
+ * labels dataset ({@link #summaryDataset(String)}), together with the
+ * modification stamp of the chunk at the time it was scanned.  Writers
+ * increment the stamps of the chunks they write ({@link #touch}), such that
+ * only chunks whose stamp changed since the summary was written are scanned
+ * again.  The summary also records the dimensions of the dataset and is
+ * ignored if they changed.  Datasets without stamps may have been written
+ * by anyone, their summary is never trusted and all chunks are scanned.
+ * {@link #updateMaxId} creates the stamps for such datasets such that the
+ * next scan is incremental, writers that do not maintain stamps will not be
+ * noticed after that.
+ *
+ * Stamps that are created together with the dataset
+ * ({@link #createStamps}) also tell which chunks were never written and
+ * hold only the fill value of the dataset ({@link #writtenChunks}).  Such
+ * chunks are not scanned.
+ *
+ * Chunks are read on the calling thread and scanned by a given number of
+ * worker threads, {@link H5Utils#DEFAULT_NUM_THREADS} by default.
+ */
+public class ChunkMaxIds
+{
+	static private final String BLOCK_SIZE_ATTRIBUTE = "blockSize";
+
+	static private final String DIMENSIONS_ATTRIBUTE = "dimensions";
+
+	static private final String TRACKS_WRITES_ATTRIBUTE = "tracksWrites";
+
+	static public String summaryDataset( final String dataset )
+	{
+		return dataset + "_max_ids";
+	}
+
+	static public String stampsDataset( final String dataset )
+	{
+		return dataset + "_chunk_stamps";
+	}
+
+	static public long[] gridDimensions( final long[] dimensions, final int[] cellDimensions )
+	{
+		final long[] gridDimensions = new long[ dimensions.length ];
+		for ( int d = 0; d < dimensions.length; ++d )
+			gridDimensions[ d ] = ( dimensions[ d ] + cellDimensions[ d ] - 1 ) / cellDimensions[ d ];
+		return gridDimensions;
+	}
+
+	/**
+	 * Flat index (x fastest) of the chunk that starts at min.
+	 */
+	static public int chunkIndex( final long[] min, final int[] cellDimensions, final long[] gridDimensions )
+	{
+		long index = min[ min.length - 1 ] / cellDimensions[ min.length - 1 ];
+		for ( int d = min.length - 2; d >= 0; --d )
+			index = index * gridDimensions[ d ] + min[ d ] / cellDimensions[ d ];
+		return ( int ) index;
+	}
+
+	static private int numChunks( final long[] gridDimensions )
+	{
+		long numChunks = 1;
+		for ( final long g : gridDimensions )
+			numChunks *= g;
+		return ( int ) numChunks;
+	}
+
+	static private boolean hasBlockSize( final IHDF5Reader reader, final String path, final int[] cellDimensions )
+	{
+		return
+				reader.object().hasAttribute( path, BLOCK_SIZE_ATTRIBUTE ) &&
+				Arrays.equals( reader.uint64().getArrayAttr( path, BLOCK_SIZE_ATTRIBUTE ), Util.int2long( cellDimensions ) );
+	}
+
+	/**
+	 * Load the chunk modification stamps of a dataset.
+	 *
+	 * @return the stamps or null if there are none for this chunk size
+	 */
+	static public long[] loadStamps( final IHDF5Reader reader, final String dataset, final int[] cellDimensions, final int numChunks )
+	{
+		final String path = stampsDataset( dataset );
+		if ( !reader.exists( path ) || !hasBlockSize( reader, path, cellDimensions ) )
+			return null;
+		final long[] stamps = reader.uint64().readArray( path );
+		return stamps.length == numChunks ? stamps : null;
+	}
+
+	static private boolean tracksWrites( final IHDF5Reader reader, final String dataset )
+	{
+		final String path = stampsDataset( dataset );
+		return reader.object().hasAttribute( path, TRACKS_WRITES_ATTRIBUTE ) && reader.bool().getAttr( path, TRACKS_WRITES_ATTRIBUTE );
+	}
+
+	/**
+	 * Create zero stamps for a dataset that was just created, such that
+	 * chunks that are never written can be told apart.
+	 *
+	 * @param writer
+	 * @param dataset
+	 * @param dimensions
+	 *            of the dataset, x first
+	 * @param cellDimensions
+	 *            chunk size, x first
+	 */
+	static public void createStamps(
+			final IHDF5Writer writer,
+			final String dataset,
+			final long[] dimensions,
+			final int[] cellDimensions )
+	{
+		final String path = stampsDataset( dataset );
+		writer.uint64().writeArray( path, new long[ numChunks( gridDimensions( dimensions, cellDimensions ) ) ] );
+		writer.uint64().setArrayAttr( path, BLOCK_SIZE_ATTRIBUTE, Util.int2long( cellDimensions ) );
+		writer.bool().setAttr( path, TRACKS_WRITES_ATTRIBUTE, true );
+	}
+
+	/**
+	 * Which chunks of a dataset were written since it was created.  Chunks
+	 * that were never written hold the fill value of the dataset.
+	 *
+	 * @param reader
+	 * @param dataset
+	 * @param dimensions
+	 *            of the dataset, x first
+	 * @param cellDimensions
+	 *            chunk size, x first
+	 * @return flags by flat chunk index or null if this is not known
+	 */
+	static public boolean[] writtenChunks(
+			final IHDF5Reader reader,
+			final String dataset,
+			final long[] dimensions,
+			final int[] cellDimensions )
+	{
+		final int numChunks = numChunks( gridDimensions( dimensions, cellDimensions ) );
+		final long[] stamps = loadStamps( reader, dataset, cellDimensions, numChunks );
+		if ( stamps == null || !tracksWrites( reader, dataset ) )
+			return null;
+		final boolean[] written = new boolean[ numChunks ];
+		for ( int i = 0; i < numChunks; ++i )
+			written[ i ] = stamps[ i ] != 0;
+		return written;
+	}
+
+	/**
+	 * Increment the modification stamps of chunks of a dataset after they
+	 * were written.  If the dataset has no stamps for this chunk size yet,
+	 * all chunks are marked modified.
+	 *
+	 * @param writer
+	 * @param dataset
+	 * @param dimensions
+	 *            of the dataset, x first
+	 * @param cellDimensions
+	 *            chunk size, x first
+	 * @param chunkIndices
+	 *            flat indices of the written chunks or null for all chunks
+	 */
+	static public void touch(
+			final IHDF5Writer writer,
+			final String dataset,
+			final long[] dimensions,
+			final int[] cellDimensions,
+			final int[] chunkIndices )
+	{
+		final int numChunks = numChunks( gridDimensions( dimensions, cellDimensions ) );
+		long[] stamps = loadStamps( writer, dataset, cellDimensions, numChunks );
+		final boolean tracksWrites = stamps != null && tracksWrites( writer, dataset );
+		if ( stamps == null || chunkIndices == null )
+		{
+			if ( stamps == null )
+				stamps = new long[ numChunks ];
+			for ( int i = 0; i < numChunks; ++i )
+				++stamps[ i ];
+		}
+		else
+			for ( final int i : chunkIndices )
+				++stamps[ i ];
+
+		final String path = stampsDataset( dataset );
+		writer.uint64().writeArray( path, stamps );
+		writer.uint64().setArrayAttr( path, BLOCK_SIZE_ATTRIBUTE, Util.int2long( cellDimensions ) );
+		if ( tracksWrites )
+			writer.bool().setAttr( path, TRACKS_WRITES_ATTRIBUTE, true );
+	}
+
+	/**
+	 * Find the maximum id in a dataset, ignoring {@link Label#TRANSPARENT}.
+	 * Chunks that are not in the summary or whose stamp changed are scanned.
+	 * Nothing is written.
+	 *
+	 * @param reader
+	 * @param dataset
+	 * @param cellDimensions
+	 *            chunk size of the summary, x first
+	 * @param numThreads
+	 * @return the maximum id or 0 if there are none
+	 */
+	static public long maxId( final IHDF5Reader reader, final String dataset, final int[] cellDimensions, final int numThreads )
+	{
+		return maxId( reader, null, dataset, cellDimensions, numThreads );
+	}
+
+	static public long maxId( final IHDF5Reader reader, final String dataset, final int[] cellDimensions )
+	{
+		return maxId( reader, dataset, cellDimensions, H5Utils.DEFAULT_NUM_THREADS );
+	}
+
+	/**
+	 * Find the maximum id in a dataset like
+	 * {@link #maxId(IHDF5Reader, String, int[], int)} and save the updated
+	 * summary if chunks were scanned.  Creates the stamps if the dataset has
+	 * none.
+	 *
+	 * @param writer
+	 * @param dataset
+	 * @param cellDimensions
+	 *            chunk size of the summary, x first
+	 * @param numThreads
+	 * @return the maximum id or 0 if there are none
+	 */
+	static public long updateMaxId( final IHDF5Writer writer, final String dataset, final int[] cellDimensions, final int numThreads )
+	{
+		return maxId( writer, writer, dataset, cellDimensions, numThreads );
+	}
+
+	static public long updateMaxId( final IHDF5Writer writer, final String dataset, final int[] cellDimensions )
+	{
+		return updateMaxId( writer, dataset, cellDimensions, H5Utils.DEFAULT_NUM_THREADS );
+	}
+
+	static private long maxId(
+			final IHDF5Reader reader,
+			final IHDF5Writer writer,
+			final String dataset,
+			final int[] cellDimensions,
+			final int numThreads )
+	{
+		final long[] dimensions = reorder( reader.object().getDimensions( dataset ) );
+		final int numChunks = numChunks( gridDimensions( dimensions, cellDimensions ) );
+
+		long[] stamps = loadStamps( reader, dataset, cellDimensions, numChunks );
+		final long[] summary;
+		if ( stamps == null )
+		{
+			summary = null;
+			if ( writer != null )
+			{
+				touch( writer, dataset, dimensions, cellDimensions, null );
+				stamps = loadStamps( writer, dataset, cellDimensions, numChunks );
+			}
+		}
+		else
+			summary = loadSummary( reader, dataset, dimensions, cellDimensions, numChunks );
+
+		final boolean[] written = writtenChunks( reader, dataset, dimensions, cellDimensions );
+
+		final long[] maxIds = new long[ numChunks ];
+		final boolean[] stale = new boolean[ numChunks ];
+		int numStale = 0;
+		for ( int i = 0; i < numChunks; ++i )
+		{
+			if ( written != null && !written[ i ] )
+				continue;
+			if ( summary == null || summary[ 2 * i + 1 ] != stamps[ i ] )
+			{
+				stale[ i ] = true;
+				++numStale;
+			}
+			else
+				maxIds[ i ] = summary[ 2 * i ];
+		}
+
+		if ( numStale > 0 )
+		{
+			System.out.println( "Scanning " + numStale + " of " + numChunks + " chunks of " + dataset + " for max id" );
+			scan( reader, dataset, dimensions, cellDimensions, stale, numStale, maxIds, numThreads );
+			if ( writer != null )
+				saveSummary( writer, dataset, dimensions, cellDimensions, maxIds, stamps );
+		}
+
+		long maxId = 0;
+		for ( final long id : maxIds )
+			maxId = IdService.max( maxId, id );
+		return maxId;
+	}
+
+	/**
+	 * @return interleaved max ids and stamps or null if there is no summary
+	 *         for these dimensions and chunk size
+	 */
+	static private long[] loadSummary(
+			final IHDF5Reader reader,
+			final String dataset,
+			final long[] dimensions,
+			final int[] cellDimensions,
+			final int numChunks )
+	{
+		final String path = summaryDataset( dataset );
+		if ( !reader.exists( path ) || !hasBlockSize( reader, path, cellDimensions ) )
+			return null;
+		if ( !reader.object().hasAttribute( path, DIMENSIONS_ATTRIBUTE ) ||
+				!Arrays.equals( reader.uint64().getArrayAttr( path, DIMENSIONS_ATTRIBUTE ), dimensions ) )
+			return null;
+		final long[] summary = reader.uint64().readMDArray( path ).getAsFlatArray();
+		return summary.length == 2 * numChunks ? summary : null;
+	}
+
+	static private void saveSummary(
+			final IHDF5Writer writer,
+			final String dataset,
+			final long[] dimensions,
+			final int[] cellDimensions,
+			final long[] maxIds,
+			final long[] stamps )
+	{
+		final long[] summary = new long[ 2 * maxIds.length ];
+		for ( int i = 0; i < maxIds.length; ++i )
+		{
+			summary[ 2 * i ] = maxIds[ i ];
+			summary[ 2 * i + 1 ] = stamps[ i ];
+		}
+		final String path = summaryDataset( dataset );
+		writer.uint64().writeMDArray( path, new MDLongArray( summary, new int[]{ maxIds.length, 2 } ) );
+		writer.uint64().setArrayAttr( path, BLOCK_SIZE_ATTRIBUTE, Util.int2long( cellDimensions ) );
+		writer.uint64().setArrayAttr( path, DIMENSIONS_ATTRIBUTE, dimensions );
+	}
+
+	static private void scan(
+			final IHDF5Reader reader,
+			final String dataset,
+			final long[] dimensions,
+			final int[] cellDimensions,
+			final boolean[] stale,
+			final int numStale,
+			final long[] maxIds,
+			final int numThreads )
+	{
+		final Class< ? > cls = reader.object().getDataSetInformation( dataset ).getTypeInformation().tryGetJavaType();
+		if ( !( cls == long.class || cls == int.class || cls == short.class ) )
+			throw new IllegalArgumentException( "Cannot find max id of dataset " + dataset + " of type " + cls );
+
+		final long[] gridDimensions = gridDimensions( dimensions, cellDimensions );
+		final AtomicInteger numScanned = new AtomicInteger();
+		final int progressStep = Math.max( 1, numStale / 10 );
+
+		BlockPipeline.< Object >serialThenParallel(
+				dimensions,
+				cellDimensions,
+				( offset, blockDimensions, none ) -> {
+					if ( !stale[ chunkIndex( offset, cellDimensions, gridDimensions ) ] )
+						return null;
+					final int[] size = reorder( blockDimensions );
+					final long[] min = reorder( offset );
+					if ( cls == long.class )
+						return reader.uint64().readMDArrayBlockWithOffset( dataset, size, min ).getAsFlatArray();
+					else if ( cls == int.class )
+						return reader.uint32().readMDArrayBlockWithOffset( dataset, size, min ).getAsFlatArray();
+					else
+						return reader.uint16().readMDArrayBlockWithOffset( dataset, size, min ).getAsFlatArray();
+				},
+				( offset, blockDimensions, data ) -> {
+					if ( data == null )
+						return null;
+					long maxId = 0;
+					if ( data instanceof long[] )
+					{
+						for ( final long id : ( long[] ) data )
+							if ( id != Label.TRANSPARENT && IdService.greaterThan( id, maxId ) )
+								maxId = id;
+					}
+					else if ( data instanceof int[] )
+					{
+						for ( final int id : ( int[] ) data )
+							maxId = Math.max( maxId, id & 0xffffffffL );
+					}
+					else
+					{
+						for ( final short id : ( short[] ) data )
+							maxId = Math.max( maxId, id & 0xffffL );
+					}
+					maxIds[ chunkIndex( offset, cellDimensions, gridDimensions ) ] = maxId;
+
+					final int scanned = numScanned.incrementAndGet();
+					if ( scanned % progressStep == 0 || scanned == numStale )
+						System.out.println( String.format( "Scanned %d of %d chunks of %s", scanned, numStale, dataset ) );
+					return null;
+				},
+				numThreads );
+	}
+}
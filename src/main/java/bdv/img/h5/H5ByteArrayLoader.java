@@ -4,7 +4,6 @@ import java.util.Arrays;
 
 import bdv.img.cache.CacheArrayLoader;
 import ch.systemsx.cisd.base.mdarray.MDByteArray;
-import ch.systemsx.cisd.hdf5.IHDF5ByteReader;
 import ch.systemsx.cisd.hdf5.IHDF5Reader;
 import net.imglib2.img.basictypeaccess.volatiles.array.VolatileByteArray;
 
@@ -18,19 +17,26 @@ public class H5ByteArrayLoader implements CacheArrayLoader< VolatileByteArray >
 {
 	private VolatileByteArray theEmptyArray;
 
-	final private IHDF5ByteReader reader;
+	final private H5ReadQueue readQueue;
 
 	final private String dataset;
 
 	public H5ByteArrayLoader(
-			final IHDF5Reader reader,
+			final H5ReadQueue readQueue,
 			final String dataset )
 	{
 		theEmptyArray = new VolatileByteArray( 1, false );
-		this.reader = reader.uint8();
+		this.readQueue = readQueue;
 		this.dataset = dataset;
 	}
 
+	public H5ByteArrayLoader(
+			final IHDF5Reader reader,
+			final String dataset )
+	{
+		this( new H5ReadQueue( reader ), dataset );
+	}
+
 	@Override
 	public int getBytesPerElement()
 	{
@@ -47,10 +53,10 @@ public class H5ByteArrayLoader implements CacheArrayLoader< VolatileByteArray >
 			final long[] min ) throws InterruptedException
 	{
 		byte[] data = null;
-		final MDByteArray slice = reader.readMDArrayBlockWithOffset(
+		final MDByteArray slice = readQueue.read( dataset, min, reader -> reader.uint8().readMDArrayBlockWithOffset(
 				dataset,
 				new int[]{ dimensions[ 2 ], dimensions[ 1 ], dimensions[ 0 ] },
-				new long[]{ min[ 2 ], min[ 1 ], min[ 0 ] } );
+				new long[]{ min[ 2 ], min[ 1 ], min[ 0 ] } ) );
 
 		data = slice.getAsFlatArray();
 
@@ -4,7 +4,6 @@ import java.util.Arrays;
 
 import bdv.img.cache.CacheArrayLoader;
 import ch.systemsx.cisd.base.mdarray.MDFloatArray;
-import ch.systemsx.cisd.hdf5.IHDF5FloatReader;
 import ch.systemsx.cisd.hdf5.IHDF5Reader;
 import net.imglib2.img.basictypeaccess.volatiles.array.VolatileFloatArray;
 
@@ -18,19 +17,26 @@ public class H5FloatArrayLoader implements CacheArrayLoader< VolatileFloatArray
 {
 	private VolatileFloatArray theEmptyArray;
 
-	final private IHDF5FloatReader reader;
+	final private H5ReadQueue readQueue;
 
 	final private String dataset;
 
 	public H5FloatArrayLoader(
-			final IHDF5Reader reader,
+			final H5ReadQueue readQueue,
 			final String dataset )
 	{
 		theEmptyArray = new VolatileFloatArray( 1, false );
-		this.reader = reader.float32();
+		this.readQueue = readQueue;
 		this.dataset = dataset;
 	}
 
+	public H5FloatArrayLoader(
+			final IHDF5Reader reader,
+			final String dataset )
+	{
+		this( new H5ReadQueue( reader ), dataset );
+	}
+
 	@Override
 	public int getBytesPerElement()
 	{
@@ -47,10 +53,10 @@ public class H5FloatArrayLoader implements CacheArrayLoader< VolatileFloatArray
 			final long[] min ) throws InterruptedException
 	{
 		float[] data = null;
-		final MDFloatArray slice = reader.readMDArrayBlockWithOffset(
+		final MDFloatArray slice = readQueue.read( dataset, min, reader -> reader.float32().readMDArrayBlockWithOffset(
 				dataset,
 				new int[]{ dimensions[ 2 ], dimensions[ 1 ], dimensions[ 0 ] },
-				new long[]{ min[ 2 ], min[ 1 ], min[ 0 ] } );
+				new long[]{ min[ 2 ], min[ 1 ], min[ 0 ] } ) );
 
 		data = slice.getAsFlatArray();
 
@@ -8,7 +8,6 @@ import bdv.labels.labelset.LabelMultisetEntryList;
 import bdv.labels.labelset.LongMappedAccessData;
 import bdv.labels.labelset.VolatileLabelMultisetArray;
 import ch.systemsx.cisd.base.mdarray.MDIntArray;
-import ch.systemsx.cisd.hdf5.IHDF5IntReader;
 import ch.systemsx.cisd.hdf5.IHDF5Reader;
 import gnu.trove.impl.Constants;
 import gnu.trove.map.hash.TLongIntHashMap;
@@ -21,15 +20,23 @@ import gnu.trove.map.hash.TLongIntHashMap;
  */
 public class H5IntLabelMultisetArrayLoader extends AbstractH5LabelMultisetArrayLoader
 {
-	final private IHDF5IntReader reader;
+	final private H5ReadQueue readQueue;
+
+	public H5IntLabelMultisetArrayLoader(
+			final H5ReadQueue readQueue,
+			final H5ReadQueue scaleReadQueue,
+			final String dataset )
+	{
+		super( scaleReadQueue, dataset );
+		this.readQueue = readQueue;
+	}
 
 	public H5IntLabelMultisetArrayLoader(
 			final IHDF5Reader reader,
 			final IHDF5Reader scaleReader,
 			final String dataset )
 	{
-		super( scaleReader, dataset );
-		this.reader = reader.int32();
+		this( new H5ReadQueue( reader ), queue( scaleReader ), dataset );
 	}
 
 	@Override
@@ -45,10 +52,10 @@ public class H5IntLabelMultisetArrayLoader extends AbstractH5LabelMultisetArrayL
 	{
 		int[] data = null;
 
-		final MDIntArray block = reader.readMDArrayBlockWithOffset(
+		final MDIntArray block = readQueue.read( dataset, min, reader -> reader.int32().readMDArrayBlockWithOffset(
 				dataset,
 				new int[]{ dimensions[ 2 ], dimensions[ 1 ], dimensions[ 0 ] },
-				new long[]{ min[ 2 ], min[ 1 ], min[ 0 ] } );
+				new long[]{ min[ 2 ], min[ 1 ], min[ 0 ] } ) );
 
 		data = block.getAsFlatArray();
 
@@ -64,7 +71,7 @@ public class H5IntLabelMultisetArrayLoader extends AbstractH5LabelMultisetArrayL
 		}
 
 		final int[] offsets = new int[ dimensions[ 2 ] * dimensions[ 1 ] * dimensions[ 0 ] ];
-		final LongMappedAccessData listData = LongMappedAccessData.factory.createStorage( 32 );
+		final LongMappedAccessData listData = LongMappedAccessData.defaultFactory.createStorage( 32 );
 		final LabelMultisetEntryList list = new LabelMultisetEntryList( listData, 0 );
 		final LabelMultisetEntry entry = new LabelMultisetEntry( 0, 1 );
 		int nextListOffset = 0;
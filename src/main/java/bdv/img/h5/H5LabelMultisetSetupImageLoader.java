@@ -38,41 +38,53 @@ public class H5LabelMultisetSetupImageLoader
 	final private AffineTransform3D[] mipmapTransforms;
 
 	static private CacheArrayLoader<VolatileLabelMultisetArray> typedLoader(
-			final IHDF5Reader reader,
-			final IHDF5Reader scaleReader,
+			final H5ReadQueue readQueue,
+			final H5ReadQueue scaleReadQueue,
 			final String dataset )
 	{
-		final HDF5DataSetInformation typeInfo = reader.object().getDataSetInformation( dataset );
+		final HDF5DataSetInformation typeInfo = readQueue.getReader().object().getDataSetInformation( dataset );
 		final Class< ? > cls = typeInfo.getTypeInformation().tryGetJavaType();
 //		System.out.println( typeInfo.getTypeInformation().tryGetJavaType().toString() );
 		if ( short.class == cls )
-			return new H5ShortLabelMultisetArrayLoader( reader, scaleReader, dataset );
+			return new H5ShortLabelMultisetArrayLoader( readQueue, scaleReadQueue, dataset );
 		else if ( int.class == cls )
-			return new H5IntLabelMultisetArrayLoader( reader, scaleReader, dataset );
+			return new H5IntLabelMultisetArrayLoader( readQueue, scaleReadQueue, dataset );
 		else if ( long.class == cls )
-			return new H5LongLabelMultisetArrayLoader( reader, scaleReader, dataset );
+			return new H5LongLabelMultisetArrayLoader( readQueue, scaleReadQueue, dataset );
 		else
 			return null;
 	}
 
+	/**
+	 * @param readQueue
+	 *            of the labels, shared by the fetcher threads
+	 * @param scaleReadQueue
+	 *            of the downscaled labels, or null if there are none
+	 * @param dataset
+	 * @param setupId
+	 * @param blockDimension
+	 * @param resolution
+	 * @throws IOException
+	 */
 	public H5LabelMultisetSetupImageLoader(
-			final IHDF5Reader reader,
-			final IHDF5Reader scaleReader,
+			final H5ReadQueue readQueue,
+			final H5ReadQueue scaleReadQueue,
 			final String dataset,
 			final int setupId,
 			final int[] blockDimension,
 			final double[] resolution ) throws IOException
 	{
 		super(
-				reader,
+				readQueue.getReader(),
 				dataset,
 				setupId,
 				blockDimension,
 				resolution,
 				new LabelMultisetType(),
 				new VolatileLabelMultisetType(),
-				typedLoader( reader, scaleReader, dataset ) );
+				typedLoader( readQueue, scaleReadQueue, dataset ) );
 
+		final IHDF5Reader scaleReader = ( scaleReadQueue == null ) ? null : scaleReadQueue.getReader();
 		if ( scaleReader == null )
 		{
 			numMipmapLevels = 1;
@@ -118,6 +130,33 @@ public class H5LabelMultisetSetupImageLoader
 	}
 
 
+	public H5LabelMultisetSetupImageLoader(
+			final H5ReadQueue readQueue,
+			final H5ReadQueue scaleReadQueue,
+			final String dataset,
+			final int setupId,
+			final int[] blockDimension ) throws IOException
+	{
+		this( readQueue, scaleReadQueue, dataset, setupId, blockDimension, readResolution( readQueue.getReader(), dataset ) );
+	}
+
+	public H5LabelMultisetSetupImageLoader(
+			final IHDF5Reader reader,
+			final IHDF5Reader scaleReader,
+			final String dataset,
+			final int setupId,
+			final int[] blockDimension,
+			final double[] resolution ) throws IOException
+	{
+		this(
+				new H5ReadQueue( reader ),
+				( scaleReader == null ) ? null : new H5ReadQueue( scaleReader ),
+				dataset,
+				setupId,
+				blockDimension,
+				resolution );
+	}
+
 	public H5LabelMultisetSetupImageLoader(
 			final IHDF5Reader reader,
 			final IHDF5Reader scaleReader,
@@ -0,0 +1,168 @@
+package bdv.img.h5;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.function.Function;
+
+import ch.systemsx.cisd.hdf5.IHDF5Reader;
+
+/**
+ * Serializes the reads of the fetcher threads of a cell cache from one HDF5
+ * handle, e.g. of the {@link H5ByteArrayLoader}s and
+ * {@link H5LongLabelMultisetArrayLoader}s of the setups of a project.
+ *
+ * JHDF5 serializes all calls into the native library, more handles or
+ * threads do not read faster.  Instead, the reads that queue up while one
+ * batch is read are collected and read as the next batch by one of the
+ * waiting fetchers, sorted by dataset and position (z, y, x), such that
+ * neighboring chunks are read one after the other.  Each fetcher converts
+ * what was read for it on its own thread.  No threads or handles are
+ * created, there is nothing to close.
+ */
+public class H5ReadQueue
+{
+	static private class Read< T >
+	{
+		final String path;
+
+		final long[] min;
+
+		final Function< IHDF5Reader, T > read;
+
+		T result = null;
+
+		Throwable failure = null;
+
+		boolean done = false;
+
+		Read( final String path, final long[] min, final Function< IHDF5Reader, T > read )
+		{
+			this.path = path;
+			this.min = min;
+			this.read = read;
+		}
+
+		void run( final IHDF5Reader reader )
+		{
+			try
+			{
+				result = read.apply( reader );
+			}
+			catch ( final Throwable e )
+			{
+				failure = e;
+			}
+		}
+
+		T get()
+		{
+			if ( failure instanceof RuntimeException )
+				throw ( RuntimeException ) failure;
+			if ( failure instanceof Error )
+				throw ( Error ) failure;
+			return result;
+		}
+	}
+
+	/**
+	 * By path, then by min starting with the last dimension.
+	 */
+	static private final Comparator< Read< ? > > fileOrder = ( a, b ) -> {
+		final int c = a.path.compareTo( b.path );
+		if ( c != 0 )
+			return c;
+		for ( int d = Math.min( a.min.length, b.min.length ) - 1; d >= 0; --d )
+			if ( a.min[ d ] != b.min[ d ] )
+				return Long.compare( a.min[ d ], b.min[ d ] );
+		return Integer.compare( a.min.length, b.min.length );
+	};
+
+	final private IHDF5Reader reader;
+
+	final private ArrayList< Read< ? > > queue = new ArrayList<>();
+
+	private boolean reading = false;
+
+	/**
+	 * @param reader
+	 *            used for all reads and for reading metadata
+	 */
+	public H5ReadQueue( final IHDF5Reader reader )
+	{
+		this.reader = reader;
+	}
+
+	/**
+	 * @return the reader of the queue, e.g. to read metadata
+	 */
+	public IHDF5Reader getReader()
+	{
+		return reader;
+	}
+
+	int numQueued()
+	{
+		synchronized ( queue )
+		{
+			return queue.size();
+		}
+	}
+
+	/**
+	 * Read when it is the turn of this read.  The calling thread may read
+	 * the other queued reads of its batch as well.
+	 *
+	 * @param path
+	 *            of the dataset, to sort the reads of a batch
+	 * @param min
+	 *            of the block, x first, to sort the reads of a batch
+	 * @param read
+	 * @return the result of {@code read}
+	 * @throws InterruptedException
+	 *             while waiting for the turn of this read
+	 */
+	public < T > T read( final String path, final long[] min, final Function< IHDF5Reader, T > read ) throws InterruptedException
+	{
+		final Read< T > r = new Read<>( path, min, read );
+		final ArrayList< Read< ? > > batch;
+		synchronized ( queue )
+		{
+			queue.add( r );
+			try
+			{
+				while ( reading && !r.done )
+					queue.wait();
+			}
+			catch ( final InterruptedException e )
+			{
+				queue.remove( r );
+				throw e;
+			}
+			if ( r.done )
+				return r.get();
+
+			reading = true;
+			batch = new ArrayList<>( queue );
+			queue.clear();
+		}
+
+		try
+		{
+			Collections.sort( batch, fileOrder );
+			for ( final Read< ? > b : batch )
+				b.run( reader );
+		}
+		finally
+		{
+			synchronized ( queue )
+			{
+				for ( final Read< ? > b : batch )
+					b.done = true;
+				reading = false;
+				queue.notifyAll();
+			}
+		}
+		return r.get();
+	}
+}
@@ -5,7 +5,6 @@ import java.util.Arrays;
 import bdv.img.cache.CacheArrayLoader;
 import ch.systemsx.cisd.base.mdarray.MDShortArray;
 import ch.systemsx.cisd.hdf5.IHDF5Reader;
-import ch.systemsx.cisd.hdf5.IHDF5ShortReader;
 import net.imglib2.img.basictypeaccess.volatiles.array.VolatileShortArray;
 
 /**
@@ -18,19 +17,26 @@ public class H5ShortArrayLoader implements CacheArrayLoader< VolatileShortArray
 {
 	private VolatileShortArray theEmptyArray;
 
-	final private IHDF5ShortReader reader;
+	final private H5ReadQueue readQueue;
 
 	final private String dataset;
 
 	public H5ShortArrayLoader(
-			final IHDF5Reader reader,
+			final H5ReadQueue readQueue,
 			final String dataset )
 	{
 		theEmptyArray = new VolatileShortArray( 1, false );
-		this.reader = reader.int16();
+		this.readQueue = readQueue;
 		this.dataset = dataset;
 	}
 
+	public H5ShortArrayLoader(
+			final IHDF5Reader reader,
+			final String dataset )
+	{
+		this( new H5ReadQueue( reader ), dataset );
+	}
+
 	@Override
 	public int getBytesPerElement()
 	{
@@ -47,10 +53,10 @@ public class H5ShortArrayLoader implements CacheArrayLoader< VolatileShortArray
 			final long[] min ) throws InterruptedException
 	{
 		short[] data = null;
-		final MDShortArray slice = reader.readMDArrayBlockWithOffset(
+		final MDShortArray slice = readQueue.read( dataset, min, reader -> reader.int16().readMDArrayBlockWithOffset(
 				dataset,
 				new int[]{ dimensions[ 2 ], dimensions[ 1 ], dimensions[ 0 ] },
-				new long[]{ min[ 2 ], min[ 1 ], min[ 0 ] } );
+				new long[]{ min[ 2 ], min[ 1 ], min[ 0 ] } ) );
 
 		data = slice.getAsFlatArray();
 
@@ -9,7 +9,6 @@ import bdv.labels.labelset.LongMappedAccessData;
 import bdv.labels.labelset.VolatileLabelMultisetArray;
 import ch.systemsx.cisd.base.mdarray.MDShortArray;
 import ch.systemsx.cisd.hdf5.IHDF5Reader;
-import ch.systemsx.cisd.hdf5.IHDF5ShortReader;
 import gnu.trove.impl.Constants;
 import gnu.trove.map.hash.TLongIntHashMap;
 
@@ -20,15 +19,23 @@ import gnu.trove.map.hash.TLongIntHashMap;
  */
 public class H5ShortLabelMultisetArrayLoader extends AbstractH5LabelMultisetArrayLoader
 {
-	final private IHDF5ShortReader reader;
+	final private H5ReadQueue readQueue;
+
+	public H5ShortLabelMultisetArrayLoader(
+			final H5ReadQueue readQueue,
+			final H5ReadQueue scaleReadQueue,
+			final String dataset )
+	{
+		super( scaleReadQueue, dataset );
+		this.readQueue = readQueue;
+	}
 
 	public H5ShortLabelMultisetArrayLoader(
 			final IHDF5Reader reader,
 			final IHDF5Reader scaleReader,
 			final String dataset )
 	{
-		super( scaleReader, dataset );
-		this.reader = reader.int16();
+		this( new H5ReadQueue( reader ), queue( scaleReader ), dataset );
 	}
 
 	@Override
@@ -44,10 +51,10 @@ public class H5ShortLabelMultisetArrayLoader extends AbstractH5LabelMultisetArra
 	{
 		short[] data = null;
 
-		final MDShortArray block = reader.readMDArrayBlockWithOffset(
+		final MDShortArray block = readQueue.read( dataset, min, reader -> reader.int16().readMDArrayBlockWithOffset(
 				dataset,
 				new int[]{ dimensions[ 2 ], dimensions[ 1 ], dimensions[ 0 ] },
-				new long[]{ min[ 2 ], min[ 1 ], min[ 0 ] } );
+				new long[]{ min[ 2 ], min[ 1 ], min[ 0 ] } ) );
 
 		data = block.getAsFlatArray();
 
@@ -63,7 +70,7 @@ public class H5ShortLabelMultisetArrayLoader extends AbstractH5LabelMultisetArra
 		}
 
 		final int[] offsets = new int[ dimensions[ 2 ] * dimensions[ 1 ] * dimensions[ 0 ] ];
-		final LongMappedAccessData listData = LongMappedAccessData.factory.createStorage( 32 );
+		final LongMappedAccessData listData = LongMappedAccessData.defaultFactory.createStorage( 32 );
 		final LabelMultisetEntryList list = new LabelMultisetEntryList( listData, 0 );
 		final LabelMultisetEntry entry = new LabelMultisetEntry( 0, 1 );
 		int nextListOffset = 0;
@@ -55,6 +55,40 @@ public class H5UnsignedByteSetupImageLoader
 				new H5ByteArrayLoader( reader, dataset ) );
 	}
 
+	public H5UnsignedByteSetupImageLoader(
+			final H5ReadQueue readQueue,
+			final String dataset,
+			final int setupId,
+			final int[] blockDimension,
+			final double[] resolution ) throws IOException
+	{
+		super(
+				readQueue.getReader(),
+				dataset,
+				setupId,
+				blockDimension,
+				resolution,
+				new UnsignedByteType(),
+				new VolatileUnsignedByteType(),
+				new H5ByteArrayLoader( readQueue, dataset ) );
+	}
+
+	public H5UnsignedByteSetupImageLoader(
+			final H5ReadQueue readQueue,
+			final String dataset,
+			final int setupId,
+			final int[] blockDimension ) throws IOException
+	{
+		super(
+				readQueue.getReader(),
+				dataset,
+				setupId,
+				blockDimension,
+				new UnsignedByteType(),
+				new VolatileUnsignedByteType(),
+				new H5ByteArrayLoader( readQueue, dataset ) );
+	}
+
 	@Override
 	public RandomAccessibleInterval< UnsignedByteType > getImage( final int timepointId, final int level, final ImgLoaderHint... hints )
 	{
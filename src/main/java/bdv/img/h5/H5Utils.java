@@ -6,6 +6,9 @@ import java.io.File;
 import java.util.Arrays;
 
 import bdv.bigcat.label.FragmentSegmentAssignment;
+import bdv.img.SparseLongCanvas;
+import bdv.img.access.ModificationAware;
+import bdv.img.access.array.ModificationAwareLongArray;
 import bdv.labels.labelset.Label;
 import bdv.labels.labelset.LabelMultiset;
 import bdv.labels.labelset.LabelMultisetType;
@@ -20,17 +23,25 @@ import ch.systemsx.cisd.hdf5.IHDF5LongWriter;
 import ch.systemsx.cisd.hdf5.IHDF5Reader;
 import ch.systemsx.cisd.hdf5.IHDF5Writer;
 import gnu.trove.impl.Constants;
+import gnu.trove.iterator.TLongLongIterator;
+import gnu.trove.list.array.TIntArrayList;
 import gnu.trove.map.hash.TLongLongHashMap;
+import net.imglib2.Cursor;
 import net.imglib2.Dimensions;
 import net.imglib2.Interval;
 import net.imglib2.RandomAccessible;
 import net.imglib2.RandomAccessibleInterval;
 import net.imglib2.converter.Converter;
 import net.imglib2.converter.Converters;
+import net.imglib2.img.basictypeaccess.array.LongArray;
+import net.imglib2.img.cell.AbstractCell;
 import net.imglib2.img.cell.CellImg;
 import net.imglib2.img.cell.CellImgFactory;
+import net.imglib2.img.cell.DefaultCell;
+import net.imglib2.img.cell.ListImgCells;
 import net.imglib2.type.numeric.integer.LongType;
 import net.imglib2.type.numeric.integer.UnsignedByteType;
+import net.imglib2.util.Fraction;
 import net.imglib2.util.Intervals;
 import net.imglib2.util.Pair;
 import net.imglib2.util.Util;
@@ -45,6 +56,12 @@ import net.imglib2.view.Views;
  */
 public class H5Utils
 {
+	/**
+	 * Default number of worker threads that convert or copy blocks in
+	 * parallel.  JHDF5 calls are always made from the calling thread.
+	 */
+	static public final int DEFAULT_NUM_THREADS = Runtime.getRuntime().availableProcessors();
+
 	static public void cropCellDimensions(
 			final Dimensions sourceDimensions,
 			final long[] offset,
@@ -57,16 +74,70 @@ public class H5Utils
 	}
 
 	/**
-	 * Load an HDF5 uint64 dataset into a {@link CellImg} of {@link LongType}.
+	 * Create a {@link CellImg} of {@link LongType} whose cells are stored in
+	 * {@link ModificationAwareLongArray ModificationAwareLongArrays}, such
+	 * that {@link #saveModifiedUnsignedLong(CellImg, File, String, int[])}
+	 * can write only the cells that were modified since the last save.
+	 *
+	 * @param dimensions
+	 * @param cellDimensions
+	 */
+	static public CellImg< LongType, LongArray, DefaultCell< LongArray > > createModificationAwareUnsignedLong(
+			final long[] dimensions,
+			final int[] cellDimensions )
+	{
+		final ListImgCells< LongArray > cells = new ListImgCells< LongArray >(
+				new ModificationAwareLongArray( 1 ),
+				new Fraction(),
+				dimensions,
+				cellDimensions );
+		final CellImg< LongType, LongArray, DefaultCell< LongArray > > img =
+				new CellImg< LongType, LongArray, DefaultCell< LongArray > >( new CellImgFactory< LongType >( cellDimensions ), cells );
+		img.setLinkedType( new LongType( img ) );
+		return img;
+	}
+
+	/**
+	 * Set or reset the modification flag of all cells of a {@link CellImg}
+	 * that are {@link ModificationAware}.
+	 *
+	 * @param img
+	 * @param modified
+	 */
+	static public void setModified( final CellImg< ?, ?, ? > img, final boolean modified )
+	{
+		final Cursor< ? extends AbstractCell< ? > > cells = img.getCells().cursor();
+		while ( cells.hasNext() )
+		{
+			final Object data = cells.next().getData();
+			if ( data instanceof ModificationAware )
+				( ( ModificationAware ) data ).setModified( modified );
+		}
+	}
+
+	/**
+	 * Load an HDF5 uint64 dataset into a {@link SparseLongCanvas}.  The
+	 * dataset is read cell by cell, only cells that contain values other than
+	 * background are materialized.  Chunks that were never written (see
+	 * {@link ChunkMaxIds#writtenChunks}) are not read.  Cells are read on the
+	 * calling thread and scanned and copied by numThreads worker threads.  The
+	 * cells are not modified.
 	 *
 	 * @param file
 	 * @param dataset
 	 * @param cellDimensions
+	 * @param background
+	 * @param offHeap
+	 *            store the cells off-heap
+	 * @param numThreads
 	 */
-	static public CellImg< LongType, ?, ? > loadUnsignedLong(
+	static public SparseLongCanvas loadUnsignedLong(
 			final File file,
 			final String dataset,
-			final int[] cellDimensions )
+			final int[] cellDimensions,
+			final long background,
+			final boolean offHeap,
+			final int numThreads )
 	{
 		final IHDF5Reader reader = HDF5Factory.openForReading( file );
 		final IHDF5LongReader uint64Reader = reader.uint64();
@@ -74,95 +145,298 @@ public class H5Utils
 		final long[] dimensions = reorder( reader.object().getDimensions( dataset ) );
 		final int n = dimensions.length;
 
-		final CellImg< LongType, ?, ? > target = new CellImgFactory< LongType >( cellDimensions ).create( dimensions, new LongType() );
+		final SparseLongCanvas target = new SparseLongCanvas( dimensions, cellDimensions, background, offHeap );
 
-		final long[] offset = new long[ n ];
-		final long[] targetCellDimensions = new long[ n ];
-		for ( int d = 0; d < n; )
+		try
 		{
-			cropCellDimensions( target, offset, cellDimensions, targetCellDimensions );
-			final RandomAccessibleInterval< LongType > targetBlock = Views.offsetInterval( target, offset, targetCellDimensions );
-			final MDLongArray targetCell = uint64Reader.readMDArrayBlockWithOffset(
-					dataset,
-					Util.long2int( reorder( targetCellDimensions ) ),
-					reorder( offset ) );
+			final boolean[] written = ChunkMaxIds.writtenChunks( reader, dataset, dimensions, cellDimensions );
+			final long[] gridDimensions = ChunkMaxIds.gridDimensions( dimensions, cellDimensions );
+			BlockPipeline.serialThenParallel(
+					dimensions,
+					cellDimensions,
+					( offset, blockDimensions, none ) -> {
+						if ( written != null && !written[ ChunkMaxIds.chunkIndex( offset, cellDimensions, gridDimensions ) ] )
+							return null;
+						return uint64Reader.readMDArrayBlockWithOffset(
+								dataset,
+								reorder( blockDimensions ),
+								reorder( offset ) ).getAsFlatArray();
+					},
+					( offset, blockDimensions, data ) -> {
+						if ( data == null )
+							return null;
+						for ( final long t : data )
+						{
+							if ( t != background )
+							{
+								final long[] gridPosition = new long[ n ];
+								for ( int d = 0; d < n; ++d )
+									gridPosition[ d ] = offset[ d ] / cellDimensions[ d ];
+								target.getOrCreateCell( gridPosition ).set( data );
+								break;
+							}
+						}
+						return null;
+					},
+					numThreads );
+		}
+		finally
+		{
+			reader.close();
+		}
+
+		System.out.println( "Loaded " + target.numMaterializedCells() + " non-empty cells." );
+
+		return target;
+	}
 
-			int i = 0;
-			for ( final LongType t : Views.flatIterable( targetBlock ) )
-				t.set( targetCell.get( i++ ) );
+	/**
+	 * Load an HDF5 uint64 dataset into a {@link SparseLongCanvas} with
+	 * {@link #DEFAULT_NUM_THREADS} worker threads.
+	 *
+	 * @param file
+	 * @param dataset
+	 * @param cellDimensions
+	 * @param background
+	 * @param offHeap
+	 *            store the cells off-heap
+	 */
+	static public SparseLongCanvas loadUnsignedLong(
+			final File file,
+			final String dataset,
+			final int[] cellDimensions,
+			final long background,
+			final boolean offHeap )
+	{
+		return loadUnsignedLong( file, dataset, cellDimensions, background, offHeap, DEFAULT_NUM_THREADS );
+	}
 
-			for ( d = 0; d < n; ++d )
+	/**
+	 * Load an HDF5 uint64 dataset into an existing
+	 * {@link RandomAccessibleInterval} of {@link LongType} of the same size.
+	 * Blocks of cellDimensions are read on the calling thread and copied by
+	 * numThreads worker threads.  If the target is a {@link CellImg} whose
+	 * cells are these blocks, they are copied into the cell storage in bulk,
+	 * {@link ModificationAware} cells are not modified after loading.
+	 *
+	 * @param file
+	 * @param dataset
+	 * @param target
+	 * @param cellDimensions
+	 * @param numThreads
+	 */
+	static public void loadUnsignedLong(
+			final File file,
+			final String dataset,
+			final RandomAccessibleInterval< LongType > target,
+			final int[] cellDimensions,
+			final int numThreads )
+	{
+		final long[] dimensions = Intervals.dimensionsAsLongArray( target );
+		final IHDF5Reader reader = HDF5Factory.openForReading( file );
+		final IHDF5LongReader uint64Reader = reader.uint64();
+		try
+		{
+			final LongArray[] cells = target instanceof CellImg ? gridCells( ( CellImg< ?, ?, ? > ) target, cellDimensions ) : null;
+			if ( cells != null )
 			{
-				offset[ d ] += cellDimensions[ d ];
-				if ( offset[ d ] < dimensions[ d ] )
-					break;
-				else
-					offset[ d ] = 0;
+				final long[] gridDimensions = ChunkMaxIds.gridDimensions( dimensions, cellDimensions );
+				BlockPipeline.serialThenParallel(
+						dimensions,
+						cellDimensions,
+						( offset, blockDimensions, none ) -> uint64Reader.readMDArrayBlockWithOffset(
+								dataset,
+								reorder( blockDimensions ),
+								reorder( offset ) ).getAsFlatArray(),
+						( offset, blockDimensions, data ) -> {
+							final LongArray access = cells[ ChunkMaxIds.chunkIndex( offset, cellDimensions, gridDimensions ) ];
+							System.arraycopy( data, 0, access.getCurrentStorageArray(), 0, data.length );
+							if ( access instanceof ModificationAware )
+								( ( ModificationAware ) access ).setModified( false );
+							return null;
+						},
+						numThreads );
+			}
+			else
+			{
+				BlockPipeline.serialThenParallel(
+						dimensions,
+						cellDimensions,
+						( offset, blockDimensions, none ) -> uint64Reader.readMDArrayBlockWithOffset(
+								dataset,
+								reorder( blockDimensions ),
+								reorder( offset ) ).getAsFlatArray(),
+						( offset, blockDimensions, data ) -> {
+							int i = 0;
+							for ( final LongType t : Views.flatIterable( Views.offsetInterval( target, offset, Util.int2long( blockDimensions ) ) ) )
+								t.set( data[ i++ ] );
+							return null;
+						},
+						numThreads );
 			}
-
-//			System.out.println( Util.printCoordinates( offset ) );
 		}
-		reader.close();
+		finally
+		{
+			reader.close();
+		}
+	}
 
-		return target;
+	/**
+	 * Load an HDF5 uint64 dataset into an existing
+	 * {@link RandomAccessibleInterval} of {@link LongType} of the same size
+	 * with {@link #DEFAULT_NUM_THREADS} worker threads.
+	 *
+	 * @param file
+	 * @param dataset
+	 * @param target
+	 * @param cellDimensions
+	 */
+	static public void loadUnsignedLong(
+			final File file,
+			final String dataset,
+			final RandomAccessibleInterval< LongType > target,
+			final int[] cellDimensions )
+	{
+		loadUnsignedLong( file, dataset, target, cellDimensions, DEFAULT_NUM_THREADS );
 	}
-	
+
 	/**
 	 * Save a {@link RandomAccessibleInterval} of {@link UnsignedByteType} into an HDF5
-	 * uint8 dataset.
+	 * uint8 dataset.  Blocks are converted by numThreads worker threads and
+	 * written on the calling thread.
 	 *
 	 * @param source
 	 * @param file
 	 * @param dataset
 	 * @param cellDimensions
+	 * @param numThreads
 	 */
 	static public void saveUnsignedByte(
 			final RandomAccessibleInterval< UnsignedByteType > source,
 			final File file,
 			final String dataset,
-			final int[] cellDimensions )
+			final int[] cellDimensions,
+			final int numThreads )
 	{
-		final int n = source.numDimensions();
 		final long[] dimensions = Intervals.dimensionsAsLongArray( source );
 		final IHDF5Writer writer = HDF5Factory.open( file );
 		final IHDF5ByteWriter uint8Writer = writer.uint8();
-		if ( !writer.exists( dataset ) )
-			uint8Writer.createMDArray(
-					dataset,
-					reorder( dimensions ),
-					reorder( cellDimensions ),
-					HDF5IntStorageFeatures.INT_AUTO_SCALING_DEFLATE );
+		try
+		{
+			if ( !writer.exists( dataset ) )
+				uint8Writer.createMDArray(
+						dataset,
+						reorder( dimensions ),
+						reorder( cellDimensions ),
+						HDF5IntStorageFeatures.INT_AUTO_SCALING_DEFLATE );
 
-		final long[] offset = new long[ n ];
-		final long[] sourceCellDimensions = new long[ n ];
-		for ( int d = 0; d < n; )
+			BlockPipeline.parallelThenSerial(
+					dimensions,
+					cellDimensions,
+					( offset, blockDimensions, none ) -> {
+						final MDByteArray targetCell = new MDByteArray( reorder( blockDimensions ) );
+						final byte[] data = targetCell.getAsFlatArray();
+						int i = 0;
+						for ( final UnsignedByteType t : Views.flatIterable( Views.offsetInterval( source, offset, Util.int2long( blockDimensions ) ) ) )
+							data[ i++ ] = UnsignedByteType.getCodedSignedByte( t.get() );
+						return targetCell;
+					},
+					( offset, blockDimensions, targetCell ) -> {
+						uint8Writer.writeMDArrayBlockWithOffset( dataset, targetCell, reorder( offset ) );
+						return null;
+					},
+					numThreads );
+		}
+		finally
 		{
-			cropCellDimensions( source, offset, cellDimensions, sourceCellDimensions );
-			final RandomAccessibleInterval< UnsignedByteType > sourceBlock = Views.offsetInterval( source, offset, sourceCellDimensions );
-			final MDByteArray targetCell = new MDByteArray( reorder( sourceCellDimensions ) );
-			int i = 0;
-			for ( final UnsignedByteType t : Views.flatIterable( sourceBlock ) )
-				targetCell.set( UnsignedByteType.getCodedSignedByte( t.get() ), i++ );
+			writer.close();
+		}
+	}
 
-			uint8Writer.writeMDArrayBlockWithOffset( dataset, targetCell, reorder( offset ) );
+	/**
+	 * Save a {@link RandomAccessibleInterval} of {@link UnsignedByteType} into an HDF5
+	 * uint8 dataset with {@link #DEFAULT_NUM_THREADS} worker threads.
+	 *
+	 * @param source
+	 * @param file
+	 * @param dataset
+	 * @param cellDimensions
+	 */
+	static public void saveUnsignedByte(
+			final RandomAccessibleInterval< UnsignedByteType > source,
+			final File file,
+			final String dataset,
+			final int[] cellDimensions )
+	{
+		saveUnsignedByte( source, file, dataset, cellDimensions, DEFAULT_NUM_THREADS );
+	}
 
-			for ( d = 0; d < n; ++d )
-			{
-				offset[ d ] += cellDimensions[ d ];
-				if ( offset[ d ] < source.dimension( d ) )
-					break;
-				else
-					offset[ d ] = 0;
-			}
+	/**
+	 * Save a {@link RandomAccessibleInterval} of {@link LongType} into an HDF5
+	 * uint64 dataset.  Blocks of cellDimensions are converted by numThreads
+	 * worker threads and written on the calling thread.  If the source is a
+	 * {@link CellImg} whose cells are these blocks, the cell storage is copied
+	 * in bulk.
+	 *
+	 * @param source
+	 * @param file
+	 * @param dataset
+	 * @param cellDimensions
+	 * @param numThreads
+	 */
+	static public void saveUnsignedLong(
+			final RandomAccessibleInterval< LongType > source,
+			final File file,
+			final String dataset,
+			final int[] cellDimensions,
+			final int numThreads )
+	{
+		final long[] dimensions = Intervals.dimensionsAsLongArray( source );
+		final IHDF5Writer writer = HDF5Factory.open( file );
+		final IHDF5LongWriter uint64Writer = writer.uint64();
+		try
+		{
+			if ( !writer.exists( dataset ) )
+				uint64Writer.createMDArray(
+						dataset,
+						reorder( dimensions ),
+						reorder( cellDimensions ),
+						HDF5IntStorageFeatures.INT_AUTO_SCALING_DEFLATE );
 
-//			System.out.println( Util.printCoordinates( offset ) );
+			final LongArray[] cells = source instanceof CellImg ? gridCells( ( CellImg< ?, ?, ? > ) source, cellDimensions ) : null;
+			final long[] gridDimensions = ChunkMaxIds.gridDimensions( dimensions, cellDimensions );
+			BlockPipeline.parallelThenSerial(
+					dimensions,
+					cellDimensions,
+					( offset, blockDimensions, none ) -> {
+						final MDLongArray targetCell = new MDLongArray( reorder( blockDimensions ) );
+						final long[] data = targetCell.getAsFlatArray();
+						if ( cells != null )
+							System.arraycopy( cells[ ChunkMaxIds.chunkIndex( offset, cellDimensions, gridDimensions ) ].getCurrentStorageArray(), 0, data, 0, data.length );
+						else
+						{
+							int i = 0;
+							for ( final LongType t : Views.flatIterable( Views.offsetInterval( source, offset, Util.int2long( blockDimensions ) ) ) )
+								data[ i++ ] = t.get();
+						}
+						return targetCell;
+					},
+					( offset, blockDimensions, targetCell ) -> {
+						uint64Writer.writeMDArrayBlockWithOffset( dataset, targetCell, reorder( offset ) );
+						return null;
+					},
+					numThreads );
+			ChunkMaxIds.touch( writer, dataset, dimensions, cellDimensions, null );
+		}
+		finally
+		{
+			writer.close();
 		}
-		writer.close();
 	}
 
 	/**
 	 * Save a {@link RandomAccessibleInterval} of {@link LongType} into an HDF5
-	 * uint64 dataset.
+	 * uint64 dataset with {@link #DEFAULT_NUM_THREADS} worker threads.
 	 *
 	 * @param source
 	 * @param file
@@ -174,43 +448,208 @@ public class H5Utils
 			final File file,
 			final String dataset,
 			final int[] cellDimensions )
+	{
+		saveUnsignedLong( source, file, dataset, cellDimensions, DEFAULT_NUM_THREADS );
+	}
+
+	/**
+	 * The {@link LongArray} storage of the cells of img by flat grid index (x
+	 * first) if every cell is the block of a grid with cellDimensions and
+	 * stored in a {@link LongArray}, null otherwise.
+	 */
+	static private LongArray[] gridCells( final CellImg< ?, ?, ? > img, final int[] cellDimensions )
+	{
+		final int n = img.numDimensions();
+		final long[] dimensions = Intervals.dimensionsAsLongArray( img );
+		final long[] gridDimensions = ChunkMaxIds.gridDimensions( dimensions, cellDimensions );
+		final long numCells = Intervals.numElements( gridDimensions );
+		if ( numCells > Integer.MAX_VALUE )
+			return null;
+
+		final LongArray[] cells = new LongArray[ ( int ) numCells ];
+		final long[] min = new long[ n ];
+		final int[] dims = new int[ n ];
+		final Cursor< ? extends AbstractCell< ? > > cursor = img.getCells().cursor();
+		while ( cursor.hasNext() )
+		{
+			final AbstractCell< ? > cell = cursor.next();
+			if ( !( cell.getData() instanceof LongArray ) )
+				return null;
+			cell.min( min );
+			cell.dimensions( dims );
+			for ( int d = 0; d < n; ++d )
+				if ( min[ d ] % cellDimensions[ d ] != 0 || dims[ d ] != Math.min( cellDimensions[ d ], dimensions[ d ] - min[ d ] ) )
+					return null;
+			final int i = ChunkMaxIds.chunkIndex( min, cellDimensions, gridDimensions );
+			if ( cells[ i ] != null )
+				return null;
+			cells[ i ] = ( LongArray ) cell.getData();
+		}
+		for ( final LongArray cell : cells )
+			if ( cell == null )
+				return null;
+		return cells;
+	}
+
+	/**
+	 * Save the cells of a {@link CellImg} of {@link LongType} that are
+	 * {@link ModificationAware} and modified into an HDF5 uint64 dataset.
+	 * Cells that are not {@link ModificationAware} are always saved.  If the
+	 * dataset does not exist yet, all cells are saved.
+	 *
+	 * The modification flag of a cell is reset before its data is copied, such
+	 * that the cell is saved again next time if it is modified concurrently.
+	 * If writing a cell fails, its flag is set again.
+	 *
+	 * @param source
+	 * @param file
+	 * @param dataset
+	 * @param cellDimensions
+	 *            chunk size if the dataset is created
+	 * @return the number of cells saved
+	 */
+	static public int saveModifiedUnsignedLong(
+			final CellImg< LongType, ?, ? > source,
+			final File file,
+			final String dataset,
+			final int[] cellDimensions )
 	{
 		final int n = source.numDimensions();
 		final long[] dimensions = Intervals.dimensionsAsLongArray( source );
 		final IHDF5Writer writer = HDF5Factory.open( file );
 		final IHDF5LongWriter uint64Writer = writer.uint64();
-		if ( !writer.exists( dataset ) )
+		final boolean saveAll = !writer.exists( dataset );
+		if ( saveAll )
 			uint64Writer.createMDArray(
 					dataset,
 					reorder( dimensions ),
 					reorder( cellDimensions ),
 					HDF5IntStorageFeatures.INT_AUTO_SCALING_DEFLATE );
 
-		final long[] offset = new long[ n ];
-		final long[] sourceCellDimensions = new long[ n ];
-		for ( int d = 0; d < n; )
+		final long[] min = new long[ n ];
+		final int[] sourceCellDimensions = new int[ n ];
+		final long[] gridDimensions = ChunkMaxIds.gridDimensions( dimensions, cellDimensions );
+		final TIntArrayList savedChunks = new TIntArrayList();
+		int numSavedCells = 0;
+		try
 		{
-			cropCellDimensions( source, offset, cellDimensions, sourceCellDimensions );
-			final RandomAccessibleInterval< LongType > sourceBlock = Views.offsetInterval( source, offset, sourceCellDimensions );
-			final MDLongArray targetCell = new MDLongArray( reorder( sourceCellDimensions ) );
-			int i = 0;
-			for ( final LongType t : Views.flatIterable( sourceBlock ) )
-				targetCell.set( t.get(), i++ );
+			final Cursor< ? extends AbstractCell< ? > > cells = source.getCells().cursor();
+			while ( cells.hasNext() )
+			{
+				final AbstractCell< ? > cell = cells.next();
+				final LongArray data = ( LongArray ) cell.getData();
+				final ModificationAware modificationAware = data instanceof ModificationAware ? ( ModificationAware ) data : null;
+				if ( modificationAware != null )
+				{
+					if ( !( saveAll || modificationAware.modified() ) )
+						continue;
+					modificationAware.setModified( false );
+				}
 
-			uint64Writer.writeMDArrayBlockWithOffset( dataset, targetCell, reorder( offset ) );
+				cell.min( min );
+				cell.dimensions( sourceCellDimensions );
+				try
+				{
+					/* a copy, painting continues while the cell is written */
+					final MDLongArray targetCell = new MDLongArray( data.getCurrentStorageArray().clone(), reorder( sourceCellDimensions ) );
+					uint64Writer.writeMDArrayBlockWithOffset( dataset, targetCell, reorder( min ) );
+				}
+				catch ( final RuntimeException e )
+				{
+					if ( modificationAware != null )
+						modificationAware.setModified( true );
+					throw e;
+				}
+				savedChunks.add( ChunkMaxIds.chunkIndex( min, cellDimensions, gridDimensions ) );
+				++numSavedCells;
+			}
+			ChunkMaxIds.touch( writer, dataset, dimensions, cellDimensions, saveAll ? null : savedChunks.toArray() );
+		}
+		finally
+		{
+			writer.close();
+		}
+		return numSavedCells;
+	}
 
-			for ( d = 0; d < n; ++d )
+	/**
+	 * Save the modified cells of a {@link SparseLongCanvas} into an HDF5
+	 * uint64 dataset.  If the dataset does not exist yet, all materialized
+	 * cells are saved.  The other chunks are never written, they are read as
+	 * background by {@link #loadUnsignedLong(File, String, int[], long, boolean)}
+	 * and as the HDF5 fill value (0) by other readers.
+	 *
+	 * The modification flag of a cell is reset before its data is copied, such
+	 * that the cell is saved again next time if it is modified concurrently.
+	 * If writing a cell fails, its flag is set again.
+	 *
+	 * @param source
+	 * @param file
+	 * @param dataset
+	 * @param cellDimensions
+	 *            chunk size if the dataset is created
+	 * @return the number of cells saved
+	 */
+	static public int saveModifiedUnsignedLong(
+			final SparseLongCanvas source,
+			final File file,
+			final String dataset,
+			final int[] cellDimensions )
+	{
+		final long[] dimensions = Intervals.dimensionsAsLongArray( source );
+		final IHDF5Writer writer = HDF5Factory.open( file );
+		final IHDF5LongWriter uint64Writer = writer.uint64();
+		int numSavedCells = 0;
+		try
+		{
+			final boolean saveAll = !writer.exists( dataset );
+			if ( saveAll )
 			{
-				offset[ d ] += cellDimensions[ d ];
-				if ( offset[ d ] < source.dimension( d ) )
-					break;
-				else
-					offset[ d ] = 0;
+				uint64Writer.createMDArray(
+						dataset,
+						reorder( dimensions ),
+						reorder( cellDimensions ),
+						HDF5IntStorageFeatures.INT_AUTO_SCALING_DEFLATE );
+				ChunkMaxIds.createStamps( writer, dataset, dimensions, cellDimensions );
 			}
 
-//			System.out.println( Util.printCoordinates( offset ) );
+			final long[] gridDimensions = ChunkMaxIds.gridDimensions( dimensions, cellDimensions );
+			final TIntArrayList savedChunks = new TIntArrayList();
+			for ( final SparseLongCanvas.Cell cell : source.getCells() )
+			{
+				if ( saveAll || cell.modified() )
+				{
+					saveCell( cell, uint64Writer, dataset );
+					savedChunks.add( ChunkMaxIds.chunkIndex( cell.getMin(), cellDimensions, gridDimensions ) );
+					++numSavedCells;
+				}
+			}
+			ChunkMaxIds.touch( writer, dataset, dimensions, cellDimensions, savedChunks.toArray() );
+		}
+		finally
+		{
+			writer.close();
+		}
+		return numSavedCells;
+	}
+
+	static private void saveCell(
+			final SparseLongCanvas.Cell cell,
+			final IHDF5LongWriter uint64Writer,
+			final String dataset )
+	{
+		cell.setModified( false );
+		try
+		{
+			final MDLongArray targetCell = new MDLongArray( reorder( cell.getDimensions() ) );
+			cell.get( targetCell.getAsFlatArray() );
+			uint64Writer.writeMDArrayBlockWithOffset( dataset, targetCell, reorder( cell.getMin() ) );
+		}
+		catch ( final RuntimeException e )
+		{
+			cell.setModified( true );
+			throw e;
 		}
-		writer.close();
 	}
 
 	/**
@@ -351,20 +790,22 @@ public class H5Utils
 		final long size = dimensions[ 1 ];
 
 		final TLongLongHashMap lut = new TLongLongHashMap(
-				Constants.DEFAULT_CAPACITY,
+				( int )Math.max( Constants.DEFAULT_CAPACITY, size ),
 				Constants.DEFAULT_LOAD_FACTOR,
 				Label.TRANSPARENT,
 				Label.TRANSPARENT );
 
-		for ( int offset = 0; offset < size; offset += blockSize )
+		for ( long offset = 0; offset < size; offset += blockSize )
 		{
 			final MDLongArray block = uint64Reader.readMDArrayBlockWithOffset(
 					dataset,
 					new int[]{ 2, ( int )Math.min( blockSize, size - offset ) },
 					new long[]{ 0, offset } );
 
-			for ( int i = 0; i < block.size( 1 ); ++i )
-				lut.put( block.get( 0, i ), block.get( 1, i ) );
+			final long[] data = block.getAsFlatArray();
+			final int n = block.size( 1 );
+			for ( int i = 0; i < n; ++i )
+				lut.put( data[ i ], data[ n + i ] );
 
 		}
 
@@ -429,16 +870,20 @@ public class H5Utils
 					new int[]{ 2, blockSize },
 					HDF5IntStorageFeatures.INT_AUTO_SCALING_DEFLATE );
 
-		final long[] keys = lut.keys();
-		for ( int offset = 0, i = 0; offset < lut.size(); offset += blockSize )
+		/* stream the entries block by block, no copy of the whole lut */
+		final TLongLongIterator iterator = lut.iterator();
+		final long[] block = new long[ 2 * blockSize ];
+		for ( int offset = 0; offset < lut.size(); offset += blockSize )
 		{
 			final int size = Math.min( blockSize, lut.size() - offset );
-			final MDLongArray targetCell = new MDLongArray( new int[]{ 2, size } );
-			for ( int j = 0; j < size; ++j, ++i )
+			final long[] data = size == blockSize ? block : new long[ 2 * size ];
+			for ( int j = 0; j < size; ++j )
 			{
-				targetCell.set( keys[ i ], 0, j );
-				targetCell.set( lut.get( keys[ i ] ), 1, j );
+				iterator.advance();
+				data[ j ] = iterator.key();
+				data[ size + j ] = iterator.value();
 			}
+			final MDLongArray targetCell = new MDLongArray( data, new int[]{ 2, size } );
 
 			uint64Writer.writeMDArrayBlockWithOffset( dataset, targetCell, new long[]{ 0, offset } );
 		}
@@ -1,27 +1,78 @@
 package bdv.labels.labelset;
 
-import net.imglib2.IterableInterval;
 import net.imglib2.img.basictypeaccess.volatiles.array.VolatileIntArray;
-import net.imglib2.type.numeric.ARGBType;
-import net.imglib2.util.Intervals;
-import net.imglib2.view.Views;
+import bdv.bigcat.ui.ARGBStream;
 import bdv.img.cache.CacheArrayLoader;
 import bdv.img.dvid.LabelblkMultisetSetupImageLoader.MultisetSource;
-import bdv.labels.labelset.Multiset.Entry;
 import bdv.util.ColorStream;
 
+/**
+ * Loads ARGB blocks converted from label multisets through an
+ * {@link ARGBConvertedLabelsCache}, such that blocks that are loaded again,
+ * e.g. after the cell cache dropped them or after the colors changed, are
+ * converted only if their colors changed.
+ */
 public class ARGBConvertedLabelsArrayLoader implements CacheArrayLoader< VolatileIntArray >
 {
+	/* ColorStream colors never change */
+	static private final ARGBStream goldenRatioColors = new ARGBStream()
+	{
+		@Override
+		public int argb( final long id )
+		{
+			return ColorStream.get( id );
+		}
+
+		@Override
+		public long getVersion()
+		{
+			return 0;
+		}
+	};
+
+	/**
+	 * Memory budget of the converted blocks of each loader if none is given,
+	 * overridden by -Dbigcat.argbCacheBytes=&lt;bytes&gt;.  Small because the
+	 * cell cache keeps the blocks that are in use anyway, this only saves
+	 * converting blocks that it dropped recently.
+	 */
+	static public final long DEFAULT_MAX_CACHE_SIZE_IN_BYTES = 16l * 1024 * 1024;
+
 	private VolatileIntArray theEmptyArray;
 
-	private final MultisetSource multisetSource;
+	private final ARGBConvertedLabelsCache cache;
 
-	public ARGBConvertedLabelsArrayLoader( final MultisetSource multisetSource )
+	public ARGBConvertedLabelsArrayLoader( final ARGBConvertedLabelsCache cache )
 	{
-		this.multisetSource = multisetSource;
+		this.cache = cache;
 		theEmptyArray = new VolatileIntArray( 1, false );
 	}
 
+	/**
+	 * @param multisetSource
+	 * @param colorStream
+	 * @param maxCacheSizeInBytes
+	 *            memory budget of the converted blocks, held strongly in
+	 *            addition to the cell cache
+	 */
+	public ARGBConvertedLabelsArrayLoader(
+			final MultisetSource multisetSource,
+			final ARGBStream colorStream,
+			final long maxCacheSizeInBytes )
+	{
+		this( new ARGBConvertedLabelsCache( multisetSource::getSource, colorStream, maxCacheSizeInBytes ) );
+	}
+
+	public ARGBConvertedLabelsArrayLoader( final MultisetSource multisetSource )
+	{
+		this( multisetSource, goldenRatioColors, Long.getLong( "bigcat.argbCacheBytes", DEFAULT_MAX_CACHE_SIZE_IN_BYTES ) );
+	}
+
+	public ARGBConvertedLabelsCache getCache()
+	{
+		return cache;
+	}
+
 	@Override
 	public int getBytesPerElement()
 	{
@@ -44,39 +95,7 @@ public class ARGBConvertedLabelsArrayLoader implements CacheArrayLoader< Volatil
 //				+ "   min = " + Util.printCoordinates( min ) + "\n"
 //				+ ")"
 //				);
-		final int[] data = new int[ dimensions[ 0 ] * dimensions[ 1 ] * dimensions[ 2 ] ];
-
-		final IterableInterval< LabelMultisetType > source =
-		Views.flatIterable(
-				Views.interval(
-						multisetSource.getSource( timepoint, level ),
-						Intervals.createMinSize(
-								min[ 0 ], min[ 1 ], min[ 2 ],
-								dimensions[ 0 ], dimensions[ 1 ], dimensions[ 0 ] )
-						)
-				);
-		int i = 0;
-		for ( final LabelMultisetType t : source )
-		{
-			double r = 0;
-			double g = 0;
-			double b = 0;
-			int size = 0;
-			for ( final Entry< Label > entry : t.entrySet() )
-			{
-				final long superVoxelId = entry.getElement().id();
-				final int count = entry.getCount();
-				final int argb = ColorStream.get( superVoxelId );
-				r += count * ARGBType.red( argb );
-				g += count * ARGBType.green( argb );
-				b += count * ARGBType.blue( argb );
-				size += count;
-			}
-			r = Math.min( 255, r / size );
-			g = Math.min( 255, g / size );
-			b = Math.min( 255, b / size );
-			data[ i++ ] = ARGBType.rgba( r, g, b, 255 );
-		}
+		final int[] data = cache.get( timepoint, level, min, dimensions );
 
 //		System.out.println( "done: ARGBConvertedLabelsArrayLoader.loadArray(\n"
 //				+ "      timepoint = " + timepoint + "\n"
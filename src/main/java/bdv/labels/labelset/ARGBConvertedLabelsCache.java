@@ -0,0 +1,293 @@
+package bdv.labels.labelset;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import bdv.bigcat.ui.ARGBStream;
+import bdv.labels.labelset.Multiset.Entry;
+import gnu.trove.map.hash.TLongIntHashMap;
+import net.imglib2.Interval;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.util.Intervals;
+import net.imglib2.view.Views;
+
+/**
+ * ARGB blocks converted from label multiset cells, e.g. for
+ * {@link ARGBConvertedLabelsArrayLoader}.  Each voxel is the blend of the
+ * colors of its labels weighted by their counts.
+ *
+ * Blocks are remembered with the version of the colors that they were
+ * converted with.  When the version changed, only the colors of the
+ * distinct labels of a block are compared, and the block is converted again
+ * only if one of them changed.  Blocks may be requested concurrently, e.g.
+ * by the fetcher threads of a cell cache, they are converted outside of the
+ * lock.  The least recently used blocks are dropped when the remembered
+ * blocks exceed the memory budget.
+ */
+public class ARGBConvertedLabelsCache
+{
+	public interface Source
+	{
+		public RandomAccessibleInterval< LabelMultisetType > getSource( final int timepoint, final int level );
+	}
+
+	static private class Key
+	{
+		final int timepoint;
+
+		final int level;
+
+		final long[] min;
+
+		final int hashCode;
+
+		Key( final int timepoint, final int level, final long[] min )
+		{
+			this.timepoint = timepoint;
+			this.level = level;
+			this.min = min.clone();
+			hashCode = 31 * ( 31 * timepoint + level ) + Arrays.hashCode( min );
+		}
+
+		@Override
+		public int hashCode()
+		{
+			return hashCode;
+		}
+
+		@Override
+		public boolean equals( final Object o )
+		{
+			if ( !( o instanceof Key ) )
+				return false;
+			final Key k = ( Key )o;
+			return timepoint == k.timepoint && level == k.level && Arrays.equals( min, k.min );
+		}
+	}
+
+	static private class Block
+	{
+		final long version;
+
+		final int[] dimensions;
+
+		/* distinct labels and their RGB when converted */
+		final long[] labels;
+
+		final int[] rgbs;
+
+		final int[] data;
+
+		Block( final long version, final int[] dimensions, final long[] labels, final int[] rgbs, final int[] data )
+		{
+			this.version = version;
+			this.dimensions = dimensions;
+			this.labels = labels;
+			this.rgbs = rgbs;
+			this.data = data;
+		}
+
+		long sizeInBytes()
+		{
+			return 64 + 4l * data.length + 12l * labels.length;
+		}
+	}
+
+	private final Source source;
+
+	private final ARGBStream colorStream;
+
+	private final long maxSizeInBytes;
+
+	private long sizeInBytes = 0;
+
+	private final LinkedHashMap< Key, Block > blocks = new LinkedHashMap<>( 16, 0.75f, true );
+
+	/**
+	 * @param source
+	 * @param colorStream
+	 *            colors of streams without a version are not remembered
+	 * @param maxSizeInBytes
+	 *            memory budget of the remembered blocks
+	 */
+	public ARGBConvertedLabelsCache( final Source source, final ARGBStream colorStream, final long maxSizeInBytes )
+	{
+		this.source = source;
+		this.colorStream = colorStream;
+		this.maxSizeInBytes = maxSizeInBytes;
+	}
+
+	/**
+	 * Get the ARGB block of the current colors.  The returned array is
+	 * shared and must not be modified.
+	 *
+	 * @param timepoint
+	 * @param level
+	 * @param min
+	 * @param dimensions
+	 * @return flat ARGB values
+	 */
+	public int[] get( final int timepoint, final int level, final long[] min, final int[] dimensions )
+	{
+		final long version = colorStream.getVersion();
+		if ( version == ARGBStream.UNVERSIONED )
+			return convert( timepoint, level, min, dimensions, version ).data;
+
+		final Key key = new Key( timepoint, level, min );
+		final Block cached;
+		synchronized ( blocks )
+		{
+			cached = blocks.get( key );
+		}
+		if ( cached != null && Arrays.equals( cached.dimensions, dimensions ) )
+		{
+			if ( cached.version == version )
+				return cached.data;
+			if ( rgbsUnchanged( cached ) )
+			{
+				put( key, new Block( version, cached.dimensions, cached.labels, cached.rgbs, cached.data ) );
+				return cached.data;
+			}
+		}
+		final Block block = convert( timepoint, level, min, dimensions, version );
+		put( key, block );
+		return block.data;
+	}
+
+	/**
+	 * Forget the blocks of a level that intersect an interval, e.g. after
+	 * the labels were changed.
+	 *
+	 * @param timepoint
+	 * @param level
+	 * @param interval
+	 */
+	public void invalidate( final int timepoint, final int level, final Interval interval )
+	{
+		synchronized ( blocks )
+		{
+			final Iterator< Map.Entry< Key, Block > > it = blocks.entrySet().iterator();
+			while ( it.hasNext() )
+			{
+				final Map.Entry< Key, Block > entry = it.next();
+				final Key key = entry.getKey();
+				if ( key.timepoint != timepoint || key.level != level )
+					continue;
+				final int[] dimensions = entry.getValue().dimensions;
+				boolean intersects = true;
+				for ( int d = 0; d < interval.numDimensions() && intersects; ++d )
+					intersects = key.min[ d ] <= interval.max( d ) && key.min[ d ] + dimensions[ d ] > interval.min( d );
+				if ( intersects )
+				{
+					sizeInBytes -= entry.getValue().sizeInBytes();
+					it.remove();
+				}
+			}
+		}
+	}
+
+	public void clear()
+	{
+		synchronized ( blocks )
+		{
+			blocks.clear();
+			sizeInBytes = 0;
+		}
+	}
+
+	/**
+	 * @return the memory taken by the remembered blocks
+	 */
+	public long getSizeInBytes()
+	{
+		synchronized ( blocks )
+		{
+			return sizeInBytes;
+		}
+	}
+
+	private void put( final Key key, final Block block )
+	{
+		synchronized ( blocks )
+		{
+			final Block previous = blocks.put( key, block );
+			if ( previous != null )
+				sizeInBytes -= previous.sizeInBytes();
+			sizeInBytes += block.sizeInBytes();
+
+			/* least recently used first */
+			final Iterator< Block > it = blocks.values().iterator();
+			while ( sizeInBytes > maxSizeInBytes && it.hasNext() )
+			{
+				final Block eldest = it.next();
+				if ( eldest == block )
+					continue;
+				sizeInBytes -= eldest.sizeInBytes();
+				it.remove();
+			}
+		}
+	}
+
+	private boolean rgbsUnchanged( final Block block )
+	{
+		/* alpha is not blended, e.g. highlighting the active fragment does not matter */
+		for ( int i = 0; i < block.labels.length; ++i )
+			if ( ( colorStream.argb( block.labels[ i ] ) & 0x00ffffff ) != block.rgbs[ i ] )
+				return false;
+		return true;
+	}
+
+	private Block convert( final int timepoint, final int level, final long[] min, final int[] dimensions, final long version )
+	{
+		final int[] data = new int[ dimensions[ 0 ] * dimensions[ 1 ] * dimensions[ 2 ] ];
+
+		final Iterable< LabelMultisetType > block =
+				Views.flatIterable(
+						Views.interval(
+								source.getSource( timepoint, level ),
+								Intervals.createMinSize(
+										min[ 0 ], min[ 1 ], min[ 2 ],
+										dimensions[ 0 ], dimensions[ 1 ], dimensions[ 2 ] ) ) );
+
+		/* each label is colored once per block */
+		final TLongIntHashMap rgbs = new TLongIntHashMap();
+		int i = 0;
+		for ( final LabelMultisetType t : block )
+		{
+			long r = 0;
+			long g = 0;
+			long b = 0;
+			long size = 0;
+			for ( final Entry< Label > entry : t.entrySet() )
+			{
+				final long id = entry.getElement().id();
+				final int count = entry.getCount();
+				int rgb = rgbs.get( id );
+				if ( rgb == rgbs.getNoEntryValue() && !rgbs.containsKey( id ) )
+				{
+					rgb = colorStream.argb( id ) & 0x00ffffff;
+					rgbs.put( id, rgb );
+				}
+				r += count * ( ( rgb >> 16 ) & 0xff );
+				g += count * ( ( rgb >> 8 ) & 0xff );
+				b += count * ( rgb & 0xff );
+				size += count;
+			}
+			if ( size > 0 )
+			{
+				r /= size;
+				g /= size;
+				b /= size;
+			}
+			data[ i++ ] = 0xff000000 | ( int )( ( r << 16 ) | ( g << 8 ) | b );
+		}
+
+		final long[] labels = rgbs.keys();
+		final int[] labelRgbs = new int[ labels.length ];
+		for ( int j = 0; j < labels.length; ++j )
+			labelRgbs[ j ] = rgbs.get( labels[ j ] );
+		return new Block( version, dimensions.clone(), labels, labelRgbs, data );
+	}
+}
@@ -1,6 +1,7 @@
 package bdv.labels.labelset;
 
 import bdv.AbstractViewerSetupImgLoader;
+import bdv.bigcat.ui.ARGBStream;
 import bdv.img.cache.CacheHints;
 import bdv.img.cache.CachedCellImg;
 import bdv.img.cache.LoadingStrategy;
@@ -32,11 +33,44 @@ public class ARGBConvertedLabelsSetupImageLoader
 	public ARGBConvertedLabelsSetupImageLoader(
 			final int setupId,
 			final LabelblkMultisetSetupImageLoader multisetImageLoader )
+	{
+		this( setupId, multisetImageLoader, new ARGBConvertedLabelsArrayLoader( new MultisetSource( multisetImageLoader ) ) );
+	}
+
+	/**
+	 * Cells that the cell cache keeps are not converted again when the
+	 * colors change, but cells that are loaded again are converted only if
+	 * their colors changed.
+	 *
+	 * @param setupId
+	 * @param multisetImageLoader
+	 * @param colorStream
+	 * @param maxCacheSizeInBytes
+	 *            memory budget of the converted blocks, held strongly in
+	 *            addition to the cell cache, e.g.
+	 *            {@link ARGBConvertedLabelsArrayLoader#DEFAULT_MAX_CACHE_SIZE_IN_BYTES}
+	 */
+	public ARGBConvertedLabelsSetupImageLoader(
+			final int setupId,
+			final LabelblkMultisetSetupImageLoader multisetImageLoader,
+			final ARGBStream colorStream,
+			final long maxCacheSizeInBytes )
+	{
+		this(
+				setupId,
+				multisetImageLoader,
+				new ARGBConvertedLabelsArrayLoader( new MultisetSource( multisetImageLoader ), colorStream, maxCacheSizeInBytes ) );
+	}
+
+	private ARGBConvertedLabelsSetupImageLoader(
+			final int setupId,
+			final LabelblkMultisetSetupImageLoader multisetImageLoader,
+			final ARGBConvertedLabelsArrayLoader loader )
 	{
 		super( new ARGBType(), new VolatileARGBType() );
 		this.setupId = setupId;
 		this.multisetImageLoader = multisetImageLoader;
-		loader = new ARGBConvertedLabelsArrayLoader( new MultisetSource( multisetImageLoader ) );
+		this.loader = loader;
 	}
 
 	@Override
@@ -96,4 +130,9 @@ public class ARGBConvertedLabelsSetupImageLoader
 	{
 		return setupId;
 	}
+
+	public ARGBConvertedLabelsCache getConvertedCache()
+	{
+		return loader.getCache();
+	}
 }
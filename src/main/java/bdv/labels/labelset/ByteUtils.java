@@ -1,6 +1,8 @@
 package bdv.labels.labelset;
 
 import java.lang.reflect.Field;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
 import java.security.AccessController;
 import java.security.PrivilegedExceptionAction;
 
@@ -93,6 +95,89 @@ public class ByteUtils
 		UNSAFE.copyMemory( srcArray, LONG_ARRAY_OFFSET + srcOffset, dstArray, LONG_ARRAY_OFFSET + dstOffset, size );
 	}
 
+	/*
+	 * Variants of the above that address memory by a base object and an
+	 * absolute offset, as in sun.misc.Unsafe.  For a {@code long[]} base, the
+	 * address is {@link #LONG_ARRAY_OFFSET} plus the byte offset into the
+	 * array, for off-heap memory the base is {@code null} and the address is
+	 * the native address, see {@link #address(ByteBuffer)}.
+	 */
+
+	public static void putByte( final byte value, final Object base, final long address )
+	{
+		UNSAFE.putByte( base, address, value );
+	}
+
+	public static byte getByte( final Object base, final long address )
+	{
+		return UNSAFE.getByte( base, address );
+	}
+
+	public static void putBoolean( final boolean value, final Object base, final long address )
+	{
+		putByte( value ? ( byte ) 1 : ( byte ) 0, base, address );
+	}
+
+	public static boolean getBoolean( final Object base, final long address )
+	{
+		return getByte( base, address ) == ( byte ) 0 ? false : true;
+	}
+
+	public static void putInt( final int value, final Object base, final long address )
+	{
+		UNSAFE.putInt( base, address, value );
+	}
+
+	public static int getInt( final Object base, final long address )
+	{
+		return UNSAFE.getInt( base, address );
+	}
+
+	public static void putLong( final long value, final Object base, final long address )
+	{
+		UNSAFE.putLong( base, address, value );
+	}
+
+	public static long getLong( final Object base, final long address )
+	{
+		return UNSAFE.getLong( base, address );
+	}
+
+	public static void putFloat( final float value, final Object base, final long address )
+	{
+		UNSAFE.putFloat( base, address, value );
+	}
+
+	public static float getFloat( final Object base, final long address )
+	{
+		return UNSAFE.getFloat( base, address );
+	}
+
+	public static void putDouble( final double value, final Object base, final long address )
+	{
+		UNSAFE.putDouble( base, address, value );
+	}
+
+	public static double getDouble( final Object base, final long address )
+	{
+		return UNSAFE.getDouble( base, address );
+	}
+
+	public static void copyBytes( final Object srcBase, final long srcAddress, final Object dstBase, final long dstAddress, final long size )
+	{
+		UNSAFE.copyMemory( srcBase, srcAddress, dstBase, dstAddress, size );
+	}
+
+	/**
+	 * @return native address of the first byte of a direct {@link ByteBuffer}.
+	 */
+	public static long address( final ByteBuffer buffer )
+	{
+		if ( !buffer.isDirect() )
+			throw new IllegalArgumentException( "buffer is not direct" );
+		return UNSAFE.getLong( buffer, BUFFER_ADDRESS_OFFSET );
+	}
+
 	private static final Unsafe UNSAFE;
 
 	static
@@ -118,5 +203,21 @@ public class ByteUtils
 		}
 	}
 
-	private static final long LONG_ARRAY_OFFSET = UNSAFE.arrayBaseOffset( long[].class );
+	public static final long LONG_ARRAY_OFFSET = UNSAFE.arrayBaseOffset( long[].class );
+
+	public static final long BYTE_ARRAY_OFFSET = UNSAFE.arrayBaseOffset( byte[].class );
+
+	private static final long BUFFER_ADDRESS_OFFSET;
+
+	static
+	{
+		try
+		{
+			BUFFER_ADDRESS_OFFSET = UNSAFE.objectFieldOffset( Buffer.class.getDeclaredField( "address" ) );
+		}
+		catch ( final NoSuchFieldException ex )
+		{
+			throw new RuntimeException( ex );
+		}
+	}
 }
@@ -3,20 +3,14 @@ package bdv.labels.labelset;
 import static java.nio.file.StandardOpenOption.CREATE;
 import static java.nio.file.StandardOpenOption.TRUNCATE_EXISTING;
 import static java.nio.file.StandardOpenOption.WRITE;
-import gnu.trove.list.array.TIntArrayList;
 
 import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Paths;
-import java.util.Arrays;
-import java.util.Iterator;
 
-import net.imglib2.RandomAccess;
 import net.imglib2.RandomAccessibleInterval;
-import net.imglib2.util.IntervalIndexer;
 import bdv.img.cache.CacheArrayLoader;
 import bdv.img.dvid.LabelblkMultisetSetupImageLoader.MultisetSource;
-import bdv.labels.labelset.Multiset.Entry;
 
 
 public class DownscalingVolatileSuperVoxelMultisetArrayLoader implements CacheArrayLoader< VolatileLabelMultisetArray >
@@ -49,7 +43,9 @@ public class DownscalingVolatileSuperVoxelMultisetArrayLoader implements CacheAr
 
 		final RandomAccessibleInterval< LabelMultisetType > input = multisetSource.getSource( timepoint, level - 1 );
 		final int[] factors = new int[] { 2, 2, 2 };
-		return downscale( input, factors, dimensions, min, filename );
+		final int strideByDimensionInput = 1 << ( level - 1 );
+		final int nElementsPerInputPixel = strideByDimensionInput * strideByDimensionInput * strideByDimensionInput;
+		return downscale( input, factors, dimensions, min, filename, nElementsPerInputPixel );
 	}
 
 	@Override
@@ -70,62 +66,20 @@ public class DownscalingVolatileSuperVoxelMultisetArrayLoader implements CacheAr
 		if ( ! Paths.get( filename ).toFile().exists() )
 			return null;
 
-		byte[] bytes;
+		final int numElements = dimensions[ 0 ] * dimensions[ 1 ] * dimensions[ 2 ];
 		try
 		{
-			bytes = Files.readAllBytes( Paths.get( filename ) );
+			// map lists straight from the file if they are kept off-heap anyway
+			if ( LongMappedAccessData.getDefaultFactory() == LongMappedAccessData.directFactory )
+				return VolatileLabelMultisetArray.map( Paths.get( filename ), numElements );
+			else
+				return VolatileLabelMultisetArray.wrap( Files.readAllBytes( Paths.get( filename ) ), numElements );
 		}
 		catch ( final IOException e )
 		{
 			e.printStackTrace();
 			return null;
 		}
-
-		final int[] data = new int[ dimensions[ 0 ] * dimensions[ 1 ] * dimensions[ 2 ] ];
-		final int listDataSize = bytes.length - 4 * data.length;
-		final LongMappedAccessData listData = LongMappedAccessData.factory.createStorage( listDataSize );
-		int j = -1;
-		for ( int i = 0; i < data.length; ++i )
-		{
-			data[ i ] = ( 0xff & bytes[ ++j ] ) |
-					( ( 0xff & bytes[ ++j ] ) << 8 ) |
-					( ( 0xff & bytes[ ++j ] ) << 16 ) |
-					( ( 0xff & bytes[ ++j ] ) << 24 );
-		}
-		for ( int i = 0; i < listDataSize; ++i )
-			ByteUtils.putByte( bytes[ ++j ], listData.data, i );
-		return new VolatileLabelMultisetArray( data, listData, true );
-	}
-
-	private static class SortedPeekIterator implements Comparable< SortedPeekIterator >
-	{
-		Iterator< Entry< Label > > iter;
-
-		Entry< Label > head;
-
-		void init( final Iterator< Entry< Label > > iter )
-		{
-			this.iter = iter;
-			head = iter.hasNext() ? iter.next() : null;
-		}
-
-		void fwd()
-		{
-			head = iter.hasNext() ? iter.next() : null;
-		}
-
-		@Override
-		public int compareTo( final SortedPeekIterator o )
-		{
-			if ( head == null )
-				return o.head == null ?
-					0 :
-					1; // o is smaller because it still has elements
-			else
-				return o.head == null ?
-					-1 : // o is greater because we still have elements
-					Long.compare( head.getElement().id(), o.head.getElement().id() );
-		}
 	}
 
 	private VolatileLabelMultisetArray downscale(
@@ -133,124 +87,11 @@ public class DownscalingVolatileSuperVoxelMultisetArrayLoader implements CacheAr
 			final int[] factors, // (relative to to input)
 			final int[] dimensions,
 			final long[] min,
-			final String filename ) throws InterruptedException
+			final String filename,
+			final int nElementsPerInputPixel ) throws InterruptedException
 	{
-		final int n = 3;
-		final int[] data = new int[ dimensions[ 0 ] * dimensions[ 1 ] * dimensions[ 2 ] ];
-		final LongMappedAccessData listData = LongMappedAccessData.factory.createStorage( 32 );
-
-		int numEntities = 1;
-		for ( int i = 0; i < n; ++i )
-			numEntities *= dimensions[ i ];
-
-		int numContribs = 1;
-		for ( int i = 0; i < n; ++i )
-			numContribs *= factors[ i ];
-
-		@SuppressWarnings( "unchecked" )
-		final RandomAccess< LabelMultisetType >[] inputs = new RandomAccess[ numContribs ];
-		for ( int i = 0; i < numContribs; ++i )
-			inputs[ i ] = input.randomAccess();
-
-		final SortedPeekIterator[] iters = new SortedPeekIterator[ numContribs ];
-		for ( int i = 0; i < numContribs; ++i )
-			iters[ i ] = new SortedPeekIterator();
-
-		final int[] outputPos = new int[ n ];
-		final int[] inputOffset = new int[ n ];
-		final int[] inputPos = new int[ n ];
-
-		final LabelMultisetEntryList list = new LabelMultisetEntryList( listData, 0 );
-		final LabelMultisetEntryList list2 = new LabelMultisetEntryList();
-		final TIntArrayList listHashesAndOffsets = new TIntArrayList();
-		final LabelMultisetEntry entry = new LabelMultisetEntry( 0, 1 );
-		int nextListOffset = 0;
-		for ( int o = 0; o < numEntities; ++o )
-		{
-			IntervalIndexer.indexToPosition( o, dimensions, outputPos );
-			for ( int d = 0; d < n; ++d )
-				inputOffset[ d ] = ( outputPos[ d ] + ( int ) min[ d ] ) * factors[ d ];
-
-			for ( int i = 0; i < numContribs; ++i )
-			{
-				IntervalIndexer.indexToPositionWithOffset( i, factors, inputOffset, inputPos );
-				inputs[ i ].setPosition( inputPos );
-				iters[ i ].init( inputs[ i ].get().entrySet().iterator() );
-			}
-
-			list.createListAt( listData, nextListOffset );
-			Arrays.sort( iters );
-			if ( iters[ 0 ].head != null )
-			{
-				long id = iters[ 0 ].head.getElement().id();
-				int count = iters[ 0 ].head.getCount();
-
-				iters[ 0 ].fwd();
-				Arrays.sort( iters );
-
-				while ( iters[ 0 ].head != null )
-				{
-					final long headId = iters[ 0 ].head.getElement().id();
-					final int headCount = iters[ 0 ].head.getCount();
-
-					if ( headId == id )
-					{
-						count += headCount;
-					}
-					else
-					{
-						entry.setId( id );
-						entry.setCount( count );
-						list.add( entry );
-
-						id = headId;
-						count = headCount;
-					}
-
-					iters[ 0 ].fwd();
-					Arrays.sort( iters );
-				}
-
-				entry.setId( id );
-				entry.setCount( count );
-				list.add( entry );
-			}
-
-			boolean makeNewList = true;
-			final int hash = list.hashCode();
-			for ( int i = 0; i < listHashesAndOffsets.size(); i += 2 )
-			{
-				if ( hash == listHashesAndOffsets.get( i ) )
-				{
-					list2.referToDataAt( listData, listHashesAndOffsets.get( i + 1 ) );
-					if ( list.equals( list2 ) )
-					{
-						makeNewList = false;
-						data[ o ] = listHashesAndOffsets.get( i + 1 ) ;
-						break;
-					}
-				}
-			}
-			if ( makeNewList )
-			{
-				data[ o ] = nextListOffset;
-				listHashesAndOffsets.add( hash );
-				listHashesAndOffsets.add( nextListOffset );
-				nextListOffset += list.getSizeInBytes();
-			}
-		}
-
-		final byte[] bytes = new byte[ 4 * data.length + nextListOffset ];
-		int j = -1;
-		for ( final int d : data )
-		{
-			bytes[ ++j ] = ( byte ) d;
-			bytes[ ++j ] = ( byte ) ( d >> 8 );
-			bytes[ ++j ] = ( byte ) ( d >> 16 );
-			bytes[ ++j ] = ( byte ) ( d >> 24 );
-		}
-		for ( int i = 0; i < nextListOffset; ++i )
-			bytes[ ++j ] = ByteUtils.getByte( listData.data, i );
+		final VolatileLabelMultisetArray downscaled = LabelMultisetDownscaler.downscaleBlock( input, factors, dimensions, min, nElementsPerInputPixel );
+		final byte[] bytes = downscaled.toBytes();
 		try
 		{
 			Paths.get( filename ).getParent().toFile().mkdirs();
@@ -261,7 +102,7 @@ public class DownscalingVolatileSuperVoxelMultisetArrayLoader implements CacheAr
 			e.printStackTrace();
 		}
 
-		return new VolatileLabelMultisetArray( data, listData, true );
+		return downscaled;
 	}
 
 	@Override
@@ -6,6 +6,7 @@ import java.net.URL;
 import java.util.Arrays;
 
 import bdv.img.cache.CacheArrayLoader;
+import bdv.util.LittleEndianBuffers;
 import gnu.trove.list.array.TLongArrayList;
 
 /**
@@ -50,33 +51,28 @@ public class KnossosVolatileLabelsMultisetArrayLoader implements CacheArrayLoade
 			final int[] data,
 			final LongMappedAccessData listData ) throws IOException
 	{
-		final byte[] bytes = new byte[ data.length * 8 ];
+		final int numBytes = data.length * 8;
+		final byte[] bytes = LittleEndianBuffers.scratchBytes( numBytes );
 		final URL url = new URL( urlString );
-		final InputStream in = url.openStream();
-		int off = 0, l = 0;
-		do
+		int off = 0;
+		try ( final InputStream in = url.openStream() )
 		{
-			l = in.read( bytes, off, bytes.length - off );
-			off += l;
+			for ( int l = in.read( bytes, 0, numBytes ); l > 0; l = in.read( bytes, off, numBytes - off ) )
+				off += l;
 		}
-		while ( l > 0 && off < bytes.length );
-		in.close();
+		/* bytes is reused, clear what a short read did not overwrite */
+		Arrays.fill( bytes, off, numBytes, ( byte ) 0 );
+
+		final long[] ids = LittleEndianBuffers.scratchLongs( data.length );
+		LittleEndianBuffers.getLongs( bytes, 0, ids, data.length );
 
 		final TLongArrayList idAndOffsetList = new TLongArrayList();
 		final LabelMultisetEntryList list = new LabelMultisetEntryList( listData, 0 );
 		final LabelMultisetEntry entry = new LabelMultisetEntry( 0, 1 );
 		long nextListOffset = 0;
-A:		for ( int i = 0, j = -1; i < data.length; ++i )
+A:		for ( int i = 0; i < data.length; ++i )
 		{
-			final long id =
-					( 0xffl & bytes[ ++j ] ) |
-					( ( 0xffl & bytes[ ++j ] ) << 8 ) |
-					( ( 0xffl & bytes[ ++j ] ) << 16 ) |
-					( ( 0xffl & bytes[ ++j ] ) << 24 ) |
-					( ( 0xffl & bytes[ ++j ] ) << 32 ) |
-					( ( 0xffl & bytes[ ++j ] ) << 40 ) |
-					( ( 0xffl & bytes[ ++j ] ) << 48 ) |
-					( ( 0xffl & bytes[ ++j ] ) << 56 );
+			final long id = ids[ i ];
 
 			// does the list [id x 1] already exist?
 //			for ( int k = 0; k < idAndOffsetList.size(); k += 2 )
@@ -122,7 +118,7 @@ A:		for ( int i = 0, j = -1; i < data.length; ++i )
 	{
 //		final int[] data = new int[ dimensions[ 0 ] * dimensions[ 1 ] * dimensions[ 2 ] ];
 		final int[] data = new int[ 128 * 128 * 128 ];
-		final LongMappedAccessData listData = LongMappedAccessData.factory.createStorage( 32 );
+		final LongMappedAccessData listData = LongMappedAccessData.defaultFactory.createStorage( 32 );
 
 		try
 		{
@@ -0,0 +1,103 @@
+package bdv.labels.labelset;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Remembers the ARGB color of the lists of one
+ * {@link VolatileLabelMultisetArray} for one version of a coloring, e.g. the
+ * blended colors of the labels of each list.
+ *
+ * Many pixels of a cell refer to the same few lists, so the color is
+ * computed only the first time a list offset is seen.  Offsets and colors
+ * are stored in pairs in one long of an open addressing table, such that
+ * concurrent lookups are safe without locking.  If the table is crowded,
+ * colors are not remembered.
+ */
+public class LabelMultisetARGBIndex
+{
+	static private final int MAX_PROBES = 8;
+
+	private final Object coloring;
+
+	private final long version;
+
+	private final AtomicLongArray table;
+
+	private final int mask;
+
+	/**
+	 * @param coloring
+	 *            compared by identity
+	 * @param version
+	 *            of the coloring
+	 * @param maxNumLists
+	 *            expected upper bound of the number of distinct lists
+	 */
+	public LabelMultisetARGBIndex( final Object coloring, final long version, final int maxNumLists )
+	{
+		this.coloring = coloring;
+		this.version = version;
+		int capacity = 16;
+		while ( capacity < 2 * maxNumLists && capacity < 1 << 30 )
+			capacity <<= 1;
+		table = new AtomicLongArray( capacity );
+		mask = capacity - 1;
+	}
+
+	public boolean isFor( final Object coloring, final long version )
+	{
+		return this.coloring == coloring && this.version == version;
+	}
+
+	/**
+	 * @param offset
+	 *            base offset of a list
+	 * @return the remembered color of the list at {@code offset} in the low
+	 *         32 bits, or -1 if there is none
+	 */
+	public long get( final int offset )
+	{
+		final long key = ( long )offset + 1 << 32;
+		for ( int i = 0, slot = hash( offset ); i < MAX_PROBES; ++i, slot = ( slot + 1 ) & mask )
+		{
+			final long entry = table.get( slot );
+			if ( entry == 0 )
+				return -1;
+			if ( ( entry & 0xffffffff00000000L ) == key )
+				return entry & 0xffffffffL;
+		}
+		return -1;
+	}
+
+	/**
+	 * Remember the color of the list at {@code offset} if there is room.
+	 *
+	 * @param offset
+	 * @param argb
+	 */
+	public void put( final int offset, final int argb )
+	{
+		final long key = ( long )offset + 1 << 32;
+		final long entry = key | ( argb & 0xffffffffL );
+		for ( int i = 0, slot = hash( offset ); i < MAX_PROBES; ++i, slot = ( slot + 1 ) & mask )
+		{
+			final long current = table.get( slot );
+			if ( current == 0 )
+			{
+				if ( table.compareAndSet( slot, 0, entry ) )
+					return;
+				if ( ( table.get( slot ) & 0xffffffff00000000L ) == key )
+					return;
+			}
+			else if ( ( current & 0xffffffff00000000L ) == key )
+				return;
+		}
+	}
+
+	private int hash( final int offset )
+	{
+		/* offsets are multiples of four and grow in steps of the list size */
+		final int h = offset * 0x9e3779b9;
+		return ( h ^ ( h >>> 16 ) ) & mask;
+	}
+}
@@ -0,0 +1,97 @@
+package bdv.labels.labelset;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Answers whether the list at a given offset in the list data of one
+ * {@link VolatileLabelMultisetArray} contains any (or all) of a fixed set of
+ * ids.
+ *
+ * Many pixels of a cell refer to the same few lists, so the answer is
+ * computed by binary search only the first time a list offset is queried
+ * and then remembered in a bitset with two bits (known, contains) per
+ * possible list start.  Lists start at multiples of four bytes.  Concurrent
+ * queries are safe, at worst the same list is searched twice.
+ */
+public class LabelMultisetContainsIndex
+{
+	private static final int KNOWN = 1;
+
+	private static final int CONTAINS = 2;
+
+	private final long[] ids;
+
+	private final boolean all;
+
+	private final AtomicLongArray bits;
+
+	private final long numSlots;
+
+	/**
+	 * @param ids
+	 *            the lists are tested for these ids, not copied
+	 * @param all
+	 *            whether lists must contain all ids instead of any
+	 * @param listDataSizeInBytes
+	 *            size of the list data
+	 */
+	public LabelMultisetContainsIndex( final long[] ids, final boolean all, final long listDataSizeInBytes )
+	{
+		this.ids = ids;
+		this.all = all;
+		numSlots = listDataSizeInBytes / 4;
+		bits = new AtomicLongArray( ( int ) ( ( numSlots + 31 ) / 32 ) );
+	}
+
+	/**
+	 * @return the ids this index was created for
+	 */
+	public long[] getIds()
+	{
+		return ids;
+	}
+
+	/**
+	 * @return whether lists are tested for all ids instead of any
+	 */
+	public boolean isAll()
+	{
+		return all;
+	}
+
+	/**
+	 * @param list
+	 *            referring to the list at {@code offset}
+	 * @param offset
+	 *            base offset of the list
+	 * @return whether {@code list} contains any (or all) of the ids
+	 */
+	public boolean contains( final LabelMultisetEntryList list, final long offset )
+	{
+		final long slot = offset >> 2;
+		if ( slot >= numSlots || ( offset & 3 ) != 0 )
+			return search( list );
+
+		final int word = ( int ) ( slot >> 5 );
+		final int shift = ( int ) ( slot & 31 ) << 1;
+		final int state = ( int ) ( bits.get( word ) >>> shift ) & 3;
+		if ( ( state & KNOWN ) != 0 )
+			return ( state & CONTAINS ) != 0;
+
+		final boolean contains = search( list );
+		final long mask = ( long ) ( contains ? KNOWN | CONTAINS : KNOWN ) << shift;
+		long current;
+		do
+			current = bits.get( word );
+		while ( !bits.compareAndSet( word, current, current | mask ) );
+		return contains;
+	}
+
+	private boolean search( final LabelMultisetEntryList list )
+	{
+		for ( final long id : ids )
+			if ( ( list.binarySearch( id ) >= 0 ) != all )
+				return !all;
+		return all;
+	}
+}
@@ -0,0 +1,535 @@
+package bdv.labels.labelset;
+
+import java.util.ArrayList;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+
+import gnu.trove.impl.Constants;
+import gnu.trove.list.TIntList;
+import gnu.trove.list.array.TIntArrayList;
+import gnu.trove.map.TIntIntMap;
+import gnu.trove.map.TIntObjectMap;
+import gnu.trove.map.hash.TIntIntHashMap;
+import gnu.trove.map.hash.TIntObjectHashMap;
+import net.imglib2.RandomAccess;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.util.IntervalIndexer;
+
+/**
+ * Downscales blocks of {@link LabelMultisetType} by merging the multisets of
+ * all input pixels that contribute to an output pixel.
+ *
+ * The entries of the contributing multisets are copied into primitive id and
+ * count arrays and merged by a k-way heap merge (the entry lists are sorted by
+ * id), writing the merged list directly into the list storage.  Identical
+ * lists are stored only once, found through a hash index.  Blocks are split
+ * into slabs along the last dimension that are processed on a
+ * {@link ForkJoinPool} and concatenated afterwards.
+ *
+ * Input pixels outside of the input interval contribute a single entry with
+ * id 0 and a caller specified count.
+ */
+public class LabelMultisetDownscaler
+{
+	/**
+	 * Blocks with fewer output pixels are downscaled in the calling thread.
+	 */
+	final static public int MIN_PARALLEL_SIZE = 4096;
+
+	final static private int ENTRY_SIZE = LabelMultisetEntry.SIZE_IN_BYTES;
+
+	final static private int LIST_HEADER_SIZE = ByteUtils.INT_SIZE;
+
+	final private ForkJoinPool pool;
+
+	public LabelMultisetDownscaler( final ForkJoinPool pool )
+	{
+		this.pool = pool;
+	}
+
+	public LabelMultisetDownscaler()
+	{
+		this( ForkJoinPool.commonPool() );
+	}
+
+	/**
+	 * Downscale one block.
+	 *
+	 * @param input
+	 * @param factors
+	 *            downsampling factors of output block relative to input.
+	 * @param dimensions
+	 *            dimensions of the output block (in output resolution)
+	 * @param min
+	 *            minimum coordinate of output block (in output resolution).
+	 *            Corresponding input coordinates are <em>min * factors</em>.
+	 * @param outOfBoundsCount
+	 *            count of the id 0 entry contributed by input pixels outside
+	 *            of input.
+	 * @return
+	 */
+	public VolatileLabelMultisetArray downscale(
+			final RandomAccessibleInterval< LabelMultisetType > input,
+			final int[] factors,
+			final int[] dimensions,
+			final long[] min,
+			final int outOfBoundsCount )
+	{
+		final int n = dimensions.length;
+		int numElements = 1;
+		for ( int d = 0; d < n; ++d )
+			numElements *= dimensions[ d ];
+		final int[] data = new int[ numElements ];
+
+		final int slabSize = numElements / Math.max( 1, dimensions[ n - 1 ] );
+		final int numSlabs = dimensions[ n - 1 ];
+		final int numTasks = numElements < MIN_PARALLEL_SIZE || slabSize == 0 ?
+				1 :
+				Math.min( numSlabs, Math.min( numElements / MIN_PARALLEL_SIZE, 2 * pool.getParallelism() ) );
+
+		final ArrayList< Slab > slabs = new ArrayList<>( numTasks );
+		for ( int t = 0; t < numTasks; ++t )
+		{
+			final int from = ( int ) ( ( long ) numSlabs * t / numTasks ) * slabSize;
+			final int to = ( int ) ( ( long ) numSlabs * ( t + 1 ) / numTasks ) * slabSize;
+			slabs.add( new Slab( input, factors, dimensions, min, outOfBoundsCount, data, from, to ) );
+		}
+
+		if ( numTasks == 1 )
+		{
+			final Slab slab = slabs.get( 0 );
+			slab.compute();
+			return new VolatileLabelMultisetArray( data, slab.listData, slab.nextListOffset, true );
+		}
+
+		pool.invoke( new RecursiveAction()
+		{
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected void compute()
+			{
+				ForkJoinTask.invokeAll( slabs );
+			}
+		} );
+
+		return concatenate( slabs, data );
+	}
+
+	/**
+	 * Downscale one block with the {@link ForkJoinPool#commonPool() common
+	 * pool}.
+	 */
+	public static VolatileLabelMultisetArray downscaleBlock(
+			final RandomAccessibleInterval< LabelMultisetType > input,
+			final int[] factors,
+			final int[] dimensions,
+			final long[] min,
+			final int outOfBoundsCount )
+	{
+		return new LabelMultisetDownscaler().downscale( input, factors, dimensions, min, outOfBoundsCount );
+	}
+
+	/**
+	 * Copy the lists of all slabs into one list storage, removing lists that
+	 * occur in more than one slab, and rewrite the offsets in {@code data}.
+	 */
+	private static VolatileLabelMultisetArray concatenate( final ArrayList< Slab > slabs, final int[] data )
+	{
+		long size = 0;
+		for ( final Slab slab : slabs )
+			size += slab.nextListOffset;
+		final LongMappedAccessData listData = LongMappedAccessData.defaultFactory.createStorage( Math.max( 32, size ) );
+		final LabelMultisetEntryList list = new LabelMultisetEntryList();
+		final LabelMultisetEntryListIndex lists = new LabelMultisetEntryListIndex( listData );
+		final TIntIntHashMap offsets = new TIntIntHashMap( Constants.DEFAULT_CAPACITY, Constants.DEFAULT_LOAD_FACTOR, -1, -1 );
+
+		int nextListOffset = 0;
+		for ( final Slab slab : slabs )
+		{
+			offsets.clear();
+			final long[] slabListData = slab.listData.data;
+			for ( int slabOffset = 0; slabOffset < slab.nextListOffset; )
+			{
+				final int listSize = LIST_HEADER_SIZE + ENTRY_SIZE * ByteUtils.getInt( slabListData, slabOffset );
+				listData.copyFrom( slab.listData, slabOffset, nextListOffset, listSize );
+				list.referToDataAt( listData, nextListOffset );
+				int offset = lists.putIfAbsent( list, slab.hashes.get( offsets.size() ) );
+				if ( offset == -1 )
+				{
+					offset = nextListOffset;
+					nextListOffset += listSize;
+				}
+				offsets.put( slabOffset, offset );
+				slabOffset += listSize;
+			}
+			for ( int i = slab.from; i < slab.to; ++i )
+				data[ i ] = offsets.get( data[ i ] );
+		}
+
+		return new VolatileLabelMultisetArray( data, listData, nextListOffset, true );
+	}
+
+	/**
+	 * Hash of a list as computed by {@link java.util.AbstractList#hashCode()}
+	 * over {@link LabelMultisetEntry#hashCode()}, without iterating the list.
+	 */
+	private static int updateHash( final int hash, final long id, final int count )
+	{
+		return 31 * hash + 31 * Long.hashCode( id ) + count;
+	}
+
+	/**
+	 * Downscales the range [from, to) of output pixels of a block into its own
+	 * list storage.
+	 */
+	private static class Slab extends RecursiveAction
+	{
+		private static final long serialVersionUID = 1L;
+
+		private final RandomAccessibleInterval< LabelMultisetType > input;
+
+		private final int[] dimensions;
+
+		private final long[] min;
+
+		private final int outOfBoundsCount;
+
+		private final int[] data;
+
+		private final int from;
+
+		private final int to;
+
+		private final int n;
+
+		private final int numContribs;
+
+		/**
+		 * Input offsets of all contributing pixels relative to the first
+		 * contributing pixel, {@code n} per contribution.
+		 */
+		private final int[] contribOffsets;
+
+		private final long[] factors;
+
+		private LongMappedAccessData listData;
+
+		private int nextListOffset = 0;
+
+		/**
+		 * Hashes of all lists stored in {@link #listData}, in order.
+		 */
+		private final TIntArrayList hashes = new TIntArrayList();
+
+		/* merge buffers */
+		private long[] ids = new long[ 64 ];
+
+		private int[] counts = new int[ 64 ];
+
+		private final int[] cursors;
+
+		private final int[] ends;
+
+		private final int[] heap;
+
+		Slab(
+				final RandomAccessibleInterval< LabelMultisetType > input,
+				final int[] factors,
+				final int[] dimensions,
+				final long[] min,
+				final int outOfBoundsCount,
+				final int[] data,
+				final int from,
+				final int to )
+		{
+			this.input = input;
+			this.dimensions = dimensions;
+			this.min = min;
+			this.outOfBoundsCount = outOfBoundsCount;
+			this.data = data;
+			this.from = from;
+			this.to = to;
+
+			n = dimensions.length;
+			this.factors = new long[ n ];
+			int numContribs = 1;
+			for ( int d = 0; d < n; ++d )
+			{
+				this.factors[ d ] = factors[ d ];
+				numContribs *= factors[ d ];
+			}
+			this.numContribs = numContribs;
+
+			contribOffsets = new int[ numContribs * n ];
+			final int[] pos = new int[ n ];
+			for ( int i = 0; i < numContribs; ++i )
+			{
+				IntervalIndexer.indexToPosition( i, factors, pos );
+				System.arraycopy( pos, 0, contribOffsets, i * n, n );
+			}
+
+			cursors = new int[ numContribs ];
+			ends = new int[ numContribs ];
+			heap = new int[ numContribs ];
+		}
+
+		@Override
+		protected void compute()
+		{
+			listData = LongMappedAccessData.factory.createStorage( 32 );
+
+			final RandomAccess< LabelMultisetType > access = input.randomAccess();
+			final long[] inputMin = new long[ n ];
+			final long[] inputMax = new long[ n ];
+			input.min( inputMin );
+			input.max( inputMax );
+
+			final LabelMultisetEntryList list = new LabelMultisetEntryList();
+			final LabelMultisetEntry entry = new LabelMultisetEntry();
+			final LabelMultisetEntryListIndex lists = new LabelMultisetEntryListIndex( listData );
+
+			final int[] outputPos = new int[ n ];
+			final long[] inputOffset = new long[ n ];
+			final long[] inputPos = new long[ n ];
+			IntervalIndexer.indexToPosition( from, dimensions, outputPos );
+			for ( int o = from; o < to; ++o )
+			{
+				for ( int d = 0; d < n; ++d )
+					inputOffset[ d ] = ( outputPos[ d ] + min[ d ] ) * factors[ d ];
+
+				/* gather entries of all contributing pixels */
+				int size = 0;
+				for ( int i = 0; i < numContribs; ++i )
+				{
+					boolean outOfBounds = false;
+					for ( int d = 0, k = i * n; d < n; ++d, ++k )
+					{
+						final long p = inputOffset[ d ] + contribOffsets[ k ];
+						inputPos[ d ] = p;
+						outOfBounds |= p < inputMin[ d ] || p > inputMax[ d ];
+					}
+
+					cursors[ i ] = size;
+					if ( outOfBounds )
+					{
+						ensureBufferCapacity( size + 1 );
+						ids[ size ] = 0;
+						counts[ size ] = outOfBoundsCount;
+						++size;
+					}
+					else
+					{
+						access.setPosition( inputPos );
+						final LabelMultisetEntryList entries = access.get().getEntries();
+						final int numEntries = entries.size();
+						ensureBufferCapacity( size + numEntries );
+						for ( int k = 0; k < numEntries; ++k, ++size )
+						{
+							entries.get( k, entry );
+							ids[ size ] = entry.getId();
+							counts[ size ] = entry.getCount();
+						}
+					}
+					ends[ i ] = size;
+				}
+
+				/* merge into a new list at nextListOffset */
+				final int hash = merge( size );
+				list.referToDataAt( listData, nextListOffset );
+				int offset = lists.putIfAbsent( list, hash );
+				if ( offset == -1 )
+				{
+					offset = nextListOffset;
+					nextListOffset += list.getSizeInBytes();
+					hashes.add( hash );
+				}
+				data[ o ] = offset;
+
+				/* advance output position */
+				for ( int d = 0; d < n; ++d )
+				{
+					if ( ++outputPos[ d ] < dimensions[ d ] )
+						break;
+					outputPos[ d ] = 0;
+				}
+			}
+		}
+
+		private void ensureBufferCapacity( final int size )
+		{
+			if ( size > ids.length )
+			{
+				final int capacity = Math.max( size, 2 * ids.length );
+				final long[] newIds = new long[ capacity ];
+				final int[] newCounts = new int[ capacity ];
+				System.arraycopy( ids, 0, newIds, 0, ids.length );
+				System.arraycopy( counts, 0, newCounts, 0, counts.length );
+				ids = newIds;
+				counts = newCounts;
+			}
+		}
+
+		/**
+		 * Merge the sorted runs [cursors[i], ends[i]) of the entry buffers and
+		 * write the result as a list at {@link #nextListOffset}.
+		 *
+		 * @param size
+		 *            total number of buffered entries, an upper bound for the
+		 *            size of the merged list.
+		 * @return hash of the merged list
+		 */
+		private int merge( final int size )
+		{
+			final long required = nextListOffset + LIST_HEADER_SIZE + ( long ) ENTRY_SIZE * size;
+			if ( listData.size() < required )
+				listData.resize( 2 * required );
+			final long[] store = listData.data;
+
+			int heapSize = 0;
+			for ( int i = 0; i < numContribs; ++i )
+				if ( cursors[ i ] < ends[ i ] )
+					heap[ heapSize++ ] = i;
+			for ( int i = heapSize / 2 - 1; i >= 0; --i )
+				siftDown( i, heapSize );
+
+			int hash = 1;
+			int listSize = 0;
+			long entryOffset = nextListOffset + LIST_HEADER_SIZE - ENTRY_SIZE;
+			long id = 0;
+			int count = 0;
+			while ( heapSize > 0 )
+			{
+				final int top = heap[ 0 ];
+				final int cursor = cursors[ top ];
+				final long headId = ids[ cursor ];
+				if ( listSize > 0 && headId == id )
+					count += counts[ cursor ];
+				else
+				{
+					if ( listSize > 0 )
+					{
+						ByteUtils.putInt( count, store, entryOffset + LabelMultisetEntry.COUNT_OFFSET );
+						hash = updateHash( hash, id, count );
+					}
+					id = headId;
+					count = counts[ cursor ];
+					entryOffset += ENTRY_SIZE;
+					ByteUtils.putLong( id, store, entryOffset + LabelMultisetEntry.SUPERVOXEL_ID_OFFSET );
+					++listSize;
+				}
+
+				if ( ++cursors[ top ] == ends[ top ] )
+					heap[ 0 ] = heap[ --heapSize ];
+				if ( heapSize > 0 )
+					siftDown( 0, heapSize );
+			}
+			if ( listSize > 0 )
+			{
+				ByteUtils.putInt( count, store, entryOffset + LabelMultisetEntry.COUNT_OFFSET );
+				hash = updateHash( hash, id, count );
+			}
+			ByteUtils.putInt( listSize, store, nextListOffset );
+
+			return hash;
+		}
+
+		private void siftDown( int i, final int heapSize )
+		{
+			final int c = heap[ i ];
+			final long id = ids[ cursors[ c ] ];
+			for ( int child = 2 * i + 1; child < heapSize; child = 2 * i + 1 )
+			{
+				if ( child + 1 < heapSize && ids[ cursors[ heap[ child + 1 ] ] ] < ids[ cursors[ heap[ child ] ] ] )
+					++child;
+				if ( id <= ids[ cursors[ heap[ child ] ] ] )
+					break;
+				heap[ i ] = heap[ child ];
+				i = child;
+			}
+			heap[ i ] = c;
+		}
+	}
+
+	/**
+	 * Hash index of the lists in a list storage, used to store identical lists
+	 * only once.
+	 */
+	final static class LabelMultisetEntryListIndex
+	{
+		private final LongMappedAccessData listData;
+
+		private final LabelMultisetEntryList list2;
+
+		private final TIntIntMap hashToOffset;
+
+		private TIntObjectMap< TIntList > collisions;
+
+		public LabelMultisetEntryListIndex( final LongMappedAccessData listData )
+		{
+			this.listData = listData;
+			list2 = new LabelMultisetEntryList();
+			hashToOffset = new TIntIntHashMap( Constants.DEFAULT_CAPACITY, Constants.DEFAULT_LOAD_FACTOR, 0, -1 );
+			collisions = null;
+		}
+
+		/**
+		 * Puts the given list into the index if the same list doesn't already
+		 * exist. Otherwise returns the baseOffset of existing matching list.
+		 *
+		 * @param list
+		 * @return {@code -1} if {@code list was added to the index}. Otherwise
+		 *         the baseOffset of existing matching list.
+		 *
+		 */
+		public int putIfAbsent( final LabelMultisetEntryList list )
+		{
+			return putIfAbsent( list, list.hashCode() );
+		}
+
+		/**
+		 * Same as {@link #putIfAbsent(LabelMultisetEntryList)} with the hash
+		 * of {@code list} already known.
+		 *
+		 * @param list
+		 * @param hash
+		 *            {@code list.hashCode()}
+		 * @return {@code -1} if {@code list was added to the index}. Otherwise
+		 *         the baseOffset of existing matching list.
+		 */
+		public int putIfAbsent( final LabelMultisetEntryList list, final int hash )
+		{
+			int offset = hashToOffset.get( hash );
+			if ( offset >= 0 )
+			{
+				list2.referToDataAt( listData, offset );
+				if ( list.equals( list2 ) )
+					return offset;
+
+				// hash collision
+				if ( collisions == null )
+					collisions = new TIntObjectHashMap< >( Constants.DEFAULT_CAPACITY, Constants.DEFAULT_LOAD_FACTOR, 0 );
+
+				TIntList offsets = collisions.get( hash );
+				if ( offsets == null )
+				{
+					offsets = new TIntArrayList();
+					collisions.put( hash, offsets );
+				}
+
+				for ( int i = 0; i < offsets.size(); ++i )
+				{
+					offset = offsets.get( i );
+					list2.referToDataAt( listData, offset );
+					if ( list.equals( list2 ) )
+						return offset;
+				}
+				offsets.add( ( int ) list.getBaseOffset() );
+			}
+			else
+				hashToOffset.put( hash, ( int ) list.getBaseOffset() );
+			return -1;
+		}
+	}
+}
@@ -28,7 +28,7 @@ public class LabelMultisetEntry
 	{
 		super(
 			LongMappedAccessData.factory.createStorage( SIZE_IN_BYTES ).createAccess(),
-			LongMappedAccessData.factory );
+			LongMappedAccessData.defaultFactory );
 	}
 
 	public LabelMultisetEntry( final long superVoxelId, final int numOccurrences )
@@ -40,7 +40,7 @@ public class LabelMultisetEntry
 
 	protected LabelMultisetEntry( final LongMappedAccess access )
 	{
-		super( access, LongMappedAccessData.factory );
+		super( access, LongMappedAccessData.defaultFactory );
 	}
 
 	@Override
@@ -5,7 +5,8 @@ import java.util.ArrayList;
 import java.util.Arrays;
 
 import bdv.bigcat.label.FragmentSegmentAssignment;
-import gnu.trove.list.array.TLongArrayList;
+import bdv.bigcat.label.SegmentMembership;
+import bdv.util.FloodFillEngine;
 import net.imglib2.Cursor;
 import net.imglib2.Interval;
 import net.imglib2.Localizable;
@@ -99,40 +100,20 @@ public class LabelMultisetFill
 			final Shape shape,
 			final FillPolicy< T > filler )
 	{
-		final int n = randomAccessible.numDimensions();
-
-		final TLongArrayList[] coordinates = new TLongArrayList[ n ];
-		for ( int d = 0; d < n; ++d )
-		{
-			coordinates[ d ] = new TLongArrayList();
-			coordinates[ d ].add( seed.getLongPosition( d ) );
-		}
-
-		final RandomAccessible<Neighborhood<T>> neighborhood = shape.neighborhoodsRandomAccessible(randomAccessible);
-		final RandomAccess<Neighborhood<T>> neighborhoodAccess = neighborhood.randomAccess();
-
-		final RandomAccess< T > canvasAccess = randomAccessible.randomAccess();
-		canvasAccess.setPosition( seed );
-		filler.fill( canvasAccess.get() );
-
-		for ( int i = 0; i < coordinates[ 0 ].size(); ++i )
-		{
-			for ( int d = 0; d < n; ++d )
-				neighborhoodAccess.setPosition( coordinates[ d ].get( i ), d );
-
-			final Cursor<T> neighborhoodCursor = neighborhoodAccess.get().cursor();
-
-			while ( neighborhoodCursor.hasNext() )
-			{
-				final T t = neighborhoodCursor.next();
-				if ( filler.isValidNeighbor( t ) )
-				{
-					filler.fill( t );
-					for ( int d = 0; d < n; ++d )
-						coordinates[ d ].add( neighborhoodCursor.getLongPosition( d ) );
-				}
-			}
-		}
+		final long[] seedPosition = new long[ seed.numDimensions() ];
+		seed.localize( seedPosition );
+		FloodFillEngine.fill(
+				randomAccessible,
+				randomAccessible,
+				seedPosition,
+				null,
+				shape,
+				( current, reference ) -> filler.isValidNeighbor( current.getA() ),
+				( source, target ) -> filler.fill( target ),
+				null,
+				Long.MAX_VALUE,
+				null,
+				null );
 	}
 
 
@@ -274,7 +255,7 @@ public class LabelMultisetFill
             extends AbstractIntegerTypeFillPolicySegmentsConsiderBackgroundAndCanvas< T >
     {
 
-        private final long[] fragmentsContainedInSegment;
+        private final SegmentMembership seedSegment;
 
         public IntegerTypeFillPolicySegmentsConsiderBackgroundAndCanvas1(
                 final long newLabel,
@@ -282,7 +263,7 @@ public class LabelMultisetFill
                 final FragmentSegmentAssignment assignment
         ) {
             super( newLabel, segmentSeedLabel );
-            this.fragmentsContainedInSegment = assignment.getFragments( segmentSeedLabel );
+            this.seedSegment = SegmentMembership.forSegment( assignment, segmentSeedLabel );
         }
 
         public static class Factory<U extends IntegerType< U > > implements FillPolicyFactory< Pair< LabelMultisetType, U > >
@@ -305,10 +286,7 @@ public class LabelMultisetFill
 
         @Override
         protected boolean anyLabelInMultisetIsPartOfSeedSegment(final LabelMultisetType label) {
-            for ( final long id : this.fragmentsContainedInSegment )
-                if ( label.contains( id ) )
-                    return true;
-            return false;
+            return seedSegment.contains( label );
         }
     }
 
@@ -4,6 +4,7 @@ import java.util.AbstractSet;
 import java.util.Collection;
 import java.util.Iterator;
 import java.util.Set;
+import java.util.function.ToIntFunction;
 
 import bdv.labels.labelset.RefList.RefIterator;
 import net.imglib2.img.NativeImg;
@@ -159,17 +160,56 @@ public class LabelMultisetType extends AbstractNativeType< LabelMultisetType > i
 
 	public boolean contains( final long id )
 	{
-		access.getValue( i, entries );
-		return entries.binarySearch( id ) >= 0;
+		return access.contains( i, id, entries );
+	}
+
+	/**
+	 * Whether any of {@code ids} is contained.  Answers are cached per
+	 * distinct list of the underlying cell, pass the same array for repeated
+	 * queries (e.g. during a flood fill).
+	 *
+	 * @param ids
+	 * @return
+	 */
+	public boolean containsAny( final long[] ids )
+	{
+		return access.containsAny( i, ids, entries );
+	}
+
+	/**
+	 * Color of this multiset as computed by {@code argb}.  Colors are
+	 * remembered per distinct list of the underlying cell for one version of
+	 * a coloring, such that each list is colored only once per version.
+	 *
+	 * @param coloring
+	 *            compared by identity
+	 * @param version
+	 *            must change whenever {@code argb} may return other colors
+	 * @param argb
+	 * @return
+	 */
+	public int argb( final Object coloring, final long version, final ToIntFunction< LabelMultisetType > argb )
+	{
+		final LabelMultisetARGBIndex index = access.getARGBIndex( coloring, version );
+		final int offset = access.getCurrentStorageArray()[ i ];
+		final long remembered = index.get( offset );
+		if ( remembered >= 0 )
+			return ( int )remembered;
+		final int color = argb.applyAsInt( this );
+		index.put( offset, color );
+		return color;
 	}
 
+	/**
+	 * Whether all of {@code ids} are contained, see
+	 * {@link #containsAny(long[])}.
+	 *
+	 * @param ids
+	 * @return
+	 */
 	public boolean containsAll( final long[] ids )
 	{
-		access.getValue( i, entries );
-		for ( final long id : ids )
-			if ( entries.binarySearch( id ) < 0 )
-				return false;
-		return true;
+		return access.containsAll( i, ids, entries );
 	}
 
 	@Override
@@ -203,6 +243,18 @@ public class LabelMultisetType extends AbstractNativeType< LabelMultisetType > i
 		return entrySet;
 	}
 
+	/**
+	 * The entries at the current index, valid until the index changes.  For
+	 * iterating without an iterator.
+	 *
+	 * @return
+	 */
+	LabelMultisetEntryList getEntries()
+	{
+		access.getValue( i, entries );
+		return entries;
+	}
+
 	@Override
 	public String toString()
 	{
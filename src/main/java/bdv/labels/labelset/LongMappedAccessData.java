@@ -1,20 +1,51 @@
 package bdv.labels.labelset;
 
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 
 /**
  * A {@link MappedElementArray} that stores {@link DoubleMappedElement
  * DoubleMappedElements} in a {@code double[]} array.
  *
+ * Alternatively, the data can be stored off-heap in a direct
+ * {@link ByteBuffer}, see {@link #directFactory}, or be mapped from a file,
+ * see {@link #map(Path, long, long)}.  Off-heap storage is not limited by the
+ * heap size and does not add to GC pauses, but is released only when the
+ * {@link LongMappedAccessData} is garbage collected.  Received bytes can be
+ * used in place, see {@link #wrap(ByteBuffer)}.  {@link #getData()} returns
+ * {@code null} unless the data is stored in a {@code long[]}.
+ *
  * @author Tobias Pietzsch <tobias.pietzsch@gmail.com>
  */
 public class LongMappedAccessData implements MappedAccessData< LongMappedAccess >
 {
 	/**
 	 * The current data storage. This is changed when the array is
-	 * {@link #resize(int) resized}.
+	 * {@link #resize(int) resized}.  {@code null} if the data is stored
+	 * off-heap.
 	 */
 	protected long[] data;
 
+	/**
+	 * The current off-heap or wrapped data storage, {@code null} if the data
+	 * is stored in {@link #data}.  Referenced to keep the memory alive.
+	 */
+	private ByteBuffer buffer;
+
+	/**
+	 * Base object and address of the first byte as used by the
+	 * {@link ByteUtils} methods that take a base object.
+	 */
+	Object base;
+
+	long baseAddress;
+
 	private long size;
 
 	public long[] getData()
@@ -22,6 +53,11 @@ public class LongMappedAccessData implements MappedAccessData< LongMappedAccess
 		return data;
 	}
 
+	public boolean isOffHeap()
+	{
+		return buffer != null && buffer.isDirect();
+	}
+
 	@Override
 	public LongMappedAccess createAccess()
 	{
@@ -52,7 +88,163 @@ public class LongMappedAccessData implements MappedAccessData< LongMappedAccess
 					"trying to create a " + getClass().getName() + " with more than " + ( ( long ) ByteUtils.LONG_SIZE * Integer.MAX_VALUE ) + " bytes.");
 
 		this.size = size;
-		this.data = new long[ ( int ) longSize ];
+		setData( new long[ ( int ) longSize ] );
+	}
+
+	/**
+	 * Create a new array that stores its data in a direct, mapped or wrapped
+	 * {@link ByteBuffer}.
+	 */
+	private LongMappedAccessData( final ByteBuffer buffer, final long size )
+	{
+		this.size = size;
+		setBuffer( buffer );
+	}
+
+	private void setData( final long[] data )
+	{
+		this.data = data;
+		this.buffer = null;
+		this.base = data;
+		this.baseAddress = ByteUtils.LONG_ARRAY_OFFSET;
+	}
+
+	private void setBuffer( final ByteBuffer buffer )
+	{
+		this.data = null;
+		this.buffer = buffer;
+		if ( buffer.isDirect() )
+		{
+			this.base = null;
+			this.baseAddress = ByteUtils.address( buffer );
+		}
+		else
+		{
+			this.base = buffer.array();
+			this.baseAddress = ByteUtils.BYTE_ARRAY_OFFSET + buffer.arrayOffset();
+		}
+	}
+
+	private static ByteBuffer allocateDirect( final long size )
+	{
+		if ( size > Integer.MAX_VALUE )
+			throw new IllegalArgumentException(
+					"trying to create an off-heap " + LongMappedAccessData.class.getName() + " with more than " + Integer.MAX_VALUE + " bytes.");
+		// round up to whole longs like the heap storage
+		return ByteBuffer.allocateDirect( ( int ) Math.max( 8, ( size + 7 ) & ~7l ) );
+	}
+
+	/**
+	 * Map {@code size} bytes of a file starting at {@code position}.  The
+	 * mapping is private, i.e. modifications are not written back to the
+	 * file.  Private mappings require a writable file, read-only files are
+	 * read into a direct buffer instead.  The data is expected in the byte
+	 * layout written by {@link #toByteBuffer(ByteBuffer, int)}.
+	 *
+	 * @param file
+	 * @param position
+	 * @param size
+	 * @return
+	 * @throws IOException
+	 */
+	public static LongMappedAccessData map( final Path file, final long position, final long size ) throws IOException
+	{
+		if ( !Files.isWritable( file ) )
+		{
+			final ByteBuffer buffer = allocateDirect( size );
+			buffer.limit( ( int ) size );
+			try ( final FileChannel channel = FileChannel.open( file, StandardOpenOption.READ ) )
+			{
+				while ( buffer.hasRemaining() )
+					if ( channel.read( buffer, position + buffer.position() ) < 0 )
+						throw new EOFException( file + " is too short." );
+			}
+			return new LongMappedAccessData( buffer, size );
+		}
+		try ( final FileChannel channel = FileChannel.open( file, StandardOpenOption.READ, StandardOpenOption.WRITE ) )
+		{
+			return new LongMappedAccessData( channel.map( FileChannel.MapMode.PRIVATE, position, Math.max( 1, size ) ), size );
+		}
+	}
+
+	/**
+	 * Create an array that uses the remaining bytes of {@code buffer} as its
+	 * storage without copying them, e.g. the list data of a block as it was
+	 * received.  The bytes are expected in the layout read by
+	 * {@link #fromByteBuffer(ByteBuffer)} and must not be modified through
+	 * {@code buffer} afterwards.  A heap buffer stays on the heap, its bytes
+	 * are copied into a {@code long[]} only if the array grows.  The position
+	 * of {@code buffer} is advanced to its limit.
+	 */
+	public static LongMappedAccessData wrap( final ByteBuffer buffer )
+	{
+		final ByteBuffer slice = buffer.slice();
+		buffer.position( buffer.limit() );
+		return new LongMappedAccessData( slice, slice.capacity() );
+	}
+
+	/**
+	 * Create a new array containing a copy of the remaining bytes of
+	 * {@code buffer}
+	 * which are read in bulk and in native byte order, i.e. the byte layout
+	 * is the same as that written by {@link ByteUtils}.  The position of
+	 * {@code buffer} is advanced to its limit.  The array is created by the
+	 * {@link #getDefaultFactory() default factory}.
+	 */
+	public static LongMappedAccessData fromByteBuffer( final ByteBuffer buffer )
+	{
+		final int size = buffer.remaining();
+		final LongMappedAccessData array = defaultFactory.createStorage( size );
+		final ByteBuffer source = buffer.slice().order( ByteOrder.nativeOrder() );
+		if ( array.data != null )
+		{
+			final int numLongs = size / ByteUtils.LONG_SIZE;
+			source.asLongBuffer().get( array.data, 0, numLongs );
+			for ( int i = numLongs * ByteUtils.LONG_SIZE; i < size; ++i )
+				ByteUtils.putByte( source.get( i ), array.data, i );
+		}
+		else
+		{
+			final ByteBuffer target = array.buffer.duplicate();
+			target.clear();
+			target.put( source );
+		}
+		buffer.position( buffer.limit() );
+		return array;
+	}
+
+	/**
+	 * Write the first {@code numBytes} bytes of this array into
+	 * {@code buffer} in bulk, in the byte layout read by
+	 * {@link #fromByteBuffer(ByteBuffer)}.  The position of {@code buffer}
+	 * is advanced by {@code numBytes}.
+	 */
+	public void toByteBuffer( final ByteBuffer buffer, final int numBytes )
+	{
+		final ByteBuffer target = buffer.slice().order( ByteOrder.nativeOrder() );
+		if ( data != null )
+		{
+			final int numLongs = numBytes / ByteUtils.LONG_SIZE;
+			target.asLongBuffer().put( data, 0, numLongs );
+			for ( int i = numLongs * ByteUtils.LONG_SIZE; i < numBytes; ++i )
+				target.put( i, ByteUtils.getByte( data, i ) );
+		}
+		else
+		{
+			final ByteBuffer source = this.buffer.duplicate();
+			source.clear().limit( numBytes );
+			target.put( source );
+		}
+		buffer.position( buffer.position() + numBytes );
+	}
+
+	/**
+	 * Copy {@code numBytes} bytes starting at {@code srcOffset} in
+	 * {@code src} to {@code offset} in this array.
+	 */
+	public void copyFrom( final LongMappedAccessData src, final long srcOffset, final long offset, final int numBytes )
+	{
+		ByteUtils.copyBytes( src.base, src.baseAddress + srcOffset, base, baseAddress + offset, numBytes );
 	}
 
 	@Override
@@ -69,7 +261,25 @@ public class LongMappedAccessData implements MappedAccessData< LongMappedAccess
 	public void resize( final long size )
 	{
 		final long longSize = longSizeFromByteSize( size );
-		if ( longSize == longSizeFromByteSize( this.size ) )
+		if ( buffer != null )
+		{
+			// mapped and wrapped buffers are not rounded up to whole longs
+			if ( longSize == longSizeFromByteSize( this.size ) && size <= buffer.capacity() )
+			{
+				this.size = size;
+				return;
+			}
+			if ( buffer.isDirect() )
+			{
+				final ByteBuffer buffercopy = allocateDirect( size );
+				final long copyLength = Math.min( buffer.capacity(), buffercopy.capacity() );
+				ByteUtils.copyBytes( null, baseAddress, null, ByteUtils.address( buffercopy ), copyLength );
+				setBuffer( buffercopy );
+				this.size = size;
+				return;
+			}
+		}
+		else if ( longSize == longSizeFromByteSize( this.size ) )
 			return;
 
 		if ( longSize > Integer.MAX_VALUE )
@@ -77,14 +287,23 @@ public class LongMappedAccessData implements MappedAccessData< LongMappedAccess
 					"trying to resize a " + getClass().getName() + " with more than " + ( ( long ) ByteUtils.LONG_SIZE * Integer.MAX_VALUE ) + " bytes.");
 
 		final long[] datacopy = new long[ ( int ) longSize ];
+		if ( data == null )
+		{
+			// wrapped heap buffer
+			final long copyLength = Math.min( buffer.capacity(), ( long ) ByteUtils.LONG_SIZE * datacopy.length );
+			ByteUtils.copyBytes( base, baseAddress, datacopy, ByteUtils.LONG_ARRAY_OFFSET, copyLength );
+		}
+		else
+		{
 			final int copyLength = Math.min( data.length, datacopy.length );
 			System.arraycopy( data, 0, datacopy, 0, copyLength );
-		this.data = datacopy;
+		}
+		setData( datacopy );
 		this.size = size;
 	}
 
 	/**
-	 * A factory for {@link LongMappedAccessData}s.
+	 * A factory for {@link LongMappedAccessData}s on the heap.
 	 */
 	public static final MappedAccessData.Factory< LongMappedAccessData, LongMappedAccess > factory =
 			new MappedAccessData.Factory< LongMappedAccessData, LongMappedAccess >()
@@ -95,6 +314,70 @@ public class LongMappedAccessData implements MappedAccessData< LongMappedAccess
 					return new LongMappedAccessData( size );
 				}
 
+				@Override
+				public LongMappedAccess createAccess()
+				{
+					return new LongMappedAccess( null, 0 );
+				}
+			};
+
+	/**
+	 * A factory for {@link LongMappedAccessData}s in direct (off-heap)
+	 * {@link ByteBuffer}s.
+	 */
+	public static final MappedAccessData.Factory< LongMappedAccessData, LongMappedAccess > directFactory =
+			new MappedAccessData.Factory< LongMappedAccessData, LongMappedAccess >()
+			{
+				@Override
+				public LongMappedAccessData createStorage( final long size )
+				{
+					return new LongMappedAccessData( allocateDirect( size ), size );
+				}
+
+				@Override
+				public LongMappedAccess createAccess()
+				{
+					return new LongMappedAccess( null, 0 );
+				}
+			};
+
+	/**
+	 * Factory used for list storage that ends up in the cache.  Off-heap if
+	 * the system property <code>bigcat.offHeapLabelLists</code> is set to
+	 * true.
+	 */
+	private static volatile MappedAccessData.Factory< LongMappedAccessData, LongMappedAccess > defaultFactoryDelegate =
+			Boolean.getBoolean( "bigcat.offHeapLabelLists" ) ? directFactory : factory;
+
+	public static MappedAccessData.Factory< LongMappedAccessData, LongMappedAccess > getDefaultFactory()
+	{
+		return defaultFactoryDelegate;
+	}
+
+	/**
+	 * Set the factory used by {@link #defaultFactory}, e.g.
+	 * {@link #directFactory} to keep label lists off-heap.
+	 */
+	public static void setDefaultFactory( final MappedAccessData.Factory< LongMappedAccessData, LongMappedAccess > factory )
+	{
+		defaultFactoryDelegate = factory;
+	}
+
+	/**
+	 * A factory that delegates to the {@link #getDefaultFactory() current
+	 * default factory}.  This is the storage factory of
+	 * {@link LabelMultisetEntry}, and used by loaders to create the list
+	 * storage of cache cells.
+	 */
+	public static final MappedAccessData.Factory< LongMappedAccessData, LongMappedAccess > defaultFactory =
+			new MappedAccessData.Factory< LongMappedAccessData, LongMappedAccess >()
+			{
+				@Override
+				public LongMappedAccessData createStorage( final long size )
+				{
+					return defaultFactoryDelegate.createStorage( size );
+				}
+
 				@Override
 				public LongMappedAccess createAccess()
 				{
@@ -1,5 +1,14 @@
 package bdv.labels.labelset;
 
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ConcurrentHashMap;
+
 import net.imglib2.img.basictypeaccess.volatiles.VolatileAccess;
 import net.imglib2.img.basictypeaccess.volatiles.array.AbstractVolatileArray;
 
@@ -12,6 +21,31 @@ public class VolatileLabelMultisetArray extends AbstractVolatileArray< VolatileL
 
 	private final long listDataUsedSizeInBytes;
 
+	/**
+	 * Bound for the number of {@link LabelMultisetContainsIndex contains
+	 * indices} of each kind, all are dropped when more ids are queried.
+	 */
+	static private final int MAX_CONTAINS_INDICES = 64;
+
+	/**
+	 * Lazily created {@link LabelMultisetContainsIndex contains indices} by
+	 * queried id arrays (compared by identity) and single ids.
+	 */
+	private final ConcurrentHashMap< long[], LabelMultisetContainsIndex > containsAnyIndices = new ConcurrentHashMap<>();
+
+	private final ConcurrentHashMap< long[], LabelMultisetContainsIndex > containsAllIndices = new ConcurrentHashMap<>();
+
+	private final ConcurrentHashMap< Long, LabelMultisetContainsIndex > containsIdIndices = new ConcurrentHashMap<>();
+
+	/* most recently queried single id, e.g. the seed of a fill */
+	private volatile LabelMultisetContainsIndex lastContainsIdIndex = null;
+
+	/**
+	 * Lazily created {@link LabelMultisetARGBIndex} for the most recent
+	 * version of a coloring.
+	 */
+	private volatile LabelMultisetARGBIndex argbIndex = null;
+
 	public VolatileLabelMultisetArray( final int numEntities, final boolean isValid )
 	{
 		super( isValid );
@@ -46,6 +80,104 @@ public class VolatileLabelMultisetArray extends AbstractVolatileArray< VolatileL
 		ref.referToDataAt( listData, data[ index ] );
 	}
 
+	/**
+	 * Whether the list at {@code index} contains any of {@code ids}.  Answers
+	 * are cached per list offset in a {@link LabelMultisetContainsIndex} per
+	 * distinct {@code ids} array, compared by identity, such that callers
+	 * should pass the same array for repeated queries.
+	 *
+	 * @param index
+	 * @param ids
+	 * @param ref
+	 *            is set to refer to the list at {@code index}
+	 * @return
+	 */
+	public boolean containsAny( final int index, final long[] ids, final LabelMultisetEntryList ref )
+	{
+		getValue( index, ref );
+		return getContainsAnyIndex( ids ).contains( ref, data[ index ] );
+	}
+
+	/**
+	 * Whether the list at {@code index} contains all of {@code ids}, see
+	 * {@link #containsAny(int, long[], LabelMultisetEntryList)}.
+	 */
+	public boolean containsAll( final int index, final long[] ids, final LabelMultisetEntryList ref )
+	{
+		getValue( index, ref );
+		return getContainsAllIndex( ids ).contains( ref, data[ index ] );
+	}
+
+	/**
+	 * Whether the list at {@code index} contains {@code id}, see
+	 * {@link #containsAny(int, long[], LabelMultisetEntryList)}.  Single ids
+	 * are compared by value.
+	 */
+	public boolean contains( final int index, final long id, final LabelMultisetEntryList ref )
+	{
+		getValue( index, ref );
+		return getContainsIndex( id ).contains( ref, data[ index ] );
+	}
+
+	private LabelMultisetContainsIndex getContainsIndex( final ConcurrentHashMap< long[], LabelMultisetContainsIndex > indices, final long[] ids, final boolean all )
+	{
+		final LabelMultisetContainsIndex containsIndex = indices.get( ids );
+		if ( containsIndex != null )
+			return containsIndex;
+		if ( indices.size() >= MAX_CONTAINS_INDICES )
+			indices.clear();
+		return indices.computeIfAbsent( ids, k -> new LabelMultisetContainsIndex( ids, all, listData.size() ) );
+	}
+
+	LabelMultisetContainsIndex getContainsIndex( final long id )
+	{
+		LabelMultisetContainsIndex containsIndex = lastContainsIdIndex;
+		if ( containsIndex != null && containsIndex.getIds()[ 0 ] == id )
+			return containsIndex;
+		containsIndex = containsIdIndices.get( id );
+		if ( containsIndex == null )
+		{
+			if ( containsIdIndices.size() >= MAX_CONTAINS_INDICES )
+				containsIdIndices.clear();
+			containsIndex = containsIdIndices.computeIfAbsent( id, k -> new LabelMultisetContainsIndex( new long[]{ id }, false, listData.size() ) );
+		}
+		lastContainsIdIndex = containsIndex;
+		return containsIndex;
+	}
+
+	LabelMultisetContainsIndex getContainsAnyIndex( final long[] ids )
+	{
+		return getContainsIndex( containsAnyIndices, ids, false );
+	}
+
+	LabelMultisetContainsIndex getContainsAllIndex( final long[] ids )
+	{
+		return getContainsIndex( containsAllIndices, ids, true );
+	}
+
+	/**
+	 * Get the {@link LabelMultisetARGBIndex} for a version of a coloring,
+	 * replaces the index of other colorings or versions.
+	 *
+	 * @param coloring
+	 *            compared by identity
+	 * @param version
+	 * @return
+	 */
+	public LabelMultisetARGBIndex getARGBIndex( final Object coloring, final long version )
+	{
+		final LabelMultisetARGBIndex index = argbIndex;
+		if ( index != null && index.isFor( coloring, version ) )
+			return index;
+		/* every list takes at least 16 bytes */
+		final LabelMultisetARGBIndex newIndex = new LabelMultisetARGBIndex(
+				coloring,
+				version,
+				( int )Math.min( data.length, listData.size() / 16 ) );
+		argbIndex = newIndex;
+		return newIndex;
+	}
+
 	@Override
 	public VolatileLabelMultisetArray createArray( final int numEntities )
 	{
@@ -67,4 +199,102 @@ public class VolatileLabelMultisetArray extends AbstractVolatileArray< VolatileL
 	{
 		return listDataUsedSizeInBytes;
 	}
+
+	/**
+	 * Serialize as {@code numElements} little endian int offsets followed by
+	 * the first {@code listDataSizeInBytes} bytes of list data.
+	 *
+	 * @param listDataSizeInBytes
+	 * @return
+	 */
+	public byte[] toBytes( final int listDataSizeInBytes )
+	{
+		final ByteBuffer buffer = ByteBuffer.allocate( 4 * data.length + listDataSizeInBytes );
+		buffer.order( ByteOrder.LITTLE_ENDIAN ).asIntBuffer().put( data );
+		buffer.position( 4 * data.length );
+		( ( LongMappedAccessData ) listData ).toByteBuffer( buffer, listDataSizeInBytes );
+		return buffer.array();
+	}
+
+	/**
+	 * Serialize as {@code numElements} little endian int offsets followed by
+	 * the used list data.
+	 *
+	 * @return
+	 */
+	public byte[] toBytes()
+	{
+		return toBytes( ( int ) listDataUsedSizeInBytes );
+	}
+
+	/**
+	 * Deserialize from the format written by {@link #toBytes()}.
+	 *
+	 * @param bytes
+	 * @param numElements
+	 * @return
+	 */
+	public static VolatileLabelMultisetArray fromBytes( final byte[] bytes, final int numElements )
+	{
+		final ByteBuffer buffer = ByteBuffer.wrap( bytes );
+		final int[] data = new int[ numElements ];
+		buffer.order( ByteOrder.LITTLE_ENDIAN ).asIntBuffer().get( data );
+		buffer.position( 4 * numElements );
+		final LongMappedAccessData listData = LongMappedAccessData.fromByteBuffer( buffer );
+		return new VolatileLabelMultisetArray( data, listData, listData.size(), true );
+	}
+
+	/**
+	 * Deserialize from the format written by {@link #toBytes()} without
+	 * copying the list data, which stays in {@code bytes}, see
+	 * {@link LongMappedAccessData#wrap(ByteBuffer)}.  {@code bytes} must
+	 * not be modified afterwards.  If the
+	 * {@link LongMappedAccessData#getDefaultFactory() default factory} keeps
+	 * lists off-heap, the list data is copied off-heap as by
+	 * {@link #fromBytes(byte[], int)}.
+	 *
+	 * @param bytes
+	 * @param numElements
+	 * @return
+	 */
+	public static VolatileLabelMultisetArray wrap( final byte[] bytes, final int numElements )
+	{
+		if ( LongMappedAccessData.getDefaultFactory() != LongMappedAccessData.factory )
+			return fromBytes( bytes, numElements );
+
+		final ByteBuffer buffer = ByteBuffer.wrap( bytes );
+		final int[] data = new int[ numElements ];
+		buffer.order( ByteOrder.LITTLE_ENDIAN ).asIntBuffer().get( data );
+		buffer.position( 4 * numElements );
+		final LongMappedAccessData listData = LongMappedAccessData.wrap( buffer );
+		return new VolatileLabelMultisetArray( data, listData, listData.size(), true );
+	}
+
+	/**
+	 * Read the int offsets of a file in the format written by
+	 * {@link #toBytes()} and map its list data without deserialization, see
+	 * {@link LongMappedAccessData#map(Path, long, long)}.
+	 *
+	 * @param file
+	 * @param numElements
+	 * @return
+	 * @throws IOException
+	 */
+	public static VolatileLabelMultisetArray map( final Path file, final int numElements ) throws IOException
+	{
+		final int[] data = new int[ numElements ];
+		final long listDataSize;
+		try ( final FileChannel channel = FileChannel.open( file, StandardOpenOption.READ ) )
+		{
+			final ByteBuffer buffer = ByteBuffer.allocate( 4 * numElements );
+			while ( buffer.hasRemaining() )
+				if ( channel.read( buffer ) < 0 )
+					throw new EOFException( file + " is too short." );
+			buffer.flip();
+			buffer.order( ByteOrder.LITTLE_ENDIAN ).asIntBuffer().get( data );
+			listDataSize = channel.size() - 4 * numElements;
+		}
+		final LongMappedAccessData listData = LongMappedAccessData.map( file, 4 * numElements, listDataSize );
+		return new VolatileLabelMultisetArray( data, listData, listDataSize, true );
+	}
 }
@@ -0,0 +1,596 @@
+package bdv.util;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+import bdv.util.FloodFillEngine.Cancellation;
+import bdv.util.FloodFillEngine.Listener;
+import bdv.util.FloodFillEngine.Status;
+import gnu.trove.list.array.TIntArrayList;
+import gnu.trove.list.array.TLongArrayList;
+import gnu.trove.map.hash.TLongObjectHashMap;
+import net.imglib2.Cursor;
+import net.imglib2.FinalInterval;
+import net.imglib2.Interval;
+import net.imglib2.RandomAccess;
+import net.imglib2.RandomAccessible;
+import net.imglib2.algorithm.fill.Filter;
+import net.imglib2.converter.Converter;
+import net.imglib2.util.Pair;
+import net.imglib2.view.RandomAccessiblePair;
+import net.imglib2.view.Views;
+
+/**
+ * Face connected (like {@code new DiamondShape( 1 )}) flood fill of up to
+ * three dimensions that fills cells of a grid in parallel.
+ *
+ * The bounding box is divided into cells (aligned with the origin, e.g. the
+ * cells of a {@link bdv.img.SparseLongCanvas}).  When the fill first enters a
+ * cell, a {@link CellFilter} decides for all voxels of the cell at once
+ * whether they can be filled, and the cell is then filled by a scanline
+ * kernel on that byte mask.  Voxels on the faces of a cell seed the
+ * neighboring cells in the next round, cells with seeds are filled
+ * concurrently on a {@link ForkJoinPool}, and rounds are repeated until no
+ * seeds are left.  Newly filled voxels are passed to a {@link CellWriter}
+ * per cell, concurrently for different cells.
+ *
+ * As for {@link FloodFillEngine}, the seed is filled unconditionally if it
+ * is inside the bounding box, every voxel is filled at most once, and voxels
+ * filled before the fill was cancelled or exceeded its budget remain
+ * written.  Unlike there, the filter sees the state of a cell before the
+ * fill wrote to it.
+ */
+public class BlockParallelFill
+{
+	/**
+	 * Value of the mask of a {@link CellFilter} for voxels that can be filled.
+	 */
+	static public final byte ACCEPTED = 1;
+
+	static private final byte FILLED = 2;
+
+	static private final int CANCELLATION_CHECK_INTERVAL = 0xff;
+
+	/**
+	 * Decides which voxels of a cell can be filled.
+	 */
+	public interface CellFilter
+	{
+		/**
+		 * @param min
+		 *            of the cell
+		 * @param dimensions
+		 *            of the cell
+		 * @param mask
+		 *            zeroed, in flat iteration order of the cell, set to
+		 *            {@link BlockParallelFill#ACCEPTED} for voxels that can
+		 *            be filled
+		 */
+		public void accept( long[] min, int[] dimensions, byte[] mask );
+	}
+
+	/**
+	 * Writes filled voxels of a cell.  Called concurrently for different
+	 * cells.
+	 */
+	public interface CellWriter
+	{
+		/**
+		 * @param min
+		 *            of the cell
+		 * @param dimensions
+		 *            of the cell
+		 * @param indices
+		 *            of the newly filled voxels in flat iteration order of
+		 *            the cell
+		 */
+		public void write( long[] min, int[] dimensions, int[] indices );
+	}
+
+	/**
+	 * A cell of the grid in three dimensions, with the mask of its voxels
+	 * and the seeds of the next round.
+	 */
+	static private class Cell
+	{
+		final long[] gridPosition;
+
+		final long[] min;
+
+		final int[] dimensions;
+
+		final int w, h, d;
+
+		byte[] mask = null;
+
+		TIntArrayList seeds = new TIntArrayList();
+
+		Cell( final long[] gridPosition, final long[] min, final int[] dimensions )
+		{
+			this.gridPosition = gridPosition;
+			this.min = min;
+			this.dimensions = dimensions;
+			w = dimensions[ 0 ];
+			h = dimensions.length > 1 ? dimensions[ 1 ] : 1;
+			d = dimensions.length > 2 ? dimensions[ 2 ] : 1;
+		}
+	}
+
+	/**
+	 * Seeds of neighboring cells found while filling a cell, as pairs of cell
+	 * key and index.
+	 */
+	static private class Frontier
+	{
+		final TLongArrayList keys = new TLongArrayList();
+
+		final TIntArrayList indices = new TIntArrayList();
+
+		void add( final long key, final int index )
+		{
+			keys.add( key );
+			indices.add( index );
+		}
+	}
+
+	final private int n;
+
+	final private long[] min;
+
+	final private long[] max;
+
+	final private int[] cellDimensions;
+
+	final private long[] gridMin;
+
+	final private long[] gridDimensions;
+
+	final private CellFilter filter;
+
+	final private CellWriter writer;
+
+	final private long maxNumFilled;
+
+	final private Cancellation cancellation;
+
+	final private AtomicLong numFilled = new AtomicLong();
+
+	private volatile Status status = Status.COMPLETE;
+
+	final private TLongObjectHashMap< Cell > cells = new TLongObjectHashMap<>();
+
+	private BlockParallelFill(
+			final Interval bounds,
+			final int[] cellDimensions,
+			final CellFilter filter,
+			final CellWriter writer,
+			final long maxNumFilled,
+			final Cancellation cancellation )
+	{
+		n = bounds.numDimensions();
+		min = new long[ 3 ];
+		max = new long[ 3 ];
+		this.cellDimensions = new int[ 3 ];
+		gridMin = new long[ 3 ];
+		gridDimensions = new long[ 3 ];
+		for ( int d = 0; d < 3; ++d )
+		{
+			min[ d ] = d < n ? bounds.min( d ) : 0;
+			max[ d ] = d < n ? bounds.max( d ) : 0;
+			this.cellDimensions[ d ] = d < n ? cellDimensions[ d ] : 1;
+			gridMin[ d ] = Math.floorDiv( min[ d ], this.cellDimensions[ d ] );
+			gridDimensions[ d ] = Math.floorDiv( max[ d ], this.cellDimensions[ d ] ) - gridMin[ d ] + 1;
+		}
+		this.filter = filter;
+		this.writer = writer;
+		this.maxNumFilled = maxNumFilled;
+		this.cancellation = cancellation;
+	}
+
+	/**
+	 * Fill on a {@link ForkJoinPool}, the calling thread waits.
+	 *
+	 * @param seed
+	 * @param filter
+	 *            which voxels can be filled
+	 * @param writer
+	 *            fills voxels
+	 * @param bounds
+	 *            voxels outside are not filled
+	 * @param cellDimensions
+	 *            of the grid that is filled in parallel, e.g. the cell
+	 *            dimensions of the target
+	 * @param maxNumFilled
+	 *            at most this many voxels are filled, the fill is
+	 *            {@link Status#BUDGET_EXCEEDED} if there are more
+	 * @param pool
+	 * @param cancellation
+	 *            may be null
+	 * @param listener
+	 *            may be null, progress is reported after each round
+	 */
+	static public Status fill(
+			final long[] seed,
+			final CellFilter filter,
+			final CellWriter writer,
+			final Interval bounds,
+			final int[] cellDimensions,
+			final long maxNumFilled,
+			final ForkJoinPool pool,
+			final Cancellation cancellation,
+			final Listener listener )
+	{
+		if ( seed.length > 3 )
+			throw new IllegalArgumentException( "Flood fill supports up to three dimensions, not " + seed.length + "." );
+
+		final BlockParallelFill fill = new BlockParallelFill( bounds, cellDimensions, filter, writer, maxNumFilled, cancellation );
+		final Status status = fill.run( seed, pool, listener );
+		if ( listener != null )
+			listener.finished( status, fill.numFilled() );
+		return status;
+	}
+
+	/**
+	 * Fill {@link RandomAccessible}s like
+	 * {@link FloodFillEngine#fill(RandomAccessible, RandomAccessible, long[], Pair, net.imglib2.algorithm.neighborhood.Shape, Filter, Converter, Interval, long, Cancellation, Listener)}
+	 * with a face connected neighborhood, see
+	 * {@link #fill(long[], CellFilter, CellWriter, Interval, int[], long, ForkJoinPool, Cancellation, Listener)}.
+	 */
+	static public < S, U > Status fill(
+			final RandomAccessible< S > source,
+			final RandomAccessible< U > target,
+			final long[] seed,
+			final Pair< S, U > reference,
+			final Filter< Pair< S, U >, Pair< S, U > > filter,
+			final Converter< S, U > writer,
+			final Interval bounds,
+			final int[] cellDimensions,
+			final long maxNumFilled,
+			final ForkJoinPool pool,
+			final Cancellation cancellation,
+			final Listener listener )
+	{
+		return fill(
+				seed,
+				cellFilter( source, target, reference, filter ),
+				cellWriter( source, target, writer ),
+				bounds,
+				cellDimensions,
+				maxNumFilled,
+				pool,
+				cancellation,
+				listener );
+	}
+
+	/**
+	 * A {@link CellFilter} that tests each voxel of a cell with a
+	 * {@link Filter}.
+	 */
+	static public < S, U > CellFilter cellFilter(
+			final RandomAccessible< S > source,
+			final RandomAccessible< U > target,
+			final Pair< S, U > reference,
+			final Filter< Pair< S, U >, Pair< S, U > > filter )
+	{
+		final RandomAccessiblePair< S, U > pair = new RandomAccessiblePair<>( source, target );
+		return ( min, dimensions, mask ) -> {
+			final long[] max = new long[ min.length ];
+			for ( int d = 0; d < min.length; ++d )
+				max[ d ] = min[ d ] + dimensions[ d ] - 1;
+			final Cursor< Pair< S, U > > cursor = Views.flatIterable( Views.interval( pair, new FinalInterval( min, max ) ) ).cursor();
+			for ( int i = 0; cursor.hasNext(); ++i )
+				if ( filter.accept( cursor.next(), reference ) )
+					mask[ i ] = ACCEPTED;
+		};
+	}
+
+	/**
+	 * A {@link CellWriter} that writes each filled voxel with a
+	 * {@link Converter}.
+	 */
+	static public < S, U > CellWriter cellWriter(
+			final RandomAccessible< S > source,
+			final RandomAccessible< U > target,
+			final Converter< S, U > writer )
+	{
+		final RandomAccessiblePair< S, U > pair = new RandomAccessiblePair<>( source, target );
+		return ( min, dimensions, indices ) -> {
+			final RandomAccess< Pair< S, U > > access = pair.randomAccess();
+			for ( final int index : indices )
+			{
+				int i = index;
+				for ( int d = 0; d < min.length; ++d )
+				{
+					access.setPosition( min[ d ] + i % dimensions[ d ], d );
+					i /= dimensions[ d ];
+				}
+				final Pair< S, U > p = access.get();
+				writer.convert( p.getA(), p.getB() );
+			}
+		};
+	}
+
+	private long numFilled()
+	{
+		return Math.min( numFilled.get(), maxNumFilled );
+	}
+
+	private Status run( final long[] seed, final ForkJoinPool pool, final Listener listener )
+	{
+		final long[] seed3 = new long[ 3 ];
+		for ( int d = 0; d < 3; ++d )
+		{
+			seed3[ d ] = d < n ? seed[ d ] : 0;
+			if ( seed3[ d ] < min[ d ] || seed3[ d ] > max[ d ] )
+				return Status.COMPLETE;
+		}
+
+		final long[] seedGridPosition = new long[ 3 ];
+		for ( int d = 0; d < 3; ++d )
+			seedGridPosition[ d ] = Math.floorDiv( seed3[ d ], cellDimensions[ d ] );
+		final Cell seedCell = getOrCreateCell( key( seedGridPosition ) );
+		int seedIndex = 0;
+		for ( int d = n - 1; d >= 0; --d )
+			seedIndex = seedIndex * seedCell.dimensions[ d ] + ( int ) ( seed3[ d ] - seedCell.min[ d ] );
+		loadMask( seedCell );
+		seedCell.mask[ seedIndex ] = ACCEPTED;
+		seedCell.seeds.add( seedIndex );
+
+		List< Cell > active = new ArrayList<>();
+		active.add( seedCell );
+		long lastProgress = System.currentTimeMillis();
+		while ( !active.isEmpty() && status == Status.COMPLETE )
+		{
+			if ( cancellation != null && cancellation.isCancelled() )
+				return Status.CANCELLED;
+
+			final ArrayList< Callable< Frontier > > tasks = new ArrayList<>();
+			for ( final Cell cell : active )
+			{
+				final TIntArrayList seeds = cell.seeds;
+				cell.seeds = new TIntArrayList();
+				tasks.add( () -> fillCell( cell, seeds ) );
+			}
+
+			final List< Cell > next = new ArrayList<>();
+			for ( final Future< Frontier > future : pool.invokeAll( tasks ) )
+			{
+				final Frontier frontier = get( future );
+				for ( int i = 0; i < frontier.keys.size(); ++i )
+				{
+					final Cell cell = getOrCreateCell( frontier.keys.getQuick( i ) );
+					if ( cell.seeds.isEmpty() )
+						next.add( cell );
+					cell.seeds.add( frontier.indices.getQuick( i ) );
+				}
+			}
+			active = next;
+
+			if ( listener != null )
+			{
+				final long now = System.currentTimeMillis();
+				if ( now - lastProgress >= FloodFillEngine.PROGRESS_INTERVAL_MILLIS )
+				{
+					listener.progress( numFilled() );
+					lastProgress = now;
+				}
+			}
+		}
+		return status;
+	}
+
+	static private < T > T get( final Future< T > future )
+	{
+		try
+		{
+			return future.get();
+		}
+		catch ( final ExecutionException e )
+		{
+			if ( e.getCause() instanceof RuntimeException )
+				throw ( RuntimeException ) e.getCause();
+			throw new RuntimeException( e.getCause() );
+		}
+		catch ( final InterruptedException e )
+		{
+			Thread.currentThread().interrupt();
+			throw new RuntimeException( e );
+		}
+	}
+
+	private long key( final long[] gridPosition )
+	{
+		return ( ( gridPosition[ 2 ] - gridMin[ 2 ] ) * gridDimensions[ 1 ] + gridPosition[ 1 ] - gridMin[ 1 ] ) * gridDimensions[ 0 ] + gridPosition[ 0 ] - gridMin[ 0 ];
+	}
+
+	/**
+	 * Called on the calling thread only.
+	 */
+	private Cell getOrCreateCell( final long key )
+	{
+		Cell cell = cells.get( key );
+		if ( cell == null )
+		{
+			final long[] gridPosition = new long[ 3 ];
+			long k = key;
+			for ( int d = 0; d < 3; ++d )
+			{
+				gridPosition[ d ] = gridMin[ d ] + k % gridDimensions[ d ];
+				k /= gridDimensions[ d ];
+			}
+			final long[] cellMin = new long[ n ];
+			final int[] cellDims = new int[ n ];
+			for ( int d = 0; d < n; ++d )
+			{
+				cellMin[ d ] = Math.max( min[ d ], gridPosition[ d ] * cellDimensions[ d ] );
+				cellDims[ d ] = ( int ) ( Math.min( max[ d ], ( gridPosition[ d ] + 1 ) * cellDimensions[ d ] - 1 ) - cellMin[ d ] + 1 );
+			}
+			cell = new Cell( gridPosition, cellMin, cellDims );
+			cells.put( key, cell );
+		}
+		return cell;
+	}
+
+	/**
+	 * Size of the cell at grid position g in dimension d.
+	 */
+	private int cellSize( final int d, final long g )
+	{
+		if ( d >= n )
+			return 1;
+		return ( int ) ( Math.min( max[ d ], ( g + 1 ) * cellDimensions[ d ] - 1 ) - Math.max( min[ d ], g * cellDimensions[ d ] ) + 1 );
+	}
+
+	private boolean inGrid( final int d, final long g )
+	{
+		return g >= gridMin[ d ] && g < gridMin[ d ] + gridDimensions[ d ];
+	}
+
+	private void loadMask( final Cell cell )
+	{
+		if ( cell.mask == null )
+		{
+			cell.mask = new byte[ cell.w * cell.h * cell.d ];
+			filter.accept( cell.min, cell.dimensions, cell.mask );
+		}
+	}
+
+	/**
+	 * Scanline fill of one cell from seeds.  Runs on a worker thread, the
+	 * cell is not accessed by other threads while it runs.
+	 */
+	private Frontier fillCell( final Cell cell, final TIntArrayList stack )
+	{
+		loadMask( cell );
+		final byte[] mask = cell.mask;
+		final int w = cell.w;
+		final int h = cell.h;
+		final int d = cell.d;
+		final long[] g = cell.gridPosition;
+
+		/* neighboring cells, null if outside of the grid */
+		final long[] neighbor = g.clone();
+		final long[] neighborKeys = new long[ 6 ];
+		final int[] neighborSizes = new int[ 6 ];
+		for ( int i = 0; i < 6; ++i )
+		{
+			final int dim = i >> 1;
+			final long ng = g[ dim ] + ( ( i & 1 ) == 0 ? -1 : 1 );
+			if ( dim < n && inGrid( dim, ng ) )
+			{
+				neighbor[ dim ] = ng;
+				neighborKeys[ i ] = key( neighbor );
+				neighborSizes[ i ] = cellSize( dim, ng );
+				neighbor[ dim ] = g[ dim ];
+			}
+			else
+				neighborKeys[ i ] = -1;
+		}
+
+		final Frontier frontier = new Frontier();
+		final TIntArrayList filled = new TIntArrayList();
+		int numSpans = 0;
+		while ( !stack.isEmpty() )
+		{
+			final int seed = stack.removeAt( stack.size() - 1 );
+			if ( mask[ seed ] != ACCEPTED )
+				continue;
+
+			if ( ( ++numSpans & CANCELLATION_CHECK_INTERVAL ) == 0 && cancellation != null && cancellation.isCancelled() )
+			{
+				status = Status.CANCELLED;
+				break;
+			}
+
+			final int x = seed % w;
+			final int row = seed - x;
+			int l = x;
+			while ( l > 0 && mask[ row + l - 1 ] == ACCEPTED )
+				--l;
+			int r = x;
+			while ( r < w - 1 && mask[ row + r + 1 ] == ACCEPTED )
+				++r;
+
+			/* a fill of exactly maxNumFilled voxels is complete */
+			final long before = numFilled.getAndAdd( r - l + 1 );
+			if ( before + r - l + 1 > maxNumFilled )
+			{
+				r = ( int ) ( l + Math.max( 0, maxNumFilled - before ) - 1 );
+				status = Status.BUDGET_EXCEEDED;
+			}
+			for ( int i = l; i <= r; ++i )
+			{
+				mask[ row + i ] = FILLED;
+				filled.add( row + i );
+			}
+			if ( status != Status.COMPLETE )
+				break;
+
+			final int yz = row / w;
+			final int y = yz % h;
+			final int z = yz / h;
+
+			if ( y > 0 )
+				pushRuns( mask, row - w, l, r, stack );
+			else if ( neighborKeys[ 2 ] != -1 )
+				for ( int i = l; i <= r; ++i )
+					frontier.add( neighborKeys[ 2 ], ( z * neighborSizes[ 2 ] + neighborSizes[ 2 ] - 1 ) * w + i );
+
+			if ( y < h - 1 )
+				pushRuns( mask, row + w, l, r, stack );
+			else if ( neighborKeys[ 3 ] != -1 )
+				for ( int i = l; i <= r; ++i )
+					frontier.add( neighborKeys[ 3 ], z * neighborSizes[ 3 ] * w + i );
+
+			if ( z > 0 )
+				pushRuns( mask, row - w * h, l, r, stack );
+			else if ( neighborKeys[ 4 ] != -1 )
+				for ( int i = l; i <= r; ++i )
+					frontier.add( neighborKeys[ 4 ], ( ( neighborSizes[ 4 ] - 1 ) * h + y ) * w + i );
+
+			if ( z < d - 1 )
+				pushRuns( mask, row + w * h, l, r, stack );
+			else if ( neighborKeys[ 5 ] != -1 )
+				for ( int i = l; i <= r; ++i )
+					frontier.add( neighborKeys[ 5 ], y * w + i );
+
+			if ( l == 0 && neighborKeys[ 0 ] != -1 )
+				frontier.add( neighborKeys[ 0 ], yz * neighborSizes[ 0 ] + neighborSizes[ 0 ] - 1 );
+			if ( r == w - 1 && neighborKeys[ 1 ] != -1 )
+				frontier.add( neighborKeys[ 1 ], yz * neighborSizes[ 1 ] );
+		}
+
+		if ( !filled.isEmpty() )
+			writer.write( cell.min, cell.dimensions, filled.toArray() );
+
+		if ( status != Status.COMPLETE )
+			frontier.keys.clear();
+		return frontier;
+	}
+
+	/**
+	 * Push the first voxel of each run of accepted voxels in [l,r] of a row.
+	 */
+	static private void pushRuns( final byte[] mask, final int row, final int l, final int r, final TIntArrayList stack )
+	{
+		boolean inRun = false;
+		for ( int i = l; i <= r; ++i )
+		{
+			if ( mask[ row + i ] == ACCEPTED )
+			{
+				if ( !inRun )
+				{
+					stack.add( row + i );
+					inRun = true;
+				}
+			}
+			else
+				inRun = false;
+		}
+	}
+}
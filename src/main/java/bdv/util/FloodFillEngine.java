@@ -0,0 +1,444 @@
+package bdv.util;
+
+import java.util.ArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicReference;
+
+import gnu.trove.list.array.TLongArrayList;
+import gnu.trove.map.hash.TLongObjectHashMap;
+import net.imglib2.Cursor;
+import net.imglib2.Interval;
+import net.imglib2.Localizable;
+import net.imglib2.RandomAccess;
+import net.imglib2.RandomAccessible;
+import net.imglib2.algorithm.fill.Filter;
+import net.imglib2.algorithm.neighborhood.Neighborhood;
+import net.imglib2.algorithm.neighborhood.Shape;
+import net.imglib2.converter.Converter;
+import net.imglib2.util.Pair;
+import net.imglib2.view.RandomAccessiblePair;
+
+/**
+ * Breadth first flood fill of up to three dimensions that can run on a
+ * background thread, be cancelled, report progress while it runs, and be
+ * limited to a bounding box and a maximum number of filled voxels.
+ *
+ * Like {@link net.imglib2.algorithm.fill.FloodFill}, the seed is written
+ * unconditionally and neighbors (by a {@link Shape}) are written and
+ * enqueued if a {@link Filter} accepts them compared to a reference.  Every
+ * voxel is tested at most once.  The queue holds one packed long per voxel
+ * and visited voxels are remembered in a bitset per block of 32^n voxels,
+ * such that memory is proportional to the filled region.  Coordinates are
+ * packed relative to the seed with 21 bits per dimension, voxels further than
+ * 2^20 from the seed are never filled.
+ *
+ * {@link #submit} runs fills one at a time on a daemon thread, such that
+ * they do not block the event dispatch thread.  Voxels written before a fill
+ * is cancelled or exceeds its budget remain written unless the job is
+ * {@link bdv.bigcat.label.EditJournal#journaled journaled}, which rolls them
+ * back.  The budget of the fills of submitted jobs is
+ * {@link #getMaxNumFilled()}, by default {@code -Dbigcat.maxFillVoxels}.
+ */
+public class FloodFillEngine
+{
+	public enum Status
+	{
+		COMPLETE,
+		CANCELLED,
+		BUDGET_EXCEEDED
+	}
+
+	public interface Listener
+	{
+		/**
+		 * Called on the fill thread at most every
+		 * {@link FloodFillEngine#PROGRESS_INTERVAL_MILLIS} while the fill is
+		 * running, e.g. to repaint partial results.
+		 */
+		public void progress( long numFilled );
+
+		/**
+		 * Called on the fill thread when the fill ends.
+		 */
+		public void finished( Status status, long numFilled );
+	}
+
+	static public final long PROGRESS_INTERVAL_MILLIS = 100;
+
+	static private final int BITS_PER_DIMENSION = 21;
+
+	static private final long COORDINATE_MASK = ( 1L << BITS_PER_DIMENSION ) - 1;
+
+	static private final long COORDINATE_OFFSET = 1L << ( BITS_PER_DIMENSION - 1 );
+
+	static private final int BLOCK_BITS = 5;
+
+	static private final long BLOCK_MASK = ( 1L << BLOCK_BITS ) - 1;
+
+	/**
+	 * Cancellation flag of a fill, polled by the fill loop.
+	 */
+	static public class Cancellation
+	{
+		private volatile boolean cancelled = false;
+
+		public void cancel()
+		{
+			cancelled = true;
+		}
+
+		public boolean isCancelled()
+		{
+			return cancelled || Thread.currentThread().isInterrupted();
+		}
+	}
+
+	/**
+	 * Visited voxels, relative to the seed and offset into the positive
+	 * range.
+	 */
+	static private class VisitedSet
+	{
+		final private int n;
+
+		final private int wordsPerBlock;
+
+		final private TLongObjectHashMap< long[] > blocks = new TLongObjectHashMap<>();
+
+		private long lastBlockKey = -1;
+
+		private long[] lastBlock = null;
+
+		VisitedSet( final int n )
+		{
+			this.n = n;
+			wordsPerBlock = Math.max( 1, ( 1 << ( BLOCK_BITS * n ) ) >> 6 );
+		}
+
+		/**
+		 * Mark a packed position visited.
+		 *
+		 * @return whether the position had been visited before
+		 */
+		boolean testAndSet( final long packed )
+		{
+			long blockKey = 0;
+			int index = 0;
+			for ( int d = n - 1; d >= 0; --d )
+			{
+				final long x = ( packed >>> ( d * BITS_PER_DIMENSION ) ) & COORDINATE_MASK;
+				blockKey = ( blockKey << ( BITS_PER_DIMENSION - BLOCK_BITS ) ) | ( x >>> BLOCK_BITS );
+				index = ( index << BLOCK_BITS ) | ( int ) ( x & BLOCK_MASK );
+			}
+			long[] block;
+			if ( blockKey == lastBlockKey )
+				block = lastBlock;
+			else
+			{
+				block = blocks.get( blockKey );
+				if ( block == null )
+				{
+					block = new long[ wordsPerBlock ];
+					blocks.put( blockKey, block );
+				}
+				lastBlockKey = blockKey;
+				lastBlock = block;
+			}
+			final int word = index >>> 6;
+			final long bit = 1L << ( index & 63 );
+			if ( ( block[ word ] & bit ) != 0 )
+				return true;
+			block[ word ] |= bit;
+			return false;
+		}
+	}
+
+	final private ExecutorService executor = Executors.newSingleThreadExecutor( r -> {
+		final Thread thread = new Thread( r, "bigcat-fill" );
+		thread.setDaemon( true );
+		return thread;
+	} );
+
+	final private AtomicReference< Cancellation > current = new AtomicReference<>();
+
+	private volatile long maxNumFilled = Long.getLong( "bigcat.maxFillVoxels", Long.MAX_VALUE );
+
+	/**
+	 * @return the maximum number of voxels filled by each fill of a job
+	 */
+	public long getMaxNumFilled()
+	{
+		return maxNumFilled;
+	}
+
+	public void setMaxNumFilled( final long maxNumFilled )
+	{
+		this.maxNumFilled = maxNumFilled;
+	}
+
+	/**
+	 * One or more fills that run on the fill thread in sequence.
+	 */
+	public interface Job
+	{
+		public Status run( Cancellation cancellation );
+	}
+
+	/**
+	 * Queue a job on the fill thread.
+	 *
+	 * @return the status of the job
+	 */
+	public Future< Status > submit( final Job job )
+	{
+		final Cancellation cancellation = new Cancellation();
+		return executor.submit( () -> {
+			current.set( cancellation );
+			try
+			{
+				return job.run( cancellation );
+			}
+			catch ( final RuntimeException e )
+			{
+				e.printStackTrace();
+				throw e;
+			}
+			finally
+			{
+				current.compareAndSet( cancellation, null );
+			}
+		} );
+	}
+
+	/**
+	 * Queue a fill on the fill thread, see {@link #fill}.
+	 *
+	 * @return the status of the fill
+	 */
+	public < S, U > Future< Status > submit(
+			final RandomAccessible< S > source,
+			final RandomAccessible< U > target,
+			final Localizable seed,
+			final Pair< S, U > reference,
+			final Shape shape,
+			final Filter< Pair< S, U >, Pair< S, U > > filter,
+			final Converter< S, U > writer,
+			final Interval bounds,
+			final long maxNumFilled,
+			final Listener listener )
+	{
+		final long[] seedPosition = new long[ seed.numDimensions() ];
+		seed.localize( seedPosition );
+		return submit( cancellation -> fill( source, target, seedPosition, reference, shape, filter, writer, bounds, maxNumFilled, cancellation, listener ) );
+	}
+
+	/**
+	 * Cancel the fill that is currently running, if any.
+	 *
+	 * @return whether a fill was running
+	 */
+	public boolean cancel()
+	{
+		final Cancellation cancellation = current.get();
+		if ( cancellation == null )
+			return false;
+		cancellation.cancel();
+		return true;
+	}
+
+	/**
+	 * @return whether a fill is currently running
+	 */
+	public boolean isRunning()
+	{
+		return current.get() != null;
+	}
+
+	/**
+	 * Fill on the calling thread.
+	 *
+	 * @param source
+	 * @param target
+	 * @param seed
+	 * @param reference
+	 *            passed to the filter as the second argument
+	 * @param shape
+	 *            neighborhood, e.g. {@code new DiamondShape( 1 )}
+	 * @param filter
+	 *            whether a neighbor is filled
+	 * @param writer
+	 *            fills a voxel
+	 * @param bounds
+	 *            voxels outside are not filled, may be null
+	 * @param maxNumFilled
+	 *            at most this many voxels are filled, the fill is
+	 *            {@link Status#BUDGET_EXCEEDED} if there are more
+	 * @param cancellation
+	 *            may be null
+	 * @param listener
+	 *            may be null
+	 */
+	static public < S, U > Status fill(
+			final RandomAccessible< S > source,
+			final RandomAccessible< U > target,
+			final long[] seed,
+			final Pair< S, U > reference,
+			final Shape shape,
+			final Filter< Pair< S, U >, Pair< S, U > > filter,
+			final Converter< S, U > writer,
+			final Interval bounds,
+			final long maxNumFilled,
+			final Cancellation cancellation,
+			final Listener listener )
+	{
+		final int n = seed.length;
+		if ( n > 3 )
+			throw new IllegalArgumentException( "Flood fill supports up to three dimensions, not " + n + "." );
+
+		final long[][] offsets = neighborOffsets( source, shape );
+		final RandomAccess< Pair< S, U > > access = new RandomAccessiblePair<>( source, target ).randomAccess();
+
+		final long[] min = new long[ n ];
+		final long[] max = new long[ n ];
+		for ( int d = 0; d < n; ++d )
+		{
+			min[ d ] = seed[ d ] - COORDINATE_OFFSET;
+			max[ d ] = seed[ d ] + COORDINATE_OFFSET - 1;
+			if ( bounds != null )
+			{
+				min[ d ] = Math.max( min[ d ], bounds.min( d ) );
+				max[ d ] = Math.min( max[ d ], bounds.max( d ) );
+			}
+		}
+
+		final VisitedSet visited = new VisitedSet( n );
+		final TLongArrayList queue = new TLongArrayList();
+		final long[] position = new long[ n ];
+
+		final long seedPacked = pack( seed, seed );
+		visited.testAndSet( seedPacked );
+		access.setPosition( seed );
+		final Pair< S, U > seedPair = access.get();
+		writer.convert( seedPair.getA(), seedPair.getB() );
+		queue.add( seedPacked );
+		long numFilled = 1;
+
+		long lastProgress = System.currentTimeMillis();
+		Status status = Status.COMPLETE;
+		int head = 0;
+		A: while ( head < queue.size() )
+		{
+			if ( head >= 1 << 16 && head > queue.size() >>> 1 )
+			{
+				queue.remove( 0, head );
+				head = 0;
+			}
+
+			if ( ( head & 0xfff ) == 0 )
+			{
+				if ( cancellation != null && cancellation.isCancelled() )
+				{
+					status = Status.CANCELLED;
+					break;
+				}
+				if ( listener != null )
+				{
+					final long now = System.currentTimeMillis();
+					if ( now - lastProgress >= PROGRESS_INTERVAL_MILLIS )
+					{
+						listener.progress( numFilled );
+						lastProgress = now;
+					}
+				}
+			}
+
+			unpack( queue.getQuick( head++ ), seed, position );
+			for ( final long[] offset : offsets )
+			{
+				boolean inBounds = true;
+				for ( int d = 0; d < n; ++d )
+				{
+					final long x = position[ d ] + offset[ d ];
+					if ( x < min[ d ] || x > max[ d ] )
+					{
+						inBounds = false;
+						break;
+					}
+					access.setPosition( x, d );
+				}
+				if ( !inBounds )
+					continue;
+
+				final long packed = packOffset( position, offset, seed );
+				if ( visited.testAndSet( packed ) )
+					continue;
+
+				final Pair< S, U > pair = access.get();
+				if ( filter.accept( pair, reference ) )
+				{
+					/* a fill of exactly maxNumFilled voxels is complete */
+					if ( numFilled >= maxNumFilled )
+					{
+						status = Status.BUDGET_EXCEEDED;
+						break A;
+					}
+					writer.convert( pair.getA(), pair.getB() );
+					queue.add( packed );
+					++numFilled;
+				}
+			}
+		}
+
+		if ( listener != null )
+			listener.finished( status, numFilled );
+		return status;
+	}
+
+	/**
+	 * Offsets of the neighborhood of the origin, excluding the origin.
+	 */
+	static private < S > long[][] neighborOffsets( final RandomAccessible< S > source, final Shape shape )
+	{
+		final int n = source.numDimensions();
+		final RandomAccess< Neighborhood< S > > neighborhoodAccess = shape.neighborhoodsRandomAccessible( source ).randomAccess();
+		neighborhoodAccess.setPosition( new long[ n ] );
+		final ArrayList< long[] > offsets = new ArrayList<>();
+		final Cursor< S > cursor = neighborhoodAccess.get().localizingCursor();
+		while ( cursor.hasNext() )
+		{
+			cursor.fwd();
+			final long[] offset = new long[ n ];
+			cursor.localize( offset );
+			boolean isOrigin = true;
+			for ( int d = 0; d < n; ++d )
+				isOrigin &= offset[ d ] == 0;
+			if ( !isOrigin )
+				offsets.add( offset );
+		}
+		return offsets.toArray( new long[ offsets.size() ][] );
+	}
+
+	static private long pack( final long[] position, final long[] seed )
+	{
+		long packed = 0;
+		for ( int d = position.length - 1; d >= 0; --d )
+			packed = ( packed << BITS_PER_DIMENSION ) | ( position[ d ] - seed[ d ] + COORDINATE_OFFSET );
+		return packed;
+	}
+
+	static private long packOffset( final long[] position, final long[] offset, final long[] seed )
+	{
+		long packed = 0;
+		for ( int d = position.length - 1; d >= 0; --d )
+			packed = ( packed << BITS_PER_DIMENSION ) | ( position[ d ] + offset[ d ] - seed[ d ] + COORDINATE_OFFSET );
+		return packed;
+	}
+
+	static private void unpack( final long packed, final long[] seed, final long[] position )
+	{
+		for ( int d = 0; d < position.length; ++d )
+			position[ d ] = ( ( packed >>> ( d * BITS_PER_DIMENSION ) ) & COORDINATE_MASK ) - COORDINATE_OFFSET + seed[ d ];
+	}
+}
@@ -32,6 +32,13 @@ public interface IdService
 	 */
 	public long next();
 
+	/**
+	 * Get the next ID without using it up, e.g. to save it.
+	 *
+	 * @return
+	 */
+	public long peek();
+
 	/**
 	 * Get the n next IDs.
 	 *
@@ -0,0 +1,97 @@
+package bdv.util;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Bulk decoding of little endian payloads (e.g. uint64 label blocks loaded
+ * from DVID or KNOSSOS) through {@link ByteBuffer} views instead of per-byte
+ * shifts, and per-thread scratch arrays that cache loader threads reuse for
+ * consecutive cells of the same size.
+ *
+ * Scratch arrays are owned by the calling thread and only valid until the
+ * next call to the same method on that thread.  They may be larger than
+ * requested and still contain the data of earlier calls, so callers that
+ * read fewer bytes than requested (e.g. a short response) must clear the
+ * rest.
+ */
+public class LittleEndianBuffers
+{
+	private LittleEndianBuffers() {}
+
+	final static private ThreadLocal< byte[] > scratchBytes = new ThreadLocal< byte[] >()
+	{
+		@Override
+		protected byte[] initialValue()
+		{
+			return new byte[ 0 ];
+		}
+	};
+
+	final static private ThreadLocal< long[] > scratchLongs = new ThreadLocal< long[] >()
+	{
+		@Override
+		protected long[] initialValue()
+		{
+			return new long[ 0 ];
+		}
+	};
+
+	/**
+	 * @param size
+	 * @return a byte[] of at least size elements owned by the calling thread
+	 */
+	static public byte[] scratchBytes( final int size )
+	{
+		byte[] bytes = scratchBytes.get();
+		if ( bytes.length < size )
+		{
+			bytes = new byte[ size ];
+			scratchBytes.set( bytes );
+		}
+		return bytes;
+	}
+
+	/**
+	 * @param size
+	 * @return a long[] of at least size elements owned by the calling thread
+	 */
+	static public long[] scratchLongs( final int size )
+	{
+		long[] longs = scratchLongs.get();
+		if ( longs.length < size )
+		{
+			longs = new long[ size ];
+			scratchLongs.set( longs );
+		}
+		return longs;
+	}
+
+	/**
+	 * Decode n little endian longs from bytes starting at byte offset into
+	 * longs.
+	 *
+	 * @param bytes
+	 * @param offset
+	 * @param longs
+	 * @param n
+	 */
+	static public void getLongs( final byte[] bytes, final int offset, final long[] longs, final int n )
+	{
+		ByteBuffer.wrap( bytes, offset, 8 * n ).slice().order( ByteOrder.LITTLE_ENDIAN ).asLongBuffer().get( longs, 0, n );
+	}
+
+	/**
+	 * Decode n little endian ints from bytes starting at byte offset into
+	 * ints.
+	 *
+	 * @param bytes
+	 * @param offset
+	 * @param ints
+	 * @param n
+	 */
+	static public void getInts( final byte[] bytes, final int offset, final int[] ints, final int n )
+	{
+		ByteBuffer.wrap( bytes, offset, 4 * n ).slice().order( ByteOrder.LITTLE_ENDIAN ).asIntBuffer().get( ints, 0, n );
+	}
+}
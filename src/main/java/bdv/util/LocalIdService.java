@@ -7,11 +7,17 @@ public class LocalIdService implements IdService {
 	private long next = 0;
 
 	@Override
-	public void setNext( final long id )
+	public synchronized void setNext( final long id )
 	{
 		next = id;
 	}
 
+	@Override
+	public synchronized long peek()
+	{
+		return next;
+	}
+
 	@Override
 	public synchronized long next()
 	{
@@ -0,0 +1,349 @@
+package bdv.util;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.io.Writer;
+import java.util.Arrays;
+import java.util.function.IntToLongFunction;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+import com.google.gson.JsonParseException;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+
+import bdv.labels.labelset.Label;
+import gnu.trove.impl.Constants;
+import gnu.trove.iterator.TLongLongIterator;
+import gnu.trove.list.array.TLongArrayList;
+import gnu.trove.map.hash.TLongLongHashMap;
+
+/**
+ * Streaming serialization of long to long lookup tables (e.g. fragment to
+ * segment assignments) that never materializes an intermediate
+ * representation of the whole table.
+ *
+ * The binary format is
+ * <pre>
+ * int     magic "LUT1"
+ * byte    flags (1 = deflate compressed payload)
+ * payload:
+ *   varint  number of entries n
+ *   n times
+ *     varint  key - previous key (keys in ascending order, first previous key is 0)
+ *     varint  zigzag( value - key )
+ * </pre>
+ * where varint is the unsigned LEB128 encoding of a long.  Since most
+ * fragments are assigned to segments with similar or identical ids, most
+ * entries take two to four bytes.
+ *
+ * The JSON format is that of
+ * {@link bdv.bigcat.label.FragmentSegmentAssignment.FragmentSegmentSerializer},
+ * the reader also accepts the ilut and fragments + segments forms.
+ */
+public class LutStreams
+{
+	final static public int MAGIC = 0x4c555431; // "LUT1"
+
+	final static public byte FLAG_DEFLATE = 1;
+
+	/* luts that are read grow beyond this */
+	final static private int MAX_INITIAL_CAPACITY = 1 << 20;
+
+	private LutStreams() {}
+
+	static private TLongLongHashMap createLut( final int capacity )
+	{
+		return new TLongLongHashMap(
+				Math.max( Constants.DEFAULT_CAPACITY, capacity ),
+				Constants.DEFAULT_LOAD_FACTOR,
+				Label.TRANSPARENT,
+				Label.TRANSPARENT );
+	}
+
+	static public void writeVarLong( final OutputStream out, long value ) throws IOException
+	{
+		while ( ( value & ~0x7fL ) != 0 )
+		{
+			out.write( ( int )( ( value & 0x7f ) | 0x80 ) );
+			value >>>= 7;
+		}
+		out.write( ( int )value );
+	}
+
+	static public long readVarLong( final InputStream in ) throws IOException
+	{
+		long value = 0;
+		for ( int shift = 0; shift < 64; shift += 7 )
+		{
+			final int b = in.read();
+			if ( b < 0 )
+				throw new EOFException( "Unexpected end of varint." );
+			value |= ( long )( b & 0x7f ) << shift;
+			if ( ( b & 0x80 ) == 0 )
+				return value;
+		}
+		throw new IOException( "Malformed varint." );
+	}
+
+	static public long zigZag( final long value )
+	{
+		return ( value << 1 ) ^ ( value >> 63 );
+	}
+
+	static public long unZigZag( final long value )
+	{
+		return ( value >>> 1 ) ^ -( value & 1 );
+	}
+
+	/**
+	 * Write a lut in the binary format.  The stream is not closed.
+	 *
+	 * @param lut
+	 * @param out
+	 * @param compress deflate the payload
+	 * @throws IOException
+	 */
+	static public void writeBinary(
+			final TLongLongHashMap lut,
+			final OutputStream out,
+			final boolean compress ) throws IOException
+	{
+		final long[] keys = lut.keys();
+		Arrays.sort( keys );
+		writeBinary( keys, i -> lut.get( keys[ i ] ), out, compress );
+	}
+
+	/**
+	 * Write a lut in the binary format from its keys and a function that
+	 * returns the value of the i-th key, e.g. straight from the structure
+	 * that holds the lut.  The stream is not closed.
+	 *
+	 * @param sortedKeys keys in ascending order
+	 * @param values value of the i-th key
+	 * @param out
+	 * @param compress deflate the payload
+	 * @throws IOException
+	 */
+	static public void writeBinary(
+			final long[] sortedKeys,
+			final IntToLongFunction values,
+			final OutputStream out,
+			final boolean compress ) throws IOException
+	{
+		final DataOutputStream header = new DataOutputStream( out );
+		header.writeInt( MAGIC );
+		header.writeByte( compress ? FLAG_DEFLATE : 0 );
+		header.flush();
+
+		final DeflaterOutputStream deflater = compress ? new DeflaterOutputStream( out, new Deflater( Deflater.BEST_SPEED ), 1 << 16 ) : null;
+		final OutputStream payload = new BufferedOutputStream( compress ? deflater : out, 1 << 16 );
+
+		writeVarLong( payload, sortedKeys.length );
+		long previousKey = 0;
+		for ( int i = 0; i < sortedKeys.length; ++i )
+		{
+			final long key = sortedKeys[ i ];
+			writeVarLong( payload, key - previousKey );
+			writeVarLong( payload, zigZag( values.applyAsLong( i ) - key ) );
+			previousKey = key;
+		}
+		payload.flush();
+		if ( compress )
+			deflater.finish();
+		out.flush();
+	}
+
+	/**
+	 * Read a lut in the binary format.  The stream is not closed.
+	 *
+	 * @param in
+	 * @return
+	 * @throws IOException
+	 */
+	static public TLongLongHashMap readBinary( final InputStream in ) throws IOException
+	{
+		final DataInputStream header = new DataInputStream( in );
+		if ( header.readInt() != MAGIC )
+			throw new IOException( "Not a binary lut stream." );
+		final boolean compressed = ( header.readByte() & FLAG_DEFLATE ) != 0;
+
+		final InputStream payload = new BufferedInputStream( compressed ? new InflaterInputStream( in ) : in, 1 << 16 );
+
+		final long size = readVarLong( payload );
+		if ( size < 0 || size > Integer.MAX_VALUE )
+			throw new IOException( "Invalid lut size " + size + "." );
+
+		/* do not trust the size before the entries were read */
+		final TLongLongHashMap lut = createLut( ( int )Math.min( size, MAX_INITIAL_CAPACITY ) );
+		long key = 0;
+		for ( long i = 0; i < size; ++i )
+		{
+			key += readVarLong( payload );
+			lut.put( key, key + unZigZag( readVarLong( payload ) ) );
+		}
+		return lut;
+	}
+
+	/**
+	 * Write a lut as JSON of the form
+	 * <pre>
+	 * {
+	 *   "lut" : {
+	 *     "&lt;key1&gt;" : &lt;value1&gt;,
+	 *     ...
+	 *   }
+	 * }
+	 * </pre>
+	 *
+	 * @param lut
+	 * @param out
+	 * @throws IOException
+	 */
+	static public void writeJson( final TLongLongHashMap lut, final JsonWriter out ) throws IOException
+	{
+		writeJson( lut.iterator(), out );
+	}
+
+	/**
+	 * Write the entries of an iterator, e.g. a view of the structure that
+	 * holds the lut, in the JSON form of
+	 * {@link #writeJson(TLongLongHashMap, JsonWriter)}.
+	 *
+	 * @param iterator
+	 * @param out
+	 * @throws IOException
+	 */
+	static public void writeJson( final TLongLongIterator iterator, final JsonWriter out ) throws IOException
+	{
+		out.beginObject();
+		out.name( "lut" );
+		out.beginObject();
+		while ( iterator.hasNext() )
+		{
+			iterator.advance();
+			out.name( Long.toString( iterator.key() ) ).value( iterator.value() );
+		}
+		out.endObject();
+		out.endObject();
+	}
+
+	static public void writeJson( final TLongLongHashMap lut, final Writer out ) throws IOException
+	{
+		final JsonWriter writer = new JsonWriter( out );
+		writeJson( lut, writer );
+		writer.flush();
+	}
+
+	/**
+	 * Read a lut from JSON of either the form written by
+	 * {@link #writeJson(TLongLongHashMap, JsonWriter)}, or
+	 * <pre>
+	 * {
+	 *   "ilut" : {
+	 *     "&lt;value1&gt;" : [&lt;key1&gt;, &lt;key2&gt;, ...],
+	 *     ...
+	 *   }
+	 * }
+	 * </pre>
+	 * or
+	 * <pre>
+	 * {
+	 *   "fragments" : [&lt;key1&gt;, &lt;key2&gt;, ...],
+	 *   "segments" : [&lt;value1&gt;, &lt;value2&gt;, ...]
+	 * }
+	 * </pre>
+	 *
+	 * @param in
+	 * @return
+	 * @throws IOException
+	 */
+	static public TLongLongHashMap readJson( final JsonReader in ) throws IOException
+	{
+		final TLongLongHashMap lut = createLut( Constants.DEFAULT_CAPACITY );
+		boolean found = false;
+		TLongArrayList fragments = null;
+		TLongArrayList segments = null;
+
+		in.beginObject();
+		while ( in.hasNext() )
+		{
+			final String name = in.nextName();
+			if ( name.equals( "lut" ) )
+			{
+				found = true;
+				in.beginObject();
+				while ( in.hasNext() )
+				{
+					final long key = Long.parseLong( in.nextName() );
+					lut.put( key, in.nextLong() );
+				}
+				in.endObject();
+			}
+			else if ( name.equals( "ilut" ) )
+			{
+				found = true;
+				in.beginObject();
+				while ( in.hasNext() )
+				{
+					final long value = Long.parseLong( in.nextName() );
+					in.beginArray();
+					while ( in.hasNext() )
+						lut.put( in.nextLong(), value );
+					in.endArray();
+				}
+				in.endObject();
+			}
+			else if ( name.equals( "fragments" ) )
+				fragments = readLongs( in );
+			else if ( name.equals( "segments" ) )
+				segments = readLongs( in );
+			else
+				in.skipValue();
+		}
+		in.endObject();
+
+		if ( fragments != null && segments != null )
+		{
+			if ( fragments.size() != segments.size() )
+				throw new JsonParseException( "fragments and segments must be of same length" );
+			found = true;
+			for ( int i = 0; i < fragments.size(); ++i )
+				lut.put( fragments.get( i ), segments.get( i ) );
+		}
+
+		if ( !found )
+			throw new JsonParseException( "Could not find either lut, ilut, or segments + bodies properties." );
+
+		return lut;
+	}
+
+	static public TLongLongHashMap readJson( final Reader in ) throws IOException
+	{
+		return readJson( new JsonReader( in ) );
+	}
+
+	static private TLongArrayList readLongs( final JsonReader in ) throws IOException
+	{
+		if ( in.peek() == JsonToken.NULL )
+		{
+			in.nextNull();
+			return null;
+		}
+		final TLongArrayList list = new TLongArrayList();
+		in.beginArray();
+		while ( in.hasNext() )
+			list.add( in.nextLong() );
+		in.endArray();
+		return list;
+	}
+}
@@ -24,6 +24,9 @@ import net.imglib2.type.numeric.integer.UnsignedLongType;
  * @author Philipp Hanslovsky <hanslovskyp@janelia.hhmi.org>
  * 
  * Convenience methods for requests and responses.
+ * 
+ * GET and POST requests that do not hand out their connection are executed
+ * by {@link PooledHttpClient#getDefault()} and reuse connections.
  *
  */
 public class HttpRequest
@@ -173,26 +176,7 @@ public class HttpRequest
 	 */
 	public static byte[] getRequest( String url ) throws MalformedURLException, IOException
 	{
-		HttpURLConnection connection = ( HttpURLConnection ) new URL( url ).openConnection();
-		int response = connection.getResponseCode();
-		if ( response != 200 )
-			throw new HTTPException( response );
-		
-		byte[] bytes;
-		String transferEncoding = connection.getHeaderField( "Transfer-Encoding" );
-		if ( transferEncoding != null && transferEncoding.compareToIgnoreCase( "chunked" ) == 0 )
-		{
-			ChunkedByteArrayResponseHandler handler = new ChunkedByteArrayResponseHandler( 1024 );
-			getRequest( connection, handler );
-			bytes = handler.getArray();
-		} else
-		{
-			int contentLength = Integer.parseInt( connection.getHeaderField( "Content-Length" ) );
-			bytes = new byte[ contentLength ];
-			getRequest( connection, new ByteArrayResponseHandler( bytes ) );
-		}
-		connection.disconnect();
-		return bytes;
+		return PooledHttpClient.getDefault().get( url );
 	}
 	
 	/**
@@ -215,23 +199,13 @@ public class HttpRequest
 	 */
 	public static byte[] getRequest( String url, byte[] bytes ) throws MalformedURLException, IOException
 	{
-		HttpURLConnection connection = ( HttpURLConnection ) new URL( url ).openConnection();
-		int response = connection.getResponseCode();
-		if ( response != 200 )
-			throw new HTTPException( response );
-		getRequest( connection, new ByteArrayResponseHandler( bytes ) );
-		connection.disconnect();
+		PooledHttpClient.getDefault().get( url, bytes );
 		return bytes;
 	}
 	
 	public static void getRequest( String url, ResponseHandler handler ) throws MalformedURLException, IOException
 	{
-		HttpURLConnection connection = ( HttpURLConnection ) new URL( url ).openConnection();
-		int response = connection.getResponseCode();
-		if ( response != 200 )
-			throw new HTTPException( response );
-		getRequest( connection, handler );
-		connection.disconnect();
+		PooledHttpClient.getDefault().get( url, handler );
 	}
 
 	/**
@@ -276,8 +250,7 @@ public class HttpRequest
 	 */
 	public static void postRequest( String url, byte[] postData, String contentType ) throws MalformedURLException, IOException
 	{
-		HttpURLConnection connection = postRequestWithResponse( url, postData, contentType );
-		connection.disconnect();
+		PooledHttpClient.getDefault().post( url, postData, contentType );
 	}
 	
 	/**
@@ -293,8 +266,7 @@ public class HttpRequest
 	 */
 	public static void postRequest( String url, long[] postData, String contentType ) throws MalformedURLException, IOException
 	{
-		HttpURLConnection connection = postRequestWithResponse( url, postData, contentType );
-		connection.disconnect();
+		PooledHttpClient.getDefault().post( url, postData, contentType, new LongArrayWriter() );
 	}
 	
 	/**
@@ -374,8 +346,7 @@ public class HttpRequest
 			String contentType,
 			Writer< T > dataWriter ) throws MalformedURLException, IOException
 	{
-		HttpURLConnection connection = postRequestWithResponse( url, postData, contentType, dataWriter );
-		connection.disconnect();
+		PooledHttpClient.getDefault().post( url, postData, contentType, dataWriter );
 	}
 	
 	/**
@@ -0,0 +1,455 @@
+package bdv.util.http;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+
+import javax.xml.ws.http.HTTPException;
+
+import bdv.util.http.HttpRequest.ResponseHandler;
+import bdv.util.http.HttpRequest.Writer;
+
+/**
+ * HTTP client for many small requests against the same few hosts (e.g. cache
+ * cells loaded from DVID).
+ *
+ * Connections are never {@link HttpURLConnection#disconnect() disconnected}.
+ * Responses are read to the end and their streams closed such that the
+ * underlying sockets are returned to the JDK's HTTP/1.1 keep-alive cache and
+ * reused by the next request to the same host.  The number of concurrent
+ * requests per host is bounded by the pool size.  The JDK keeps at most
+ * <code>http.maxConnections</code> (5 by default) idle connections per host,
+ * applications size it with {@link #configureKeepAliveCache(int)} before the
+ * first connection is opened.
+ *
+ * GET requests that fail with an {@link IOException} or a 5xx status are
+ * retried with exponential backoff, POST requests are not idempotent and
+ * never retried.  Other non-200 status codes are reported immediately as
+ * {@link HTTPException}, consistent with {@link HttpRequest}.
+ */
+public class PooledHttpClient
+{
+	public static final int DEFAULT_MAX_CONNECTIONS_PER_HOST = 16;
+
+	public static final int DEFAULT_CONNECT_TIMEOUT = 10000;
+
+	public static final int DEFAULT_READ_TIMEOUT = 60000;
+
+	public static final int DEFAULT_MAX_RETRIES = 3;
+
+	public static final long DEFAULT_BACKOFF = 100;
+
+	private static final int DRAIN_BUFFER_SIZE = 4096;
+
+	private static final PooledHttpClient defaultClient = new PooledHttpClient();
+
+	/**
+	 * Size the JDK's keep-alive cache to keep as many idle connections per
+	 * host as a client runs concurrent requests.  This changes JVM-wide
+	 * system properties, properties that are already set (e.g. on the
+	 * command line) are kept.  Has no effect after the first connection was
+	 * opened.
+	 *
+	 * @param maxConnectionsPerHost
+	 */
+	public static void configureKeepAliveCache( final int maxConnectionsPerHost )
+	{
+		if ( System.getProperty( "http.maxConnections" ) == null )
+			System.setProperty( "http.maxConnections", Integer.toString( maxConnectionsPerHost ) );
+		if ( System.getProperty( "http.keepAlive" ) == null )
+			System.setProperty( "http.keepAlive", "true" );
+	}
+
+	/**
+	 * @return Client shared by all DVID datasets and loaders.
+	 */
+	public static PooledHttpClient getDefault()
+	{
+		return defaultClient;
+	}
+
+	private final int maxConnectionsPerHost;
+
+	private final int connectTimeout;
+
+	private final int readTimeout;
+
+	private final int maxRetries;
+
+	private final long backoff;
+
+	private final ConcurrentHashMap< String, Semaphore > hostPermits = new ConcurrentHashMap<>();
+
+	/**
+	 * @param maxConnectionsPerHost maximum number of concurrent requests per host
+	 * @param connectTimeout in ms, 0 for infinite
+	 * @param readTimeout in ms, 0 for infinite
+	 * @param maxRetries number of retries after a failed GET attempt
+	 * @param backoff delay in ms before the first retry, doubled for each further retry
+	 */
+	public PooledHttpClient(
+			final int maxConnectionsPerHost,
+			final int connectTimeout,
+			final int readTimeout,
+			final int maxRetries,
+			final long backoff )
+	{
+		this.maxConnectionsPerHost = maxConnectionsPerHost;
+		this.connectTimeout = connectTimeout;
+		this.readTimeout = readTimeout;
+		this.maxRetries = maxRetries;
+		this.backoff = backoff;
+	}
+
+	public PooledHttpClient()
+	{
+		this(
+				DEFAULT_MAX_CONNECTIONS_PER_HOST,
+				DEFAULT_CONNECT_TIMEOUT,
+				DEFAULT_READ_TIMEOUT,
+				DEFAULT_MAX_RETRIES,
+				DEFAULT_BACKOFF );
+	}
+
+	/**
+	 * Writes the request body to an open connection.
+	 */
+	private static interface Body
+	{
+		public void write( HttpURLConnection connection ) throws IOException;
+	}
+
+	/**
+	 * HTTP GET request, the response is read into a new byte[].
+	 *
+	 * @param url
+	 * @return response body
+	 * @throws MalformedURLException
+	 * @throws IOException
+	 */
+	public byte[] get( final String url ) throws MalformedURLException, IOException
+	{
+		final byte[][] result = new byte[ 1 ][];
+		request( url, HttpRequest.GET, null, new ConnectionHandler()
+		{
+			@Override
+			public void handle( final HttpURLConnection connection, final InputStream in ) throws IOException
+			{
+				final long contentLength = connection.getContentLengthLong();
+				if ( contentLength >= 0 && contentLength <= Integer.MAX_VALUE )
+				{
+					final byte[] bytes = new byte[ ( int ) contentLength ];
+					readFully( in, bytes, bytes.length );
+					result[ 0 ] = bytes;
+				}
+				else
+				{
+					final ByteArrayOutputStream sink = new ByteArrayOutputStream();
+					final byte[] buffer = new byte[ DRAIN_BUFFER_SIZE ];
+					for ( int l = in.read( buffer ); l >= 0; l = in.read( buffer ) )
+						sink.write( buffer, 0, l );
+					result[ 0 ] = sink.toByteArray();
+				}
+			}
+		}, true );
+		return result[ 0 ];
+	}
+
+	/**
+	 * HTTP GET request, the response is read into a caller supplied buffer.
+	 *
+	 * @param url
+	 * @param buffer
+	 * @return number of bytes read into buffer
+	 * @throws MalformedURLException
+	 * @throws IOException
+	 *             also if the response is longer than the buffer, such
+	 *             requests are not retried
+	 */
+	public int get( final String url, final byte[] buffer ) throws MalformedURLException, IOException
+	{
+		return get( url, buffer, buffer.length );
+	}
+
+	/**
+	 * HTTP GET request, the response is read into the first {@code length}
+	 * bytes of a caller supplied buffer, e.g. a reused buffer that is larger
+	 * than the expected response.
+	 *
+	 * @param url
+	 * @param buffer
+	 * @param length
+	 * @return number of bytes read into buffer
+	 * @throws MalformedURLException
+	 * @throws IOException
+	 *             also if the response is longer than {@code length}, such
+	 *             requests are not retried
+	 */
+	public int get( final String url, final byte[] buffer, final int length ) throws MalformedURLException, IOException
+	{
+		final int[] n = new int[ 1 ];
+		request( url, HttpRequest.GET, null, new ConnectionHandler()
+		{
+			@Override
+			public void handle( final HttpURLConnection connection, final InputStream in ) throws IOException
+			{
+				final long contentLength = connection.getContentLengthLong();
+				if ( contentLength > length )
+					throw new ResponseTooLongException( url, length );
+				n[ 0 ] = readFully( in, buffer, length );
+				if ( n[ 0 ] == length && in.read() >= 0 )
+					throw new ResponseTooLongException( url, length );
+			}
+		}, true );
+		return n[ 0 ];
+	}
+
+	/**
+	 * HTTP GET request, the response stream is passed to handler.  Requests
+	 * are only retried if they fail before the handler is called.
+	 *
+	 * @param url
+	 * @param handler
+	 * @throws MalformedURLException
+	 * @throws IOException
+	 */
+	public void get( final String url, final ResponseHandler handler ) throws MalformedURLException, IOException
+	{
+		request( url, HttpRequest.GET, null, new ConnectionHandler()
+		{
+			@Override
+			public void handle( final HttpURLConnection connection, final InputStream in ) throws IOException
+			{
+				handler.handle( in );
+			}
+		}, false );
+	}
+
+	/**
+	 * HTTP POST request.
+	 *
+	 * @param url
+	 * @param data
+	 * @param contentType
+	 * @throws MalformedURLException
+	 * @throws IOException
+	 */
+	public void post( final String url, final byte[] data, final String contentType ) throws MalformedURLException, IOException
+	{
+		request( url, HttpRequest.POST, new Body()
+		{
+			@Override
+			public void write( final HttpURLConnection connection ) throws IOException
+			{
+				connection.setRequestProperty( "Content-Type", contentType );
+				connection.setFixedLengthStreamingMode( data.length );
+				final OutputStream out = connection.getOutputStream();
+				out.write( data );
+				out.close();
+			}
+		}, null, true );
+	}
+
+	/**
+	 * HTTP POST request with data written by a caller specified writer.
+	 *
+	 * @param url
+	 * @param data
+	 * @param contentType
+	 * @param dataWriter
+	 * @throws MalformedURLException
+	 * @throws IOException
+	 */
+	public < T > void post(
+			final String url,
+			final T data,
+			final String contentType,
+			final Writer< T > dataWriter ) throws MalformedURLException, IOException
+	{
+		request( url, HttpRequest.POST, new Body()
+		{
+			@Override
+			public void write( final HttpURLConnection connection ) throws IOException
+			{
+				connection.setRequestProperty( "Content-Type", contentType );
+				final DataOutputStream out = new DataOutputStream( connection.getOutputStream() );
+				dataWriter.write( out, data );
+				out.close();
+			}
+		}, null, true );
+	}
+
+	/**
+	 * The response does not fit into the buffer of the caller.
+	 */
+	private static class ResponseTooLongException extends IOException
+	{
+		private static final long serialVersionUID = 1L;
+
+		public ResponseTooLongException( final String url, final int bufferSize )
+		{
+			super( "Response of " + url + " is longer than " + bufferSize + " bytes." );
+		}
+	}
+
+	/**
+	 * Handles the response of a request with status 200.
+	 */
+	private static interface ConnectionHandler
+	{
+		public void handle( HttpURLConnection connection, InputStream in ) throws IOException;
+	}
+
+	private void request(
+			final String url,
+			final String method,
+			final Body body,
+			final ConnectionHandler handler,
+			final boolean retryHandler ) throws MalformedURLException, IOException
+	{
+		final URL u = new URL( url );
+		final Semaphore permits = permits( u );
+		try
+		{
+			permits.acquire();
+		}
+		catch ( final InterruptedException e )
+		{
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException( "Interrupted while waiting for a connection to " + u.getAuthority() );
+		}
+		final int retries = method.equals( HttpRequest.GET ) ? maxRetries : 0;
+		try
+		{
+			for ( int attempt = 0;; ++attempt )
+			{
+				boolean handling = false;
+				try
+				{
+					final HttpURLConnection connection = ( HttpURLConnection ) u.openConnection();
+					connection.setConnectTimeout( connectTimeout );
+					connection.setReadTimeout( readTimeout );
+					connection.setRequestMethod( method );
+					if ( body != null )
+					{
+						connection.setDoOutput( true );
+						body.write( connection );
+					}
+
+					final int response = connection.getResponseCode();
+					if ( response != 200 )
+					{
+						drain( connection.getErrorStream() );
+						if ( response >= 500 && attempt < retries )
+						{
+							sleep( attempt );
+							continue;
+						}
+						throw new HTTPException( response );
+					}
+
+					final InputStream in = connection.getInputStream();
+					try
+					{
+						if ( handler != null )
+						{
+							handling = !retryHandler;
+							handler.handle( connection, in );
+						}
+					}
+					finally
+					{
+						drain( in );
+					}
+					return;
+				}
+				catch ( final InterruptedIOException e )
+				{
+					throw e;
+				}
+				catch ( final IOException e )
+				{
+					if ( handling || attempt >= retries || e instanceof ResponseTooLongException )
+						throw e;
+					sleep( attempt );
+				}
+			}
+		}
+		finally
+		{
+			permits.release();
+		}
+	}
+
+	private Semaphore permits( final URL url )
+	{
+		final String host = url.getProtocol() + "://" + url.getHost() + ":" + ( url.getPort() < 0 ? url.getDefaultPort() : url.getPort() );
+		Semaphore permits = hostPermits.get( host );
+		if ( permits == null )
+		{
+			final Semaphore newPermits = new Semaphore( maxConnectionsPerHost, true );
+			permits = hostPermits.putIfAbsent( host, newPermits );
+			if ( permits == null )
+				permits = newPermits;
+		}
+		return permits;
+	}
+
+	private void sleep( final int attempt ) throws InterruptedIOException
+	{
+		try
+		{
+			Thread.sleep( backoff << attempt );
+		}
+		catch ( final InterruptedException e )
+		{
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException( "Interrupted while waiting to retry." );
+		}
+	}
+
+	/**
+	 * Read up to n bytes into buffer.
+	 *
+	 * @return number of bytes read
+	 */
+	private static int readFully( final InputStream in, final byte[] buffer, final int n ) throws IOException
+	{
+		int off = 0;
+		while ( off < n )
+		{
+			final int l = in.read( buffer, off, n - off );
+			if ( l < 0 )
+				break;
+			off += l;
+		}
+		return off;
+	}
+
+	/**
+	 * Read stream to the end and close it such that the connection can be
+	 * reused.
+	 */
+	private static void drain( final InputStream in ) throws IOException
+	{
+		if ( in == null )
+			return;
+		try
+		{
+			final byte[] buffer = new byte[ DRAIN_BUFFER_SIZE ];
+			while ( in.read( buffer ) >= 0 );
+		}
+		finally
+		{
+			in.close();
+		}
+	}
+}
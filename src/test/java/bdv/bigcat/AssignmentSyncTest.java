@@ -0,0 +1,285 @@
+package bdv.bigcat;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.zeromq.ZContext;
+import org.zeromq.ZMQ;
+import org.zeromq.ZMQ.Socket;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+
+import bdv.bigcat.Message.AssignmentDeltaData;
+import bdv.bigcat.Message.EditData;
+import bdv.bigcat.Message.IdData;
+import bdv.bigcat.Message.IsolateData;
+import bdv.bigcat.Message.MergeData;
+import bdv.bigcat.label.FragmentSegmentAssignment;
+import bdv.util.LocalIdService;
+import gnu.trove.map.hash.TLongLongHashMap;
+
+public class AssignmentSyncTest
+{
+	static private Message merge( final long... fragments )
+	{
+		final MergeData merge = new MergeData();
+		merge.fragments = fragments;
+		return new Message( merge );
+	}
+
+	static private Message isolate( final long fragment )
+	{
+		final IsolateData isolate = new IsolateData();
+		isolate.fragment = fragment;
+		return new Message( isolate );
+	}
+
+	static private AssignmentSequencer sequencer( final int snapshotInterval )
+	{
+		final LocalIdService idService = new LocalIdService();
+		idService.setNext( 1000000 );
+		return new AssignmentSequencer( new FragmentSegmentAssignment( idService ), idService, snapshotInterval );
+	}
+
+	@Test
+	public void testBinaryRoundTrip() throws IOException
+	{
+		final AssignmentDeltaData delta = new AssignmentDeltaData( 17 );
+		delta.merge( 1, 2, 100 );
+		delta.detach( 3, 101 );
+		delta.assign( new long[]{ 4, 5 }, new long[]{ 6, 6 } );
+		final Message decoded = Message.fromBinary( new Message( delta ).toBinary() );
+		Assert.assertEquals( Message.MessageType.ASSIGNMENT_DELTA, decoded.getType() );
+		final AssignmentDeltaData decodedDelta = ( AssignmentDeltaData )decoded.getData();
+		Assert.assertEquals( 17, decodedDelta.sequence );
+		Assert.assertArrayEquals( new byte[]{ AssignmentDeltaData.MERGE, AssignmentDeltaData.DETACH, AssignmentDeltaData.ASSIGN }, decodedDelta.ops );
+		Assert.assertArrayEquals( new long[]{ 1, 2, 100, 3, 101, 2, 4, 5, 6, 6 }, decodedDelta.args );
+
+		final Message decodedMerge = Message.fromBinary( merge( 7, 8, 9 ).toBinary() );
+		Assert.assertArrayEquals( new long[]{ 7, 8, 9 }, ( ( MergeData )decodedMerge.getData() ).fragments );
+		Assert.assertEquals( Message.MessageType.HANDSHAKE, Message.fromBinary( new Message().toBinary() ).getType() );
+	}
+
+	/**
+	 * Decoded deltas are filled exactly, changes added to them are kept in
+	 * order, and only the filled part is encoded again.
+	 */
+	@Test
+	public void testAddAfterDecoding() throws IOException
+	{
+		final AssignmentDeltaData delta = new AssignmentDeltaData( 3 );
+		delta.merge( 1, 2, 100 );
+		final Gson gson = new GsonBuilder()
+				.registerTypeAdapter( Message.class, new Message.Serializer() )
+				.registerTypeAdapter( Message.class, new Message.GSONDeserializer() )
+				.create();
+		final AssignmentDeltaData[] decoded = new AssignmentDeltaData[]{
+				( AssignmentDeltaData )Message.fromBinary( new Message( delta ).toBinary() ).getData(),
+				( AssignmentDeltaData )gson.fromJson( gson.toJson( new Message( delta ) ), Message.class ).getData() };
+		for ( final AssignmentDeltaData d : decoded )
+		{
+			Assert.assertEquals( 1, d.numOps() );
+			Assert.assertEquals( 3, d.numArgs() );
+			d.detach( 3, 101 );
+			d.append( delta );
+			Assert.assertEquals( 3, d.numOps() );
+			Assert.assertEquals( 8, d.numArgs() );
+			final AssignmentDeltaData reencoded = ( AssignmentDeltaData )Message.fromBinary( new Message( d ).toBinary() ).getData();
+			Assert.assertArrayEquals( new byte[]{ AssignmentDeltaData.MERGE, AssignmentDeltaData.DETACH, AssignmentDeltaData.MERGE }, reencoded.ops );
+			Assert.assertArrayEquals( new long[]{ 1, 2, 100, 3, 101, 1, 2, 100 }, reencoded.args );
+		}
+		Assert.assertFalse( gson.toJson( new Message( delta ) ).contains( "numOps" ) );
+	}
+
+	static private void assertMalformed( final byte[] bytes )
+	{
+		try
+		{
+			Message.fromBinary( bytes );
+			Assert.fail();
+		}
+		catch ( final IOException e )
+		{}
+	}
+
+	/**
+	 * Frames with lengths beyond their size or with ops that do not match
+	 * their arguments are rejected before anything is allocated or applied.
+	 */
+	@Test
+	public void testMalformedFrames() throws IOException
+	{
+		final byte[] merge = merge( 7, 8, 9 ).toBinary();
+		/* a merge of 2^31 - 1 fragments */
+		assertMalformed( new byte[]{ merge[ 0 ], merge[ 1 ], ( byte )0xff, ( byte )0xff, ( byte )0xff, ( byte )0xff, 0x07 } );
+		/* a merge of 2^35 fragments */
+		assertMalformed( new byte[]{ merge[ 0 ], merge[ 1 ], ( byte )0x80, ( byte )0x80, ( byte )0x80, ( byte )0x80, ( byte )0x80, 0x01 } );
+		/* one fragment too few */
+		assertMalformed( Arrays.copyOf( merge, merge.length - 1 ) );
+
+		final AssignmentDeltaData delta = new AssignmentDeltaData( 1 );
+		delta.ops = new byte[]{ AssignmentDeltaData.MERGE };
+		delta.args = new long[]{ 1, 2 };
+		assertMalformed( new Message( delta ).toBinary() );
+		delta.ops = new byte[]{ AssignmentDeltaData.ASSIGN };
+		delta.args = new long[]{ 1000, 1, 2 };
+		assertMalformed( new Message( delta ).toBinary() );
+		delta.ops = new byte[]{ 17 };
+		delta.args = new long[ 0 ];
+		assertMalformed( new Message( delta ).toBinary() );
+
+		final EditData edit = new EditData( 1, 0 );
+		edit.ops = new byte[]{ EditData.MERGE };
+		edit.args = new long[]{ 1 };
+		assertMalformed( new Message( edit ).toBinary() );
+
+		assertMalformed( new Message( new IdData( 1, Integer.MAX_VALUE, new long[ 0 ] ) ).toBinary() );
+	}
+
+	@Test
+	public void testResyncOnGap()
+	{
+		final AssignmentSequencer sequencer = sequencer( 1000 );
+		final FragmentSegmentAssignment replicaAssignment = new FragmentSegmentAssignment( new LocalIdService() );
+		final AssignmentReplica replica = new AssignmentReplica( replicaAssignment, null, null, 0 );
+
+		final ArrayList< Message > deltas = new ArrayList<>();
+		for ( int i = 1; i < 10; ++i )
+		{
+			final AssignmentDeltaData batch = new AssignmentDeltaData();
+			sequencer.resolve( merge( 0, i ), batch );
+			if ( i % 3 == 0 )
+				sequencer.resolve( isolate( i - 1 ), batch );
+			deltas.add( sequencer.sequence( batch ) );
+		}
+
+		Assert.assertNull( replica.receive( deltas.get( 0 ) ) );
+		Assert.assertNull( replica.receive( deltas.get( 1 ) ) );
+		Assert.assertEquals( 2, replica.getSequence() );
+
+		/* the third delta is lost */
+		final Message resync = replica.receive( deltas.get( 3 ) );
+		Assert.assertEquals( Message.MessageType.RESYNC, resync.getType() );
+		Assert.assertEquals( 2, ( ( Message.ResyncData )resync.getData() ).sequence );
+		Assert.assertNull( replica.receive( deltas.get( 4 ) ) );
+		Assert.assertEquals( 2, replica.getSequence() );
+
+		final Message snapshot = sequencer.snapshot();
+		for ( int i = 5; i < deltas.size(); ++i )
+			replica.receive( deltas.get( i ) );
+		replica.receive( snapshot );
+		Assert.assertEquals( 9, replica.getSequence() );
+		Assert.assertEquals( sequencer.assignment.getLut(), replicaAssignment.getLut() );
+	}
+
+	/**
+	 * Stub server that resolves all edits that arrived since the last
+	 * batch into one delta.
+	 */
+	static private class StubServer extends Thread
+	{
+		final AssignmentSequencer sequencer;
+
+		final Socket socket;
+
+		volatile boolean running = true;
+
+		/* edits that were sent back as deltas */
+		volatile int numSequenced = 0;
+
+		StubServer( final ZContext ctx, final String url, final AssignmentSequencer sequencer )
+		{
+			this.sequencer = sequencer;
+			socket = ctx.createSocket( ZMQ.PAIR );
+			socket.setReceiveTimeOut( 10 );
+			socket.bind( url );
+		}
+
+		private void send( final Message msg ) throws IOException
+		{
+			socket.send( msg.toBinary(), 0 );
+		}
+
+		@Override
+		public void run()
+		{
+			try
+			{
+				while ( running )
+				{
+					byte[] bytes = socket.recv( 0 );
+					final AssignmentDeltaData batch = new AssignmentDeltaData();
+					int numEdits = 0;
+					boolean snapshotRequested = false;
+					while ( bytes != null )
+					{
+						if ( sequencer.resolve( Message.fromBinary( bytes ), batch ) )
+							++numEdits;
+						else
+							/* handshake or resync */
+							snapshotRequested = true;
+						bytes = socket.recv( ZMQ.DONTWAIT );
+					}
+					if ( !batch.isEmpty() )
+						send( sequencer.sequence( batch ) );
+					numSequenced += numEdits;
+					if ( snapshotRequested || sequencer.isSnapshotDue() )
+						send( sequencer.snapshot() );
+				}
+			}
+			catch ( final IOException e )
+			{
+				e.printStackTrace();
+			}
+		}
+	}
+
+	@Test
+	public void testBurstInProcess() throws Exception
+	{
+		final int numEdits = 10000;
+		final String url = "inproc://bigcat-assignment-sync-test";
+		final ZContext ctx = new ZContext();
+		try
+		{
+			final StubServer server = new StubServer( ctx, url, sequencer( 64 ) );
+			server.start();
+
+			final Socket client = ctx.createSocket( ZMQ.PAIR );
+			client.connect( url );
+			final FragmentSegmentAssignment assignment = new FragmentSegmentAssignment( new LocalIdService() );
+			final AssignmentReplica replica = new AssignmentReplica( assignment, null, null );
+
+			client.send( new Message().toBinary(), 0 );
+
+			final long t = System.nanoTime();
+			int numSent = 0;
+			while ( server.numSequenced < numEdits || replica.getSequence() < server.sequencer.getSequence() )
+			{
+				/* send in small chunks such that neither side blocks on a full queue */
+				for ( int i = 0; i < 100 && numSent < numEdits; ++i, ++numSent )
+					client.send( ( numSent % 10 == 9 ? isolate( numSent ) : merge( numSent, numSent + 1 ) ).toBinary(), 0 );
+				for ( byte[] bytes = client.recv( ZMQ.DONTWAIT ); bytes != null; bytes = client.recv( ZMQ.DONTWAIT ) )
+				{
+					final Message reply = replica.receive( Message.fromBinary( bytes ) );
+					if ( reply != null )
+						client.send( reply.toBinary(), 0 );
+				}
+				Assert.assertTrue( "timeout", System.nanoTime() - t < 30000000000L );
+			}
+			server.running = false;
+			server.join();
+
+			final TLongLongHashMap expected = server.sequencer.assignment.getLut();
+			Assert.assertEquals( expected, assignment.getLut() );
+		}
+		finally
+		{
+			ctx.destroy();
+		}
+	}
+}
@@ -0,0 +1,317 @@
+package bdv.bigcat;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.zeromq.ZContext;
+import org.zeromq.ZMQ;
+import org.zeromq.ZMQ.Socket;
+
+import bdv.bigcat.Message.AssignmentDeltaData;
+import bdv.bigcat.Message.EditData;
+import bdv.bigcat.Message.EditResultData;
+import bdv.bigcat.Message.IdData;
+import bdv.bigcat.label.FragmentSegmentAssignment;
+import bdv.util.LocalIdService;
+import gnu.trove.list.array.TLongArrayList;
+
+public class SessionServerTest
+{
+	static private final String EDIT_URL = "inproc://bigcat-session-edit";
+
+	static private final String BROADCAST_URL = "inproc://bigcat-session-broadcast";
+
+	static private final long FIRST_ID = 1000000;
+
+	private ZContext ctx;
+
+	private SessionServer server;
+
+	private final ArrayList< SessionClient > clients = new ArrayList<>();
+
+	@Before
+	public void setUp()
+	{
+		ctx = new ZContext();
+		final LocalIdService idService = new LocalIdService();
+		idService.setNext( FIRST_ID );
+		server = new SessionServer( ctx, EDIT_URL, BROADCAST_URL, new FragmentSegmentAssignment( idService ), idService, 64 );
+		server.start();
+	}
+
+	@After
+	public void tearDown() throws InterruptedException
+	{
+		for ( final SessionClient client : clients )
+			client.close();
+		server.stop();
+		ctx.destroy();
+	}
+
+	private SessionClient connect() throws InterruptedException
+	{
+		return connect( null );
+	}
+
+	private SessionClient connect( final Runnable onChange ) throws InterruptedException
+	{
+		final SessionClient client = new SessionClient( ctx, EDIT_URL, BROADCAST_URL, new FragmentSegmentAssignment( new LocalIdService() ), null, onChange );
+		clients.add( client );
+		awaitSequence( client, server.getSequence() );
+		return client;
+	}
+
+	static private void awaitSequence( final SessionClient client, final long sequence ) throws InterruptedException
+	{
+		final long t = System.currentTimeMillis();
+		while ( client.getSequence() < sequence )
+		{
+			Assert.assertTrue( "timeout", System.currentTimeMillis() - t < 10000 );
+			Thread.sleep( 1 );
+		}
+	}
+
+	@Test
+	public void testBinaryRoundTrip() throws IOException
+	{
+		final EditData edit = new EditData( 3, 17 );
+		edit.merge( 1, 2 );
+		edit.detach( 3, 4 );
+		final EditData decodedEdit = ( EditData )Message.fromBinary( new Message( edit ).toBinary() ).getData();
+		Assert.assertEquals( 3, decodedEdit.request );
+		Assert.assertEquals( 17, decodedEdit.baseSequence );
+		Assert.assertArrayEquals( new byte[]{ EditData.MERGE, EditData.DETACH }, decodedEdit.ops );
+		Assert.assertArrayEquals( new long[]{ 1, 2, 3, 4 }, decodedEdit.args );
+
+		final EditResultData decodedResult = ( EditResultData )Message.fromBinary( new Message( new EditResultData( 3, 18, true ) ).toBinary() ).getData();
+		Assert.assertEquals( 18, decodedResult.sequence );
+		Assert.assertTrue( decodedResult.accepted );
+
+		final IdData decodedIds = ( IdData )Message.fromBinary( new Message( new IdData( 4, 2, new long[]{ 5, 6 } ) ).toBinary() ).getData();
+		Assert.assertEquals( 2, decodedIds.n );
+		Assert.assertArrayEquals( new long[]{ 5, 6 }, decodedIds.ids );
+	}
+
+	@Test
+	public void testConflictDetection()
+	{
+		final LocalIdService idService = new LocalIdService();
+		idService.setNext( FIRST_ID );
+		final AssignmentSequencer sequencer = new AssignmentSequencer( new FragmentSegmentAssignment( idService ), idService, 1000 );
+
+		final AssignmentDeltaData batch = new AssignmentDeltaData();
+		final EditData merge = new EditData( 1, 0 );
+		merge.merge( 1, 2 );
+		Assert.assertTrue( sequencer.resolve( merge, batch ) );
+		sequencer.sequence( batch );
+		final long merged = sequencer.assignment.getSegment( 1 );
+
+		/* segment 1 does not exist anymore */
+		final EditData staleMerge = new EditData( 2, 0 );
+		staleMerge.merge( 1, 3 );
+		Assert.assertFalse( sequencer.resolve( staleMerge, new AssignmentDeltaData() ) );
+
+		/* the merged segment did not exist at sequence 0 */
+		final EditData staleDetach = new EditData( 3, 0 );
+		staleDetach.detach( 1, merged );
+		Assert.assertFalse( sequencer.resolve( staleDetach, new AssignmentDeltaData() ) );
+
+		/* all or nothing */
+		final EditData partlyStale = new EditData( 4, 1 );
+		partlyStale.merge( 3, 4 );
+		partlyStale.detach( 2, 2 );
+		Assert.assertFalse( sequencer.resolve( partlyStale, new AssignmentDeltaData() ) );
+		Assert.assertNotEquals( sequencer.assignment.getSegment( 3 ), sequencer.assignment.getSegment( 4 ) );
+
+		final AssignmentDeltaData batch2 = new AssignmentDeltaData();
+		final EditData detach = new EditData( 5, 1 );
+		detach.detach( 1, merged );
+		detach.merge( 3, 4 );
+		Assert.assertTrue( sequencer.resolve( detach, batch2 ) );
+		Assert.assertEquals( 2, batch2.numOps() );
+		Assert.assertEquals( 1, sequencer.assignment.getSegment( 1 ) );
+		Assert.assertEquals( sequencer.assignment.getSegment( 3 ), sequencer.assignment.getSegment( 4 ) );
+	}
+
+	@Test
+	public void testConcurrentMerges() throws Exception
+	{
+		final SessionClient client1 = connect();
+		final SessionClient client2 = connect();
+
+		final EditResultData accepted = client1.merge( 1, 2 ).get();
+		Assert.assertTrue( accepted.accepted );
+		Assert.assertEquals( 1, accepted.sequence );
+
+		/* client2 merges what it saw before the merge of client1 */
+		final EditData stale = new EditData( client2.nextRequest(), 0 );
+		stale.merge( 2, 3 );
+		final EditResultData rejected = client2.submit( stale ).get();
+		Assert.assertFalse( rejected.accepted );
+
+		awaitSequence( client2, accepted.sequence );
+		Assert.assertTrue( client2.merge( 2, 3 ).get().accepted );
+
+		awaitSequence( client1, server.getSequence() );
+		awaitSequence( client2, server.getSequence() );
+		Assert.assertEquals( server.getAssignment().getLut(), client1.assignment.getLut() );
+		Assert.assertEquals( server.getAssignment().getLut(), client2.assignment.getLut() );
+		Assert.assertEquals( client1.assignment.getSegment( 1 ), client1.assignment.getSegment( 3 ) );
+	}
+
+	@Test
+	public void testMalformedMessages() throws Exception
+	{
+		final SessionClient client = connect();
+
+		final Socket socket = ctx.createSocket( ZMQ.DEALER );
+		socket.setReceiveTimeOut( 10000 );
+		socket.connect( EDIT_URL );
+
+		/* truncated edit */
+		final EditData edit = new EditData( 1, 0 );
+		edit.merge( 1, 2 );
+		final byte[] bytes = new Message( edit ).toBinary();
+		socket.send( Arrays.copyOf( bytes, bytes.length - 3 ), 0 );
+
+		/* one op with three args */
+		final EditData malformed = new EditData( 2, 0 );
+		malformed.merge( 1, 2 );
+		malformed.args = new long[]{ 1, 2, 3 };
+		socket.send( new Message( malformed ).toBinary(), 0 );
+
+		final EditResultData rejected = ( EditResultData )Message.fromBinary( socket.recv( 0 ) ).getData();
+		Assert.assertEquals( 2, rejected.request );
+		Assert.assertFalse( rejected.accepted );
+		ctx.destroySocket( socket );
+
+		/* the server still serves other clients */
+		Assert.assertTrue( client.merge( 1, 2 ).get().accepted );
+		Assert.assertEquals( 1, server.getSequence() );
+	}
+
+	@Test
+	public void testRemoteIds() throws Exception
+	{
+		final SessionClient client = connect();
+		final long[] ids = client.getIdService().next( 3 );
+		Assert.assertEquals( 3, ids.length );
+		Assert.assertTrue( ids[ 0 ] >= FIRST_ID );
+		Assert.assertEquals( ids[ 0 ] + 2, ids[ 2 ] );
+		Assert.assertEquals( ids[ 2 ] + 1, client.getIdService().peek() );
+
+		client.getIdService().invalidate( 5000000 );
+		Assert.assertEquals( 5000001, client.getIdService().peek() );
+		Assert.assertEquals( 5000001, client.getIdService().next() );
+		Assert.assertEquals( 5000002, client.getIdService().peek() );
+	}
+
+	/**
+	 * Dozens of clients edit concurrently.  Most edits touch segments of one
+	 * client only, some merge into a segment shared by all clients and may
+	 * be rejected.  Every client applies the deltas in order, the
+	 * results of the edits of a client are ordered as they were sent, and
+	 * accepted edits reach all clients.
+	 */
+	@Test
+	public void testManyClients() throws Exception
+	{
+		final int numClients = 24;
+		final int numEditsPerClient = 50;
+
+		final ArrayList< TLongArrayList > appliedSequences = new ArrayList<>();
+		for ( int i = 0; i < numClients; ++i )
+		{
+			final TLongArrayList applied = new TLongArrayList();
+			/* the snapshot may arrive before the client is known */
+			final AtomicReference< SessionClient > client = new AtomicReference<>();
+			client.set( connect( () -> {
+				if ( client.get() != null )
+					synchronized ( applied )
+					{
+						applied.add( client.get().getSequence() );
+					}
+			} ) );
+			appliedSequences.add( applied );
+		}
+
+		final AtomicInteger numAccepted = new AtomicInteger();
+		final AtomicInteger numRejected = new AtomicInteger();
+		final ArrayList< Thread > annotators = new ArrayList<>();
+		final ArrayList< Throwable > failures = new ArrayList<>();
+		for ( int i = 0; i < numClients; ++i )
+		{
+			final SessionClient client = clients.get( i );
+			final long firstFragment = ( i + 1 ) * 1000;
+			final Thread annotator = new Thread( () -> {
+				try
+				{
+					long lastSequence = 0;
+					for ( int k = 0; k < numEditsPerClient; ++k )
+					{
+						final long fragment = firstFragment + k;
+						final EditResultData result;
+						if ( k % 10 == 9 )
+							result = client.merge( 0, fragment ).get();
+						else if ( k % 5 == 4 )
+							result = client.detach( fragment - 1 ).get();
+						else
+							result = client.merge( fragment, fragment + 1 ).get();
+						if ( result.accepted )
+						{
+							Assert.assertTrue( "out of order", result.sequence > lastSequence );
+							for ( final SessionClient other : clients )
+								awaitSequence( other, result.sequence );
+							numAccepted.incrementAndGet();
+						}
+						else
+						{
+							Assert.assertTrue( "out of order", result.sequence >= lastSequence );
+							awaitSequence( client, result.sequence );
+							numRejected.incrementAndGet();
+						}
+						lastSequence = result.sequence;
+					}
+				}
+				catch ( final Throwable e )
+				{
+					synchronized ( failures )
+					{
+						failures.add( e );
+					}
+				}
+			} );
+			annotators.add( annotator );
+			annotator.start();
+		}
+		for ( final Thread annotator : annotators )
+			annotator.join();
+
+		Assert.assertEquals( new ArrayList<>(), failures );
+		Assert.assertEquals( numClients * numEditsPerClient, numAccepted.get() + numRejected.get() );
+		Assert.assertTrue( numAccepted.get() > 0 );
+
+		for ( int i = 0; i < numClients; ++i )
+		{
+			final SessionClient client = clients.get( i );
+			awaitSequence( client, server.getSequence() );
+			Assert.assertEquals( server.getAssignment().getLut(), client.assignment.getLut() );
+
+			/* the replica never went back, periodic snapshots repeat the current sequence */
+			final TLongArrayList applied = appliedSequences.get( i );
+			synchronized ( applied )
+			{
+				for ( int k = 1; k < applied.size(); ++k )
+					Assert.assertTrue( applied.get( k ) >= applied.get( k - 1 ) );
+				Assert.assertEquals( server.getSequence(), applied.get( applied.size() - 1 ) );
+			}
+		}
+	}
+}
@@ -0,0 +1,85 @@
+package bdv.bigcat.annotation;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Overlay sized window queries on synapse annotations, each after one
+ * annotation was moved, as {@link bdv.bigcat.ui.AnnotationsOverlay} sees
+ * them while annotations are edited.  The incremental index is compared
+ * with rebuilding the tree after every edit as before.
+ */
+@State( Scope.Benchmark )
+@BenchmarkMode( Mode.AverageTime )
+@OutputTimeUnit( TimeUnit.MICROSECONDS )
+@Warmup( iterations = 3 )
+@Measurement( iterations = 5 )
+@Fork( 1 )
+public class AnnotationsBenchmark
+{
+	static private final double SIZE = 10000;
+
+	@Param( { "200000", "1000000" } )
+	public int numAnnotations;
+
+	@Param( { "false", "true" } )
+	public boolean rebuild;
+
+	private final Random rnd = new Random( 2 );
+
+	private Annotations annotations;
+
+	private List< Annotation > all;
+
+	@Setup( Level.Trial )
+	public void setup()
+	{
+		annotations = new Annotations();
+		all = new ArrayList<>( numAnnotations );
+		for ( int i = 0; i < numAnnotations; ++i )
+		{
+			final Synapse s = new Synapse( i, AnnotationsTest.randomPoint( rnd, SIZE ), "" );
+			annotations.add( s );
+			all.add( s );
+		}
+		annotations.getKNearest( AnnotationsTest.randomPoint( rnd, SIZE ), 1 );
+	}
+
+	@Benchmark
+	public int moveAndQueryWindow()
+	{
+		final Annotation a = all.get( rnd.nextInt( all.size() ) );
+		a.setPosition( AnnotationsTest.randomPoint( rnd, SIZE ) );
+		if ( rebuild )
+			annotations.markDirty();
+		else
+			annotations.markMoved( a );
+
+		final double[] min = { rnd.nextDouble() * ( SIZE - 1000 ), rnd.nextDouble() * ( SIZE - 1000 ), rnd.nextDouble() * ( SIZE - 10 ) };
+		final double[] max = { min[ 0 ] + 1000, min[ 1 ] + 1000, min[ 2 ] + 10 };
+		return annotations.getLocalAnnotations( AnnotationsTest.box( min, max ) ).size();
+	}
+
+	public static void main( final String[] args ) throws RunnerException
+	{
+		new Runner( new OptionsBuilder().include( AnnotationsBenchmark.class.getSimpleName() ).build() ).run();
+	}
+}
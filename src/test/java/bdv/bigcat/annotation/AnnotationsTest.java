@@ -0,0 +1,167 @@
+package bdv.bigcat.annotation;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+import net.imglib2.RealPoint;
+import net.imglib2.algorithm.kdtree.ConvexPolytope;
+import net.imglib2.algorithm.kdtree.HyperPlane;
+
+/**
+ * Compares {@link Annotations} queries with brute force while annotations
+ * are added, removed, and moved.
+ */
+public class AnnotationsTest
+{
+	static RealPoint randomPoint( final Random rnd, final double size )
+	{
+		return new RealPoint( rnd.nextDouble() * size, rnd.nextDouble() * size, rnd.nextDouble() * size );
+	}
+
+	static ConvexPolytope box( final double[] min, final double[] max )
+	{
+		return new ConvexPolytope(
+				new HyperPlane( 1, 0, 0, min[ 0 ] ),
+				new HyperPlane( -1, 0, 0, -max[ 0 ] ),
+				new HyperPlane( 0, 1, 0, min[ 1 ] ),
+				new HyperPlane( 0, -1, 0, -max[ 1 ] ),
+				new HyperPlane( 0, 0, 1, min[ 2 ] ),
+				new HyperPlane( 0, 0, -1, -max[ 2 ] ) );
+	}
+
+	static HashSet< Annotation > inside( final Iterable< Annotation > annotations, final double[] min, final double[] max )
+	{
+		final HashSet< Annotation > inside = new HashSet<>();
+		A: for ( final Annotation a : annotations )
+		{
+			for ( int d = 0; d < 3; ++d )
+			{
+				final double x = a.getPosition().getDoublePosition( d );
+				if ( x < min[ d ] || x > max[ d ] )
+					continue A;
+			}
+			inside.add( a );
+		}
+		return inside;
+	}
+
+	static double squareDistance( final Annotation a, final RealPoint p )
+	{
+		double sum = 0;
+		for ( int d = 0; d < 3; ++d )
+		{
+			final double diff = a.getPosition().getDoublePosition( d ) - p.getDoublePosition( d );
+			sum += diff * diff;
+		}
+		return sum;
+	}
+
+	@Test
+	public void testQueriesWithEdits()
+	{
+		final Random rnd = new Random( 1 );
+		final Annotations annotations = new Annotations();
+		final List< Annotation > all = new ArrayList<>();
+		long nextId = 0;
+
+		for ( int i = 0; i < 5000; ++i )
+		{
+			final Synapse s = new Synapse( nextId++, randomPoint( rnd, 100 ), "" );
+			annotations.add( s );
+			all.add( s );
+		}
+
+		for ( int round = 0; round < 200; ++round )
+		{
+			// a few edits
+			for ( int e = 0; e < 20; ++e )
+			{
+				final int op = rnd.nextInt( 3 );
+				if ( op == 0 || all.isEmpty() )
+				{
+					final Synapse s = new Synapse( nextId++, randomPoint( rnd, 100 ), "" );
+					annotations.add( s );
+					all.add( s );
+				}
+				else if ( op == 1 )
+				{
+					final Annotation a = all.remove( rnd.nextInt( all.size() ) );
+					annotations.remove( a );
+				}
+				else
+				{
+					final Annotation a = all.get( rnd.nextInt( all.size() ) );
+					a.setPosition( randomPoint( rnd, 100 ) );
+					annotations.markMoved( a );
+				}
+			}
+
+			// window query
+			final double[] min = new double[ 3 ];
+			final double[] max = new double[ 3 ];
+			for ( int d = 0; d < 3; ++d )
+			{
+				min[ d ] = rnd.nextDouble() * 80;
+				max[ d ] = min[ d ] + 20;
+			}
+			final List< Annotation > local = annotations.getLocalAnnotations( box( min, max ) );
+			assertEquals( inside( all, min, max ), new HashSet<>( local ) );
+			assertEquals( local.size(), new HashSet<>( local ).size() );
+
+			// nearest neighbor query
+			final RealPoint p = randomPoint( rnd, 100 );
+			final List< Annotation > nearest = annotations.getKNearest( p, 3 );
+			final List< Annotation > sorted = new ArrayList<>( all );
+			sorted.sort( ( a, b ) -> Double.compare( squareDistance( a, p ), squareDistance( b, p ) ) );
+			assertEquals( 3, nearest.size() );
+			for ( int i = 0; i < 3; ++i )
+				assertEquals( squareDistance( sorted.get( i ), p ), squareDistance( nearest.get( i ), p ), 0 );
+		}
+	}
+
+	/**
+	 * Adding an annotation again, or another one with the same id, does not
+	 * duplicate it in query results.
+	 */
+	@Test
+	public void testAddAgain()
+	{
+		final Random rnd = new Random( 3 );
+		final Annotations annotations = new Annotations();
+		final List< Annotation > all = new ArrayList<>();
+		for ( int i = 0; i < 10; ++i )
+		{
+			final Synapse s = new Synapse( i, randomPoint( rnd, 100 ), "" );
+			annotations.add( s );
+			all.add( s );
+		}
+		final double[] min = new double[]{ 0, 0, 0 };
+		final double[] max = new double[]{ 100, 100, 100 };
+		assertEquals( 10, annotations.getLocalAnnotations( box( min, max ) ).size() );
+
+		annotations.add( all.get( 0 ) );
+		final Synapse replacement = new Synapse( 1, randomPoint( rnd, 100 ), "" );
+		annotations.add( replacement );
+		annotations.add( replacement );
+		all.set( 1, replacement );
+
+		final List< Annotation > local = annotations.getLocalAnnotations( box( min, max ) );
+		assertEquals( 10, local.size() );
+		assertEquals( new HashSet<>( all ), new HashSet<>( local ) );
+		assertEquals( 3, annotations.getKNearest( randomPoint( rnd, 100 ), 3 ).size() );
+		assertEquals( new HashSet<>( annotations.getKNearest( randomPoint( rnd, 100 ), 10 ) ), new HashSet<>( all ) );
+
+		/* getAnnotations is a snapshot */
+		final Collection< Annotation > snapshot = annotations.getAnnotations();
+		annotations.remove( replacement );
+		assertEquals( 10, snapshot.size() );
+		assertEquals( 9, annotations.getAnnotations().size() );
+	}
+}
@@ -0,0 +1,101 @@
+package bdv.bigcat.label;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import bdv.img.SparseLongCanvas;
+import bdv.util.LocalIdService;
+
+/**
+ * Overhead of recording brush strokes in an {@link EditJournal}.  A stroke
+ * paints spheres along a diagonal line through a 256^3
+ * {@link SparseLongCanvas} as the brush controller does while dragging.
+ */
+@State( Scope.Benchmark )
+@BenchmarkMode( Mode.AverageTime )
+@OutputTimeUnit( TimeUnit.MILLISECONDS )
+@Warmup( iterations = 3 )
+@Measurement( iterations = 10 )
+@Fork( 1 )
+public class EditJournalBenchmark
+{
+	static private final int SIZE = 256;
+
+	@Param( { "5", "20" } )
+	public int brushRadius;
+
+	private SparseLongCanvas canvas;
+
+	private EditJournal journal;
+
+	private long label = 0;
+
+	@Setup( Level.Iteration )
+	public void setup()
+	{
+		canvas = new SparseLongCanvas( new long[]{ SIZE, SIZE, SIZE }, new int[]{ 64, 64, 64 }, 0 );
+		journal = new EditJournal( canvas, new FragmentSegmentAssignment( new LocalIdService() ) );
+	}
+
+	private void stroke()
+	{
+		++label;
+		final SparseLongCanvas.SparseLongCanvasRandomAccess access = canvas.randomAccess();
+		final int r2 = brushRadius * brushRadius;
+		for ( int c = brushRadius; c < SIZE - brushRadius; c += 2 )
+			for ( int z = -brushRadius; z <= brushRadius; ++z )
+				for ( int y = -brushRadius; y <= brushRadius; ++y )
+					for ( int x = -brushRadius; x <= brushRadius; ++x )
+						if ( x * x + y * y + z * z <= r2 )
+						{
+							access.setPosition( c + x, 0 );
+							access.setPosition( c + y, 1 );
+							access.setPosition( SIZE / 2 + z, 2 );
+							access.get().set( label );
+						}
+	}
+
+	@Benchmark
+	public void strokeWithoutJournal()
+	{
+		stroke();
+	}
+
+	@Benchmark
+	public void strokeWithJournal()
+	{
+		journal.begin();
+		stroke();
+		journal.commit( "paint" );
+	}
+
+	@Benchmark
+	public void undoRedoStroke()
+	{
+		journal.begin();
+		stroke();
+		journal.commit( "paint" );
+		journal.undo();
+		journal.redo();
+	}
+
+	public static void main( final String[] args ) throws RunnerException
+	{
+		new Runner( new OptionsBuilder().include( EditJournalBenchmark.class.getSimpleName() ).build() ).run();
+	}
+}
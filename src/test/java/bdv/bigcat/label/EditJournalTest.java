@@ -0,0 +1,281 @@
+package bdv.bigcat.label;
+
+import java.util.ArrayList;
+import java.util.Random;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import bdv.img.SparseLongCanvas;
+import bdv.util.FloodFillEngine;
+import bdv.util.LocalIdService;
+import net.imglib2.Interval;
+
+public class EditJournalTest
+{
+	static private long[] snapshot( final SparseLongCanvas canvas )
+	{
+		final long[] values = new long[ ( int ) ( canvas.dimension( 0 ) * canvas.dimension( 1 ) * canvas.dimension( 2 ) ) ];
+		final SparseLongCanvas.SparseLongCanvasRandomAccess access = canvas.randomAccess();
+		int i = 0;
+		for ( int z = 0; z < canvas.dimension( 2 ); ++z )
+			for ( int y = 0; y < canvas.dimension( 1 ); ++y )
+				for ( int x = 0; x < canvas.dimension( 0 ); ++x )
+				{
+					access.setPosition( new long[]{ x, y, z } );
+					values[ i++ ] = access.get().get();
+				}
+		return values;
+	}
+
+	static private void paintRandomEdits( final EditJournal journal, final SparseLongCanvas canvas, final ArrayList< long[] > snapshots )
+	{
+		final Random rnd = new Random( 18 );
+		final SparseLongCanvas.SparseLongCanvasRandomAccess access = canvas.randomAccess();
+		snapshots.add( snapshot( canvas ) );
+		for ( int e = 0; e < 20; ++e )
+		{
+			journal.begin();
+			/* nested edits are recorded as one */
+			journal.begin();
+			final long value = 1 + rnd.nextInt( 4 );
+			final long[] center = new long[]{ rnd.nextInt( 40 ), rnd.nextInt( 30 ), rnd.nextInt( 20 ) };
+			for ( int k = 0; k < 200; ++k )
+			{
+				for ( int d = 0; d < 3; ++d )
+					access.setPosition( Math.min( canvas.max( d ), center[ d ] + rnd.nextInt( 6 ) ), d );
+				access.get().set( value );
+			}
+			journal.commit( "paint" );
+			journal.commit( "paint" );
+			snapshots.add( snapshot( canvas ) );
+			Assert.assertEquals( e + 1, journal.numUndoEntries() );
+		}
+	}
+
+	private void testUndoRedo( final long maxBytesInMemory )
+	{
+		final SparseLongCanvas canvas = new SparseLongCanvas( new long[]{ 40, 30, 20 }, new int[]{ 8, 8, 8 }, 0 );
+		final EditJournal journal = new EditJournal( canvas, new FragmentSegmentAssignment( new LocalIdService() ), maxBytesInMemory );
+		final ArrayList< long[] > snapshots = new ArrayList<>();
+		paintRandomEdits( journal, canvas, snapshots );
+		if ( maxBytesInMemory == 0 )
+			Assert.assertTrue( journal.getBytesInMemory() < snapshots.size() * 200 * 24 / 10 );
+
+		for ( int e = snapshots.size() - 1; e > 0; --e )
+		{
+			final Interval interval = journal.undo();
+			Assert.assertNotNull( interval );
+			Assert.assertArrayEquals( snapshots.get( e - 1 ), snapshot( canvas ) );
+		}
+		Assert.assertNull( journal.undo() );
+
+		for ( int e = 1; e < snapshots.size(); ++e )
+		{
+			journal.redo();
+			Assert.assertArrayEquals( snapshots.get( e ), snapshot( canvas ) );
+		}
+		Assert.assertNull( journal.redo() );
+
+		/* a new edit drops the undone edits */
+		journal.undo();
+		journal.begin();
+		canvas.randomAccess().get().set( 7 );
+		journal.commit( "paint" );
+		Assert.assertEquals( 0, journal.numRedoEntries() );
+	}
+
+	@Test
+	public void testCanvasUndoRedo()
+	{
+		testUndoRedo( Long.MAX_VALUE );
+	}
+
+	@Test
+	public void testCanvasUndoRedoSpilled()
+	{
+		testUndoRedo( 0 );
+	}
+
+	/**
+	 * Dropping undone edits gives back their space in the spill file.
+	 */
+	@Test
+	public void testSpillReclaimed() throws Exception
+	{
+		final SparseLongCanvas canvas = new SparseLongCanvas( new long[]{ 40, 30, 20 }, new int[]{ 8, 8, 8 }, 0 );
+		final EditJournal journal = new EditJournal( canvas, new FragmentSegmentAssignment( new LocalIdService() ), 0 );
+		paintRandomEdits( journal, canvas, new ArrayList<>() );
+		final long spilled = journal.getSpillFileLength();
+		Assert.assertTrue( spilled > 0 );
+
+		/* the spilled half of the history */
+		for ( int e = 0; e < 10; ++e )
+			journal.undo();
+		journal.begin();
+		canvas.randomAccess().get().set( 7 );
+		journal.commit( "paint" );
+		Assert.assertTrue( journal.getSpillFileLength() < spilled );
+
+		while ( journal.undo() != null );
+		journal.begin();
+		canvas.randomAccess().get().set( 7 );
+		journal.commit( "paint" );
+		Assert.assertEquals( 0, journal.getSpillFileLength() );
+	}
+
+	/**
+	 * Writes of several threads during one edit are recorded as one entry.
+	 */
+	@Test
+	public void testConcurrentWriters() throws Exception
+	{
+		final SparseLongCanvas canvas = new SparseLongCanvas( new long[]{ 40, 30, 20 }, new int[]{ 8, 8, 8 }, 0 );
+		final EditJournal journal = new EditJournal( canvas, new FragmentSegmentAssignment( new LocalIdService() ) );
+		final long[] before = snapshot( canvas );
+		journal.begin();
+		final ArrayList< Thread > writers = new ArrayList<>();
+		for ( int t = 0; t < 4; ++t )
+		{
+			final long value = t + 1;
+			final Thread writer = new Thread( () -> {
+				final Random rnd = new Random( value );
+				final SparseLongCanvas.SparseLongCanvasRandomAccess access = canvas.randomAccess();
+				for ( int k = 0; k < 5000; ++k )
+				{
+					access.setPosition( new long[]{ rnd.nextInt( 40 ), rnd.nextInt( 30 ), rnd.nextInt( 20 ) } );
+					access.get().set( value );
+				}
+			} );
+			writers.add( writer );
+			writer.start();
+		}
+		for ( final Thread writer : writers )
+			writer.join();
+		journal.commit( "paint" );
+		final long[] after = snapshot( canvas );
+
+		Assert.assertEquals( 1, journal.numUndoEntries() );
+		journal.undo();
+		Assert.assertArrayEquals( before, snapshot( canvas ) );
+		journal.redo();
+		Assert.assertArrayEquals( after, snapshot( canvas ) );
+	}
+
+	/**
+	 * A job that paints a box and ends with status.
+	 */
+	static private FloodFillEngine.Job paintJob( final SparseLongCanvas canvas, final FloodFillEngine.Status status )
+	{
+		return cancellation -> {
+			final SparseLongCanvas.SparseLongCanvasRandomAccess access = canvas.randomAccess();
+			for ( int z = 2; z < 12; ++z )
+				for ( int y = 3; y < 20; ++y )
+					for ( int x = 5; x < 30; ++x )
+					{
+						access.setPosition( new long[]{ x, y, z } );
+						access.get().set( 7 );
+					}
+			if ( status == null )
+				throw new IllegalStateException();
+			return status;
+		};
+	}
+
+	/**
+	 * Jobs that do not complete leave no writes and no entry.
+	 */
+	@Test
+	public void testJobRolledBack()
+	{
+		final SparseLongCanvas canvas = new SparseLongCanvas( new long[]{ 40, 30, 20 }, new int[]{ 8, 8, 8 }, 0 );
+		final EditJournal journal = new EditJournal( canvas, new FragmentSegmentAssignment( new LocalIdService() ) );
+		paintRandomEdits( journal, canvas, new ArrayList<>() );
+		final long[] before = snapshot( canvas );
+
+		for ( final FloodFillEngine.Status status : new FloodFillEngine.Status[]{ FloodFillEngine.Status.CANCELLED, FloodFillEngine.Status.BUDGET_EXCEEDED } )
+		{
+			Assert.assertEquals( status, journal.journaled( "fill", paintJob( canvas, status ) ).run( null ) );
+			Assert.assertArrayEquals( before, snapshot( canvas ) );
+			Assert.assertEquals( 20, journal.numUndoEntries() );
+		}
+		try
+		{
+			journal.journaled( "fill", paintJob( canvas, null ) ).run( null );
+			Assert.fail();
+		}
+		catch ( final IllegalStateException e )
+		{}
+		Assert.assertArrayEquals( before, snapshot( canvas ) );
+		Assert.assertEquals( 20, journal.numUndoEntries() );
+
+		journal.journaled( "fill", paintJob( canvas, FloodFillEngine.Status.COMPLETE ) ).run( null );
+		Assert.assertEquals( 21, journal.numUndoEntries() );
+		journal.undo();
+		Assert.assertArrayEquals( before, snapshot( canvas ) );
+	}
+
+	/**
+	 * Jobs wait for open strokes, strokes are refused while a job runs.
+	 */
+	@Test
+	public void testJobsAndStrokes() throws Exception
+	{
+		final SparseLongCanvas canvas = new SparseLongCanvas( new long[]{ 40, 30, 20 }, new int[]{ 8, 8, 8 }, 0 );
+		final EditJournal journal = new EditJournal( canvas, new FragmentSegmentAssignment( new LocalIdService() ) );
+		final long[] before = snapshot( canvas );
+
+		Assert.assertTrue( journal.tryBegin() );
+		final boolean[] strokeDuringJob = new boolean[ 1 ];
+		final FloodFillEngine.Job job = paintJob( canvas, FloodFillEngine.Status.COMPLETE );
+		final Thread fill = new Thread( () -> journal.journaled( "fill", cancellation -> {
+			strokeDuringJob[ 0 ] = journal.tryBegin();
+			return job.run( cancellation );
+		} ).run( null ) );
+		fill.start();
+		fill.join( 200 );
+		Assert.assertTrue( fill.isAlive() );
+		Assert.assertArrayEquals( before, snapshot( canvas ) );
+
+		journal.commit( "paint" );
+		fill.join();
+		Assert.assertFalse( strokeDuringJob[ 0 ] );
+		Assert.assertEquals( 1, journal.numUndoEntries() );
+		Assert.assertTrue( journal.tryBegin() );
+		journal.commit( "paint" );
+	}
+
+	@Test
+	public void testAssignmentUndoRedo()
+	{
+		final LocalIdService idService = new LocalIdService();
+		idService.setNext( 100 );
+		final FragmentSegmentAssignment assignment = new FragmentSegmentAssignment( idService );
+		final EditJournal journal = new EditJournal( null, assignment );
+
+		journal.recordAssignment( "merge", () -> assignment.mergeFragmentSegments( 1, 2 ), 1, 2 );
+		journal.recordAssignment( "merge", () -> assignment.mergeFragmentSegments( 3, 2 ), 3, 2 );
+		final long segmentId = assignment.getSegment( 1 );
+		journal.recordAssignment( "split", () -> assignment.detachFragment( 2 ), 2 );
+		Assert.assertNotEquals( assignment.getSegment( 1 ), assignment.getSegment( 2 ) );
+
+		Assert.assertSame( EditJournal.EVERYWHERE, journal.undo() );
+		Assert.assertEquals( segmentId, assignment.getSegment( 2 ) );
+		Assert.assertEquals( segmentId, assignment.getSegment( 3 ) );
+
+		journal.undo();
+		Assert.assertEquals( assignment.getSegment( 1 ), assignment.getSegment( 2 ) );
+		Assert.assertNotEquals( assignment.getSegment( 1 ), assignment.getSegment( 3 ) );
+
+		journal.undo();
+		Assert.assertEquals( 1, assignment.getSegment( 1 ) );
+		Assert.assertEquals( 2, assignment.getSegment( 2 ) );
+		Assert.assertNull( journal.undo() );
+
+		journal.redo();
+		journal.redo();
+		journal.redo();
+		Assert.assertEquals( assignment.getSegment( 1 ), assignment.getSegment( 3 ) );
+		Assert.assertEquals( 2, assignment.getSegment( 2 ) );
+	}
+}
@@ -0,0 +1,146 @@
+package bdv.bigcat.label;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import bdv.util.LocalIdService;
+
+/**
+ * Lookups per second of {@link FragmentSegmentAssignment#getSegment(long)}
+ * by 8 render threads, alone and with a merge writer as the merge
+ * controller would run it.  The optimistic reads of the assignment are
+ * compared with readers and writers that serialize on the assignment's
+ * monitor as before.  Run with e.g. {@code -tg 16,1} for other numbers of
+ * readers.
+ */
+@State( Scope.Benchmark )
+@BenchmarkMode( Mode.Throughput )
+@OutputTimeUnit( TimeUnit.MICROSECONDS )
+@Warmup( iterations = 3 )
+@Measurement( iterations = 5 )
+@Fork( 1 )
+public class FragmentSegmentAssignmentBenchmark
+{
+	static private final int NUM_FRAGMENTS = 100000;
+
+	static private final int NUM_SEGMENTS = 1000;
+
+	static private final int NUM_LOOKUPS = 1024;
+
+	@Param( { "false", "true" } )
+	public boolean synchronize;
+
+	private FragmentSegmentAssignment assignment;
+
+	private long[] fragments;
+
+	@State( Scope.Thread )
+	public static class Lookups
+	{
+		private final Random rnd = new Random();
+
+		private long[] fragments;
+
+		@Setup
+		public void setup( final FragmentSegmentAssignmentBenchmark benchmark )
+		{
+			fragments = new long[ NUM_LOOKUPS ];
+			for ( int i = 0; i < NUM_LOOKUPS; ++i )
+				fragments[ i ] = benchmark.fragments[ rnd.nextInt( benchmark.fragments.length ) ];
+		}
+	}
+
+	@Setup( Level.Iteration )
+	public void setup()
+	{
+		final Random rnd = new Random( 1 );
+		fragments = new long[ NUM_FRAGMENTS ];
+		final long[] segments = new long[ NUM_FRAGMENTS ];
+		for ( int i = 0; i < NUM_FRAGMENTS; ++i )
+		{
+			fragments[ i ] = i + 1;
+			segments[ i ] = NUM_FRAGMENTS + 1 + rnd.nextInt( NUM_SEGMENTS );
+		}
+		final LocalIdService idService = new LocalIdService();
+		idService.setNext( NUM_FRAGMENTS + NUM_SEGMENTS + 1 );
+		assignment = new FragmentSegmentAssignment( fragments, segments, idService );
+	}
+
+	private long lookup( final Lookups lookups )
+	{
+		long sum = 0;
+		if ( synchronize )
+		{
+			for ( final long fragmentId : lookups.fragments )
+				synchronized ( assignment )
+				{
+					sum += assignment.getSegment( fragmentId );
+				}
+		}
+		else
+			for ( final long fragmentId : lookups.fragments )
+				sum += assignment.getSegment( fragmentId );
+		return sum;
+	}
+
+	@Benchmark
+	@Group( "read" )
+	@GroupThreads( 8 )
+	@OperationsPerInvocation( NUM_LOOKUPS )
+	public long getSegment( final Lookups lookups )
+	{
+		return lookup( lookups );
+	}
+
+	@Benchmark
+	@Group( "readWithMerges" )
+	@GroupThreads( 8 )
+	@OperationsPerInvocation( NUM_LOOKUPS )
+	public long getSegmentWhileMerging( final Lookups lookups )
+	{
+		return lookup( lookups );
+	}
+
+	/* a merge every few microseconds, far more often than by hand */
+	@Benchmark
+	@Group( "readWithMerges" )
+	@GroupThreads( 1 )
+	public void merge( final Lookups lookups )
+	{
+		final long fragmentId1 = fragments[ lookups.rnd.nextInt( NUM_FRAGMENTS ) ];
+		final long fragmentId2 = fragments[ lookups.rnd.nextInt( NUM_FRAGMENTS ) ];
+		if ( synchronize )
+			synchronized ( assignment )
+			{
+				assignment.mergeFragmentSegments( fragmentId1, fragmentId2 );
+			}
+		else
+			assignment.mergeFragmentSegments( fragmentId1, fragmentId2 );
+		Blackhole.consumeCPU( 10000 );
+	}
+
+	public static void main( final String[] args ) throws RunnerException
+	{
+		new Runner( new OptionsBuilder().include( FragmentSegmentAssignmentBenchmark.class.getSimpleName() ).build() ).run();
+	}
+}
@@ -0,0 +1,263 @@
+package bdv.bigcat.label;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.google.gson.stream.JsonWriter;
+
+import bdv.util.LocalIdService;
+import bdv.util.LutStreams;
+import gnu.trove.map.hash.TLongLongHashMap;
+
+public class FragmentSegmentAssignmentTest
+{
+	@Test
+	public void testMergeDetach()
+	{
+		final LocalIdService idService = new LocalIdService();
+		idService.setNext( 100 );
+		final FragmentSegmentAssignment assignment = new FragmentSegmentAssignment( idService );
+
+		Assert.assertEquals( 1, assignment.getSegment( 1 ) );
+		Assert.assertArrayEquals( new long[]{ 1 }, assignment.getFragments( 1 ) );
+
+		assignment.mergeFragmentSegments( 1, 2 );
+		final long segmentId = assignment.getSegment( 1 );
+		Assert.assertEquals( 100, segmentId );
+		Assert.assertEquals( segmentId, assignment.getSegment( 2 ) );
+		Assert.assertNull( assignment.getFragments( 1 ) );
+
+		assignment.mergeFragmentSegments( 3, 2 );
+		final long[] fragments = assignment.getFragments( assignment.getSegment( 3 ) ).clone();
+		Arrays.sort( fragments );
+		Assert.assertArrayEquals( new long[]{ 1, 2, 3 }, fragments );
+
+		assignment.detachFragment( 2 );
+		Assert.assertEquals( 2, assignment.getSegment( 2 ) );
+		Assert.assertEquals( assignment.getSegment( 1 ), assignment.getSegment( 3 ) );
+		Assert.assertEquals( 2, assignment.getFragments( assignment.getSegment( 1 ) ).length );
+	}
+
+	@Test
+	public void testSegmentMembership()
+	{
+		final LocalIdService idService = new LocalIdService();
+		idService.setNext( 100 );
+		final FragmentSegmentAssignment assignment = new FragmentSegmentAssignment( idService );
+		final SegmentMembership ofFragment = SegmentMembership.forFragment( assignment, 1 );
+		final SegmentMembership ofSegment = SegmentMembership.forSegment( assignment, 1 );
+
+		final long[] fragments = ofFragment.getFragments();
+		Assert.assertArrayEquals( new long[]{ 1 }, fragments );
+		Assert.assertSame( fragments, ofFragment.getFragments() );
+
+		assignment.mergeFragmentSegments( 1, 2 );
+		final long[] merged = ofFragment.getFragments().clone();
+		Arrays.sort( merged );
+		Assert.assertArrayEquals( new long[]{ 1, 2 }, merged );
+		Assert.assertEquals( 0, ofSegment.getFragments().length );
+	}
+
+	@Test
+	public void testInitLut()
+	{
+		final LocalIdService idService = new LocalIdService();
+		idService.setNext( 1000 );
+		final FragmentSegmentAssignment assignment = new FragmentSegmentAssignment( idService );
+
+		final TLongLongHashMap lut = new TLongLongHashMap();
+		for ( long id = 0; id < 100; ++id )
+			lut.put( id, id % 10 );
+		assignment.initLut( lut );
+
+		for ( long id = 0; id < 100; ++id )
+			Assert.assertEquals( id % 10, assignment.getSegment( id ) );
+		Assert.assertEquals( 10, assignment.getFragments( 3 ).length );
+		Assert.assertEquals( lut, assignment.getLut() );
+
+		/* detaching the fragment that names its segment relabels the rest */
+		assignment.detachFragment( 3 );
+		Assert.assertArrayEquals( new long[]{ 3 }, assignment.getFragments( 3 ) );
+		final long segmentId = assignment.getSegment( 13 );
+		Assert.assertEquals( 1000, segmentId );
+		Assert.assertEquals( 9, assignment.getFragments( segmentId ).length );
+
+		assignment.assignFragments( segmentId, 4 );
+		Assert.assertEquals( 4, assignment.getSegment( 93 ) );
+		Assert.assertEquals( 19, assignment.getFragments( 4 ).length );
+	}
+
+	@Test
+	public void testConcurrentReadersWithMergeWriter() throws InterruptedException
+	{
+		final LocalIdService idService = new LocalIdService();
+		idService.setNext( 1000000 );
+		final FragmentSegmentAssignment assignment = new FragmentSegmentAssignment( idService );
+
+		final int nFragments = 10000;
+		final AtomicBoolean done = new AtomicBoolean( false );
+		final AtomicLong failures = new AtomicLong( 0 );
+
+		final Thread[] readers = new Thread[ 8 ];
+		for ( int t = 0; t < readers.length; ++t )
+		{
+			readers[ t ] = new Thread( () -> {
+				while ( !done.get() )
+					for ( long id = 0; id < nFragments; ++id )
+					{
+						final long segmentId = assignment.getSegment( id );
+						if ( segmentId != id && segmentId < 1000000 )
+							failures.incrementAndGet();
+					}
+			} );
+			readers[ t ].start();
+		}
+
+		for ( long id = 1; id < nFragments; ++id )
+			assignment.mergeFragmentSegments( 0, id );
+
+		done.set( true );
+		for ( final Thread reader : readers )
+			reader.join();
+
+		Assert.assertEquals( 0, failures.get() );
+		final long segmentId = assignment.getSegment( 0 );
+		for ( long id = 1; id < nFragments; ++id )
+			Assert.assertEquals( segmentId, assignment.getSegment( id ) );
+		Assert.assertEquals( nFragments, assignment.getFragments( segmentId ).length );
+	}
+
+	/**
+	 * Nodes of detached fragments are reclaimed while readers keep reading.
+	 */
+	@Test
+	public void testRepeatedDetachWithConcurrentReaders() throws InterruptedException
+	{
+		final LocalIdService idService = new LocalIdService();
+		idService.setNext( 1000000 );
+		final FragmentSegmentAssignment assignment = new FragmentSegmentAssignment( idService );
+
+		final int nFragments = 1000;
+		for ( long id = 0; id < nFragments; id += 2 )
+			assignment.mergeFragmentSegments( id, id + 1 );
+
+		final AtomicBoolean done = new AtomicBoolean( false );
+		final AtomicLong failures = new AtomicLong( 0 );
+		final Thread[] readers = new Thread[ 4 ];
+		for ( int t = 0; t < readers.length; ++t )
+		{
+			readers[ t ] = new Thread( () -> {
+				while ( !done.get() )
+					for ( long id = 0; id < nFragments; ++id )
+						if ( assignment.getSegment( id ) < 0 )
+							failures.incrementAndGet();
+			} );
+			readers[ t ].start();
+		}
+
+		for ( int i = 0; i < 20; ++i )
+			for ( long id = 0; id < nFragments; id += 2 )
+			{
+				assignment.detachFragment( id + 1 );
+				assignment.mergeFragmentSegments( id, id + 1 );
+			}
+
+		done.set( true );
+		for ( final Thread reader : readers )
+			reader.join();
+
+		Assert.assertEquals( 0, failures.get() );
+		Assert.assertTrue( assignment.unionFind.size < 3 * nFragments );
+		for ( long id = 0; id < nFragments; id += 2 )
+		{
+			Assert.assertEquals( assignment.getSegment( id ), assignment.getSegment( id + 1 ) );
+			Assert.assertEquals( 2, assignment.getFragments( assignment.getSegment( id ) ).length );
+		}
+	}
+
+	/**
+	 * Readers are not blocked while a detach waits for an id.
+	 */
+	@Test
+	public void testDetachDrawsIdOutsideOfLock()
+	{
+		final FragmentSegmentAssignment[] assignment = new FragmentSegmentAssignment[ 1 ];
+		final AtomicBoolean readWhileDrawing = new AtomicBoolean( false );
+		final LocalIdService idService = new LocalIdService()
+		{
+			@Override
+			public synchronized long next()
+			{
+				final Thread reader = new Thread( () -> assignment[ 0 ].getFragments( 1 ) );
+				reader.start();
+				try
+				{
+					reader.join( 10000 );
+				}
+				catch ( final InterruptedException e )
+				{
+					Thread.currentThread().interrupt();
+				}
+				readWhileDrawing.set( !reader.isAlive() );
+				return super.next();
+			}
+		};
+		idService.setNext( 100 );
+		assignment[ 0 ] = new FragmentSegmentAssignment( idService );
+		final TLongLongHashMap lut = new TLongLongHashMap();
+		lut.put( 1, 1 );
+		lut.put( 2, 1 );
+		assignment[ 0 ].initLut( lut );
+
+		assignment[ 0 ].detachFragment( 1 );
+		Assert.assertTrue( readWhileDrawing.get() );
+		Assert.assertEquals( 100, assignment[ 0 ].getSegment( 2 ) );
+		Assert.assertEquals( 1, assignment[ 0 ].getSegment( 1 ) );
+	}
+
+	/**
+	 * The lut streamed from the assignment equals the copied one.
+	 */
+	@Test
+	public void testWriteLut() throws IOException
+	{
+		final LocalIdService idService = new LocalIdService();
+		idService.setNext( 1000 );
+		final FragmentSegmentAssignment assignment = new FragmentSegmentAssignment( idService );
+		for ( long id = 1; id < 300; id += 3 )
+			assignment.mergeFragmentSegments( id, id + 2 );
+		assignment.detachFragment( 100 );
+		assignment.mergeFragmentSegments( 1, 298 );
+		final TLongLongHashMap lut = assignment.getLut();
+
+		for ( final boolean compress : new boolean[]{ false, true } )
+		{
+			final ByteArrayOutputStream out = new ByteArrayOutputStream();
+			assignment.writeBinary( out, compress );
+			Assert.assertEquals( lut, LutStreams.readBinary( new ByteArrayInputStream( out.toByteArray() ) ) );
+		}
+
+		final StringWriter json = new StringWriter();
+		final JsonWriter writer = new JsonWriter( json );
+		assignment.writeJson( writer );
+		writer.flush();
+		Assert.assertEquals( lut, LutStreams.readJson( new StringReader( json.toString() ) ) );
+
+		final long[][] sortedLut = assignment.getSortedLut();
+		Assert.assertEquals( lut.size(), sortedLut[ 0 ].length );
+		for ( int i = 0; i < sortedLut[ 0 ].length; ++i )
+		{
+			Assert.assertTrue( i == 0 || sortedLut[ 0 ][ i - 1 ] < sortedLut[ 0 ][ i ] );
+			Assert.assertEquals( lut.get( sortedLut[ 0 ][ i ] ), sortedLut[ 1 ][ i ] );
+		}
+	}
+}
@@ -0,0 +1,103 @@
+package bdv.bigcat.ui;
+
+import java.util.ArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import bdv.labels.labelset.Label;
+
+public class ColorTableTest
+{
+	static private int color( final long id )
+	{
+		return ( int )( id * 31 ) | 0xff000000;
+	}
+
+	@Test
+	public void testPutGetRemove()
+	{
+		final ColorTable table = new ColorTable();
+		Assert.assertEquals( ColorTable.NO_ENTRY_VALUE, table.get( 5 ) );
+
+		for ( long id = 0; id < 10000; ++id )
+			table.put( id, color( id ) );
+		table.put( Label.TRANSPARENT, 0xff00ff00 );
+		table.put( Label.INVALID, 0xff0000ff );
+		Assert.assertEquals( 10002, table.size() );
+		for ( long id = 0; id < 10000; ++id )
+			Assert.assertEquals( color( id ), table.get( id ) );
+		Assert.assertEquals( 0xff00ff00, table.get( Label.TRANSPARENT ) );
+		Assert.assertEquals( 0xff0000ff, table.get( Label.INVALID ) );
+
+		table.remove( 3, 7, Label.TRANSPARENT );
+		Assert.assertEquals( ColorTable.NO_ENTRY_VALUE, table.get( 3 ) );
+		Assert.assertEquals( ColorTable.NO_ENTRY_VALUE, table.get( 7 ) );
+		Assert.assertEquals( ColorTable.NO_ENTRY_VALUE, table.get( Label.TRANSPARENT ) );
+		Assert.assertEquals( color( 4 ), table.get( 4 ) );
+		Assert.assertEquals( 9999, table.size() );
+
+		table.put( 7, 0xff123456 );
+		Assert.assertEquals( 0xff123456, table.get( 7 ) );
+
+		table.clear();
+		Assert.assertEquals( 0, table.size() );
+		Assert.assertEquals( ColorTable.NO_ENTRY_VALUE, table.get( 4 ) );
+	}
+
+	@Test
+	public void testRemovedSlotsDoNotAccumulate()
+	{
+		final ColorTable table = new ColorTable();
+		/* e.g. a long session of merges, each with a new segment id */
+		for ( long id = 0; id < 100000; ++id )
+		{
+			table.put( id, color( id ) );
+			if ( id > 0 )
+				table.remove( id - 1 );
+		}
+		Assert.assertEquals( 1, table.size() );
+		Assert.assertEquals( color( 99999 ), table.get( 99999 ) );
+	}
+
+	@Test
+	public void testConcurrentAccess() throws Exception
+	{
+		final ColorTable table = new ColorTable();
+		final ExecutorService executor = Executors.newFixedThreadPool( 16 );
+		final ArrayList< Future< Boolean > > futures = new ArrayList<>();
+		for ( int t = 0; t < 16; ++t )
+		{
+			final int offset = t;
+			futures.add( executor.submit( () -> {
+				boolean consistent = true;
+				for ( int round = 0; round < 20; ++round )
+				{
+					for ( long id = offset; id < 20000; id += 3 )
+					{
+						final int argb = table.get( id );
+						if ( argb == ColorTable.NO_ENTRY_VALUE )
+							table.put( id, color( id ) );
+						else
+							consistent &= argb == color( id );
+					}
+					if ( offset == 0 )
+						table.remove( round, round + 100, round + 1000 );
+				}
+				return consistent;
+			} ) );
+		}
+		for ( final Future< Boolean > future : futures )
+			Assert.assertTrue( future.get() );
+		executor.shutdown();
+
+		for ( long id = 0; id < 20000; ++id )
+		{
+			final int argb = table.get( id );
+			Assert.assertTrue( argb == ColorTable.NO_ENTRY_VALUE || argb == color( id ) );
+		}
+	}
+}
@@ -0,0 +1,142 @@
+package bdv.bigcat.ui;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import bdv.bigcat.label.FragmentSegmentAssignment;
+import bdv.labels.labelset.LabelMultisetEntry;
+import bdv.labels.labelset.LabelMultisetEntryList;
+import bdv.labels.labelset.LongMappedAccessData;
+import bdv.labels.labelset.VolatileLabelMultisetArray;
+import bdv.labels.labelset.VolatileLabelMultisetType;
+import bdv.util.LocalIdService;
+import gnu.trove.map.hash.TLongIntHashMap;
+import net.imglib2.type.volatiles.VolatileARGBType;
+
+/**
+ * Converting a 1024x1024 viewport of label multisets to ARGB.  Fragments
+ * are 16x16 patches, pixels at the left and top border of a patch also
+ * contain the neighboring fragment, lists are deduplicated as by the
+ * loaders.  Memoized conversion is measured for a frame after a change of
+ * the colors (each list is blended once) and for repeated frames.
+ */
+@State( Scope.Benchmark )
+@BenchmarkMode( Mode.AverageTime )
+@OutputTimeUnit( TimeUnit.MILLISECONDS )
+@Warmup( iterations = 5 )
+@Measurement( iterations = 10 )
+@Fork( 1 )
+public class LabelMultisetConverterBenchmark
+{
+	static private final int SIZE = 1024;
+
+	static private final int PATCH = 16;
+
+	private VolatileLabelMultisetType pixels;
+
+	private GoldenAngleSaturatedARGBStream colorStream;
+
+	private VolatileLabelMultisetARGBConverter converter;
+
+	private VolatileLabelMultisetARGBConverter memoizingConverter;
+
+	private final VolatileARGBType output = new VolatileARGBType();
+
+	@Setup( Level.Trial )
+	public void setup()
+	{
+		final int patchesPerRow = SIZE / PATCH;
+		final int[] offsets = new int[ SIZE * SIZE ];
+		final LongMappedAccessData listData = LongMappedAccessData.factory.createStorage( 32 );
+		final LabelMultisetEntryList list = new LabelMultisetEntryList( listData, 0 );
+		final TLongIntHashMap listOffsets = new TLongIntHashMap();
+		int nextListOffset = 0;
+		for ( int y = 0, i = 0; y < SIZE; ++y )
+		{
+			for ( int x = 0; x < SIZE; ++x, ++i )
+			{
+				final long fragment = ( y / PATCH ) * patchesPerRow + x / PATCH;
+				long neighbor = fragment;
+				if ( x % PATCH == 0 && x > 0 )
+					neighbor = fragment - 1;
+				else if ( y % PATCH == 0 && y > 0 )
+					neighbor = fragment - patchesPerRow;
+				final long key = fragment * SIZE * SIZE + neighbor;
+				if ( !listOffsets.containsKey( key ) )
+				{
+					list.createListAt( listData, nextListOffset );
+					if ( neighbor != fragment )
+						list.add( new LabelMultisetEntry( neighbor, 1 ) );
+					list.add( new LabelMultisetEntry( fragment, 3 ) );
+					listOffsets.put( key, nextListOffset );
+					nextListOffset += list.getSizeInBytes();
+				}
+				offsets[ i ] = listOffsets.get( key );
+			}
+		}
+		pixels = new VolatileLabelMultisetType( new VolatileLabelMultisetArray( offsets, listData, nextListOffset, true ), true );
+
+		/* pairs of fragments form segments */
+		final LocalIdService idService = new LocalIdService();
+		idService.setNext( patchesPerRow * patchesPerRow );
+		final FragmentSegmentAssignment assignment = new FragmentSegmentAssignment( idService );
+		for ( long fragment = 0; fragment < patchesPerRow * patchesPerRow; fragment += 2 )
+			assignment.mergeFragmentSegments( fragment, fragment + 1 );
+		colorStream = new GoldenAngleSaturatedARGBStream( assignment );
+		colorStream.setAlpha( 0x20 );
+		colorStream.setActive( 7 );
+
+		converter = new VolatileLabelMultisetARGBConverter( colorStream, false );
+		memoizingConverter = new VolatileLabelMultisetARGBConverter( colorStream, true );
+	}
+
+	private int render( final VolatileLabelMultisetARGBConverter converter )
+	{
+		int checksum = 0;
+		for ( int i = 0; i < SIZE * SIZE; ++i )
+		{
+			pixels.updateIndex( i );
+			converter.convert( pixels, output );
+			checksum += output.get().get();
+		}
+		return checksum;
+	}
+
+	@Benchmark
+	public int renderBlended()
+	{
+		return render( converter );
+	}
+
+	@Benchmark
+	public int renderMemoizedAfterChange()
+	{
+		colorStream.setActive( colorStream.activeFragment + 1 );
+		return render( memoizingConverter );
+	}
+
+	@Benchmark
+	public int renderMemoized()
+	{
+		return render( memoizingConverter );
+	}
+
+	public static void main( final String[] args ) throws RunnerException
+	{
+		new Runner( new OptionsBuilder().include( LabelMultisetConverterBenchmark.class.getSimpleName() ).build() ).run();
+	}
+}
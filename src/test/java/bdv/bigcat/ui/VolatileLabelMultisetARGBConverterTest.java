@@ -0,0 +1,128 @@
+package bdv.bigcat.ui;
+
+import java.util.Arrays;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import bdv.bigcat.label.FragmentSegmentAssignment;
+import bdv.labels.labelset.Label;
+import bdv.labels.labelset.LabelMultisetEntry;
+import bdv.labels.labelset.LabelMultisetEntryList;
+import bdv.labels.labelset.LongMappedAccessData;
+import bdv.labels.labelset.VolatileLabelMultisetArray;
+import bdv.labels.labelset.VolatileLabelMultisetType;
+import bdv.util.LocalIdService;
+import net.imglib2.type.volatiles.VolatileARGBType;
+
+public class VolatileLabelMultisetARGBConverterTest
+{
+	static private final int NUM_FRAGMENTS = 6;
+
+	static private final int NUM_PIXELS = 100;
+
+	private VolatileLabelMultisetType pixels;
+
+	private FragmentSegmentAssignment assignment;
+
+	private GoldenAngleSaturatedConfirmSwitchARGBStream colorStream;
+
+	private VolatileLabelMultisetARGBConverter blending;
+
+	private VolatileLabelMultisetARGBConverter memoizing;
+
+	/**
+	 * Pixels refer to one list per pair of fragments f and f + 1.
+	 */
+	@Before
+	public void setUp()
+	{
+		final LongMappedAccessData listData = LongMappedAccessData.factory.createStorage( 32 );
+		final LabelMultisetEntryList list = new LabelMultisetEntryList( listData, 0 );
+		final int[] listOffsets = new int[ NUM_FRAGMENTS ];
+		int nextListOffset = 0;
+		for ( int f = 0; f < NUM_FRAGMENTS; ++f )
+		{
+			listOffsets[ f ] = nextListOffset;
+			list.createListAt( listData, nextListOffset );
+			list.add( new LabelMultisetEntry( f + 1, 3 ) );
+			list.add( new LabelMultisetEntry( ( f + 1 ) % NUM_FRAGMENTS + 1, 1 ) );
+			nextListOffset += list.getSizeInBytes();
+		}
+		final int[] offsets = new int[ NUM_PIXELS ];
+		for ( int i = 0; i < NUM_PIXELS; ++i )
+			offsets[ i ] = listOffsets[ i % NUM_FRAGMENTS ];
+		pixels = new VolatileLabelMultisetType( new VolatileLabelMultisetArray( offsets, listData, nextListOffset, true ), true );
+
+		final LocalIdService idService = new LocalIdService();
+		idService.setNext( 100 );
+		assignment = new FragmentSegmentAssignment( idService );
+		colorStream = new GoldenAngleSaturatedConfirmSwitchARGBStream( assignment );
+		blending = new VolatileLabelMultisetARGBConverter( colorStream, false );
+		memoizing = new VolatileLabelMultisetARGBConverter( colorStream, true );
+	}
+
+	private int[] render( final VolatileLabelMultisetARGBConverter converter )
+	{
+		final VolatileARGBType output = new VolatileARGBType();
+		final int[] argbs = new int[ NUM_PIXELS ];
+		for ( int i = 0; i < NUM_PIXELS; ++i )
+		{
+			pixels.updateIndex( i );
+			converter.convert( pixels, output );
+			argbs[ i ] = output.get().get();
+		}
+		return argbs;
+	}
+
+	/**
+	 * Render memoized after a change of the stream and compare with blending
+	 * every pixel.
+	 *
+	 * @return the new colors
+	 */
+	private int[] assertInvalidated( final Runnable change )
+	{
+		final long version = colorStream.getVersion();
+		change.run();
+		Assert.assertNotEquals( version, colorStream.getVersion() );
+		final int[] after = render( blending );
+		Assert.assertArrayEquals( after, render( memoizing ) );
+		Assert.assertArrayEquals( after, render( memoizing ) );
+		return after;
+	}
+
+	/**
+	 * As {@link #assertInvalidated(Runnable)} for changes of the colors.
+	 */
+	private int[] assertChanged( final int[] before, final Runnable change )
+	{
+		final int[] after = assertInvalidated( change );
+		Assert.assertFalse( Arrays.equals( before, after ) );
+		return after;
+	}
+
+	@Test
+	public void testMemoizedColorsInvalidated()
+	{
+		int[] argbs = render( blending );
+		Assert.assertArrayEquals( argbs, render( memoizing ) );
+
+		argbs = assertChanged( argbs, () -> assignment.mergeFragmentSegments( 1, 2 ) );
+		assertInvalidated( () -> colorStream.setSeed( 5 ) );
+		assertInvalidated( colorStream::incSeed );
+		assertInvalidated( () -> colorStream.setAlpha( 0x60 ) );
+		/* cached colors keep their seed and alpha until the cache is cleared */
+		argbs = assertChanged( argbs, colorStream::clearCache );
+		argbs = assertChanged( argbs, () -> colorStream.setActive( 1 ) );
+		argbs = assertChanged( argbs, () -> colorStream.setActiveFragmentAlpha( 0x10 ) );
+		argbs = assertChanged( argbs, () -> colorStream.setActiveSegmentAlpha( 0x40 ) );
+		argbs = assertChanged( argbs, () -> colorStream.setActive( 3 ) );
+
+		/* confirmed fragments are hidden unless switched on */
+		argbs = assertChanged( argbs, () -> assignment.assign( new long[]{ 5 }, new long[]{ Label.INVALID } ) );
+		argbs = assertChanged( argbs, colorStream::toggleSwitch );
+		assertChanged( argbs, () -> colorStream.setSwitch( true ) );
+	}
+}
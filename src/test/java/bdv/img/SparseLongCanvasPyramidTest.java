@@ -0,0 +1,166 @@
+package bdv.img;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import bdv.labels.labelset.Label;
+
+public class SparseLongCanvasPyramidTest
+{
+	static private final int[][] FACTORS = new int[][]{ { 1, 1, 1 }, { 2, 2, 1 }, { 4, 4, 2 } };
+
+	static private void set( final SparseLongCanvas canvas, final long value, final long x, final long y, final long z )
+	{
+		final SparseLongCanvas.SparseLongCanvasRandomAccess access = canvas.randomAccess();
+		access.setPosition( new long[]{ x, y, z } );
+		access.get().set( value );
+	}
+
+	static private long get( final SparseLongCanvas canvas, final long x, final long y, final long z )
+	{
+		final SparseLongCanvas.SparseLongCanvasRandomAccess access = canvas.randomAccess();
+		access.setPosition( new long[]{ x, y, z } );
+		return access.get().get();
+	}
+
+	@Test
+	public void testLevels()
+	{
+		final SparseLongCanvas canvas = new SparseLongCanvas( new long[]{ 63, 64, 16 }, new int[]{ 16, 16, 8 }, Label.TRANSPARENT );
+		final SparseLongCanvasPyramid pyramid = new SparseLongCanvasPyramid( canvas, FACTORS, new int[]{ 16, 16, 8 } );
+		Assert.assertSame( canvas, pyramid.getLevel( 0 ) );
+		Assert.assertEquals( 32, pyramid.getLevel( 1 ).dimension( 0 ) );
+		Assert.assertEquals( 16, pyramid.getLevel( 2 ).dimension( 1 ) );
+		Assert.assertEquals( 8, pyramid.getLevel( 2 ).dimension( 2 ) );
+
+		/* a 4x4x2 block across a cell border */
+		for ( int z = 0; z < 2; ++z )
+			for ( int y = 12; y < 16; ++y )
+				for ( int x = 14; x < 18; ++x )
+					set( canvas, 7, x, y, z );
+		pyramid.update();
+
+		Assert.assertEquals( 7, get( pyramid.getLevel( 1 ), 7, 6, 0 ) );
+		Assert.assertEquals( 7, get( pyramid.getLevel( 1 ), 8, 7, 1 ) );
+		Assert.assertEquals( Label.TRANSPARENT, get( pyramid.getLevel( 1 ), 9, 7, 0 ) );
+		/* half covered, painted labels win ties */
+		Assert.assertEquals( 7, get( pyramid.getLevel( 2 ), 3, 3, 0 ) );
+		Assert.assertEquals( 7, get( pyramid.getLevel( 2 ), 4, 3, 0 ) );
+		Assert.assertEquals( Label.TRANSPARENT, get( pyramid.getLevel( 2 ), 3, 3, 1 ) );
+
+		/* the majority decides */
+		set( canvas, 8, 16, 12, 0 );
+		set( canvas, 8, 17, 12, 0 );
+		set( canvas, 8, 16, 13, 0 );
+		pyramid.update();
+		Assert.assertEquals( 8, get( pyramid.getLevel( 1 ), 8, 6, 0 ) );
+		Assert.assertEquals( Label.TRANSPARENT, get( pyramid.getLevel( 2 ), 4, 3, 0 ) );
+
+		/* restoring a cell, e.g. by undo, updates the levels too */
+		final SparseLongCanvas.Cell cell = canvas.getCell( new long[]{ 1, 0, 0 } );
+		final long[] background = new long[ cell.size() ];
+		Arrays.fill( background, Label.TRANSPARENT );
+		cell.set( background );
+		pyramid.update();
+		Assert.assertEquals( Label.TRANSPARENT, get( pyramid.getLevel( 1 ), 8, 6, 0 ) );
+		Assert.assertEquals( 7, get( pyramid.getLevel( 1 ), 7, 6, 0 ) );
+
+		/* nothing to do */
+		Assert.assertNull( canvas.pollDirtyCell() );
+	}
+
+	@Test
+	public void testExistingCells()
+	{
+		final SparseLongCanvas canvas = new SparseLongCanvas( new long[]{ 64, 64, 8 }, new int[]{ 16, 16, 8 }, Label.TRANSPARENT );
+		for ( int y = 0; y < 4; ++y )
+			for ( int x = 0; x < 4; ++x )
+				set( canvas, 3, x, y, 0 );
+		final SparseLongCanvasPyramid pyramid = new SparseLongCanvasPyramid( canvas, FACTORS, new int[]{ 16, 16, 8 } );
+		pyramid.update();
+		Assert.assertEquals( 3, get( pyramid.getLevel( 2 ), 0, 0, 0 ) );
+		/* untouched cells of the levels are not materialized */
+		Assert.assertEquals( 1, pyramid.getLevel( 1 ).numMaterializedCells() );
+	}
+
+	/**
+	 * Renderers request updates that run in the background and notify the
+	 * listener when the levels caught up.
+	 */
+	@Test
+	public void testRequestUpdate() throws InterruptedException
+	{
+		final SparseLongCanvas canvas = new SparseLongCanvas( new long[]{ 64, 64, 8 }, new int[]{ 16, 16, 8 }, Label.TRANSPARENT );
+		final SparseLongCanvasPyramid pyramid = new SparseLongCanvasPyramid( canvas, FACTORS, new int[]{ 16, 16, 8 } );
+		final CountDownLatch updated = new CountDownLatch( 1 );
+		pyramid.setUpdateListener( updated::countDown );
+
+		for ( int y = 0; y < 4; ++y )
+			for ( int x = 0; x < 4; ++x )
+				set( canvas, 5, x + 20, y, 0 );
+		pyramid.requestUpdate();
+		Assert.assertTrue( updated.await( 10, TimeUnit.SECONDS ) );
+		Assert.assertEquals( 5, get( pyramid.getLevel( 2 ), 5, 0, 0 ) );
+		Assert.assertFalse( canvas.hasDirtyCells() );
+	}
+
+	/**
+	 * Cells that are created and written to while tracking starts are
+	 * queued.
+	 */
+	@Test
+	public void testTrackWhileCreatingCells() throws InterruptedException
+	{
+		for ( int round = 0; round < 20; ++round )
+		{
+			final SparseLongCanvas canvas = new SparseLongCanvas( new long[]{ 256, 256, 8 }, new int[]{ 8, 8, 8 }, Label.TRANSPARENT );
+			final CountDownLatch start = new CountDownLatch( 1 );
+			final ArrayList< Thread > threads = new ArrayList<>();
+			for ( int i = 0; i < 4; ++i )
+			{
+				final int fi = i;
+				final Thread thread = new Thread( () -> {
+					try
+					{
+						start.await();
+					}
+					catch ( final InterruptedException e )
+					{
+						return;
+					}
+					for ( int y = fi; y < 32; y += 4 )
+						for ( int x = 0; x < 32; ++x )
+							set( canvas, 1, 8 * x, 8 * y, 0 );
+				} );
+				threads.add( thread );
+				thread.start();
+			}
+			start.countDown();
+			canvas.trackDirtyCells();
+			for ( final Thread thread : threads )
+				thread.join();
+
+			int numDirty = 0;
+			while ( canvas.pollDirtyCell() != null )
+				++numDirty;
+			Assert.assertEquals( 32 * 32, numDirty );
+
+			set( canvas, 3, 255, 255, 0 );
+			Assert.assertTrue( canvas.hasDirtyCells() );
+		}
+	}
+
+	@Test
+	public void testFactors()
+	{
+		final int[][] factors = SparseLongCanvasPyramid.factors( new double[][]{ { 4, 4, 40 }, { 8, 8, 40 }, { 16, 16, 80 } } );
+		Assert.assertArrayEquals( new int[]{ 1, 1, 1 }, factors[ 0 ] );
+		Assert.assertArrayEquals( new int[]{ 2, 2, 1 }, factors[ 1 ] );
+		Assert.assertArrayEquals( new int[]{ 4, 4, 2 }, factors[ 2 ] );
+	}
+}
@@ -0,0 +1,342 @@
+package bdv.img.dvid;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import bdv.img.dvid.BlockRequestCoalescer.Compression;
+
+public class BlockRequestCoalescerTest
+{
+	static private final int BLOCK_SIZE = 512;
+
+	/**
+	 * Serves the /blocks endpoint of a labelblk instance.  Blocks with
+	 * x % 5 == 4 were never written and are missing from responses, runs
+	 * with y == 13 fail.
+	 */
+	static private class StubBlocksServer
+	{
+		final HttpServer server;
+
+		final AtomicInteger numRequests = new AtomicInteger();
+
+		final long delayMillis;
+
+		StubBlocksServer( final long delayMillis ) throws IOException
+		{
+			this.delayMillis = delayMillis;
+			server = HttpServer.create( new InetSocketAddress( "localhost", 0 ), 0 );
+			server.setExecutor( Executors.newCachedThreadPool() );
+			server.createContext( "/", this::handle );
+			server.start();
+		}
+
+		String apiUrl()
+		{
+			return "http://localhost:" + server.getAddress().getPort() + "/api";
+		}
+
+		void stop()
+		{
+			server.stop( 0 );
+		}
+
+		void handle( final HttpExchange exchange ) throws IOException
+		{
+			numRequests.incrementAndGet();
+			/* /api/node/<uuid>/<instance>/blocks/<x>_<y>_<z>/<n> */
+			final String[] path = exchange.getRequestURI().getPath().split( "/" );
+			final String[] position = path[ 6 ].split( "_" );
+			final int x = Integer.parseInt( position[ 0 ] );
+			final int y = Integer.parseInt( position[ 1 ] );
+			final int z = Integer.parseInt( position[ 2 ] );
+			final int n = Integer.parseInt( path[ 7 ] );
+			final Compression compression = Compression.valueOf( exchange.getRequestURI().getQuery().replace( "compression=", "" ).toUpperCase() );
+			try
+			{
+				Thread.sleep( delayMillis );
+			}
+			catch ( final InterruptedException e )
+			{
+				Thread.currentThread().interrupt();
+			}
+
+			final ByteArrayOutputStream response = new ByteArrayOutputStream();
+			for ( int i = n - 1; i >= 0; --i )
+			{
+				if ( ( x + i ) % 5 == 4 )
+					continue;
+				final byte[] block = compression == Compression.LZ4 ? literalsLz4( block( x + i, y, z ) ) : block( x + i, y, z );
+				final ByteBuffer header = ByteBuffer.allocate( 16 ).order( ByteOrder.LITTLE_ENDIAN );
+				header.putInt( x + i ).putInt( y ).putInt( z ).putInt( block.length );
+				response.write( header.array() );
+				response.write( block );
+			}
+			final byte[] bytes = response.toByteArray();
+			exchange.sendResponseHeaders( y == 13 ? 404 : 200, bytes.length );
+			try ( final OutputStream out = exchange.getResponseBody() )
+			{
+				out.write( bytes );
+			}
+		}
+	}
+
+	static private byte[] block( final long x, final long y, final long z )
+	{
+		final byte[] block = new byte[ BLOCK_SIZE ];
+		if ( x % 5 != 4 )
+			for ( int i = 0; i < BLOCK_SIZE; ++i )
+				block[ i ] = ( byte ) ( 31 * x + 7 * y + 3 * z + i / 100 );
+		return block;
+	}
+
+	/**
+	 * Encode as one LZ4 sequence of literals.
+	 */
+	static private byte[] literalsLz4( final byte[] data )
+	{
+		final ByteArrayOutputStream out = new ByteArrayOutputStream();
+		out.write( 15 << 4 );
+		int length = data.length - 15;
+		for ( ; length >= 255; length -= 255 )
+			out.write( 255 );
+		out.write( length );
+		out.write( data, 0, data.length );
+		return out.toByteArray();
+	}
+
+	private StubBlocksServer server;
+
+	private ExecutorService fetchers;
+
+	@Before
+	public void setUp() throws IOException
+	{
+		server = new StubBlocksServer( 50 );
+		fetchers = Executors.newFixedThreadPool( 64 );
+	}
+
+	@After
+	public void tearDown()
+	{
+		fetchers.shutdownNow();
+		server.stop();
+	}
+
+	private BlockRequestCoalescer coalescer( final Compression compression, final long windowMillis )
+	{
+		return new BlockRequestCoalescer( server.apiUrl(), "uuid", "labels", BLOCK_SIZE, compression, TimeUnit.MILLISECONDS.toNanos( windowMillis ), 32 );
+	}
+
+	@Test
+	public void testDecompressLz4() throws IOException
+	{
+		/* "abc", a match of 9 at offset 3, "xyz" */
+		final byte[] block = new byte[]{ 0x35, 'a', 'b', 'c', 3, 0, 0x30, 'x', 'y', 'z' };
+		final byte[] target = new byte[ 15 ];
+		BlockRequestCoalescer.decompressLz4( block, 0, block.length, target, target.length );
+		Assert.assertArrayEquals( "abcabcabcabcxyz".getBytes(), target );
+
+		/* one literal repeated by a long match at offset 1, after other bytes */
+		final byte[] run = new byte[]{ 1, 2, 0x1f, 7, 1, 0, ( byte ) 255, 10, 3 };
+		final byte[] repeated = new byte[ 285 ];
+		BlockRequestCoalescer.decompressLz4( run, 2, run.length - 3, repeated, repeated.length );
+		final byte[] expected = new byte[ 285 ];
+		Arrays.fill( expected, ( byte ) 7 );
+		Assert.assertArrayEquals( expected, repeated );
+
+		final byte[][] malformed = new byte[][]{
+			/* match before the start */
+			{ 0x10, 'a', 2, 0 },
+			/* literals past the end */
+			{ 0x50, 'a', 'b' },
+			/* too short */
+			{ 0x30, 'a', 'b', 'c' } };
+		for ( final byte[] m : malformed )
+		{
+			try
+			{
+				BlockRequestCoalescer.decompressLz4( m, 0, m.length, new byte[ 15 ], 15 );
+				Assert.fail();
+			}
+			catch ( final IOException e )
+			{}
+		}
+	}
+
+	@Test
+	public void testFetchWithoutWaiting() throws IOException
+	{
+		final BlockRequestCoalescer coalescer = coalescer( Compression.LZ4, 60000 );
+		final byte[] target = new byte[ BLOCK_SIZE ];
+		final long t = System.currentTimeMillis();
+		coalescer.fetch( 3, 1, 2, target );
+		Assert.assertTrue( System.currentTimeMillis() - t < 30000 );
+		Assert.assertArrayEquals( block( 3, 1, 2 ), target );
+	}
+
+	private ArrayList< Future< byte[] > > fetchConcurrently( final BlockRequestCoalescer coalescer, final int numX, final int numY, final CountDownLatch start )
+	{
+		final ArrayList< Future< byte[] > > fetches = new ArrayList<>();
+		for ( int y = 0; y < numY; ++y )
+			for ( int x = 0; x < numX; ++x )
+			{
+				final long fx = x;
+				final long fy = y;
+				fetches.add( fetchers.submit( () -> {
+					start.await();
+					/* stale bytes are overwritten, also for missing blocks */
+					final byte[] target = new byte[ BLOCK_SIZE ];
+					Arrays.fill( target, ( byte ) -1 );
+					coalescer.fetch( fx, fy, 5, target );
+					return target;
+				} ) );
+			}
+		return fetches;
+	}
+
+	/**
+	 * Concurrent requests are fetched in few runs, each run by one of the
+	 * waiting threads, and every request receives its own block.
+	 */
+	@Test
+	public void testConcurrentFetches() throws Exception
+	{
+		for ( final Compression compression : new Compression[]{ Compression.LZ4, Compression.UNCOMPRESSED } )
+		{
+			server.numRequests.set( 0 );
+			final BlockRequestCoalescer coalescer = coalescer( compression, 20 );
+			final CountDownLatch start = new CountDownLatch( 1 );
+			final ArrayList< Future< byte[] > > fetches = fetchConcurrently( coalescer, 32, 2, start );
+			start.countDown();
+			for ( int i = 0; i < fetches.size(); ++i )
+				Assert.assertArrayEquals( block( i % 32, i / 32, 5 ), fetches.get( i ).get() );
+			Assert.assertTrue( server.numRequests.get() < fetches.size() / 4 );
+		}
+	}
+
+	/**
+	 * Concurrent requests for the same block all receive the block, also if
+	 * it is missing from the response.
+	 */
+	@Test
+	public void testDuplicateFetches() throws Exception
+	{
+		final BlockRequestCoalescer coalescer = coalescer( Compression.LZ4, 20 );
+		final CountDownLatch start = new CountDownLatch( 1 );
+		final ArrayList< Future< byte[] > > fetches = fetchConcurrently( coalescer, 8, 1, start );
+		final ArrayList< Future< byte[] > > duplicates = fetchConcurrently( coalescer, 8, 1, start );
+		start.countDown();
+		for ( int i = 0; i < fetches.size(); ++i )
+		{
+			Assert.assertArrayEquals( block( i, 0, 5 ), fetches.get( i ).get() );
+			Assert.assertArrayEquals( block( i, 0, 5 ), duplicates.get( i ).get() );
+		}
+	}
+
+	/**
+	 * A failed run fails all of its requests and only those.
+	 */
+	@Test
+	public void testFailedRun() throws Exception
+	{
+		final BlockRequestCoalescer coalescer = coalescer( Compression.LZ4, 20 );
+		final CountDownLatch start = new CountDownLatch( 1 );
+		final ArrayList< Future< byte[] > > fetches = fetchConcurrently( coalescer, 8, 16, start );
+		start.countDown();
+		for ( int i = 0; i < fetches.size(); ++i )
+		{
+			if ( i / 8 == 13 )
+			{
+				try
+				{
+					fetches.get( i ).get();
+					Assert.fail();
+				}
+				catch ( final ExecutionException e )
+				{
+					Assert.assertTrue( e.getCause() instanceof IOException );
+				}
+			}
+			else
+				Assert.assertArrayEquals( block( i % 8, i / 8, 5 ), fetches.get( i ).get() );
+		}
+	}
+
+	/**
+	 * Interrupted threads still fetch the runs assigned to them, such that
+	 * the other requests of these runs complete, and keep their interrupt.
+	 */
+	@Test
+	public void testInterruptedHandoff() throws Exception
+	{
+		final BlockRequestCoalescer coalescer = coalescer( Compression.LZ4, 500 );
+		final int numBlocks = 48;
+		final CountDownLatch fetching = new CountDownLatch( numBlocks );
+		final ArrayList< Thread > threads = new ArrayList<>();
+		final byte[][] targets = new byte[ numBlocks ][ BLOCK_SIZE ];
+		final boolean[] interrupted = new boolean[ numBlocks ];
+		final boolean[] doneBeforeInterrupt = new boolean[ numBlocks ];
+		final AtomicInteger interrupting = new AtomicInteger();
+		final Throwable[] failures = new Throwable[ numBlocks ];
+		for ( int i = 0; i < numBlocks; ++i )
+		{
+			final int fi = i;
+			final Thread thread = new Thread( () -> {
+				fetching.countDown();
+				try
+				{
+					coalescer.fetch( fi, 0, 0, targets[ fi ] );
+				}
+				catch ( final Throwable e )
+				{
+					failures[ fi ] = e;
+				}
+				interrupted[ fi ] = Thread.interrupted();
+				doneBeforeInterrupt[ fi ] = interrupting.get() == 0;
+			} );
+			threads.add( thread );
+			thread.start();
+		}
+		fetching.await();
+		Thread.sleep( 100 );
+		interrupting.set( 1 );
+		for ( final Thread thread : threads )
+			thread.interrupt();
+		for ( final Thread thread : threads )
+			thread.join();
+
+		/* only the request that was fetched right away may have completed */
+		int numInterrupted = 0;
+		for ( int i = 0; i < numBlocks; ++i )
+		{
+			Assert.assertNull( failures[ i ] );
+			Assert.assertTrue( interrupted[ i ] || doneBeforeInterrupt[ i ] );
+			if ( interrupted[ i ] )
+				++numInterrupted;
+			Assert.assertArrayEquals( block( i, 0, 0 ), targets[ i ] );
+		}
+		Assert.assertTrue( numInterrupted >= numBlocks - 1 );
+	}
+}
@@ -0,0 +1,121 @@
+package bdv.img.h5;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import ch.systemsx.cisd.hdf5.HDF5Factory;
+import ch.systemsx.cisd.hdf5.IHDF5Reader;
+import net.imglib2.img.array.ArrayImgs;
+
+/**
+ * Block loads per second of {@link H5LongLabelMultisetArrayLoader} from a
+ * local 512x512x64 uint64 label file with 64x64x8 deflated chunks, for 1, 4
+ * and 10 fetcher threads that read through one {@link H5ReadQueue}, or each
+ * through their own queue of the same reader, which is like sharing the
+ * reader directly (as before).
+ */
+@State( Scope.Benchmark )
+@BenchmarkMode( Mode.Throughput )
+@OutputTimeUnit( TimeUnit.SECONDS )
+@Warmup( iterations = 3 )
+@Measurement( iterations = 5 )
+@Fork( 1 )
+public class H5ReadQueueBenchmark
+{
+	static private final long[] DIMENSIONS = new long[]{ 512, 512, 64 };
+
+	static private final int[] BLOCK = new int[]{ 64, 64, 8 };
+
+	static private final int NUM_BLOCKS = 8 * 8 * 8;
+
+	static private final String DATASET = "/labels";
+
+	@Param( { "1", "4", "10" } )
+	public int numFetchers;
+
+	@Param( { "false", "true" } )
+	public boolean queued;
+
+	private File file;
+
+	private IHDF5Reader reader;
+
+	private ThreadLocal< H5LongLabelMultisetArrayLoader > loader;
+
+	private ExecutorService fetchers;
+
+	@Setup
+	public void setup() throws IOException
+	{
+		/* 16x16x8 fragments */
+		final long[] labels = new long[ ( int )( DIMENSIONS[ 0 ] * DIMENSIONS[ 1 ] * DIMENSIONS[ 2 ] ) ];
+		for ( int z = 0, i = 0; z < DIMENSIONS[ 2 ]; ++z )
+			for ( int y = 0; y < DIMENSIONS[ 1 ]; ++y )
+				for ( int x = 0; x < DIMENSIONS[ 0 ]; ++x, ++i )
+					labels[ i ] = ( z / 8 * DIMENSIONS[ 1 ] / 16 + y / 16 ) * DIMENSIONS[ 0 ] / 16 + x / 16;
+
+		file = File.createTempFile( "bigcat-h5-reader-pool", ".h5" );
+		file.delete();
+		H5Utils.saveUnsignedLong( ArrayImgs.longs( labels, DIMENSIONS ), file, DATASET, BLOCK );
+
+		reader = HDF5Factory.openForReading( file );
+		final H5ReadQueue readQueue = new H5ReadQueue( reader );
+		final H5LongLabelMultisetArrayLoader sharedLoader = new H5LongLabelMultisetArrayLoader( readQueue, null, DATASET );
+		loader = ThreadLocal.withInitial( () -> queued ? sharedLoader : new H5LongLabelMultisetArrayLoader( reader, null, DATASET ) );
+		fetchers = Executors.newFixedThreadPool( numFetchers );
+	}
+
+	@TearDown
+	public void tearDown()
+	{
+		fetchers.shutdown();
+		reader.close();
+		file.delete();
+	}
+
+	@Benchmark
+	@OperationsPerInvocation( NUM_BLOCKS )
+	public long loadBlocks() throws InterruptedException, ExecutionException
+	{
+		final ArrayList< Future< Integer > > loads = new ArrayList<>();
+		for ( long z = 0; z < DIMENSIONS[ 2 ]; z += BLOCK[ 2 ] )
+			for ( long y = 0; y < DIMENSIONS[ 1 ]; y += BLOCK[ 1 ] )
+				for ( long x = 0; x < DIMENSIONS[ 0 ]; x += BLOCK[ 0 ] )
+				{
+					final long[] min = new long[]{ x, y, z };
+					loads.add( fetchers.submit( () -> loader.get().loadArray( 0, 0, 0, BLOCK, min ).getCurrentStorageArray()[ 0 ] ) );
+				}
+		long sum = 0;
+		for ( final Future< Integer > load : loads )
+			sum += load.get();
+		return sum;
+	}
+
+	public static void main( final String[] args ) throws RunnerException
+	{
+		new Runner( new OptionsBuilder().include( H5ReadQueueBenchmark.class.getSimpleName() ).build() ).run();
+	}
+}
@@ -0,0 +1,152 @@
+package bdv.img.h5;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import bdv.labels.labelset.Label;
+import bdv.labels.labelset.LabelMultisetType;
+import bdv.labels.labelset.Multiset.Entry;
+import bdv.labels.labelset.VolatileLabelMultisetArray;
+import ch.systemsx.cisd.hdf5.HDF5Factory;
+import ch.systemsx.cisd.hdf5.IHDF5Reader;
+import net.imglib2.img.array.ArrayImgs;
+
+public class H5ReadQueueTest
+{
+	static private final long[] DIMENSIONS = new long[]{ 64, 64, 16 };
+
+	static private final int[] BLOCK = new int[]{ 16, 16, 8 };
+
+	private File file;
+
+	private IHDF5Reader reader;
+
+	private ExecutorService fetchers;
+
+	@Before
+	public void setUp() throws Exception
+	{
+		final long[] labels = new long[ ( int )( DIMENSIONS[ 0 ] * DIMENSIONS[ 1 ] * DIMENSIONS[ 2 ] ) ];
+		for ( int i = 0; i < labels.length; ++i )
+			labels[ i ] = i;
+		file = File.createTempFile( "bigcat-h5-read-queue", ".h5" );
+		file.delete();
+		H5Utils.saveUnsignedLong( ArrayImgs.longs( labels, DIMENSIONS ), file, "/labels", BLOCK );
+		reader = HDF5Factory.openForReading( file );
+		fetchers = Executors.newFixedThreadPool( 8 );
+	}
+
+	@After
+	public void tearDown()
+	{
+		fetchers.shutdownNow();
+		reader.close();
+		file.delete();
+	}
+
+	@Test
+	public void testConcurrentLoads() throws Exception
+	{
+		final H5LongLabelMultisetArrayLoader loader = new H5LongLabelMultisetArrayLoader( new H5ReadQueue( reader ), null, "/labels" );
+		final ArrayList< Future< Boolean > > loads = new ArrayList<>();
+		for ( long z = 0; z < DIMENSIONS[ 2 ]; z += BLOCK[ 2 ] )
+			for ( long y = 0; y < DIMENSIONS[ 1 ]; y += BLOCK[ 1 ] )
+				for ( long x = 0; x < DIMENSIONS[ 0 ]; x += BLOCK[ 0 ] )
+				{
+					final long[] min = new long[]{ x, y, z };
+					loads.add( fetchers.submit( () -> {
+						final VolatileLabelMultisetArray array = loader.loadArray( 0, 0, 0, BLOCK, min );
+						final LabelMultisetType t = new LabelMultisetType( array );
+						boolean correct = array.isValid();
+						for ( int i = 0, zz = 0; zz < BLOCK[ 2 ]; ++zz )
+							for ( int yy = 0; yy < BLOCK[ 1 ]; ++yy )
+								for ( int xx = 0; xx < BLOCK[ 0 ]; ++xx, ++i )
+								{
+									t.updateIndex( i );
+									final long expected = ( ( min[ 2 ] + zz ) * DIMENSIONS[ 1 ] + min[ 1 ] + yy ) * DIMENSIONS[ 0 ] + min[ 0 ] + xx;
+									for ( final Entry< Label > entry : t.entrySet() )
+										correct &= entry.getElement().id() == expected;
+								}
+						return correct;
+					} ) );
+				}
+		for ( final Future< Boolean > load : loads )
+			Assert.assertTrue( load.get() );
+	}
+
+	/**
+	 * Reads that queue up while a batch is read are read as one batch in
+	 * file order, a failed read fails only its caller.
+	 */
+	@Test
+	public void testBatchOrder() throws Exception
+	{
+		final H5ReadQueue readQueue = new H5ReadQueue( reader );
+		final CountDownLatch reading = new CountDownLatch( 1 );
+		final CountDownLatch release = new CountDownLatch( 1 );
+		final Future< Object > first = fetchers.submit( () -> readQueue.read( "/labels", new long[]{ 0, 0, 0 }, r -> {
+			reading.countDown();
+			try
+			{
+				release.await();
+			}
+			catch ( final InterruptedException e )
+			{
+				throw new RuntimeException( e );
+			}
+			return null;
+		} ) );
+		reading.await();
+
+		final long[][] mins = new long[][]{ { 16, 0, 8 }, { 0, 16, 0 }, { 16, 0, 0 }, { 0, 0, 8 } };
+		final ArrayList< long[] > order = new ArrayList<>();
+		final ArrayList< Future< long[] > > reads = new ArrayList<>();
+		for ( final long[] min : mins )
+			reads.add( fetchers.submit( () -> readQueue.read( "/labels", min, r -> {
+				synchronized ( order )
+				{
+					order.add( min );
+				}
+				return min;
+			} ) ) );
+		final Future< Object > failing = fetchers.submit( () -> readQueue.read( "/labels", new long[]{ 32, 0, 0 }, r -> {
+			throw new IllegalStateException();
+		} ) );
+
+		final long t = System.currentTimeMillis();
+		while ( readQueue.numQueued() < mins.length + 1 )
+		{
+			Assert.assertTrue( "timeout", System.currentTimeMillis() - t < 10000 );
+			Thread.sleep( 1 );
+		}
+		release.countDown();
+		first.get();
+
+		for ( int i = 0; i < mins.length; ++i )
+			Assert.assertSame( mins[ i ], reads.get( i ).get() );
+		try
+		{
+			failing.get();
+			Assert.fail();
+		}
+		catch ( final ExecutionException e )
+		{
+			Assert.assertTrue( e.getCause() instanceof IllegalStateException );
+		}
+
+		Assert.assertArrayEquals( new long[]{ 16, 0, 0 }, order.get( 0 ) );
+		Assert.assertArrayEquals( new long[]{ 0, 16, 0 }, order.get( 1 ) );
+		Assert.assertArrayEquals( new long[]{ 0, 0, 8 }, order.get( 2 ) );
+		Assert.assertArrayEquals( new long[]{ 16, 0, 8 }, order.get( 3 ) );
+	}
+}
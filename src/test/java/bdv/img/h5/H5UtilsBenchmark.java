@@ -0,0 +1,119 @@
+package bdv.img.h5;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.img.cell.CellImg;
+import net.imglib2.img.cell.CellImgFactory;
+import net.imglib2.type.numeric.integer.LongType;
+import net.imglib2.view.Views;
+
+/**
+ * Saving and loading a 512x512x64 uint64 volume (128 MB) with 64x64x8
+ * deflated chunks to and from a local HDF5 file with 1 and 4 worker
+ * threads.  CellImgs with matching cells take the bulk path, views and
+ * ArrayImgs are converted block by block.
+ */
+@State( Scope.Benchmark )
+@BenchmarkMode( Mode.AverageTime )
+@OutputTimeUnit( TimeUnit.MILLISECONDS )
+@Warmup( iterations = 3 )
+@Measurement( iterations = 5 )
+@Fork( 1 )
+public class H5UtilsBenchmark
+{
+	static private final long[] DIMENSIONS = new long[]{ 512, 512, 64 };
+
+	static private final int[] CELL_DIMENSIONS = new int[]{ 64, 64, 8 };
+
+	static private final String DATASET = "/labels";
+
+	@Param( { "1", "4" } )
+	public int numThreads;
+
+	@Param( { "false", "true" } )
+	public boolean cells;
+
+	private CellImg< LongType, ?, ? > cellImg;
+
+	private RandomAccessibleInterval< LongType > source;
+
+	private RandomAccessibleInterval< LongType > target;
+
+	private File file;
+
+	private File saveFile;
+
+	@Setup( Level.Trial )
+	public void setup() throws IOException
+	{
+		final Random rnd = new Random( 13 );
+		cellImg = new CellImgFactory< LongType >( CELL_DIMENSIONS ).create( DIMENSIONS, new LongType() );
+		for ( final LongType t : cellImg )
+			t.set( rnd.nextInt( 1000 ) );
+		source = cells ? cellImg : Views.zeroMin( Views.interval( cellImg, cellImg ) );
+		target = cells ? new CellImgFactory< LongType >( CELL_DIMENSIONS ).create( DIMENSIONS, new LongType() ) : ArrayImgs.longs( DIMENSIONS );
+
+		file = File.createTempFile( "bigcat-h5-utils", ".h5" );
+		file.delete();
+		H5Utils.saveUnsignedLong( cellImg, file, DATASET, CELL_DIMENSIONS );
+	}
+
+	@Setup( Level.Invocation )
+	public void createSaveFile() throws IOException
+	{
+		saveFile = File.createTempFile( "bigcat-h5-utils-save", ".h5" );
+		saveFile.delete();
+	}
+
+	@TearDown( Level.Invocation )
+	public void deleteSaveFile()
+	{
+		saveFile.delete();
+	}
+
+	@TearDown( Level.Trial )
+	public void tearDown()
+	{
+		file.delete();
+	}
+
+	@Benchmark
+	public void save()
+	{
+		H5Utils.saveUnsignedLong( source, saveFile, DATASET, CELL_DIMENSIONS, numThreads );
+	}
+
+	@Benchmark
+	public RandomAccessibleInterval< LongType > load()
+	{
+		H5Utils.loadUnsignedLong( file, DATASET, target, CELL_DIMENSIONS, numThreads );
+		return target;
+	}
+
+	public static void main( final String[] args ) throws RunnerException
+	{
+		new Runner( new OptionsBuilder().include( H5UtilsBenchmark.class.getSimpleName() ).build() ).run();
+	}
+}
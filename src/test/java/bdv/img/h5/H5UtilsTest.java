@@ -16,10 +16,14 @@
  */
 package bdv.img.h5;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.Random;
 
 import org.junit.AfterClass;
 import org.junit.Before;
@@ -28,9 +32,23 @@ import org.junit.Test;
 
 import com.google.gson.Gson;
 
+import bdv.img.SparseLongCanvas;
 import bdv.labels.labelset.Label;
+import ch.systemsx.cisd.base.mdarray.MDLongArray;
+import ch.systemsx.cisd.hdf5.HDF5Factory;
+import ch.systemsx.cisd.hdf5.IHDF5Reader;
+import ch.systemsx.cisd.hdf5.IHDF5Writer;
 import gnu.trove.impl.Constants;
 import gnu.trove.map.hash.TLongLongHashMap;
+import net.imglib2.Cursor;
+import net.imglib2.RandomAccess;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.array.ArrayImg;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.img.cell.CellImg;
+import net.imglib2.img.cell.CellImgFactory;
+import net.imglib2.type.numeric.integer.LongType;
+import net.imglib2.view.Views;
 
 /**
  *
@@ -120,4 +138,160 @@ public class H5UtilsTest
 			fail( "Saving and loading long failed." );
 	}
 
+	/**
+	 * Saves and loads a uint64 volume with one and with three threads,
+	 * through the block pipeline (ArrayImg, CellImg with other cells) and
+	 * the bulk path (CellImg with matching cells).
+	 */
+	@Test
+	public void testSaveAndLoadUnsignedLong()
+	{
+		final long[] dimensions = new long[]{ 100, 80, 20 };
+		final int[] cellDimensions = new int[]{ 32, 32, 8 };
+		final int[] otherCellDimensions = new int[]{ 16, 32, 8 };
+
+		final Random rnd = new Random( 13 );
+		final CellImg< LongType, ?, ? > cellImg = new CellImgFactory< LongType >( cellDimensions ).create( dimensions, new LongType() );
+		for ( final LongType t : cellImg )
+			t.set( rnd.nextInt( 1000 ) );
+
+		for ( final int numThreads : new int[]{ 1, 3 } )
+		{
+			final File file = new File( testDirPath + "save-and-load-" + numThreads + ".h5" );
+			file.delete();
+
+			H5Utils.saveUnsignedLong( Views.zeroMin( Views.interval( cellImg, cellImg ) ), file, "/blocks", cellDimensions, numThreads );
+			H5Utils.saveUnsignedLong( cellImg, file, "/cells", cellDimensions, numThreads );
+			H5Utils.saveUnsignedLong( new CellImgFactory< LongType >( otherCellDimensions ).create( dimensions, new LongType() ), file, "/zeros", cellDimensions, numThreads );
+
+			for ( final String dataset : new String[]{ "/blocks", "/cells" } )
+			{
+				final CellImg< LongType, ?, ? > loadedCells = new CellImgFactory< LongType >( cellDimensions ).create( dimensions, new LongType() );
+				H5Utils.loadUnsignedLong( file, dataset, loadedCells, cellDimensions, numThreads );
+				assertImgEquals( cellImg, loadedCells );
+
+				final CellImg< LongType, ?, ? > loadedOtherCells = new CellImgFactory< LongType >( otherCellDimensions ).create( dimensions, new LongType() );
+				H5Utils.loadUnsignedLong( file, dataset, loadedOtherCells, cellDimensions, numThreads );
+				assertImgEquals( cellImg, loadedOtherCells );
+
+				final ArrayImg< LongType, ? > loadedArray = ArrayImgs.longs( dimensions );
+				H5Utils.loadUnsignedLong( file, dataset, loadedArray, cellDimensions, numThreads );
+				assertImgEquals( cellImg, loadedArray );
+			}
+
+			final ArrayImg< LongType, ? > zeros = ArrayImgs.longs( dimensions );
+			for ( final LongType t : zeros )
+				t.set( 1 );
+			H5Utils.loadUnsignedLong( file, "/zeros", zeros, cellDimensions, numThreads );
+			for ( final LongType t : zeros )
+				assertEquals( 0, t.get() );
+			file.delete();
+		}
+	}
+
+	/**
+	 * Max id from a full scan, from the summary, and after modifying one
+	 * chunk.  Only materialized cells are written.
+	 */
+	@Test
+	public void testChunkMaxIds()
+	{
+		final long[] dimensions = new long[]{ 100, 80, 20 };
+		final int[] cellDimensions = new int[]{ 32, 32, 8 };
+		final File file = new File( testDirPath + "max-ids.h5" );
+		file.delete();
+
+		final SparseLongCanvas canvas = new SparseLongCanvas( dimensions, cellDimensions, Label.TRANSPARENT );
+		final RandomAccess< LongType > access = canvas.randomAccess();
+		access.setPosition( new long[]{ 10, 10, 10 } );
+		access.get().set( 5 );
+		access.setPosition( new long[]{ 99, 79, 19 } );
+		access.get().set( 7 );
+		H5Utils.saveModifiedUnsignedLong( canvas, file, "/labels", cellDimensions );
+
+		final IHDF5Writer writer = HDF5Factory.open( file );
+		try
+		{
+			assertEquals( 7, ChunkMaxIds.maxId( writer, "/labels", cellDimensions ) );
+			assertFalse( writer.exists( ChunkMaxIds.summaryDataset( "/labels" ) ) );
+			assertEquals( 7, ChunkMaxIds.updateMaxId( writer, "/labels", cellDimensions ) );
+			assertTrue( writer.exists( ChunkMaxIds.summaryDataset( "/labels" ) ) );
+			assertEquals( 7, ChunkMaxIds.maxId( writer, "/labels", cellDimensions ) );
+		}
+		finally
+		{
+			writer.close();
+		}
+
+		canvas.setModified( false );
+		access.setPosition( new long[]{ 50, 40, 0 } );
+		access.get().set( 11 );
+		assertEquals( 1, H5Utils.saveModifiedUnsignedLong( canvas, file, "/labels", cellDimensions ) );
+
+		final IHDF5Reader reader = HDF5Factory.openForReading( file );
+		try
+		{
+			final long[] gridDimensions = ChunkMaxIds.gridDimensions( dimensions, cellDimensions );
+			final long[] stamps = ChunkMaxIds.loadStamps( reader, "/labels", cellDimensions, 4 * 3 * 3 );
+			assertEquals( 1, stamps[ ChunkMaxIds.chunkIndex( new long[]{ 32, 32, 0 }, cellDimensions, gridDimensions ) ] );
+			assertEquals( 1, stamps[ ChunkMaxIds.chunkIndex( new long[]{ 0, 0, 8 }, cellDimensions, gridDimensions ) ] );
+			assertEquals( 0, stamps[ 0 ] );
+			assertEquals( 11, ChunkMaxIds.maxId( reader, "/labels", cellDimensions ) );
+		}
+		finally
+		{
+			reader.close();
+		}
+
+		/* chunks that were never written are background */
+		final SparseLongCanvas loaded = H5Utils.loadUnsignedLong( file, "/labels", cellDimensions, Label.TRANSPARENT, false );
+		assertEquals( 3, loaded.numMaterializedCells() );
+		final RandomAccess< LongType > loadedAccess = loaded.randomAccess();
+		loadedAccess.setPosition( new long[]{ 50, 40, 0 } );
+		assertEquals( 11, loadedAccess.get().get() );
+		loadedAccess.setPosition( new long[]{ 0, 0, 0 } );
+		assertEquals( Label.TRANSPARENT, loadedAccess.get().get() );
+		file.delete();
+	}
+
+	/**
+	 * The summary of a dataset without stamps is not trusted, its writer may
+	 * not have maintained them.
+	 */
+	@Test
+	public void testChunkMaxIdsWithoutStamps()
+	{
+		final int[] cellDimensions = new int[]{ 32, 32, 8 };
+		final File file = new File( testDirPath + "max-ids-without-stamps.h5" );
+		file.delete();
+
+		final long[] labels = new long[ 64 * 64 * 8 ];
+		labels[ 100 ] = 5;
+		final IHDF5Writer writer = HDF5Factory.open( file );
+		try
+		{
+			writer.uint64().writeMDArray( "/labels", new MDLongArray( labels, new int[]{ 8, 64, 64 } ) );
+			assertEquals( 5, ChunkMaxIds.updateMaxId( writer, "/labels", cellDimensions ) );
+			assertTrue( writer.exists( ChunkMaxIds.stampsDataset( "/labels" ) ) );
+
+			/* another writer modifies the dataset and drops the stamps */
+			writer.delete( ChunkMaxIds.stampsDataset( "/labels" ) );
+			labels[ 200 ] = 9;
+			writer.uint64().writeMDArray( "/labels", new MDLongArray( labels, new int[]{ 8, 64, 64 } ) );
+			assertEquals( 9, ChunkMaxIds.maxId( writer, "/labels", cellDimensions ) );
+		}
+		finally
+		{
+			writer.close();
+		}
+		file.delete();
+	}
+
+	static private void assertImgEquals( final CellImg< LongType, ?, ? > expected, final RandomAccessibleInterval< LongType > actual )
+	{
+		final Cursor< LongType > e = Views.flatIterable( expected ).cursor();
+		final Cursor< LongType > a = Views.flatIterable( actual ).cursor();
+		while ( e.hasNext() )
+			assertEquals( e.next().get(), a.next().get() );
+	}
 }
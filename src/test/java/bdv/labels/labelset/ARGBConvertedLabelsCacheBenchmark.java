@@ -0,0 +1,149 @@
+package bdv.labels.labelset;
+
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import bdv.bigcat.label.FragmentSegmentAssignment;
+import bdv.bigcat.ui.GoldenAngleSaturatedARGBStream;
+import bdv.util.ColorStream;
+import bdv.util.LocalIdService;
+import gnu.trove.map.hash.TLongIntHashMap;
+import net.imglib2.img.array.ArrayImg;
+import net.imglib2.util.Fraction;
+
+/**
+ * Converting all 64x64x8 blocks of a 256x256x64 volume of label multisets
+ * to ARGB in parallel.  Fragments are 16x16x8 patches, voxels at the left
+ * border of a patch also contain the neighboring fragment.  Blocks are
+ * converted without remembering (as before), into an empty cache, after a
+ * merge or detach that changes the colors of two fragments, and from the
+ * cache.
+ */
+@State( Scope.Benchmark )
+@BenchmarkMode( Mode.AverageTime )
+@OutputTimeUnit( TimeUnit.MILLISECONDS )
+@Warmup( iterations = 5 )
+@Measurement( iterations = 10 )
+@Fork( 1 )
+public class ARGBConvertedLabelsCacheBenchmark
+{
+	static private final long[] DIMENSIONS = new long[]{ 256, 256, 64 };
+
+	static private final int[] BLOCK = new int[]{ 64, 64, 8 };
+
+	static private final int[] PATCH = new int[]{ 16, 16, 8 };
+
+	private final ArrayList< long[] > blockMins = new ArrayList<>();
+
+	private FragmentSegmentAssignment assignment;
+
+	private ARGBConvertedLabelsCache unversioned;
+
+	private ARGBConvertedLabelsCache cache;
+
+	private long numChanges = 0;
+
+	@Setup( Level.Trial )
+	public void setup()
+	{
+		final int[] patches = new int[ 3 ];
+		for ( int d = 0; d < 3; ++d )
+			patches[ d ] = ( int )DIMENSIONS[ d ] / PATCH[ d ];
+		final int[] offsets = new int[ ( int )( DIMENSIONS[ 0 ] * DIMENSIONS[ 1 ] * DIMENSIONS[ 2 ] ) ];
+		final LongMappedAccessData listData = LongMappedAccessData.factory.createStorage( 32 );
+		final LabelMultisetEntryList list = new LabelMultisetEntryList( listData, 0 );
+		final TLongIntHashMap listOffsets = new TLongIntHashMap();
+		int nextListOffset = 0;
+		for ( int z = 0, i = 0; z < DIMENSIONS[ 2 ]; ++z )
+			for ( int y = 0; y < DIMENSIONS[ 1 ]; ++y )
+				for ( int x = 0; x < DIMENSIONS[ 0 ]; ++x, ++i )
+				{
+					final long fragment = ( z / PATCH[ 2 ] * patches[ 1 ] + y / PATCH[ 1 ] ) * patches[ 0 ] + x / PATCH[ 0 ];
+					final boolean border = x % PATCH[ 0 ] == 0 && x > 0;
+					final long key = border ? -fragment - 1 : fragment;
+					if ( !listOffsets.containsKey( key ) )
+					{
+						list.createListAt( listData, nextListOffset );
+						if ( border )
+							list.add( new LabelMultisetEntry( fragment - 1, 1 ) );
+						list.add( new LabelMultisetEntry( fragment, 3 ) );
+						listOffsets.put( key, nextListOffset );
+						nextListOffset += list.getSizeInBytes();
+					}
+					offsets[ i ] = listOffsets.get( key );
+				}
+		final ArrayImg< LabelMultisetType, VolatileLabelMultisetArray > labels =
+				new ArrayImg<>( new VolatileLabelMultisetArray( offsets, listData, nextListOffset, true ), DIMENSIONS, new Fraction() );
+		labels.setLinkedType( new LabelMultisetType( labels ) );
+
+		for ( long z = 0; z < DIMENSIONS[ 2 ]; z += BLOCK[ 2 ] )
+			for ( long y = 0; y < DIMENSIONS[ 1 ]; y += BLOCK[ 1 ] )
+				for ( long x = 0; x < DIMENSIONS[ 0 ]; x += BLOCK[ 0 ] )
+					blockMins.add( new long[]{ x, y, z } );
+
+		final int numFragments = patches[ 0 ] * patches[ 1 ] * patches[ 2 ];
+		final LocalIdService idService = new LocalIdService();
+		idService.setNext( numFragments );
+		assignment = new FragmentSegmentAssignment( idService );
+		final GoldenAngleSaturatedARGBStream colorStream = new GoldenAngleSaturatedARGBStream( assignment );
+
+		unversioned = new ARGBConvertedLabelsCache( ( t, level ) -> labels, ColorStream::get, Long.MAX_VALUE );
+		cache = new ARGBConvertedLabelsCache( ( t, level ) -> labels, colorStream, Long.MAX_VALUE );
+	}
+
+	private long convert( final ARGBConvertedLabelsCache cache )
+	{
+		return blockMins.parallelStream().mapToLong( min -> cache.get( 0, 0, min, BLOCK )[ 0 ] ).sum();
+	}
+
+	@Benchmark
+	public long convertUnversioned()
+	{
+		return convert( unversioned );
+	}
+
+	@Benchmark
+	public long convertEmptyCache()
+	{
+		cache.clear();
+		return convert( cache );
+	}
+
+	@Benchmark
+	public long convertAfterMergeOrDetach()
+	{
+		/* alternately merge two fragments and detach one of them again */
+		final long fragment = 2 * ( ( numChanges / 2 ) % 512 );
+		if ( numChanges++ % 2 == 0 )
+			assignment.mergeFragmentSegments( fragment, fragment + 1 );
+		else
+			assignment.detachFragment( fragment + 1 );
+		return convert( cache );
+	}
+
+	@Benchmark
+	public long convertCached()
+	{
+		return convert( cache );
+	}
+
+	public static void main( final String[] args ) throws RunnerException
+	{
+		new Runner( new OptionsBuilder().include( ARGBConvertedLabelsCacheBenchmark.class.getSimpleName() ).build() ).run();
+	}
+}
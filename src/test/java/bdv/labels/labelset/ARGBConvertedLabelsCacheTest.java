@@ -0,0 +1,152 @@
+package bdv.labels.labelset;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import bdv.bigcat.ui.ARGBStream;
+import gnu.trove.map.hash.TLongIntHashMap;
+import net.imglib2.FinalInterval;
+import net.imglib2.img.array.ArrayImg;
+import net.imglib2.util.Fraction;
+
+public class ARGBConvertedLabelsCacheTest
+{
+	static private final long[] DIMENSIONS = new long[]{ 8, 8, 4 };
+
+	static private final int[] BLOCK = new int[]{ 4, 4, 2 };
+
+	/* changeable colors by id */
+	static private class Colors implements ARGBStream
+	{
+		final TLongIntHashMap colors = new TLongIntHashMap();
+
+		long version = 0;
+
+		@Override
+		public int argb( final long id )
+		{
+			return colors.get( id );
+		}
+
+		@Override
+		public long getVersion()
+		{
+			return version;
+		}
+
+		void set( final long id, final int argb )
+		{
+			colors.put( id, argb );
+			++version;
+		}
+	}
+
+	/**
+	 * Each voxel contains label (x / 4 + 2 * (z / 2)) three times, voxels in
+	 * the last slice also label 9 once.
+	 */
+	static private ArrayImg< LabelMultisetType, VolatileLabelMultisetArray > labels()
+	{
+		final int n = ( int )( DIMENSIONS[ 0 ] * DIMENSIONS[ 1 ] * DIMENSIONS[ 2 ] );
+		final int[] offsets = new int[ n ];
+		final LongMappedAccessData listData = LongMappedAccessData.factory.createStorage( 32 );
+		final LabelMultisetEntryList list = new LabelMultisetEntryList( listData, 0 );
+		final TLongIntHashMap listOffsets = new TLongIntHashMap();
+		int nextListOffset = 0;
+		for ( int z = 0, i = 0; z < DIMENSIONS[ 2 ]; ++z )
+			for ( int y = 0; y < DIMENSIONS[ 1 ]; ++y )
+				for ( int x = 0; x < DIMENSIONS[ 0 ]; ++x, ++i )
+				{
+					final long label = x / 4 + 2 * ( z / 2 );
+					final boolean mixed = z == DIMENSIONS[ 2 ] - 1;
+					final long key = mixed ? -label - 1 : label;
+					if ( !listOffsets.containsKey( key ) )
+					{
+						list.createListAt( listData, nextListOffset );
+						list.add( new LabelMultisetEntry( label, 3 ) );
+						if ( mixed )
+							list.add( new LabelMultisetEntry( 9, 1 ) );
+						listOffsets.put( key, nextListOffset );
+						nextListOffset += list.getSizeInBytes();
+					}
+					offsets[ i ] = listOffsets.get( key );
+				}
+		final ArrayImg< LabelMultisetType, VolatileLabelMultisetArray > img =
+				new ArrayImg<>( new VolatileLabelMultisetArray( offsets, listData, nextListOffset, true ), DIMENSIONS, new Fraction() );
+		img.setLinkedType( new LabelMultisetType( img ) );
+		return img;
+	}
+
+	private Colors colors;
+
+	private ARGBConvertedLabelsCache cache;
+
+	@Before
+	public void setUp()
+	{
+		colors = new Colors();
+		for ( long id = 0; id < 10; ++id )
+			colors.set( id, 0xff000000 | ( int )( id * 16 ) );
+		final ArrayImg< LabelMultisetType, VolatileLabelMultisetArray > labels = labels();
+		cache = new ARGBConvertedLabelsCache( ( t, level ) -> labels, colors, 1024 * 1024 );
+	}
+
+	@Test
+	public void testConversion()
+	{
+		final int[] data = cache.get( 0, 0, new long[]{ 4, 0, 2 }, BLOCK );
+		Assert.assertEquals( 32, data.length );
+		Assert.assertEquals( 0xff000000 | 3 * 16, data[ 0 ] );
+		/* second slice of the block is the mixed last slice of the image */
+		Assert.assertEquals( 0xff000000 | ( 3 * 3 * 16 + 9 * 16 ) / 4, data[ 16 ] );
+		Assert.assertEquals( 0xff000000 | ( 3 * 3 * 16 + 9 * 16 ) / 4, data[ 31 ] );
+	}
+
+	@Test
+	public void testReconvertOnlyChangedBlocks()
+	{
+		final int[] block0 = cache.get( 0, 0, new long[]{ 0, 0, 0 }, BLOCK );
+		final int[] block1 = cache.get( 0, 0, new long[]{ 4, 0, 0 }, BLOCK );
+		Assert.assertSame( block0, cache.get( 0, 0, new long[]{ 0, 0, 0 }, BLOCK ) );
+
+		/* label 1 is only in block1, alpha is ignored */
+		colors.set( 1, 0x20ffffff );
+		colors.set( 0, 0x80000000 );
+		Assert.assertSame( block0, cache.get( 0, 0, new long[]{ 0, 0, 0 }, BLOCK ) );
+		final int[] changed = cache.get( 0, 0, new long[]{ 4, 0, 0 }, BLOCK );
+		Assert.assertNotSame( block1, changed );
+		Assert.assertEquals( 0xffffffff, changed[ 0 ] );
+		Assert.assertSame( changed, cache.get( 0, 0, new long[]{ 4, 0, 0 }, BLOCK ) );
+
+		/* other levels and timepoints are other blocks */
+		Assert.assertNotSame( block0, cache.get( 1, 0, new long[]{ 0, 0, 0 }, BLOCK ) );
+		Assert.assertNotSame( block0, cache.get( 0, 1, new long[]{ 0, 0, 0 }, BLOCK ) );
+	}
+
+	@Test
+	public void testInvalidate()
+	{
+		final int[] block0 = cache.get( 0, 0, new long[]{ 0, 0, 0 }, BLOCK );
+		final int[] block1 = cache.get( 0, 0, new long[]{ 4, 0, 0 }, BLOCK );
+		cache.invalidate( 0, 0, new FinalInterval( new long[]{ 5, 1, 1 }, new long[]{ 6, 2, 1 } ) );
+		Assert.assertSame( block0, cache.get( 0, 0, new long[]{ 0, 0, 0 }, BLOCK ) );
+		Assert.assertNotSame( block1, cache.get( 0, 0, new long[]{ 4, 0, 0 }, BLOCK ) );
+	}
+
+	@Test
+	public void testMemoryBudget()
+	{
+		final ArrayImg< LabelMultisetType, VolatileLabelMultisetArray > labels = labels();
+		/* room for two blocks */
+		final ARGBConvertedLabelsCache small = new ARGBConvertedLabelsCache( ( t, level ) -> labels, colors, 2 * ( 64 + 4 * 32 + 12 * 2 ) );
+		final int[] block0 = small.get( 0, 0, new long[]{ 0, 0, 0 }, BLOCK );
+		final int[] block1 = small.get( 0, 0, new long[]{ 4, 0, 0 }, BLOCK );
+		Assert.assertSame( block0, small.get( 0, 0, new long[]{ 0, 0, 0 }, BLOCK ) );
+		small.get( 0, 0, new long[]{ 0, 4, 0 }, BLOCK );
+		Assert.assertTrue( small.getSizeInBytes() <= 2 * ( 64 + 4 * 32 + 12 * 2 ) );
+		/* the least recently used block was dropped */
+		Assert.assertSame( block0, small.get( 0, 0, new long[]{ 0, 0, 0 }, BLOCK ) );
+		Assert.assertNotSame( block1, small.get( 0, 0, new long[]{ 4, 0, 0 }, BLOCK ) );
+	}
+}
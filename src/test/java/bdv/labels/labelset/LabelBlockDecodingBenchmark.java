@@ -0,0 +1,140 @@
+package bdv.labels.labelset;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import bdv.util.LittleEndianBuffers;
+
+/**
+ * Decoding 64^3 blocks as received from DVID: uint64 labels, decoded by
+ * per-byte shifts into fresh arrays as the loaders did before or in bulk
+ * into the per-thread scratch arrays, and cached label multiset blocks of
+ * 8^3 fragments, copied byte by byte as before, copied in bulk by
+ * {@link VolatileLabelMultisetArray#fromBytes(byte[], int)} or used in
+ * place by {@link VolatileLabelMultisetArray#wrap(byte[], int)}.
+ */
+@State( Scope.Thread )
+@BenchmarkMode( Mode.AverageTime )
+@OutputTimeUnit( TimeUnit.MICROSECONDS )
+@Warmup( iterations = 3 )
+@Measurement( iterations = 5 )
+@Fork( 1 )
+public class LabelBlockDecodingBenchmark
+{
+	static private final int SIZE = 64;
+
+	static private final int NUM_ELEMENTS = SIZE * SIZE * SIZE;
+
+	private byte[] labels;
+
+	private byte[] multisets;
+
+	@Setup
+	public void setup()
+	{
+		final Random rnd = new Random( 7 );
+		labels = new byte[ 8 * NUM_ELEMENTS ];
+		rnd.nextBytes( labels );
+
+		final int numFragments = SIZE / 8;
+		final int[] offsets = new int[ NUM_ELEMENTS ];
+		final LongMappedAccessData listData = LongMappedAccessData.factory.createStorage( 32 );
+		final LabelMultisetEntryList list = new LabelMultisetEntryList();
+		final int[] listOffsets = new int[ numFragments * numFragments * numFragments ];
+		int nextListOffset = 0;
+		for ( int f = 0; f < listOffsets.length; ++f )
+		{
+			listOffsets[ f ] = nextListOffset;
+			list.createListAt( listData, nextListOffset );
+			list.add( new LabelMultisetEntry( rnd.nextLong() & Long.MAX_VALUE, 1 ) );
+			nextListOffset += list.getSizeInBytes();
+		}
+		for ( int z = 0, i = 0; z < SIZE; ++z )
+			for ( int y = 0; y < SIZE; ++y )
+				for ( int x = 0; x < SIZE; ++x, ++i )
+					offsets[ i ] = listOffsets[ ( z / 8 * numFragments + y / 8 ) * numFragments + x / 8 ];
+		multisets = new VolatileLabelMultisetArray( offsets, listData, nextListOffset, true ).toBytes();
+	}
+
+	@Benchmark
+	public long[] decodeLabelsByShifts()
+	{
+		final byte[] bytes = new byte[ labels.length ];
+		System.arraycopy( labels, 0, bytes, 0, labels.length );
+		final long[] ids = new long[ NUM_ELEMENTS ];
+		for ( int i = 0, j = -1; i < NUM_ELEMENTS; ++i )
+		{
+			final long l0 = bytes[ ++j ] & 0xff;
+			final long l1 = bytes[ ++j ] & 0xff;
+			final long l2 = bytes[ ++j ] & 0xff;
+			final long l3 = bytes[ ++j ] & 0xff;
+			final long l4 = bytes[ ++j ] & 0xff;
+			final long l5 = bytes[ ++j ] & 0xff;
+			final long l6 = bytes[ ++j ] & 0xff;
+			final long l7 = bytes[ ++j ] & 0xff;
+			ids[ i ] = ( l7 << 56 ) | ( l6 << 48 ) | ( l5 << 40 ) | ( l4 << 32 ) | ( l3 << 24 ) | ( l2 << 16 ) | ( l1 << 8 ) | l0;
+		}
+		return ids;
+	}
+
+	/* the copy stands for receiving into the scratch array */
+	@Benchmark
+	public long[] decodeLabelsInBulk()
+	{
+		final byte[] bytes = LittleEndianBuffers.scratchBytes( labels.length );
+		System.arraycopy( labels, 0, bytes, 0, labels.length );
+		final long[] ids = LittleEndianBuffers.scratchLongs( NUM_ELEMENTS );
+		LittleEndianBuffers.getLongs( bytes, 0, ids, NUM_ELEMENTS );
+		return ids;
+	}
+
+	@Benchmark
+	public VolatileLabelMultisetArray decodeMultisetsByBytes()
+	{
+		final int[] data = new int[ NUM_ELEMENTS ];
+		for ( int i = 0, j = -1; i < NUM_ELEMENTS; ++i )
+		{
+			final int i0 = multisets[ ++j ] & 0xff;
+			final int i1 = multisets[ ++j ] & 0xff;
+			final int i2 = multisets[ ++j ] & 0xff;
+			final int i3 = multisets[ ++j ] & 0xff;
+			data[ i ] = ( i3 << 24 ) | ( i2 << 16 ) | ( i1 << 8 ) | i0;
+		}
+		final int listDataSize = multisets.length - 4 * NUM_ELEMENTS;
+		final LongMappedAccessData listData = LongMappedAccessData.factory.createStorage( listDataSize );
+		for ( int i = 0, j = 4 * NUM_ELEMENTS; i < listDataSize; ++i, ++j )
+			ByteUtils.putByte( multisets[ j ], listData.getData(), i );
+		return new VolatileLabelMultisetArray( data, listData, listDataSize, true );
+	}
+
+	@Benchmark
+	public VolatileLabelMultisetArray decodeMultisetsInBulk()
+	{
+		return VolatileLabelMultisetArray.fromBytes( multisets, NUM_ELEMENTS );
+	}
+
+	@Benchmark
+	public VolatileLabelMultisetArray wrapMultisets()
+	{
+		return VolatileLabelMultisetArray.wrap( multisets, NUM_ELEMENTS );
+	}
+
+	public static void main( final String[] args ) throws RunnerException
+	{
+		new Runner( new OptionsBuilder().include( LabelBlockDecodingBenchmark.class.getSimpleName() ).build() ).run();
+	}
+}
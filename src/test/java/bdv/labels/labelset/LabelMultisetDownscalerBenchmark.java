@@ -0,0 +1,295 @@
+package bdv.labels.labelset;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import bdv.labels.labelset.LabelMultisetDownscaler.LabelMultisetEntryListIndex;
+import bdv.labels.labelset.Multiset.Entry;
+import gnu.trove.list.array.TIntArrayList;
+import net.imglib2.RandomAccess;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.array.ArrayImg;
+import net.imglib2.util.Fraction;
+import net.imglib2.util.IntervalIndexer;
+
+/**
+ * Downscaling a 128^3 block of label multisets into a 64^3 block at levels
+ * 1 to 3.  Fragments are cubes of 12^3 voxels at full resolution, the
+ * input pixels at level <em>l</em> cover 2<sup>l-1</sup> voxels in each
+ * dimension and contain all fragments that they overlap.  The kernel that
+ * the DVID downscaling loader used before (sorting the entry iterators
+ * after each step and deduplicating lists by a linear scan) is compared
+ * with {@link LabelMultisetDownscaler} in one thread and on the common
+ * pool.
+ */
+@State( Scope.Benchmark )
+@BenchmarkMode( Mode.AverageTime )
+@OutputTimeUnit( TimeUnit.MILLISECONDS )
+@Warmup( iterations = 3 )
+@Measurement( iterations = 5 )
+@Fork( 1 )
+public class LabelMultisetDownscalerBenchmark
+{
+	static private final int SIZE = 64;
+
+	static private final int FRAGMENT_SIZE = 12;
+
+	static private final int[] FACTORS = new int[]{ 2, 2, 2 };
+
+	static private final int[] DIMENSIONS = new int[]{ SIZE, SIZE, SIZE };
+
+	static private final long[] MIN = new long[]{ 0, 0, 0 };
+
+	@Param( { "1", "2", "3" } )
+	public int level;
+
+	private ArrayImg< LabelMultisetType, VolatileLabelMultisetArray > input;
+
+	private ForkJoinPool singleThread;
+
+	@Setup( Level.Trial )
+	public void setup()
+	{
+		final int inputSize = 2 * SIZE;
+		final int footprint = 1 << ( level - 1 );
+		final int numFragments = inputSize * footprint / FRAGMENT_SIZE + 1;
+
+		final int[] inputDimensions = new int[]{ inputSize, inputSize, inputSize };
+		final int[] offsets = new int[ inputSize * inputSize * inputSize ];
+		final LongMappedAccessData listData = LongMappedAccessData.factory.createStorage( 32 );
+		final LabelMultisetEntryList list = new LabelMultisetEntryList();
+		final LabelMultisetEntry entry = new LabelMultisetEntry();
+		final LabelMultisetEntryListIndex lists = new LabelMultisetEntryListIndex( listData );
+		final int[] pos = new int[ 3 ];
+		final int[] first = new int[ 3 ];
+		final int[] last = new int[ 3 ];
+		int nextListOffset = 0;
+		for ( int i = 0; i < offsets.length; ++i )
+		{
+			IntervalIndexer.indexToPosition( i, inputDimensions, pos );
+			for ( int d = 0; d < 3; ++d )
+			{
+				first[ d ] = pos[ d ] * footprint / FRAGMENT_SIZE;
+				last[ d ] = ( ( pos[ d ] + 1 ) * footprint - 1 ) / FRAGMENT_SIZE;
+			}
+			list.createListAt( listData, nextListOffset );
+			for ( int z = first[ 2 ]; z <= last[ 2 ]; ++z )
+				for ( int y = first[ 1 ]; y <= last[ 1 ]; ++y )
+					for ( int x = first[ 0 ]; x <= last[ 0 ]; ++x )
+					{
+						entry.setId( ( z * numFragments + y ) * numFragments + x + 1 );
+						entry.setCount( overlap( pos[ 0 ], footprint, x ) * overlap( pos[ 1 ], footprint, y ) * overlap( pos[ 2 ], footprint, z ) );
+						list.add( entry );
+					}
+			final int offset = lists.putIfAbsent( list );
+			if ( offset == -1 )
+			{
+				offsets[ i ] = nextListOffset;
+				nextListOffset += list.getSizeInBytes();
+			}
+			else
+				offsets[ i ] = offset;
+		}
+
+		input = new ArrayImg<>( new VolatileLabelMultisetArray( offsets, listData, nextListOffset, true ), new long[]{ inputSize, inputSize, inputSize }, new Fraction() );
+		input.setLinkedType( new LabelMultisetType( input ) );
+
+		singleThread = new ForkJoinPool( 1 );
+	}
+
+	@TearDown( Level.Trial )
+	public void tearDown()
+	{
+		singleThread.shutdown();
+	}
+
+	/* voxels of pixel p that belong to fragment f along one dimension */
+	static private int overlap( final int p, final int footprint, final int f )
+	{
+		final int min = Math.max( p * footprint, f * FRAGMENT_SIZE );
+		final int max = Math.min( ( p + 1 ) * footprint, ( f + 1 ) * FRAGMENT_SIZE );
+		return max - min;
+	}
+
+	@Benchmark
+	public VolatileLabelMultisetArray sortedIterators()
+	{
+		return downscaleSortedIterators( input, FACTORS, DIMENSIONS, MIN );
+	}
+
+	@Benchmark
+	public VolatileLabelMultisetArray heapMergeSingleThread()
+	{
+		return new LabelMultisetDownscaler( singleThread ).downscale( input, FACTORS, DIMENSIONS, MIN, 1 );
+	}
+
+	@Benchmark
+	public VolatileLabelMultisetArray heapMerge()
+	{
+		return new LabelMultisetDownscaler().downscale( input, FACTORS, DIMENSIONS, MIN, 1 );
+	}
+
+	static private class SortedPeekIterator implements Comparable< SortedPeekIterator >
+	{
+		Iterator< Entry< Label > > iter;
+
+		Entry< Label > head;
+
+		void init( final Iterator< Entry< Label > > iter )
+		{
+			this.iter = iter;
+			head = iter.hasNext() ? iter.next() : null;
+		}
+
+		void fwd()
+		{
+			head = iter.hasNext() ? iter.next() : null;
+		}
+
+		@Override
+		public int compareTo( final SortedPeekIterator o )
+		{
+			if ( head == null )
+				return o.head == null ? 0 : 1;
+			else
+				return o.head == null ? -1 : Long.compare( head.getElement().id(), o.head.getElement().id() );
+		}
+	}
+
+	/**
+	 * The kernel of the DVID downscaling loader before
+	 * {@link LabelMultisetDownscaler}, for input that contains all
+	 * contributing pixels.
+	 */
+	static private VolatileLabelMultisetArray downscaleSortedIterators(
+			final RandomAccessibleInterval< LabelMultisetType > input,
+			final int[] factors,
+			final int[] dimensions,
+			final long[] min )
+	{
+		final int n = 3;
+		final int[] data = new int[ dimensions[ 0 ] * dimensions[ 1 ] * dimensions[ 2 ] ];
+		final LongMappedAccessData listData = LongMappedAccessData.factory.createStorage( 32 );
+
+		int numContribs = 1;
+		for ( int i = 0; i < n; ++i )
+			numContribs *= factors[ i ];
+
+		@SuppressWarnings( "unchecked" )
+		final RandomAccess< LabelMultisetType >[] inputs = new RandomAccess[ numContribs ];
+		final SortedPeekIterator[] iters = new SortedPeekIterator[ numContribs ];
+		for ( int i = 0; i < numContribs; ++i )
+		{
+			inputs[ i ] = input.randomAccess();
+			iters[ i ] = new SortedPeekIterator();
+		}
+
+		final int[] outputPos = new int[ n ];
+		final int[] inputOffset = new int[ n ];
+		final int[] inputPos = new int[ n ];
+
+		final LabelMultisetEntryList list = new LabelMultisetEntryList( listData, 0 );
+		final LabelMultisetEntryList list2 = new LabelMultisetEntryList();
+		final TIntArrayList listHashesAndOffsets = new TIntArrayList();
+		final LabelMultisetEntry entry = new LabelMultisetEntry( 0, 1 );
+		int nextListOffset = 0;
+		for ( int o = 0; o < data.length; ++o )
+		{
+			IntervalIndexer.indexToPosition( o, dimensions, outputPos );
+			for ( int d = 0; d < n; ++d )
+				inputOffset[ d ] = ( outputPos[ d ] + ( int ) min[ d ] ) * factors[ d ];
+
+			for ( int i = 0; i < numContribs; ++i )
+			{
+				IntervalIndexer.indexToPositionWithOffset( i, factors, inputOffset, inputPos );
+				inputs[ i ].setPosition( inputPos );
+				iters[ i ].init( inputs[ i ].get().entrySet().iterator() );
+			}
+
+			list.createListAt( listData, nextListOffset );
+			Arrays.sort( iters );
+			if ( iters[ 0 ].head != null )
+			{
+				long id = iters[ 0 ].head.getElement().id();
+				int count = iters[ 0 ].head.getCount();
+
+				iters[ 0 ].fwd();
+				Arrays.sort( iters );
+
+				while ( iters[ 0 ].head != null )
+				{
+					final long headId = iters[ 0 ].head.getElement().id();
+					final int headCount = iters[ 0 ].head.getCount();
+
+					if ( headId == id )
+						count += headCount;
+					else
+					{
+						entry.setId( id );
+						entry.setCount( count );
+						list.add( entry );
+
+						id = headId;
+						count = headCount;
+					}
+
+					iters[ 0 ].fwd();
+					Arrays.sort( iters );
+				}
+
+				entry.setId( id );
+				entry.setCount( count );
+				list.add( entry );
+			}
+
+			boolean makeNewList = true;
+			final int hash = list.hashCode();
+			for ( int i = 0; i < listHashesAndOffsets.size(); i += 2 )
+			{
+				if ( hash == listHashesAndOffsets.get( i ) )
+				{
+					list2.referToDataAt( listData, listHashesAndOffsets.get( i + 1 ) );
+					if ( list.equals( list2 ) )
+					{
+						makeNewList = false;
+						data[ o ] = listHashesAndOffsets.get( i + 1 );
+						break;
+					}
+				}
+			}
+			if ( makeNewList )
+			{
+				data[ o ] = nextListOffset;
+				listHashesAndOffsets.add( hash );
+				listHashesAndOffsets.add( nextListOffset );
+				nextListOffset += list.getSizeInBytes();
+			}
+		}
+
+		return new VolatileLabelMultisetArray( data, listData, nextListOffset, true );
+	}
+
+	public static void main( final String[] args ) throws RunnerException
+	{
+		new Runner( new OptionsBuilder().include( LabelMultisetDownscalerBenchmark.class.getSimpleName() ).build() ).run();
+	}
+}
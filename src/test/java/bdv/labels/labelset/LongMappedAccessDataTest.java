@@ -0,0 +1,278 @@
+package bdv.labels.labelset;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Label lists round-trip through heap, off-heap and mapped
+ * {@link LongMappedAccessData}, and keep their contents when the storage
+ * grows.
+ */
+public class LongMappedAccessDataTest
+{
+	static private final int NUM_LISTS = 101;
+
+	private long[][] ids;
+
+	private int[][] counts;
+
+	private File file;
+
+	@Before
+	public void setUp() throws Exception
+	{
+		final Random rnd = new Random( 8 );
+		ids = new long[ NUM_LISTS ][];
+		counts = new int[ NUM_LISTS ][];
+		for ( int i = 0; i < NUM_LISTS; ++i )
+		{
+			ids[ i ] = new long[ rnd.nextInt( 7 ) ];
+			counts[ i ] = new int[ ids[ i ].length ];
+			for ( int k = 0; k < ids[ i ].length; ++k )
+			{
+				/* ids that do not fit into an int */
+				ids[ i ][ k ] = ( ( long ) rnd.nextInt() << 20 ) + k;
+				counts[ i ][ k ] = 1 + rnd.nextInt( 1000 );
+			}
+		}
+		file = File.createTempFile( "bigcat-label-lists", ".bin" );
+	}
+
+	@After
+	public void tearDown()
+	{
+		LongMappedAccessData.setDefaultFactory( LongMappedAccessData.factory );
+		file.delete();
+	}
+
+	/**
+	 * Write the lists one after the other, growing {@code listData} as
+	 * needed.
+	 *
+	 * @return offsets of the lists
+	 */
+	private int[] writeLists( final LongMappedAccessData listData )
+	{
+		final int[] offsets = new int[ NUM_LISTS ];
+		final LabelMultisetEntryList list = new LabelMultisetEntryList();
+		final LabelMultisetEntry entry = new LabelMultisetEntry();
+		long offset = 0;
+		for ( int i = 0; i < NUM_LISTS; ++i )
+		{
+			offsets[ i ] = ( int ) offset;
+			list.createListAt( listData, offset );
+			for ( int k = 0; k < ids[ i ].length; ++k )
+			{
+				entry.setId( ids[ i ][ k ] );
+				entry.setCount( counts[ i ][ k ] );
+				list.add( entry );
+			}
+			offset += list.getSizeInBytes();
+		}
+		return offsets;
+	}
+
+	private void assertList( final int i, final LabelMultisetEntryList list )
+	{
+		Assert.assertEquals( ids[ i ].length, list.size() );
+		for ( int k = 0; k < ids[ i ].length; ++k )
+		{
+			Assert.assertEquals( ids[ i ][ k ], list.get( k ).getId() );
+			Assert.assertEquals( counts[ i ][ k ], list.get( k ).getCount() );
+		}
+	}
+
+	private void assertLists( final VolatileLabelMultisetArray array )
+	{
+		final LabelMultisetEntryList list = new LabelMultisetEntryList();
+		for ( int i = 0; i < NUM_LISTS; ++i )
+		{
+			array.getValue( i, list );
+			assertList( i, list );
+		}
+	}
+
+	static private long usedSize( final int[] offsets, final LongMappedAccessData listData )
+	{
+		final LabelMultisetEntryList list = new LabelMultisetEntryList();
+		list.referToDataAt( listData, offsets[ offsets.length - 1 ] );
+		return offsets[ offsets.length - 1 ] + list.getSizeInBytes();
+	}
+
+	private VolatileLabelMultisetArray createArray( final MappedAccessData.Factory< LongMappedAccessData, LongMappedAccess > factory )
+	{
+		final LongMappedAccessData listData = factory.createStorage( 16 );
+		final int[] offsets = writeLists( listData );
+		return new VolatileLabelMultisetArray( offsets, listData, usedSize( offsets, listData ), true );
+	}
+
+	private VolatileLabelMultisetArray roundTrip( final VolatileLabelMultisetArray array, final MappedAccessData.Factory< LongMappedAccessData, LongMappedAccess > factory )
+	{
+		LongMappedAccessData.setDefaultFactory( factory );
+		return VolatileLabelMultisetArray.fromBytes( array.toBytes(), NUM_LISTS );
+	}
+
+	@Test
+	public void testHeap()
+	{
+		final VolatileLabelMultisetArray array = createArray( LongMappedAccessData.factory );
+		Assert.assertFalse( ( ( LongMappedAccessData ) array.getListData() ).isOffHeap() );
+		assertLists( array );
+
+		final VolatileLabelMultisetArray heap = roundTrip( array, LongMappedAccessData.factory );
+		Assert.assertFalse( ( ( LongMappedAccessData ) heap.getListData() ).isOffHeap() );
+		assertLists( heap );
+
+		final VolatileLabelMultisetArray offHeap = roundTrip( array, LongMappedAccessData.directFactory );
+		Assert.assertTrue( ( ( LongMappedAccessData ) offHeap.getListData() ).isOffHeap() );
+		assertLists( offHeap );
+	}
+
+	@Test
+	public void testOffHeap()
+	{
+		final VolatileLabelMultisetArray array = createArray( LongMappedAccessData.directFactory );
+		final LongMappedAccessData listData = ( LongMappedAccessData ) array.getListData();
+		Assert.assertTrue( listData.isOffHeap() );
+		Assert.assertNull( listData.getData() );
+		assertLists( array );
+
+		final VolatileLabelMultisetArray offHeap = roundTrip( array, LongMappedAccessData.directFactory );
+		assertLists( offHeap );
+
+		final VolatileLabelMultisetArray heap = roundTrip( array, LongMappedAccessData.factory );
+		Assert.assertFalse( ( ( LongMappedAccessData ) heap.getListData() ).isOffHeap() );
+		assertLists( heap );
+		Assert.assertArrayEquals( array.toBytes(), heap.toBytes() );
+	}
+
+	/**
+	 * The list data of a file starts after the odd number of int offsets,
+	 * i.e. not at a long boundary.
+	 */
+	@Test
+	public void testMapped() throws Exception
+	{
+		final VolatileLabelMultisetArray array = createArray( LongMappedAccessData.factory );
+		final byte[] bytes = array.toBytes();
+		Files.write( file.toPath(), bytes );
+
+		final VolatileLabelMultisetArray mapped = VolatileLabelMultisetArray.map( file.toPath(), NUM_LISTS );
+		Assert.assertTrue( ( ( LongMappedAccessData ) mapped.getListData() ).isOffHeap() );
+		Assert.assertEquals( array.getListDataUsedSizeInBytes(), mapped.getListDataUsedSizeInBytes() );
+		assertLists( mapped );
+		Assert.assertArrayEquals( bytes, mapped.toBytes() );
+
+		assertLists( roundTrip( mapped, LongMappedAccessData.factory ) );
+		assertLists( roundTrip( mapped, LongMappedAccessData.directFactory ) );
+	}
+
+	/**
+	 * Appending to the last list of a mapping grows the storage past the
+	 * end of the mapping.  The storage is then copied off-heap, the other
+	 * lists are kept and the file is not modified.
+	 */
+	@Test
+	public void testGrowMapped() throws Exception
+	{
+		final VolatileLabelMultisetArray array = createArray( LongMappedAccessData.factory );
+		final byte[] bytes = array.toBytes();
+		Files.write( file.toPath(), bytes );
+		final VolatileLabelMultisetArray mapped = VolatileLabelMultisetArray.map( file.toPath(), NUM_LISTS );
+		final LongMappedAccessData listData = ( LongMappedAccessData ) mapped.getListData();
+		final long mappedSize = listData.size();
+
+		final int last = NUM_LISTS - 1;
+		final LabelMultisetEntryList list = new LabelMultisetEntryList();
+		mapped.getValue( last, list );
+		final int numEntries = ids[ last ].length + 100;
+		final long[] grownIds = new long[ numEntries ];
+		final int[] grownCounts = new int[ numEntries ];
+		System.arraycopy( ids[ last ], 0, grownIds, 0, ids[ last ].length );
+		System.arraycopy( counts[ last ], 0, grownCounts, 0, ids[ last ].length );
+		final LabelMultisetEntry entry = new LabelMultisetEntry();
+		for ( int k = ids[ last ].length; k < numEntries; ++k )
+		{
+			grownIds[ k ] = Long.MAX_VALUE - k;
+			grownCounts[ k ] = k;
+			entry.setId( grownIds[ k ] );
+			entry.setCount( grownCounts[ k ] );
+			list.add( entry );
+		}
+		ids[ last ] = grownIds;
+		counts[ last ] = grownCounts;
+
+		Assert.assertTrue( listData.size() > mappedSize );
+		Assert.assertTrue( listData.isOffHeap() );
+		assertLists( mapped );
+		Assert.assertArrayEquals( bytes, Files.readAllBytes( file.toPath() ) );
+	}
+
+	/**
+	 * Wrapped bytes are used in place, not copied, until a list grows past
+	 * their end.  The bytes are left unmodified.
+	 */
+	@Test
+	public void testWrap()
+	{
+		final VolatileLabelMultisetArray array = createArray( LongMappedAccessData.factory );
+		final byte[] bytes = array.toBytes();
+		final byte[] copy = bytes.clone();
+
+		final VolatileLabelMultisetArray wrapped = VolatileLabelMultisetArray.wrap( bytes, NUM_LISTS );
+		final LongMappedAccessData listData = ( LongMappedAccessData ) wrapped.getListData();
+		Assert.assertFalse( listData.isOffHeap() );
+		Assert.assertNull( listData.getData() );
+		Assert.assertSame( bytes, listData.base );
+		assertLists( wrapped );
+		Assert.assertArrayEquals( bytes, wrapped.toBytes() );
+
+		final int last = NUM_LISTS - 1;
+		final LabelMultisetEntryList list = new LabelMultisetEntryList();
+		wrapped.getValue( last, list );
+		final LabelMultisetEntry entry = new LabelMultisetEntry( Long.MAX_VALUE, 3 );
+		list.add( entry );
+		ids[ last ] = Arrays.copyOf( ids[ last ], ids[ last ].length + 1 );
+		counts[ last ] = Arrays.copyOf( counts[ last ], counts[ last ].length + 1 );
+		ids[ last ][ ids[ last ].length - 1 ] = Long.MAX_VALUE;
+		counts[ last ][ counts[ last ].length - 1 ] = 3;
+
+		Assert.assertNotNull( listData.getData() );
+		assertLists( wrapped );
+		Assert.assertArrayEquals( copy, bytes );
+
+		/* off-heap lists are copied off-heap */
+		LongMappedAccessData.setDefaultFactory( LongMappedAccessData.directFactory );
+		final VolatileLabelMultisetArray offHeap = VolatileLabelMultisetArray.wrap( copy, NUM_LISTS );
+		Assert.assertTrue( ( ( LongMappedAccessData ) offHeap.getListData() ).isOffHeap() );
+	}
+
+	/**
+	 * Lists that grow one entry at a time move between storages of
+	 * different sizes, heap and off-heap storage hold the same bytes.
+	 */
+	@Test
+	public void testGrowHeapAndOffHeap()
+	{
+		final LongMappedAccessData heap = LongMappedAccessData.factory.createStorage( 1 );
+		final LongMappedAccessData offHeap = LongMappedAccessData.directFactory.createStorage( 1 );
+		final int[] heapOffsets = writeLists( heap );
+		final int[] offHeapOffsets = writeLists( offHeap );
+		Assert.assertArrayEquals( heapOffsets, offHeapOffsets );
+
+		final int usedSize = ( int ) usedSize( heapOffsets, heap );
+		final ByteBuffer heapBytes = ByteBuffer.allocate( usedSize );
+		final ByteBuffer offHeapBytes = ByteBuffer.allocate( usedSize );
+		heap.toByteBuffer( heapBytes, usedSize );
+		offHeap.toByteBuffer( offHeapBytes, usedSize );
+		Assert.assertArrayEquals( heapBytes.array(), offHeapBytes.array() );
+	}
+}
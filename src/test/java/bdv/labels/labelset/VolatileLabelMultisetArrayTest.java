@@ -0,0 +1,142 @@
+package bdv.labels.labelset;
+
+import java.util.Random;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class VolatileLabelMultisetArrayTest
+{
+	static private final int NUM_LISTS = 20;
+
+	static private final int NUM_PIXELS = 1000;
+
+	static private final int MAX_ID = 30;
+
+	private boolean[][] contains;
+
+	private VolatileLabelMultisetArray array;
+
+	private int[] listOfPixel;
+
+	private long[][] queries;
+
+	@Before
+	public void setUp()
+	{
+		final Random rnd = new Random( 9 );
+		contains = new boolean[ NUM_LISTS ][ MAX_ID ];
+		final LongMappedAccessData listData = LongMappedAccessData.factory.createStorage( 16 );
+		final LabelMultisetEntryList list = new LabelMultisetEntryList();
+		final LabelMultisetEntry entry = new LabelMultisetEntry();
+		final int[] offsets = new int[ NUM_LISTS ];
+		long offset = 0;
+		for ( int l = 0; l < NUM_LISTS; ++l )
+		{
+			offsets[ l ] = ( int ) offset;
+			list.createListAt( listData, offset );
+			for ( int id = 0; id < MAX_ID; ++id )
+			{
+				if ( rnd.nextInt( 3 ) == 0 )
+				{
+					contains[ l ][ id ] = true;
+					entry.setId( id );
+					entry.setCount( 1 + rnd.nextInt( 10 ) );
+					list.add( entry );
+				}
+			}
+			offset += list.getSizeInBytes();
+		}
+
+		listOfPixel = new int[ NUM_PIXELS ];
+		final int[] data = new int[ NUM_PIXELS ];
+		for ( int i = 0; i < NUM_PIXELS; ++i )
+		{
+			listOfPixel[ i ] = rnd.nextInt( NUM_LISTS );
+			data[ i ] = offsets[ listOfPixel[ i ] ];
+		}
+		array = new VolatileLabelMultisetArray( data, listData, offset, true );
+
+		/* more distinct queries than there used to be cached */
+		queries = new long[ 12 ][];
+		for ( int q = 0; q < queries.length; ++q )
+		{
+			queries[ q ] = new long[ q % 3 ];
+			for ( int k = 0; k < queries[ q ].length; ++k )
+				queries[ q ][ k ] = rnd.nextInt( MAX_ID );
+		}
+	}
+
+	private boolean expectContainsAny( final int pixel, final long[] ids )
+	{
+		for ( final long id : ids )
+			if ( contains[ listOfPixel[ pixel ] ][ ( int ) id ] )
+				return true;
+		return false;
+	}
+
+	private boolean expectContainsAll( final int pixel, final long[] ids )
+	{
+		for ( final long id : ids )
+			if ( !contains[ listOfPixel[ pixel ] ][ ( int ) id ] )
+				return false;
+		return true;
+	}
+
+	@Test
+	public void testContains()
+	{
+		final LabelMultisetEntryList ref = new LabelMultisetEntryList();
+		for ( int round = 0; round < 2; ++round )
+			for ( int i = 0; i < NUM_PIXELS; ++i )
+				for ( long id = 0; id < MAX_ID; ++id )
+					Assert.assertEquals( contains[ listOfPixel[ i ] ][ ( int ) id ], array.contains( i, id, ref ) );
+
+		/* the ids of a fill are remembered by value */
+		Assert.assertSame( array.getContainsIndex( 3 ), array.getContainsIndex( 3 ) );
+		final LabelMultisetContainsIndex index = array.getContainsIndex( 3 );
+		array.getContainsIndex( 4 );
+		Assert.assertSame( index, array.getContainsIndex( 3 ) );
+	}
+
+	@Test
+	public void testContainsAny()
+	{
+		final LabelMultisetEntryList ref = new LabelMultisetEntryList();
+		for ( int round = 0; round < 2; ++round )
+			for ( int i = 0; i < NUM_PIXELS; ++i )
+				for ( final long[] ids : queries )
+					Assert.assertEquals( expectContainsAny( i, ids ), array.containsAny( i, ids, ref ) );
+
+		/* interleaved queries do not replace each other's indices */
+		final LabelMultisetContainsIndex[] indices = new LabelMultisetContainsIndex[ queries.length ];
+		for ( int q = 0; q < queries.length; ++q )
+			indices[ q ] = array.getContainsAnyIndex( queries[ q ] );
+		for ( int q = 0; q < queries.length; ++q )
+		{
+			Assert.assertSame( indices[ q ], array.getContainsAnyIndex( queries[ q ] ) );
+			Assert.assertFalse( indices[ q ].isAll() );
+		}
+	}
+
+	@Test
+	public void testContainsAll()
+	{
+		final LabelMultisetEntryList ref = new LabelMultisetEntryList();
+		for ( int round = 0; round < 2; ++round )
+			for ( int i = 0; i < NUM_PIXELS; ++i )
+				for ( final long[] ids : queries )
+				{
+					Assert.assertEquals( expectContainsAll( i, ids ), array.containsAll( i, ids, ref ) );
+					/* the same array queried for any has its own index */
+					Assert.assertEquals( expectContainsAny( i, ids ), array.containsAny( i, ids, ref ) );
+				}
+
+		for ( final long[] ids : queries )
+		{
+			Assert.assertNotSame( array.getContainsAnyIndex( ids ), array.getContainsAllIndex( ids ) );
+			Assert.assertTrue( array.getContainsAllIndex( ids ).isAll() );
+		}
+	}
+}
@@ -0,0 +1,143 @@
+package bdv.util;
+
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import net.imglib2.Point;
+import net.imglib2.algorithm.fill.Filter;
+import net.imglib2.algorithm.fill.FloodFill;
+import net.imglib2.algorithm.neighborhood.DiamondShape;
+import net.imglib2.img.array.ArrayImg;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.img.basictypeaccess.array.ByteArray;
+import net.imglib2.type.numeric.integer.UnsignedByteType;
+import net.imglib2.util.Pair;
+import net.imglib2.util.ValuePair;
+import net.imglib2.view.Views;
+
+/**
+ * Compares {@link BlockParallelFill} with imglib2's {@link FloodFill} on a
+ * synthetic 512^3 label volume in which 80% of the voxels have the label of
+ * the seed.  Run with main, needs about 2GB of heap.
+ */
+@State( Scope.Benchmark )
+@BenchmarkMode( Mode.AverageTime )
+@OutputTimeUnit( TimeUnit.MILLISECONDS )
+@Warmup( iterations = 2 )
+@Measurement( iterations = 5 )
+@Fork( value = 1, jvmArgs = { "-Xmx2g" } )
+public class BlockParallelFillBenchmark
+{
+	static private final int SIZE = 512;
+
+	static private final int[] CELL_DIMENSIONS = new int[]{ 64, 64, 64 };
+
+	static private final long[] SEED = new long[]{ SIZE / 2, SIZE / 2, SIZE / 2 };
+
+	static private final Filter< Pair< UnsignedByteType, UnsignedByteType >, Pair< UnsignedByteType, UnsignedByteType > > FILTER =
+			( current, reference ) -> current.getA().get() == reference.getA().get() && current.getB().get() != reference.getB().get();
+
+	private ArrayImg< UnsignedByteType, ByteArray > labels;
+
+	private ArrayImg< UnsignedByteType, ByteArray > canvas;
+
+	@State( Scope.Benchmark )
+	static public class Threads
+	{
+		@Param( { "1", "4", "16" } )
+		public int numThreads;
+
+		ForkJoinPool pool;
+
+		@Setup
+		public void setup()
+		{
+			pool = new ForkJoinPool( numThreads );
+		}
+
+		@TearDown
+		public void tearDown()
+		{
+			pool.shutdown();
+		}
+	}
+
+	@Setup
+	public void setup()
+	{
+		final Random rnd = new Random( 16 );
+		final byte[] data = new byte[ SIZE * SIZE * SIZE ];
+		for ( int i = 0; i < data.length; ++i )
+			data[ i ] = ( byte ) ( rnd.nextInt( 10 ) < 8 ? 1 : 2 );
+		data[ ( int ) ( ( SEED[ 2 ] * SIZE + SEED[ 1 ] ) * SIZE + SEED[ 0 ] ) ] = 1;
+		labels = ArrayImgs.unsignedBytes( data, SIZE, SIZE, SIZE );
+		canvas = ArrayImgs.unsignedBytes( SIZE, SIZE, SIZE );
+	}
+
+	@Setup( Level.Invocation )
+	public void clearCanvas()
+	{
+		for ( final UnsignedByteType t : canvas )
+			t.setZero();
+	}
+
+	private ValuePair< UnsignedByteType, UnsignedByteType > reference()
+	{
+		return new ValuePair<>( new UnsignedByteType( 1 ), new UnsignedByteType( 1 ) );
+	}
+
+	@Benchmark
+	public void floodFill()
+	{
+		final ValuePair< UnsignedByteType, UnsignedByteType > reference = reference();
+		FloodFill.fill(
+				Views.extendZero( labels ),
+				Views.extendZero( canvas ),
+				new Point( SEED ),
+				reference.getA(),
+				reference.getB(),
+				new DiamondShape( 1 ),
+				FILTER );
+	}
+
+	@Benchmark
+	public void blockParallelFill( final Threads threads )
+	{
+		BlockParallelFill.fill(
+				labels,
+				canvas,
+				SEED,
+				reference(),
+				FILTER,
+				( s, t ) -> t.set( 1 ),
+				labels,
+				CELL_DIMENSIONS,
+				Long.MAX_VALUE,
+				threads.pool,
+				null,
+				null );
+	}
+
+	public static void main( final String[] args ) throws RunnerException
+	{
+		new Runner( new OptionsBuilder().include( BlockParallelFillBenchmark.class.getSimpleName() ).build() ).run();
+	}
+}
@@ -0,0 +1,156 @@
+package bdv.util;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+import org.junit.Test;
+
+import net.imglib2.Cursor;
+import net.imglib2.FinalInterval;
+import net.imglib2.algorithm.fill.Filter;
+import net.imglib2.algorithm.neighborhood.DiamondShape;
+import net.imglib2.img.array.ArrayImg;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.img.basictypeaccess.array.LongArray;
+import net.imglib2.type.numeric.integer.LongType;
+import net.imglib2.util.Pair;
+import net.imglib2.util.ValuePair;
+import net.imglib2.view.Views;
+
+/**
+ * Compares {@link BlockParallelFill} with {@link FloodFillEngine} on random
+ * labels.
+ */
+public class BlockParallelFillTest
+{
+	static private final Filter< Pair< LongType, LongType >, Pair< LongType, LongType > > FILTER =
+			( current, reference ) -> current.getA().get() == reference.getA().get() && current.getB().get() != reference.getB().get();
+
+	static private final ForkJoinPool POOL = new ForkJoinPool( 4 );
+
+	static ArrayImg< LongType, LongArray > randomLabels( final Random rnd, final long... dimensions )
+	{
+		final ArrayImg< LongType, LongArray > labels = ArrayImgs.longs( dimensions );
+		for ( final LongType t : labels )
+			t.set( rnd.nextInt( 10 ) < 7 ? 1 : 2 );
+		return labels;
+	}
+
+	static void assertImgEquals( final ArrayImg< LongType, LongArray > expected, final ArrayImg< LongType, LongArray > actual )
+	{
+		final Cursor< LongType > e = expected.cursor();
+		final Cursor< LongType > a = actual.cursor();
+		while ( e.hasNext() )
+			assertEquals( e.next().get(), a.next().get() );
+	}
+
+	@Test
+	public void testSameAsFloodFillEngine()
+	{
+		final Random rnd = new Random( 16 );
+		for ( int i = 0; i < 20; ++i )
+		{
+			final long[] dimensions = new long[]{ 10 + rnd.nextInt( 50 ), 10 + rnd.nextInt( 50 ), 1 + rnd.nextInt( 30 ) };
+			final int[] cellDimensions = new int[]{ 1 + rnd.nextInt( 16 ), 1 + rnd.nextInt( 16 ), 1 + rnd.nextInt( 8 ) };
+			final long[] seed = new long[ 3 ];
+			for ( int d = 0; d < 3; ++d )
+				seed[ d ] = rnd.nextInt( ( int ) dimensions[ d ] );
+			final ArrayImg< LongType, LongArray > labels = randomLabels( rnd, dimensions );
+			final Pair< LongType, LongType > reference = new ValuePair<>( new LongType( 1 ), new LongType( 5 ) );
+
+			final ArrayImg< LongType, LongArray > expected = ArrayImgs.longs( dimensions );
+			FloodFillEngine.fill(
+					Views.extendValue( labels, new LongType( 0 ) ),
+					Views.extendValue( expected, new LongType( 0 ) ),
+					seed,
+					reference,
+					new DiamondShape( 1 ),
+					FILTER,
+					( s, t ) -> t.set( 5 ),
+					expected,
+					Long.MAX_VALUE,
+					null,
+					null );
+
+			final ArrayImg< LongType, LongArray > canvas = ArrayImgs.longs( dimensions );
+			final FloodFillEngine.Status status = BlockParallelFill.fill(
+					labels,
+					canvas,
+					seed,
+					reference,
+					FILTER,
+					( s, t ) -> t.set( 5 ),
+					canvas,
+					cellDimensions,
+					Long.MAX_VALUE,
+					POOL,
+					null,
+					null );
+
+			assertEquals( FloodFillEngine.Status.COMPLETE, status );
+			assertImgEquals( expected, canvas );
+		}
+	}
+
+	@Test
+	public void testBoundsAndBudget()
+	{
+		final ArrayImg< LongType, LongArray > labels = ArrayImgs.longs( 64, 48, 40 );
+		for ( final LongType t : labels )
+			t.set( 1 );
+		final Pair< LongType, LongType > reference = new ValuePair<>( new LongType( 1 ), new LongType( 5 ) );
+		final long[] seed = new long[]{ 32, 24, 20 };
+
+		final ArrayImg< LongType, LongArray > bounded = ArrayImgs.longs( 64, 48, 40 );
+		assertEquals(
+				FloodFillEngine.Status.COMPLETE,
+				BlockParallelFill.fill( labels, bounded, seed, reference, FILTER, ( s, t ) -> t.set( 5 ), new FinalInterval( new long[]{ 30, 20, 10 }, new long[]{ 39, 29, 29 } ), new int[]{ 8, 8, 8 }, Long.MAX_VALUE, POOL, null, null ) );
+		long numFilled = 0;
+		for ( final LongType t : bounded )
+			if ( t.get() == 5 )
+				++numFilled;
+		assertEquals( 10 * 10 * 20, numFilled );
+
+		final ArrayImg< LongType, LongArray > budget = ArrayImgs.longs( 64, 48, 40 );
+		assertEquals(
+				FloodFillEngine.Status.BUDGET_EXCEEDED,
+				BlockParallelFill.fill( labels, budget, seed, reference, FILTER, ( s, t ) -> t.set( 5 ), budget, new int[]{ 8, 8, 8 }, 1000, POOL, null, null ) );
+		numFilled = 0;
+		for ( final LongType t : budget )
+			if ( t.get() == 5 )
+				++numFilled;
+		assertEquals( 1000, numFilled );
+	}
+
+	/**
+	 * A fill of exactly the budget is complete, also when the last span
+	 * uses it up.
+	 */
+	@Test
+	public void testExactBudget()
+	{
+		final ArrayImg< LongType, LongArray > labels = ArrayImgs.longs( 64, 48, 40 );
+		for ( final LongType t : labels )
+			t.set( 1 );
+		final Pair< LongType, LongType > reference = new ValuePair<>( new LongType( 1 ), new LongType( 5 ) );
+		final long[] seed = new long[]{ 32, 24, 20 };
+		final FinalInterval bounds = new FinalInterval( new long[]{ 30, 20, 10 }, new long[]{ 39, 29, 29 } );
+
+		for ( final int[] cellDimensions : new int[][]{ { 8, 8, 8 }, { 64, 48, 40 } } )
+		{
+			final ArrayImg< LongType, LongArray > exact = ArrayImgs.longs( 64, 48, 40 );
+			assertEquals(
+					FloodFillEngine.Status.COMPLETE,
+					BlockParallelFill.fill( labels, exact, seed, reference, FILTER, ( s, t ) -> t.set( 5 ), bounds, cellDimensions, 10 * 10 * 20, POOL, null, null ) );
+			assertEquals( 10 * 10 * 20, FloodFillEngineTest.count( exact ) );
+
+			final ArrayImg< LongType, LongArray > oneShort = ArrayImgs.longs( 64, 48, 40 );
+			assertEquals(
+					FloodFillEngine.Status.BUDGET_EXCEEDED,
+					BlockParallelFill.fill( labels, oneShort, seed, reference, FILTER, ( s, t ) -> t.set( 5 ), bounds, cellDimensions, 10 * 10 * 20 - 1, POOL, null, null ) );
+			assertEquals( 10 * 10 * 20 - 1, FloodFillEngineTest.count( oneShort ) );
+		}
+	}
+}
@@ -0,0 +1,164 @@
+package bdv.util;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+
+import org.junit.Test;
+
+import net.imglib2.Cursor;
+import net.imglib2.FinalInterval;
+import net.imglib2.Point;
+import net.imglib2.RandomAccess;
+import net.imglib2.algorithm.fill.FloodFill;
+import net.imglib2.algorithm.neighborhood.DiamondShape;
+import net.imglib2.img.array.ArrayImg;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.img.basictypeaccess.array.LongArray;
+import net.imglib2.type.numeric.integer.LongType;
+import net.imglib2.util.ValuePair;
+import net.imglib2.view.Views;
+
+/**
+ * Compares {@link FloodFillEngine} with imglib2's {@link FloodFill} on random
+ * labels and checks bounds, budget, and cancellation.
+ */
+public class FloodFillEngineTest
+{
+	static ArrayImg< LongType, LongArray > randomLabels( final long seed )
+	{
+		final Random rnd = new Random( seed );
+		final ArrayImg< LongType, LongArray > labels = ArrayImgs.longs( 64, 48, 40 );
+		for ( final LongType t : labels )
+			t.set( rnd.nextInt( 10 ) < 7 ? 1 : 2 );
+		return labels;
+	}
+
+	static FloodFillEngine.Status fill( final ArrayImg< LongType, LongArray > labels, final ArrayImg< LongType, LongArray > canvas, final FinalInterval bounds, final long maxNumFilled, final FloodFillEngine.Cancellation cancellation, final FloodFillEngine.Listener listener )
+	{
+		return FloodFillEngine.fill(
+				Views.extendValue( labels, new LongType( 0 ) ),
+				Views.extendValue( canvas, new LongType( 0 ) ),
+				new long[]{ 32, 24, 20 },
+				new ValuePair<>( new LongType( 1 ), new LongType( 5 ) ),
+				new DiamondShape( 1 ),
+				( current, reference ) -> current.getA().get() == reference.getA().get() && current.getB().get() != reference.getB().get(),
+				( s, t ) -> t.set( 5 ),
+				bounds == null ? canvas : bounds,
+				maxNumFilled,
+				cancellation,
+				listener );
+	}
+
+	static long count( final ArrayImg< LongType, LongArray > canvas )
+	{
+		long n = 0;
+		for ( final LongType t : canvas )
+			if ( t.get() == 5 )
+				++n;
+		return n;
+	}
+
+	@Test
+	public void testSameAsFloodFill()
+	{
+		final ArrayImg< LongType, LongArray > labels = randomLabels( 15 );
+		final RandomAccess< LongType > access = labels.randomAccess();
+		access.setPosition( new long[]{ 32, 24, 20 } );
+		access.get().set( 1 );
+
+		final ArrayImg< LongType, LongArray > expected = ArrayImgs.longs( 64, 48, 40 );
+		FloodFill.fill(
+				Views.extendValue( labels, new LongType( 0 ) ),
+				Views.extendValue( expected, new LongType( 0 ) ),
+				new Point( 32, 24, 20 ),
+				new LongType( 1 ),
+				new LongType( 5 ),
+				new DiamondShape( 1 ),
+				( current, reference ) -> current.getA().get() == reference.getA().get() && current.getB().get() != reference.getB().get() );
+
+		final ArrayImg< LongType, LongArray > canvas = ArrayImgs.longs( 64, 48, 40 );
+		final long[] reported = new long[ 1 ];
+		final FloodFillEngine.Status status = fill( labels, canvas, null, Long.MAX_VALUE, null, new FloodFillEngine.Listener()
+		{
+			@Override
+			public void progress( final long numFilled )
+			{}
+
+			@Override
+			public void finished( final FloodFillEngine.Status status, final long numFilled )
+			{
+				reported[ 0 ] = numFilled;
+			}
+		} );
+
+		assertEquals( FloodFillEngine.Status.COMPLETE, status );
+		final Cursor< LongType > e = expected.cursor();
+		final Cursor< LongType > c = canvas.cursor();
+		while ( e.hasNext() )
+			assertEquals( e.next().get(), c.next().get() );
+		assertEquals( count( canvas ), reported[ 0 ] );
+	}
+
+	@Test
+	public void testBoundsAndBudget()
+	{
+		final ArrayImg< LongType, LongArray > labels = ArrayImgs.longs( 64, 48, 40 );
+		for ( final LongType t : labels )
+			t.set( 1 );
+
+		final ArrayImg< LongType, LongArray > bounded = ArrayImgs.longs( 64, 48, 40 );
+		assertEquals( FloodFillEngine.Status.COMPLETE, fill( labels, bounded, new FinalInterval( new long[]{ 30, 20, 10 }, new long[]{ 39, 29, 29 } ), Long.MAX_VALUE, null, null ) );
+		assertEquals( 10 * 10 * 20, count( bounded ) );
+
+		final ArrayImg< LongType, LongArray > budget = ArrayImgs.longs( 64, 48, 40 );
+		assertEquals( FloodFillEngine.Status.BUDGET_EXCEEDED, fill( labels, budget, null, 1000, null, null ) );
+		assertEquals( 1000, count( budget ) );
+	}
+
+	/**
+	 * A fill of exactly the budget is complete.
+	 */
+	@Test
+	public void testExactBudget()
+	{
+		final ArrayImg< LongType, LongArray > labels = ArrayImgs.longs( 64, 48, 40 );
+		for ( final LongType t : labels )
+			t.set( 1 );
+		final FinalInterval bounds = new FinalInterval( new long[]{ 30, 20, 10 }, new long[]{ 39, 29, 29 } );
+
+		final ArrayImg< LongType, LongArray > exact = ArrayImgs.longs( 64, 48, 40 );
+		assertEquals( FloodFillEngine.Status.COMPLETE, fill( labels, exact, bounds, 10 * 10 * 20, null, null ) );
+		assertEquals( 10 * 10 * 20, count( exact ) );
+
+		final ArrayImg< LongType, LongArray > oneShort = ArrayImgs.longs( 64, 48, 40 );
+		assertEquals( FloodFillEngine.Status.BUDGET_EXCEEDED, fill( labels, oneShort, bounds, 10 * 10 * 20 - 1, null, null ) );
+		assertEquals( 10 * 10 * 20 - 1, count( oneShort ) );
+	}
+
+	@Test
+	public void testCancel() throws Exception
+	{
+		final ArrayImg< LongType, LongArray > labels = ArrayImgs.longs( 64, 48, 40 );
+		for ( final LongType t : labels )
+			t.set( 1 );
+		final ArrayImg< LongType, LongArray > canvas = ArrayImgs.longs( 64, 48, 40 );
+
+		final FloodFillEngine engine = new FloodFillEngine();
+		final CountDownLatch started = new CountDownLatch( 1 );
+		final Future< FloodFillEngine.Status > status = engine.submit( cancellation -> {
+			started.countDown();
+			while ( !cancellation.isCancelled() )
+				Thread.yield();
+			return fill( labels, canvas, null, Long.MAX_VALUE, cancellation, null );
+		} );
+		started.await();
+		while ( !engine.cancel() )
+			Thread.yield();
+
+		assertEquals( FloodFillEngine.Status.CANCELLED, status.get() );
+		assertEquals( 1, count( canvas ) );
+	}
+}
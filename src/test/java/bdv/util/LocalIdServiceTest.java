@@ -36,4 +36,15 @@ public class LocalIdServiceTest
 		Assert.assertArrayEquals( ids, generatedIds );
 	}
 
+	@Test
+	public void testPeek()
+	{
+		final LocalIdService service = new LocalIdService();
+		service.setNext( 10 );
+		Assert.assertEquals( 10, service.peek() );
+		Assert.assertEquals( 10, service.peek() );
+		Assert.assertEquals( 10, service.next() );
+		Assert.assertEquals( 11, service.peek() );
+	}
+
 }
@@ -0,0 +1,84 @@
+package bdv.util;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.util.Random;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import gnu.trove.map.hash.TLongLongHashMap;
+
+public class LutStreamsTest
+{
+	static private TLongLongHashMap createLut()
+	{
+		final Random rnd = new Random( 0 );
+		final TLongLongHashMap lut = new TLongLongHashMap();
+		for ( long id = 0; id < 10000; ++id )
+			lut.put( id, id / 7 );
+		for ( int i = 0; i < 1000; ++i )
+			lut.put( rnd.nextLong(), rnd.nextLong() );
+		lut.put( Long.MAX_VALUE, Long.MIN_VALUE );
+		lut.put( Long.MIN_VALUE, Long.MAX_VALUE );
+		lut.put( -1, 0 );
+		return lut;
+	}
+
+	@Test
+	public void testBinary() throws IOException
+	{
+		final TLongLongHashMap lut = createLut();
+		for ( final boolean compress : new boolean[]{ false, true } )
+		{
+			final ByteArrayOutputStream out = new ByteArrayOutputStream();
+			LutStreams.writeBinary( lut, out, compress );
+			final TLongLongHashMap lut2 = LutStreams.readBinary( new ByteArrayInputStream( out.toByteArray() ) );
+			Assert.assertEquals( lut, lut2 );
+		}
+	}
+
+	/**
+	 * A huge size in a tiny stream ends with an exception, not by running
+	 * out of memory.
+	 */
+	@Test
+	public void testMalformedBinary() throws IOException
+	{
+		final ByteArrayOutputStream out = new ByteArrayOutputStream();
+		new DataOutputStream( out ).writeInt( LutStreams.MAGIC );
+		out.write( 0 );
+		LutStreams.writeVarLong( out, Integer.MAX_VALUE );
+		LutStreams.writeVarLong( out, 1 );
+		try
+		{
+			LutStreams.readBinary( new ByteArrayInputStream( out.toByteArray() ) );
+			Assert.fail();
+		}
+		catch ( final IOException e )
+		{}
+	}
+
+	@Test
+	public void testJson() throws IOException
+	{
+		final TLongLongHashMap lut = createLut();
+		final StringWriter out = new StringWriter();
+		LutStreams.writeJson( lut, out );
+		Assert.assertEquals( lut, LutStreams.readJson( new StringReader( out.toString() ) ) );
+
+		final TLongLongHashMap lut2 = LutStreams.readJson( new StringReader(
+				"{\"ilut\":{\"5\":[1,2],\"6\":[3]},\"other\":[1,{\"a\":2}]}" ) );
+		Assert.assertEquals( 3, lut2.size() );
+		Assert.assertEquals( 5, lut2.get( 2 ) );
+		Assert.assertEquals( 6, lut2.get( 3 ) );
+
+		final TLongLongHashMap lut3 = LutStreams.readJson( new StringReader(
+				"{\"segments\":[5,5,6],\"fragments\":[1,2,3]}" ) );
+		Assert.assertEquals( lut2, lut3 );
+	}
+}
@@ -0,0 +1,127 @@
+package bdv.util.http;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Blocks per second fetched from the local stub DVID server, 64x64x8 uint64
+ * labels per block, by 1, 4 and 16 fetcher threads.  Each request opens a
+ * connection and disconnects it afterwards (as HttpRequest did before), or
+ * goes through a {@link PooledHttpClient} that keeps connections alive.
+ *
+ * The stub server runs with TCP_NODELAY, otherwise delayed ACKs dominate
+ * both variants.
+ */
+@State( Scope.Benchmark )
+@BenchmarkMode( Mode.Throughput )
+@OutputTimeUnit( TimeUnit.SECONDS )
+@Warmup( iterations = 3 )
+@Measurement( iterations = 5 )
+@Fork( value = 1, jvmArgsAppend = { "-Dsun.net.httpserver.nodelay=true", "-Dhttp.maxConnections=16" } )
+public class PooledHttpClientBenchmark
+{
+	static private final int BLOCK_SIZE = 64 * 64 * 8 * 8;
+
+	static private final int NUM_BLOCKS = 256;
+
+	@Param( { "1", "4", "16" } )
+	public int numFetchers;
+
+	@Param( { "false", "true" } )
+	public boolean pooled;
+
+	private PooledHttpClientTest.StubDvidServer server;
+
+	private PooledHttpClient client;
+
+	private ExecutorService fetchers;
+
+	private String url;
+
+	@Setup
+	public void setup() throws IOException
+	{
+		server = new PooledHttpClientTest.StubDvidServer();
+		client = new PooledHttpClient( 16, 10000, 10000, 0, 1 );
+		url = server.url( "/key/block" );
+		client.post( url, new byte[ BLOCK_SIZE ], "application/octet-stream" );
+		fetchers = Executors.newFixedThreadPool( numFetchers );
+	}
+
+	@TearDown
+	public void tearDown()
+	{
+		fetchers.shutdown();
+		server.stop();
+	}
+
+	/* reads the block but not the end of the stream, and disconnects */
+	private int getAndDisconnect( final byte[] buffer ) throws IOException
+	{
+		final HttpURLConnection connection = ( HttpURLConnection ) new URL( url ).openConnection();
+		try
+		{
+			final InputStream in = connection.getInputStream();
+			int off = 0;
+			for ( int l = in.read( buffer, off, buffer.length - off ); l > 0; l = in.read( buffer, off, buffer.length - off ) )
+				off += l;
+			return off;
+		}
+		finally
+		{
+			connection.disconnect();
+		}
+	}
+
+	@Benchmark
+	@OperationsPerInvocation( NUM_BLOCKS )
+	public long fetchBlocks() throws InterruptedException, ExecutionException
+	{
+		final ArrayList< Future< Integer > > fetches = new ArrayList<>();
+		for ( int i = 0; i < NUM_BLOCKS; ++i )
+			fetches.add( fetchers.submit( new Callable< Integer >()
+			{
+				@Override
+				public Integer call() throws IOException
+				{
+					final byte[] buffer = new byte[ BLOCK_SIZE ];
+					return pooled ? client.get( url, buffer ) : getAndDisconnect( buffer );
+				}
+			} ) );
+		long sum = 0;
+		for ( final Future< Integer > fetch : fetches )
+			sum += fetch.get();
+		return sum;
+	}
+
+	public static void main( final String[] args ) throws RunnerException
+	{
+		new Runner( new OptionsBuilder().include( PooledHttpClientBenchmark.class.getSimpleName() ).build() ).run();
+	}
+}
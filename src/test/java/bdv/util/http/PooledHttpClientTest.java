@@ -0,0 +1,260 @@
+package bdv.util.http;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.Collections;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.xml.ws.http.HTTPException;
+
+import org.junit.Test;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Runs {@link PooledHttpClient} against a local stub of DVID's keyvalue
+ * API.
+ */
+public class PooledHttpClientTest
+{
+	/**
+	 * Stores posted values under /key/&lt;key&gt;, answers /busy/&lt;n&gt;
+	 * with 503 n times before succeeding, and /chunked/&lt;n&gt; with n bytes
+	 * in chunked transfer encoding.
+	 */
+	static class StubDvidServer implements HttpHandler
+	{
+		final HttpServer server;
+
+		final ConcurrentHashMap< String, byte[] > values = new ConcurrentHashMap<>();
+
+		final AtomicInteger busy = new AtomicInteger();
+
+		final AtomicInteger numRequests = new AtomicInteger();
+
+		final Set< Integer > clientPorts = Collections.newSetFromMap( new ConcurrentHashMap< Integer, Boolean >() );
+
+		StubDvidServer() throws IOException
+		{
+			server = HttpServer.create( new InetSocketAddress( "localhost", 0 ), 0 );
+			server.createContext( "/", this );
+			server.start();
+		}
+
+		String url( final String path )
+		{
+			return "http://localhost:" + server.getAddress().getPort() + path;
+		}
+
+		void stop()
+		{
+			server.stop( 0 );
+		}
+
+		@Override
+		public void handle( final HttpExchange exchange ) throws IOException
+		{
+			clientPorts.add( exchange.getRemoteAddress().getPort() );
+			numRequests.incrementAndGet();
+			final String[] path = exchange.getRequestURI().getPath().split( "/" );
+			final InputStream in = exchange.getRequestBody();
+			final ByteArrayOutputStream body = new ByteArrayOutputStream();
+			final byte[] buffer = new byte[ 1024 ];
+			for ( int l = in.read( buffer ); l >= 0; l = in.read( buffer ) )
+				body.write( buffer, 0, l );
+			in.close();
+
+			if ( path[ 1 ].equals( "key" ) )
+			{
+				if ( exchange.getRequestMethod().equals( HttpRequest.POST ) )
+				{
+					values.put( path[ 2 ], body.toByteArray() );
+					respond( exchange, 200, new byte[ 0 ], false );
+				}
+				else
+				{
+					final byte[] value = values.get( path[ 2 ] );
+					if ( value == null )
+						respond( exchange, 400, "no such key".getBytes(), false );
+					else
+						respond( exchange, 200, value, false );
+				}
+			}
+			else if ( path[ 1 ].equals( "busy" ) )
+			{
+				if ( busy.incrementAndGet() <= Integer.parseInt( path[ 2 ] ) )
+					respond( exchange, 503, new byte[ 0 ], false );
+				else
+					respond( exchange, 200, new byte[] { 42 }, false );
+			}
+			else if ( path[ 1 ].equals( "chunked" ) )
+			{
+				final byte[] value = new byte[ Integer.parseInt( path[ 2 ] ) ];
+				for ( int i = 0; i < value.length; ++i )
+					value[ i ] = ( byte ) i;
+				respond( exchange, 200, value, true );
+			}
+			else
+				respond( exchange, 404, new byte[ 0 ], false );
+		}
+
+		static void respond( final HttpExchange exchange, final int status, final byte[] value, final boolean chunked ) throws IOException
+		{
+			exchange.sendResponseHeaders( status, chunked ? 0 : value.length == 0 ? -1 : value.length );
+			final OutputStream out = exchange.getResponseBody();
+			out.write( value );
+			out.close();
+		}
+	}
+
+	@Test
+	public void testPostGet() throws IOException
+	{
+		final StubDvidServer server = new StubDvidServer();
+		try
+		{
+			final PooledHttpClient client = new PooledHttpClient( 4, 1000, 1000, 2, 1 );
+			final byte[] value = new byte[ 64 * 64 * 8 ];
+			new Random( 1 ).nextBytes( value );
+			client.post( server.url( "/key/a" ), value, "application/octet-stream" );
+			assertArrayEquals( value, client.get( server.url( "/key/a" ) ) );
+
+			final byte[] buffer = new byte[ value.length ];
+			assertEquals( value.length, client.get( server.url( "/key/a" ), buffer ) );
+			assertArrayEquals( value, buffer );
+
+			client.post( server.url( "/key/b" ), new long[] { 1, 2 }, "application/octet-stream", new HttpRequest.LongArrayWriter() );
+			assertEquals( 16, client.get( server.url( "/key/b" ) ).length );
+
+			final byte[] chunked = client.get( server.url( "/chunked/10000" ) );
+			assertEquals( 10000, chunked.length );
+			assertEquals( ( byte ) 9999, chunked[ 9999 ] );
+		}
+		finally
+		{
+			server.stop();
+		}
+	}
+
+	@Test
+	public void testErrors() throws IOException
+	{
+		final StubDvidServer server = new StubDvidServer();
+		try
+		{
+			final PooledHttpClient client = new PooledHttpClient( 4, 1000, 1000, 2, 1 );
+			try
+			{
+				client.get( server.url( "/key/missing" ) );
+				fail( "expected HTTPException" );
+			}
+			catch ( final HTTPException e )
+			{
+				assertEquals( 400, e.getStatusCode() );
+			}
+
+			assertArrayEquals( new byte[] { 42 }, client.get( server.url( "/busy/2" ) ) );
+
+			server.busy.set( 0 );
+			try
+			{
+				client.get( server.url( "/busy/3" ) );
+				fail( "expected HTTPException" );
+			}
+			catch ( final HTTPException e )
+			{
+				assertEquals( 503, e.getStatusCode() );
+			}
+		}
+		finally
+		{
+			server.stop();
+		}
+	}
+
+	@Test
+	public void testPostNotRetried() throws IOException
+	{
+		final StubDvidServer server = new StubDvidServer();
+		try
+		{
+			final PooledHttpClient client = new PooledHttpClient( 4, 1000, 1000, 2, 1 );
+			try
+			{
+				client.post( server.url( "/busy/1" ), new byte[] { 1 }, "application/octet-stream" );
+				fail( "expected HTTPException" );
+			}
+			catch ( final HTTPException e )
+			{
+				assertEquals( 503, e.getStatusCode() );
+			}
+			assertEquals( 1, server.numRequests.get() );
+		}
+		finally
+		{
+			server.stop();
+		}
+	}
+
+	@Test
+	public void testBufferTooShort() throws IOException
+	{
+		final StubDvidServer server = new StubDvidServer();
+		try
+		{
+			final PooledHttpClient client = new PooledHttpClient( 4, 1000, 1000, 2, 1 );
+			client.post( server.url( "/key/a" ), new byte[ 100 ], "application/octet-stream" );
+			for ( final String path : new String[] { "/key/a", "/chunked/100" } )
+			{
+				server.numRequests.set( 0 );
+				try
+				{
+					client.get( server.url( path ), new byte[ 99 ] );
+					fail( "expected IOException" );
+				}
+				catch ( final IOException e )
+				{
+					assertEquals( 1, server.numRequests.get() );
+				}
+			}
+			assertEquals( 100, client.get( server.url( "/chunked/100" ), new byte[ 100 ] ) );
+		}
+		finally
+		{
+			server.stop();
+		}
+	}
+
+	@Test
+	public void testConnectionReuse() throws IOException
+	{
+		final StubDvidServer server = new StubDvidServer();
+		try
+		{
+			final PooledHttpClient client = new PooledHttpClient( 4, 1000, 1000, 2, 1 );
+			final byte[] value = new byte[ 4096 ];
+			client.post( server.url( "/key/a" ), value, "application/octet-stream" );
+			final byte[] buffer = new byte[ value.length ];
+			for ( int i = 0; i < 100; ++i )
+				client.get( server.url( "/key/a" ), buffer );
+			assertTrue( server.clientPorts.size() < 10 );
+		}
+		finally
+		{
+			server.stop();
+		}
+	}
+}